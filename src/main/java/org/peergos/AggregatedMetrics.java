@@ -31,6 +31,10 @@ public class AggregatedMetrics {
     public static final Counter API_BLOOM_ADD  = build("api_bloom_add", "Total calls to bloom/add.");
     public static final Counter API_FIND_PROVS  = build("api_dht_findprovs", "Total calls to dht/findprovs.");
     public static final Counter API_IPNS_GET  = build("api_ipns_get", "Total calls to ipns/get.");
+    public static final Counter API_PIN_ADD  = build("api_pin_add", "Total calls to pin/add.");
+    public static final Counter API_PIN_RM  = build("api_pin_rm", "Total calls to pin/rm.");
+    public static final Counter API_PIN_LS  = build("api_pin_ls", "Total calls to pin/ls.");
+    public static final Counter API_REPO_GC  = build("api_repo_gc", "Total calls to repo/gc.");
 
     public static void startExporter(String address, int port) throws IOException {
         LOG.info("Starting metrics server at " + address + ":" + port);
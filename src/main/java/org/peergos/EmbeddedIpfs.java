@@ -12,18 +12,30 @@ import io.libp2p.core.multiformats.Multiaddr;
 import io.libp2p.core.multistream.ProtocolBinding;
 import io.libp2p.discovery.MDnsDiscovery;
 import io.libp2p.protocol.Ping;
+import org.peergos.blockstore.AbsentFilter;
 import org.peergos.blockstore.Blockstore;
 import org.peergos.blockstore.FileBlockstore;
 import org.peergos.blockstore.FilteredBlockstore;
+import org.peergos.blockstore.PackBlockstore;
+import org.peergos.blockstore.PersistentFilter;
 import org.peergos.blockstore.ProvidingBlockstore;
+import org.peergos.blockstore.TieredBlockstore;
 import org.peergos.blockstore.TypeLimitedBlockstore;
+import org.peergos.blockstore.filters.bitmap.BitmapFactory;
+import org.peergos.blockstore.filters.bitmap.OffHeapBitmap;
 import org.peergos.blockstore.metadatadb.BlockMetadataStore;
 import org.peergos.blockstore.metadatadb.CachingBlockMetadataStore;
+import org.peergos.blockstore.metadatadb.HotBlockMetadataStore;
 import org.peergos.blockstore.metadatadb.JdbcBlockMetadataStore;
+import org.peergos.blockstore.metadatadb.MVStoreBlockMetadataStore;
+import org.peergos.blockstore.metadatadb.MetadataBackfill;
+import org.peergos.blockstore.metadatadb.sql.BlockMetadataSqlSupplier;
 import org.peergos.blockstore.metadatadb.sql.H2BlockMetadataCommands;
-import org.peergos.blockstore.metadatadb.sql.UncloseableConnection;
+import org.peergos.blockstore.metadatadb.sql.PostgresBlockMetadataCommands;
 import org.peergos.blockstore.s3.S3Blockstore;
+import org.peergos.config.BlockCache;
 import org.peergos.config.Config;
+import org.peergos.config.Filter;
 import org.peergos.config.FilterType;
 import org.peergos.config.IdentitySection;
 import org.peergos.net.ConnectionException;
@@ -42,12 +54,11 @@ import org.peergos.protocol.dht.RecordStore;
 import org.peergos.protocol.http.HttpProtocol;
 import org.peergos.protocol.ipns.IPNS;
 import org.peergos.protocol.ipns.IpnsRecord;
+import org.peergos.util.ConnectionPool;
 import org.peergos.util.Logging;
 
 import java.nio.file.Path;
-import java.sql.Connection;
-import java.sql.DriverManager;
-import java.sql.SQLException;
+import java.nio.file.Paths;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -108,23 +119,26 @@ public class EmbeddedIpfs {
         List<Want> local = new ArrayList<>();
         List<Want> remote = new ArrayList<>();
 
-        for (Want w : wants) {
-            if (blockstore.has(w.cid).join())
-                local.add(w);
+        List<Boolean> present = blockstore.hasAll(wants.stream()
+                .map(w -> w.cid)
+                .collect(Collectors.toList())).join();
+        for (int i = 0; i < wants.size(); i++) {
+            if (present.get(i))
+                local.add(wants.get(i));
+            else
+                remote.add(wants.get(i));
+        }
+        List<Optional<byte[]>> localBlocks = blockstore.getAll(local.stream()
+                .map(w -> w.cid)
+                .collect(Collectors.toList())).join();
+        for (int i = 0; i < local.size(); i++) {
+            Want w = local.get(i);
+            Optional<byte[]> block = localBlocks.get(i);
+            if (block.isPresent())
+                blocksFound.add(new HashedBlock(w.cid, block.get()));
             else
                 remote.add(w);
         }
-        local.stream()
-                .forEach(w -> {
-                    try {
-                        Optional<byte[]> block = blockstore.get(w.cid).join();
-                        block.ifPresent(b -> blocksFound.add(new HashedBlock(w.cid, b)));
-                        if (block.isEmpty())
-                            remote.add(w);
-                    } catch (Exception e) {
-                        remote.add(w);
-                    }
-                });
         if (remote.isEmpty())
             return blocksFound;
         return java.util.stream.Stream.concat(
@@ -216,36 +230,82 @@ public class EmbeddedIpfs {
     }
 
     public static BlockMetadataStore buildBlockMetadata(Args a) {
-        try {
-            //see https://www.h2database.com/html/features.html#compatibility for the extra params to support
-            // compatibility mode. This is required for 'ON CONFLICT DO NOTHING aka INSERT OR IGNORE INTO'
-            Path metadataPath = a.fromIPFSDir("nabu-block-metadata-sql-file", "nabu-blockmetadata.sql");
-            java.sql.Connection h2Instance = DriverManager.getConnection("jdbc:h2:" +
-                    metadataPath.toAbsolutePath() + ";MODE=PostgreSQL;DATABASE_TO_LOWER=TRUE;DEFAULT_NULL_ORDERING=HIGH");
-            Connection instance = new UncloseableConnection(h2Instance);
-            instance.setAutoCommit(true);
-            return new JdbcBlockMetadataStore(() -> instance, new H2BlockMetadataCommands());
-        } catch (SQLException e) {
-            throw new RuntimeException(e);
-        }
+        String type = a.getArg("block-metadata-store", "sql");
+        BlockMetadataStore store;
+        if (type.equals("sql"))
+            store = buildSqlBlockMetadata(a);
+        else if (type.equals("kv"))
+            store = buildKvBlockMetadata(a);
+        else
+            throw new IllegalStateException("Unrecognized block metadata store: " + type);
+        long cacheBytes = Long.parseLong(a.getArg("block-metadata-cache-size", "" + 64 * 1024 * 1024));
+        return cacheBytes > 0 ? new HotBlockMetadataStore(store, cacheBytes) : store;
+    }
+
+    public static JdbcBlockMetadataStore buildSqlBlockMetadata(Args a) {
+        //see https://www.h2database.com/html/features.html#compatibility for the extra params to support
+        // compatibility mode. This is required for 'ON CONFLICT DO NOTHING aka INSERT OR IGNORE INTO'
+        String url = a.getOptionalArg("block-metadata-sql-url").orElseGet(() -> "jdbc:h2:" +
+                a.fromIPFSDir("nabu-block-metadata-sql-file", "nabu-blockmetadata.sql").toAbsolutePath() +
+                ";MODE=PostgreSQL;DATABASE_TO_LOWER=TRUE;DEFAULT_NULL_ORDERING=HIGH");
+        int poolSize = a.getInt("block-metadata-sql-pool-size", Runtime.getRuntime().availableProcessors());
+        ConnectionPool writes = new ConnectionPool(url, poolSize, false);
+        ConnectionPool reads = a.getOptionalArg("block-metadata-sql-read-url")
+                .map(replica -> new ConnectionPool(replica, poolSize, true))
+                .orElse(writes);
+        BlockMetadataSqlSupplier commands = url.startsWith("jdbc:postgresql:") ?
+                new PostgresBlockMetadataCommands() :
+                new H2BlockMetadataCommands();
+        // listings hold their connection while the caller does lookups, so they get their own
+        ConnectionPool listings = new ConnectionPool(url, 2, false);
+        return new JdbcBlockMetadataStore(writes, reads, listings, commands);
+    }
+
+    public static MVStoreBlockMetadataStore buildKvBlockMetadata(Args a) {
+        return new MVStoreBlockMetadataStore(a.fromIPFSDir("nabu-block-metadata-kv-file", "nabu-blockmetadata.kv"));
     }
 
     public static Blockstore buildBlockStore(Config config, Path ipfsPath, BlockMetadataStore meta, boolean updateMetadb) {
+        MetadataBackfill backfill = metadataBackfill(ipfsPath, config);
+        // the filters are built from the metadata, so a saved filter is only complete if the metadata was
+        boolean metadataComplete = ! updateMetadb || backfill.isComplete();
         Blockstore withMetadb;
         if (config.datastore.blockMount.prefix.equals("flatfs.datastore")) {
             CachingBlockMetadataStore cachedBlocks = new CachingBlockMetadataStore(new FileBlockstore(ipfsPath), meta);
             if (updateMetadb)
-                cachedBlocks.updateMetadataStoreIfEmpty();
+                cachedBlocks.updateMetadataStore(backfill);
             withMetadb = cachedBlocks;
         } else if (config.datastore.blockMount.prefix.equals("s3.datastore")) {
             S3Blockstore s3blocks = new S3Blockstore(config.datastore.blockMount.getParams(), meta);
             if (updateMetadb)
-                s3blocks.updateMetadataStoreIfEmpty();
-            withMetadb = s3blocks;
+                s3blocks.updateMetadataStore(backfill);
+            BlockCache cache = config.datastore.cache;
+            if (cache.isEnabled()) {
+                TieredBlockstore tiered = new TieredBlockstore(s3blocks, ipfsPath.resolve(cache.path), cache.maxSizeBytes,
+                        cache.writeBack, cache.writeBackQueueSize);
+                Runtime.getRuntime().addShutdownHook(new Thread(tiered::close));
+                withMetadb = tiered;
+            } else
+                withMetadb = s3blocks;
+        } else if (config.datastore.blockMount.prefix.equals("pack.datastore")) {
+            PackBlockstore packs = new PackBlockstore(ipfsPath, config.datastore.blockMount.getParams());
+            Runtime.getRuntime().addShutdownHook(new Thread(packs::close));
+            CachingBlockMetadataStore cachedBlocks = new CachingBlockMetadataStore(packs, meta);
+            if (updateMetadb)
+                cachedBlocks.updateMetadataStore(backfill);
+            withMetadb = cachedBlocks;
         } else {
             throw new IllegalStateException("Unrecognized datastore prefix: " + config.datastore.blockMount.prefix);
         }
-        return typeLimited(filteredBlockStore(withMetadb, config), config);
+        Path filterSnapshot = ipfsPath.resolve("filter-snapshot");
+        if (! metadataComplete || config.datastore.filter.type == FilterType.NONE)
+            PersistentFilter.discard(filterSnapshot);
+        return typeLimited(filteredBlockStore(withMetadb, config,
+                metadataComplete ? Optional.of(filterSnapshot) : Optional.empty()), config);
+    }
+
+    private static MetadataBackfill metadataBackfill(Path ipfsPath, Config config) {
+        return new MetadataBackfill(ipfsPath.resolve("metadata-backfill"), config.datastore.blockMount.getParams());
     }
 
     public static Blockstore typeLimited(Blockstore blocks, Config config) {
@@ -255,10 +315,21 @@ public class EmbeddedIpfs {
     }
 
     public static Blockstore filteredBlockStore(Blockstore blocks, Config config) {
+        return filteredBlockStore(blocks, config, Optional.empty());
+    }
+
+    /**
+     * @param snapshotDir where to save the filter, so it can be reloaded on the next start
+     */
+    public static Blockstore filteredBlockStore(Blockstore blocks, Config config, Optional<Path> snapshotDir) {
+        double falsePositiveRate = config.datastore.filter.falsePositiveRate;
+        AbsentFilter absent = new AbsentFilter(config.datastore.filter.absentSize,
+                config.datastore.filter.absentTtlSeconds * 1000);
         if (config.datastore.filter.type == FilterType.BLOOM) {
-            return FilteredBlockstore.bloomBased(blocks, config.datastore.filter.falsePositiveRate);
+            return FilteredBlockstore.bloomBased(blocks, falsePositiveRate, snapshotDir, absent);
         } else if (config.datastore.filter.type == FilterType.INFINI) {
-            return FilteredBlockstore.infiniBased(blocks, config.datastore.filter.falsePositiveRate);
+            return FilteredBlockstore.infiniBased(blocks, falsePositiveRate, snapshotDir, absent,
+                    filterBitmaps(config, snapshotDir));
         } else if (config.datastore.filter.type == FilterType.NONE) {
             return blocks;
         } else {
@@ -266,6 +337,19 @@ public class EmbeddedIpfs {
         }
     }
 
+    private static BitmapFactory filterBitmaps(Config config, Optional<Path> snapshotDir) {
+        switch (config.datastore.filter.storage) {
+            case Filter.DIRECT:
+                return OffHeapBitmap.direct();
+            case Filter.MAPPED:
+                Path dir = snapshotDir.map(p -> p.resolveSibling("filter-mmap"))
+                        .orElse(Paths.get(System.getProperty("java.io.tmpdir"), "nabu-filter-mmap"));
+                return OffHeapBitmap.mapped(dir);
+            default:
+                return BitmapFactory.ON_HEAP;
+        }
+    }
+
     public static EmbeddedIpfs build(RecordStore records,
                                      Blockstore blocks,
                                      boolean provideBlocks,
@@ -291,6 +375,26 @@ public class EmbeddedIpfs {
                                      boolean localEnabled,
                                      Optional<String> bitswapProtocolId,
                                      Optional<Integer> maxBitswapMsgSize) {
+        return build(records, blocks, provideBlocks, swarmAddresses, bootstrap, identity, announce, authoriser, handler,
+                localEnabled, bitswapProtocolId, maxBitswapMsgSize, BitswapEngine.UNLIMITED_SEND_RATE);
+    }
+
+    /**
+     * @param maxBitswapSendRate limit on the bytes per second of blocks sent to other peers, or 0 for no limit
+     */
+    public static EmbeddedIpfs build(RecordStore records,
+                                     Blockstore blocks,
+                                     boolean provideBlocks,
+                                     List<MultiAddress> swarmAddresses,
+                                     List<MultiAddress> bootstrap,
+                                     IdentitySection identity,
+                                     List<MultiAddress> announce,
+                                     BlockRequestAuthoriser authoriser,
+                                     Optional<HttpProtocol.HttpRequestProcessor> handler,
+                                     boolean localEnabled,
+                                     Optional<String> bitswapProtocolId,
+                                     Optional<Integer> maxBitswapMsgSize,
+                                     long maxBitswapSendRate) {
         Blockstore blockstore = provideBlocks ?
                 new ProvidingBlockstore(blocks) :
                 blocks;
@@ -306,7 +410,7 @@ public class EmbeddedIpfs {
         CircuitStopProtocol.Binding stop = new CircuitStopProtocol.Binding();
         CircuitHopProtocol.RelayManager relayManager = CircuitHopProtocol.RelayManager.limitTo(builder.getPrivateKey(), ourPeerId, 5);
         Bitswap bitswap = new Bitswap(bitswapProtocolId.orElse(Bitswap.PROTOCOL_ID),
-                new BitswapEngine(blockstore, authoriser, maxBitswapMsgSize.orElse(Bitswap.MAX_MESSAGE_SIZE), true));
+                new BitswapEngine(blockstore, authoriser, maxBitswapMsgSize.orElse(Bitswap.MAX_MESSAGE_SIZE), true, maxBitswapSendRate));
         Optional<HttpProtocol.Binding> httpHandler = handler.map(HttpProtocol.Binding::new);
 
         List<ProtocolBinding> protocols = new ArrayList<>();
@@ -4,12 +4,16 @@ import java.security.*;
 
 public class Hash {
 
-    public static byte[] sha256(byte[] in) {
+    private static final ThreadLocal<MessageDigest> sha256 = ThreadLocal.withInitial(() -> {
         try {
-            MessageDigest hasher = MessageDigest.getInstance("SHA-256");
-            return hasher.digest(in);
+            return MessageDigest.getInstance("SHA-256");
         } catch (NoSuchAlgorithmException e) {
             throw new RuntimeException(e);
         }
+    });
+
+    public static byte[] sha256(byte[] in) {
+        // digest resets the instance, so it can be reused by the next call on this thread
+        return sha256.get().digest(in);
     }
 }
@@ -0,0 +1,34 @@
+package org.peergos;
+
+import org.peergos.blockstore.metadatadb.JdbcBlockMetadataStore;
+import org.peergos.blockstore.metadatadb.MVStoreBlockMetadataStore;
+import org.peergos.util.Logging;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/** Copy the block metadata from the H2 sql store into the key value store.
+ *  Run with the node stopped, then start it with -block-metadata-store kv
+ */
+public class MetadataMigration {
+
+    private static final Logger LOG = Logging.LOG();
+
+    public static void main(String[] args) {
+        try {
+            Args a = Args.parse(args);
+            JdbcBlockMetadataStore source = EmbeddedIpfs.buildSqlBlockMetadata(a);
+            long total = source.size();
+            LOG.info("Migrating metadata for " + total + " blocks...");
+            long start = System.currentTimeMillis();
+            try (MVStoreBlockMetadataStore target = EmbeddedIpfs.buildKvBlockMetadata(a)) {
+                long copied = target.importFrom(source, 10_000);
+                LOG.info("Copied metadata for " + copied + " blocks in " + (System.currentTimeMillis() - start) / 1000 +
+                        "s, key value store now has " + target.size() + " blocks");
+            }
+        } catch (Exception e) {
+            LOG.log(Level.SEVERE, "Metadata migration failed", e);
+            System.exit(1);
+        }
+    }
+}
@@ -2,6 +2,9 @@ package org.peergos;
 
 import com.sun.net.httpserver.HttpServer;
 import io.ipfs.multiaddr.MultiAddress;
+import org.peergos.blockstore.gc.DatabasePinStore;
+import org.peergos.blockstore.gc.GarbageCollector;
+import org.peergos.blockstore.gc.GcBlockstore;
 import org.peergos.blockstore.metadatadb.BlockMetadataStore;
 import org.peergos.config.*;
 import org.peergos.net.APIHandler;
@@ -50,17 +53,32 @@ public class Nabu {
         BlockRequestAuthoriser authoriser = (c, p, a) -> CompletableFuture.completedFuture(true);
 
         Path datastorePath = ipfsPath.resolve("datastore").resolve("h2-v2.datastore");
-        DatabaseRecordStore records = new DatabaseRecordStore(datastorePath.toAbsolutePath().toString());
+        DatabaseRecordStore records = new DatabaseRecordStore(datastorePath.toAbsolutePath().toString(),
+                args.getInt("record-store-pool-size", 4));
         BlockMetadataStore meta = buildBlockMetadata(args);
+        GcBlockstore blocks = new GcBlockstore(buildBlockStore(config, ipfsPath, meta, true));
+        DatabasePinStore pins = new DatabasePinStore(datastorePath.toAbsolutePath().toString(),
+                args.getInt("record-store-pool-size", 4));
+        GarbageCollector gc = new GarbageCollector(blocks, pins,
+                args.getInt("gc-parallelism", 10),
+                args.getInt("gc-batch-size", 1000),
+                args.getInt("gc-rate-limit", 0));
+        int gcIntervalHours = args.getInt("gc-interval-hours", 0);
+        if (gcIntervalHours > 0)
+            gc.start(gcIntervalHours * 3_600_000L);
         EmbeddedIpfs ipfs = EmbeddedIpfs.build(records,
-                buildBlockStore(config, ipfsPath, meta, true),
+                blocks,
                 true,
                 config.addresses.getSwarmAddresses(),
                 config.bootstrap.getBootstrapAddresses(),
                 config.identity,
+                Collections.emptyList(),
                 authoriser,
                 config.addresses.proxyTargetAddress.map(Nabu::proxyHandler),
-                false
+                false,
+                Optional.empty(),
+                Optional.empty(),
+                Long.parseLong(args.getArg("bitswap-max-send-rate", "0"))
         );
         ipfs.start();
         String apiAddressArg = "Addresses.API";
@@ -72,7 +90,7 @@ public class Nabu {
         LOG.info("Starting RPC API server at " + apiAddress.getHost() + ":" + localAPIAddress.getPort());
         HttpServer apiServer = HttpServer.create(localAPIAddress, maxConnectionQueue);
 
-        apiServer.createContext(APIHandler.API_URL, new APIHandler(ipfs));
+        apiServer.createContext(APIHandler.API_URL, new APIHandler(ipfs, Optional.of(gc)));
         if (config.addresses.proxyTargetAddress.isPresent())
             apiServer.createContext(HttpProxyService.API_URL, new HttpProxyHandler(new HttpProxyService(ipfs.node, ipfs.p2pHttp.get(), ipfs.dht)));
         apiServer.setExecutor(Executors.newFixedThreadPool(handlerThreads));
@@ -121,6 +139,15 @@ public class Nabu {
                 blockChildMap.put("type", "s3ds");
                 Mount s3BlockMount = new Mount("/blocks", "s3.datastore", "measure", blockChildMap);
                 config = new Config(() -> s3BlockMount);
+            } else if (args.getBoolean("pack.datastore", false)) {
+                Map<String, Object> blockChildMap = new LinkedHashMap<>();
+                blockChildMap.put("path", "packs");
+                blockChildMap.put("maxSegmentSize", "" + 256 * 1024 * 1024);
+                blockChildMap.put("compactionThreshold", "0.5");
+                blockChildMap.put("sync", "true");
+                blockChildMap.put("type", "pack");
+                Mount packBlockMount = new Mount("/blocks", "pack.datastore", "measure", blockChildMap);
+                config = new Config(() -> packBlockMount);
             } else {
                 config = new Config();
             }
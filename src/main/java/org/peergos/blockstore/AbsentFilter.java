@@ -0,0 +1,155 @@
+package org.peergos.blockstore;
+
+import io.ipfs.cid.*;
+import org.peergos.blockstore.filters.QuotientFilter;
+
+import java.util.*;
+import java.util.concurrent.locks.*;
+
+/** A cache of cids which are known to be absent from a blockstore, so repeated requests for them don't reach it.
+ *
+ *  Cids are added to the newest of a few fixed size quotient filters. When it is full, or has been in use for
+ *  ttl / generations, a new one is started and the oldest is dropped. This means entries expire gradually, rather than
+ *  all at once, and no entry is reported for longer than the ttl. Quotient filters support deletes, so a cid which is
+ *  later stored can be removed.
+ */
+public class AbsentFilter implements Filter {
+
+    public static final int DEFAULT_SIZE = 30_000;
+    public static final long DEFAULT_TTL_MILLIS = 10 * 60_000;
+    private static final double LOAD_FACTOR = 0.8;
+
+    private static class Generation {
+        final QuotientFilter filter;
+        final StampedLock lock = new StampedLock();
+        final long created = System.currentTimeMillis();
+        final long maxEntries;
+        // guarded by lock
+        long entries;
+
+        Generation(int powerOfTwo, int bitsPerEntry, long maxEntries) {
+            this.filter = new QuotientFilter(powerOfTwo, bitsPerEntry);
+            this.maxEntries = maxEntries;
+        }
+
+        boolean has(byte[] key) {
+            long stamp = lock.readLock();
+            try {
+                return filter.search(key);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        /**
+         * @return false if the generation is full, a key which is already present is not added again
+         */
+        boolean add(byte[] key) {
+            long stamp = lock.writeLock();
+            try {
+                // the filter stores a duplicate fingerprint for every insert of the same key
+                if (filter.search(key))
+                    return true;
+                if (entries >= maxEntries || ! filter.insert(key, false))
+                    return false;
+                entries++;
+                return true;
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        void remove(byte[] key) {
+            if (! has(key))
+                return;
+            long stamp = lock.writeLock();
+            try {
+                // remove every matching fingerprint, a colliding entry only costs a lookup in the blockstore
+                while (filter.search(key) && filter.delete(key))
+                    entries--;
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+    }
+
+    private final int generations;
+    private final long ttlMillis;
+    private final int powerOfTwo, bitsPerEntry;
+    private final long entriesPerGeneration;
+    // newest first
+    private volatile List<Generation> live;
+
+    /**
+     * @param size the maximum number of absent cids to remember
+     * @param ttlMillis the maximum time to remember an absent cid for
+     */
+    public AbsentFilter(int size, long ttlMillis, int generations, double falsePositiveRate) {
+        if (size < generations || generations < 1)
+            throw new IllegalArgumentException("Invalid absent filter size " + size + " for " + generations + " generations");
+        if (ttlMillis <= 0)
+            throw new IllegalArgumentException("Invalid absent filter ttl: " + ttlMillis);
+        this.generations = generations;
+        this.ttlMillis = ttlMillis;
+        this.entriesPerGeneration = size / generations;
+        this.powerOfTwo = Math.max(6, 64 - Long.numberOfLeadingZeros((long) Math.ceil(entriesPerGeneration / LOAD_FACTOR) - 1));
+        this.bitsPerEntry = 3 + (int) Math.ceil(-Math.log(falsePositiveRate) / Math.log(2));
+        this.live = List.of(newGeneration());
+    }
+
+    public AbsentFilter(int size, long ttlMillis) {
+        this(size, ttlMillis, 3, 0.001);
+    }
+
+    public static AbsentFilter build() {
+        return new AbsentFilter(DEFAULT_SIZE, DEFAULT_TTL_MILLIS);
+    }
+
+    private Generation newGeneration() {
+        return new Generation(powerOfTwo, bitsPerEntry, entriesPerGeneration);
+    }
+
+    @Override
+    public boolean has(Cid c) {
+        long now = System.currentTimeMillis();
+        byte[] key = c.toBytes();
+        for (Generation g : live) {
+            if (now - g.created > ttlMillis)
+                break;
+            if (g.has(key))
+                return true;
+        }
+        return false;
+    }
+
+    @Override
+    public Cid add(Cid c) {
+        byte[] key = c.toBytes();
+        while (true) {
+            Generation current = live.get(0);
+            if (System.currentTimeMillis() - current.created < ttlMillis / generations && current.add(key))
+                return c;
+            rotate(current);
+        }
+    }
+
+    private synchronized void rotate(Generation current) {
+        if (live.get(0) != current)
+            return;
+        List<Generation> next = new ArrayList<>(generations);
+        next.add(newGeneration());
+        next.addAll(live.subList(0, Math.min(live.size(), generations - 1)));
+        live = Collections.unmodifiableList(next);
+    }
+
+    /** Forget that c is absent, because it has been stored.
+     *
+     * @return the argument c
+     */
+    public Cid remove(Cid c) {
+        byte[] key = c.toBytes();
+        for (Generation g : live)
+            g.remove(key);
+        return c;
+    }
+}
@@ -0,0 +1,155 @@
+package org.peergos.blockstore;
+
+import java.io.*;
+import java.lang.invoke.*;
+import java.util.concurrent.atomic.*;
+
+/** A bloom filter where all the bits for an element are in one 512 bit block, so each probe touches a single cache
+ *  line.
+ *
+ *  Callers supply two 64 bit hashes per element, so no hashing is done here. The high half of the first picks the
+ *  block and the k bit positions within it are derived from both, in the manner of Kirsch-Mitzenmacher double hashing.
+ *  Bits are set with atomic ors, so adds and probes are safe from any thread without locking.
+ */
+public class BlockedBloomFilter {
+
+    private static final int BLOCK_BITS = 512;
+    private static final int LONGS_PER_BLOCK = BLOCK_BITS / Long.SIZE;
+    private static final long MULTIPLIER = 6364136223846793005L;
+    private static final VarHandle BITS = MethodHandles.arrayElementVarHandle(long[].class);
+
+    private final long[] bits;
+    private final int blocks;
+    private final int k;
+    private final LongAdder added = new LongAdder();
+
+    public BlockedBloomFilter(long expectedElements, double falsePositiveRate) {
+        if (falsePositiveRate <= 0 || falsePositiveRate >= 1)
+            throw new IllegalArgumentException("Invalid false positive rate: " + falsePositiveRate);
+        // start from the size of a standard bloom filter and grow until blocking still meets the target rate
+        double bitsPerElement = -Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2));
+        int bestK;
+        while (true) {
+            bestK = optimalK(bitsPerElement);
+            if (falsePositiveRate(bitsPerElement, bestK) <= falsePositiveRate)
+                break;
+            bitsPerElement *= 1.01;
+        }
+        long totalBits = (long) Math.ceil(Math.max(1, expectedElements) * bitsPerElement);
+        long nBlocks = Math.max(1, (totalBits + BLOCK_BITS - 1) / BLOCK_BITS);
+        if (nBlocks * LONGS_PER_BLOCK > Integer.MAX_VALUE - 8)
+            throw new IllegalArgumentException("Bloom filter too large for " + expectedElements + " elements");
+        this.blocks = (int) nBlocks;
+        this.bits = new long[blocks * LONGS_PER_BLOCK];
+        this.k = bestK;
+    }
+
+    private static int optimalK(double bitsPerElement) {
+        int best = 1;
+        for (int k = 2; k <= 32; k++)
+            if (falsePositiveRate(bitsPerElement, k) < falsePositiveRate(bitsPerElement, best))
+                best = k;
+        return best;
+    }
+
+    /** The false positive rate of a blocked filter. The number of elements in a block is Poisson distributed, and each
+     *  block behaves as a standard bloom filter of 512 bits.
+     */
+    static double falsePositiveRate(double bitsPerElement, int k) {
+        double mean = BLOCK_BITS / bitsPerElement;
+        double res = 0;
+        double poisson = Math.exp(-mean);
+        int max = (int) (mean + 10 * Math.sqrt(mean) + 10);
+        for (int i = 0; i <= max; i++) {
+            if (i > 0)
+                poisson *= mean / i;
+            res += poisson * Math.pow(1 - Math.pow(1 - 1.0 / BLOCK_BITS, (double) i * k), k);
+        }
+        return res;
+    }
+
+    private BlockedBloomFilter(int k, long[] bits, long count) {
+        if (bits.length == 0 || bits.length % LONGS_PER_BLOCK != 0)
+            throw new IllegalArgumentException("Invalid bloom filter size: " + bits.length);
+        this.k = k;
+        this.bits = bits;
+        this.blocks = bits.length / LONGS_PER_BLOCK;
+        this.added.add(count);
+    }
+
+    // Each position is the top 9 bits of a linear congruential step. The plain h1 + i * h2 sequence, reduced to 512
+    // positions, repeats the same pattern for many elements, which raises the false positive rate at low targets.
+    private static long step(long h1) {
+        return (h1 * 0x9E3779B97F4A7C15L) | 1;
+    }
+
+    private int blockStart(long h1) {
+        // map the high 32 bits onto [0, blocks) without a division
+        return (int) (((h1 >>> 32) * blocks) >>> 32) * LONGS_PER_BLOCK;
+    }
+
+    public void add(long h1, long h2) {
+        int start = blockStart(h1);
+        long h = h2;
+        long step = step(h1);
+        for (int i = 0; i < k; i++) {
+            h = h * MULTIPLIER + step;
+            int bit = (int) (h >>> (Long.SIZE - 9));
+            int index = start + (bit >>> 6);
+            long mask = 1L << bit;
+            if (((long) BITS.getOpaque(bits, index) & mask) == 0)
+                BITS.getAndBitwiseOr(bits, index, mask);
+        }
+        added.increment();
+    }
+
+    public boolean mightContain(long h1, long h2) {
+        int start = blockStart(h1);
+        long h = h2;
+        long step = step(h1);
+        for (int i = 0; i < k; i++) {
+            h = h * MULTIPLIER + step;
+            int bit = (int) (h >>> (Long.SIZE - 9));
+            if (((long) BITS.getOpaque(bits, start + (bit >>> 6)) & (1L << bit)) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    public int getK() {
+        return k;
+    }
+
+    /**
+     * @return the number of adds, including repeated elements
+     */
+    public long count() {
+        return added.sum();
+    }
+
+    public long sizeInBits() {
+        return (long) bits.length * Long.SIZE;
+    }
+
+    /** Write the filter, elements added concurrently may or may not be included.
+     */
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(k);
+        out.writeLong(count());
+        out.writeInt(bits.length);
+        for (int i = 0; i < bits.length; i++)
+            out.writeLong((long) BITS.getOpaque(bits, i));
+    }
+
+    public static BlockedBloomFilter read(DataInput in) throws IOException {
+        int k = in.readInt();
+        long count = in.readLong();
+        int length = in.readInt();
+        if (length <= 0 || length % LONGS_PER_BLOCK != 0)
+            throw new IOException("Invalid bloom filter size: " + length);
+        long[] bits = new long[length];
+        for (int i = 0; i < bits.length; i++)
+            bits[i] = in.readLong();
+        return new BlockedBloomFilter(k, bits, count);
+    }
+}
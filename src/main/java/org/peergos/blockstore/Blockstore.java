@@ -5,9 +5,15 @@ import io.ipfs.multibase.binary.Base32;
 import io.ipfs.multihash.Multihash;
 import org.peergos.blockstore.metadatadb.BlockMetadata;
 import org.peergos.blockstore.metadatadb.BlockMetadataStore;
+import org.peergos.util.ByteBufferInputStream;
+import org.peergos.util.Futures;
 
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.stream.*;
 
 public interface Blockstore {
 
@@ -28,12 +34,82 @@ public interface Blockstore {
 
     CompletableFuture<Optional<byte[]>> get(Cid c);
 
+    /**
+     * Retrieve a block without intermediate copies where the underlying store allows it.
+     * The returned buffer may be a read only view of the storage and must not be modified. It stays valid for as long
+     * as the caller keeps it, and needs no releasing.
+     *
+     * @param c
+     * @return the block contents between the buffer's position and limit
+     */
+    default CompletableFuture<Optional<ByteBuffer>> getBuffer(Cid c) {
+        return get(c).thenApply(opt -> opt.map(ByteBuffer::wrap));
+    }
+
+    default CompletableFuture<Optional<InputStream>> getStream(Cid c) {
+        return getBuffer(c).thenApply(opt -> opt.map(ByteBufferInputStream::new));
+    }
+
     CompletableFuture<Cid> put(byte[] block, Cid.Codec codec);
 
+    /**
+     * Store a block read from a channel. The channel is read to the end but not closed.
+     */
+    default CompletableFuture<Cid> put(ReadableByteChannel block, Cid.Codec codec) {
+        try {
+            return put(Channels.newInputStream(block).readAllBytes(), codec);
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+    }
+
     CompletableFuture<Boolean> rm(Cid c);
 
+    /**
+     * @param cids
+     * @return whether each block is present, in the same order as the argument
+     */
+    default CompletableFuture<List<Boolean>> hasAll(List<Cid> cids) {
+        return Futures.combineAllInOrder(cids.stream()
+                .map(this::has)
+                .collect(Collectors.toList()));
+    }
+
+    /**
+     * @param cids
+     * @return the blocks in the same order as the argument, with an empty result for any block that could not be read
+     */
+    default CompletableFuture<List<Optional<byte[]>>> getAll(List<Cid> cids) {
+        return Futures.combineAllInOrder(cids.stream()
+                .map(c -> get(c).exceptionally(t -> Optional.empty()))
+                .collect(Collectors.toList()));
+    }
+
+    /**
+     * @param cids
+     * @return true if every block was removed
+     */
+    default CompletableFuture<Boolean> rmAll(List<Cid> cids) {
+        return Futures.combineAllInOrder(cids.stream()
+                        .map(this::rm)
+                        .collect(Collectors.toList()))
+                .thenApply(res -> res.stream().allMatch(x -> x));
+    }
+
+    default CompletableFuture<List<Cid>> putAll(List<byte[]> blocks, Cid.Codec codec) {
+        return Futures.combineAllInOrder(blocks.stream()
+                .map(b -> put(b, codec))
+                .collect(Collectors.toList()));
+    }
+
     CompletableFuture<List<Cid>> refs(boolean useBlockstore);
 
+    /** Lazily list the blocks in the underlying store. The caller must close the returned stream.
+     */
+    default Stream<Cid> refStream() {
+        return refs(true).join().stream();
+    }
+
     CompletableFuture<Boolean> bloomAdd(Cid cid);
 
     CompletableFuture<BlockMetadata> getBlockMetadata(Cid h);
@@ -1,33 +1,89 @@
 package org.peergos.blockstore;
 
 import io.ipfs.cid.*;
+import io.ipfs.multihash.*;
+import org.peergos.blockstore.filters.*;
 
+import java.io.*;
+import java.lang.invoke.*;
+import java.nio.*;
 import java.util.*;
 
 public class CidBloomFilter implements Filter {
 
-    private final BloomFilter<Cid> bloom;
+    private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
 
-    public CidBloomFilter(BloomFilter<Cid> bloom) {
+    private final BlockedBloomFilter bloom;
+    private final long capacity;
+
+    public CidBloomFilter(BlockedBloomFilter bloom, long capacity) {
         this.bloom = bloom;
+        this.capacity = capacity;
+    }
+
+    /** Cids are already cryptographic hashes, so the bloom hashes are read straight from the digest. The codec and
+     *  version are mixed in, as the same digest under a different codec is a different block.
+     */
+    private static boolean isCryptographic(Cid c, byte[] digest) {
+        return c.getType() != Multihash.Type.id && digest.length >= 16;
+    }
+
+    private static long hash1(Cid c, byte[] digest) {
+        long h = isCryptographic(c, digest) ?
+                (long) LONGS.get(digest, 0) :
+                HashFunctions.xxhash(ByteBuffer.wrap(c.toBytes()));
+        return h ^ HashFunctions.xxhash(c.codec.type ^ (c.version << 32));
+    }
+
+    private static long hash2(Cid c, byte[] digest, long h1) {
+        return isCryptographic(c, digest) ?
+                (long) LONGS.get(digest, 8) :
+                HashFunctions.xxhash(h1, 1);
     }
 
     @Override
     public boolean has(Cid c) {
-        return bloom.contains(c);
+        byte[] digest = c.getHash();
+        long h1 = hash1(c, digest);
+        return bloom.mightContain(h1, hash2(c, digest, h1));
     }
 
     @Override
     public Cid add(Cid c) {
-        bloom.add(c);
+        byte[] digest = c.getHash();
+        long h1 = hash1(c, digest);
+        bloom.add(h1, hash2(c, digest, h1));
         return c;
     }
 
+    @Override
+    public long capacity() {
+        return capacity;
+    }
+
+    @Override
+    public long count() {
+        return bloom.count();
+    }
+
+    @Override
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeLong(capacity);
+        bloom.write(out);
+    }
+
+    public static CidBloomFilter read(DataInput in) throws IOException {
+        long capacity = in.readLong();
+        return new CidBloomFilter(BlockedBloomFilter.read(in), capacity);
+    }
+
     public static CidBloomFilter build(Blockstore bs, double falsePositiveRate) {
         List<Cid> refs = bs.refs(false).join();
-        BloomFilter<Cid> bloom = new BloomFilter<>(falsePositiveRate, refs.size());
+        // leave room to grow, so a persisted filter isn't rebuilt as soon as a block is added
+        long capacity = refs.size() + refs.size() / 4 + 1024;
+        CidBloomFilter bloom = new CidBloomFilter(new BlockedBloomFilter(capacity, falsePositiveRate), capacity);
         refs.forEach(bloom::add);
-        return new CidBloomFilter(bloom);
+        return bloom;
     }
 
     public static CidBloomFilter build(Blockstore bs) {
@@ -2,18 +2,22 @@ package org.peergos.blockstore;
 
 import io.ipfs.cid.*;
 import org.peergos.blockstore.filters.*;
+import org.peergos.blockstore.filters.bitmap.*;
 import org.peergos.util.Logging;
 
+import java.io.*;
 import java.util.*;
 import java.util.logging.*;
 
 public class CidInfiniFilter implements Filter {
 
     private static final Logger LOG = Logging.LOG();
+    // 16 independently locked segments
+    private static final int SEGMENT_BITS = 4;
 
-    private final ChainedInfiniFilter filter;
+    private final ConcurrentInfiniFilter filter;
 
-    private CidInfiniFilter(ChainedInfiniFilter filter) {
+    private CidInfiniFilter(ConcurrentInfiniFilter filter) {
         this.filter = filter;
     }
 
@@ -28,24 +32,50 @@ public class CidInfiniFilter implements Filter {
         return c;
     }
 
+    /** The segments are written in order, any change to this needs a new PersistentFilter snapshot version.
+     */
+    @Override
+    public void writeTo(DataOutput out) throws IOException {
+        filter.write(out);
+    }
+
+    public static CidInfiniFilter read(DataInput in) throws IOException {
+        return read(in, BitmapFactory.ON_HEAP);
+    }
+
+    public static CidInfiniFilter read(DataInput in, BitmapFactory bitmaps) throws IOException {
+        return new CidInfiniFilter(new ConcurrentInfiniFilter(in, bitmaps));
+    }
+
     public static CidInfiniFilter build(Blockstore bs) {
         return build(bs, 0.0001);
     }
 
     public static CidInfiniFilter build(Blockstore bs, double falsePositiveRate) {
+        return build(bs, falsePositiveRate, BitmapFactory.ON_HEAP);
+    }
+
+    /**
+     * @param bitmaps where the filter is stored, e.g. off heap for very large blockstores
+     */
+    public static CidInfiniFilter build(Blockstore bs, double falsePositiveRate, BitmapFactory bitmaps) {
         List<Cid> refs = bs.refs(false).join();
         int nBlocks = refs.size()*5/4; //  increase by 25% to avoid expansion during build
-        CidInfiniFilter infini = build(nBlocks, falsePositiveRate);
+        CidInfiniFilter infini = build(nBlocks, falsePositiveRate, bitmaps);
         refs.forEach(c -> infini.add(c));
         return infini;
     }
 
     public static CidInfiniFilter build(int nBlocks, double falsePositiveRate) {
+        return build(nBlocks, falsePositiveRate, BitmapFactory.ON_HEAP);
+    }
+
+    public static CidInfiniFilter build(int nBlocks, double falsePositiveRate, BitmapFactory bitmaps) {
         int nextPowerOfTwo = Math.max(17, (int) (1 + Math.log(nBlocks) / Math.log(2)));
         double expansionAlpha = 0.8;
         int bitsPerEntry = (int)(4 - Math.log(falsePositiveRate / expansionAlpha) / Math.log(2) + 1);
         LOG.info("Using infini filter of initial size " + ((double)(bitsPerEntry * (1 << nextPowerOfTwo) / 8) / 1024 / 1024) + " MiB");
-        ChainedInfiniFilter infini = new ChainedInfiniFilter(nextPowerOfTwo, bitsPerEntry);
+        ConcurrentInfiniFilter infini = new ConcurrentInfiniFilter(SEGMENT_BITS, nextPowerOfTwo, bitsPerEntry, bitmaps);
         infini.set_expand_autonomously(true);
         return new CidInfiniFilter(infini);
     }
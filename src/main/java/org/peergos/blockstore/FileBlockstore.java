@@ -4,13 +4,21 @@ import io.ipfs.cid.Cid;
 import io.ipfs.multihash.Multihash;
 import org.peergos.Hash;
 import org.peergos.blockstore.metadatadb.BlockMetadata;
+import org.peergos.blockstore.metadatadb.BlockMetadataStore;
 import org.peergos.util.*;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
@@ -62,6 +70,14 @@ public class FileBlockstore implements Blockstore {
         return CompletableFuture.completedFuture(file.exists());
     }
 
+    /**
+     * @param cid
+     * @return the size of the stored block in bytes, or 0 if absent
+     */
+    public long size(Cid cid) {
+        return blocksRoot.resolve(getFilePath(cid)).toFile().length();
+    }
+
     @Override
     public CompletableFuture<Boolean> hasAny(Multihash h) {
         return Futures.of(Stream.of(Cid.Codec.DagCbor, Cid.Codec.Raw, Cid.Codec.DagProtobuf)
@@ -70,52 +86,148 @@ public class FileBlockstore implements Blockstore {
 
     @Override
     public CompletableFuture<Optional<byte[]>> get(Cid cid) {
+        Path path = blocksRoot.resolve(getFilePath(cid));
         try {
-            Path path = getFilePath(cid);
-            File file = blocksRoot.resolve(path).toFile();
-            if (!file.exists()) {
-                return CompletableFuture.completedFuture(Optional.empty());
-            }
-            try (DataInputStream din = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
-                byte[] buffer = new byte[1024];
-                ByteArrayOutputStream bout = new ByteArrayOutputStream();
-                for (int len; (len = din.read(buffer)) != -1; ) {
-                    bout.write(buffer, 0, len);
-                }
-                return CompletableFuture.completedFuture(Optional.of(bout.toByteArray()));
+            return CompletableFuture.completedFuture(Optional.of(Files.readAllBytes(path)));
+        } catch (NoSuchFileException e) {
+            return CompletableFuture.completedFuture(Optional.empty());
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public CompletableFuture<List<Boolean>> hasAll(List<Cid> cids) {
+        return Futures.of(cids.parallelStream()
+                .map(c -> has(c).join())
+                .collect(Collectors.toList()));
+    }
+
+    @Override
+    public CompletableFuture<List<Optional<byte[]>>> getAll(List<Cid> cids) {
+        return Futures.of(cids.parallelStream()
+                .map(c -> {
+                    try {
+                        return get(c).join();
+                    } catch (Exception e) {
+                        LOG.log(Level.WARNING, "Unable to read block " + c + ": " + e.getMessage());
+                        return Optional.<byte[]>empty();
+                    }
+                })
+                .collect(Collectors.toList()));
+    }
+
+    @Override
+    public CompletableFuture<List<Cid>> putAll(List<byte[]> blocks, Cid.Codec codec) {
+        return Futures.of(blocks.parallelStream()
+                .map(b -> put(b, codec).join())
+                .collect(Collectors.toList()));
+    }
+
+    /** Read a block in a single call into a buffer of its exact size. The buffer is a heap copy owned by the caller, so
+     *  unlike a mapping of the file it holds no native memory or file handle, and stays valid after the block is removed.
+     */
+    @Override
+    public CompletableFuture<Optional<ByteBuffer>> getBuffer(Cid cid) {
+        Path path = blocksRoot.resolve(getFilePath(cid));
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer buf = ByteBuffer.allocate((int) channel.size());
+            while (buf.hasRemaining()) {
+                if (channel.read(buf) < 0)
+                    throw new EOFException("Block file truncated: " + path);
             }
+            return CompletableFuture.completedFuture(Optional.of(buf.flip()));
+        } catch (NoSuchFileException e) {
+            return CompletableFuture.completedFuture(Optional.empty());
         } catch (IOException e) {
             throw new RuntimeException(e.getMessage(), e);
         }
     }
 
+    @Override
+    public CompletableFuture<Optional<InputStream>> getStream(Cid cid) {
+        Path path = blocksRoot.resolve(getFilePath(cid));
+        try {
+            return CompletableFuture.completedFuture(Optional.of(Files.newInputStream(path)));
+        } catch (NoSuchFileException e) {
+            return CompletableFuture.completedFuture(Optional.empty());
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+    }
+
+    private Path prepareTarget(Cid cid) throws IOException {
+        Path filePath = getFilePath(cid);
+        Path target = blocksRoot.resolve(filePath);
+        Path parent = target.getParent();
+        File parentDir = parent.toFile();
+
+        if (!parentDir.exists())
+            Files.createDirectories(parent);
+
+        for (Path someParent = parent; !someParent.equals(blocksRoot); someParent = someParent.getParent()) {
+            File someParentFile = someParent.toFile();
+            if (!someParentFile.canWrite()) {
+                final boolean b = someParentFile.setWritable(true, false);
+                if (!b)
+                    throw new IllegalStateException("Could not make " + someParent.toString() + ", ancestor of " + parentDir.toString() + " writable");
+            }
+        }
+        return target;
+    }
+
     @Override
     public CompletableFuture<Cid> put(byte[] block, Cid.Codec codec) {
         Cid cid = new Cid(1, codec, Multihash.Type.sha2_256, Hash.sha256(block));
         try {
-            Path filePath = getFilePath(cid);
-            Path target = blocksRoot.resolve(filePath);
-            Path parent = target.getParent();
-            File parentDir = parent.toFile();
-
-            if (!parentDir.exists())
-                Files.createDirectories(parent);
-
-            for (Path someParent = parent; !someParent.equals(blocksRoot); someParent = someParent.getParent()) {
-                File someParentFile = someParent.toFile();
-                if (!someParentFile.canWrite()) {
-                    final boolean b = someParentFile.setWritable(true, false);
-                    if (!b)
-                        throw new IllegalStateException("Could not make " + someParent.toString() + ", ancestor of " + parentDir.toString() + " writable");
-                }
+            Path target = prepareTarget(cid);
+            // blocks are immutable, so an existing file never needs rewriting
+            if (Files.exists(target) && Files.size(target) == block.length)
+                return CompletableFuture.completedFuture(cid);
+            Path tmp = Files.createTempFile(blocksRoot, "put", ".tmp");
+            try {
+                Files.write(tmp, block, StandardOpenOption.WRITE);
+                Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                tmp.toFile().delete();
             }
-            Files.write(target, block, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
             return CompletableFuture.completedFuture(cid);
         } catch (IOException e) {
             throw new RuntimeException(e.getMessage(), e);
         }
     }
 
+    /**
+     * Stream the block to a temporary file while hashing it, then move it into place once the cid is known.
+     */
+    @Override
+    public CompletableFuture<Cid> put(ReadableByteChannel block, Cid.Codec codec) {
+        Path tmp = null;
+        try {
+            tmp = Files.createTempFile(blocksRoot, "put", ".tmp");
+            MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+            try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+                while (block.read(buf) >= 0) {
+                    buf.flip();
+                    sha256.update(buf.duplicate());
+                    while (buf.hasRemaining())
+                        out.write(buf);
+                    buf.clear();
+                }
+            }
+            Cid cid = new Cid(1, codec, Multihash.Type.sha2_256, sha256.digest());
+            Path target = prepareTarget(cid);
+            Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return CompletableFuture.completedFuture(cid);
+        } catch (IOException | NoSuchAlgorithmException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        } finally {
+            if (tmp != null)
+                tmp.toFile().delete();
+        }
+    }
+
     @Override
     public CompletableFuture<Boolean> rm(Cid cid) {
         Path path = getFilePath(cid);
@@ -151,8 +263,27 @@ public class FileBlockstore implements Blockstore {
         return CompletableFuture.completedFuture(cidList);
     }
 
+    @Override
+    public Stream<Cid> refStream() {
+        try {
+            return Files.walk(blocksRoot)
+                    .filter(f -> Files.isRegularFile(f) &&
+                            f.toFile().length() > 0 &&
+                            f.getFileName().toString().endsWith(BLOCK_FILE_SUFFIX))
+                    .map(p -> {
+                        String filename = p.getFileName().toString();
+                        return keyToHash(filename.substring(0, filename.length() - BLOCK_FILE_SUFFIX.length()));
+                    });
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+    }
+
     @Override
     public CompletableFuture<BlockMetadata> getBlockMetadata(Cid h) {
-        throw new IllegalStateException("Unsupported operation!");
+        Optional<byte[]> block = get(h).join();
+        if (block.isEmpty())
+            throw new IllegalStateException("Block not present locally: " + h);
+        return Futures.of(BlockMetadataStore.extractMetadata(h, block.get()));
     }
 }
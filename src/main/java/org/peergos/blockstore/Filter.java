@@ -2,6 +2,8 @@ package org.peergos.blockstore;
 
 import io.ipfs.cid.*;
 
+import java.io.*;
+
 public interface Filter {
 
     boolean has(Cid c);
@@ -12,4 +14,24 @@ public interface Filter {
      * @return the argument c
      */
     Cid add(Cid c);
+
+    /**
+     * @return the number of elements the filter was sized for, beyond which its false positive rate rises
+     */
+    default long capacity() {
+        return Long.MAX_VALUE;
+    }
+
+    /**
+     * @return the number of elements added, including repeats
+     */
+    default long count() {
+        return 0;
+    }
+
+    /** Write the state of the filter, so it can be reloaded without adding every block again.
+     */
+    default void writeTo(DataOutput out) throws IOException {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " can't be persisted");
+    }
 }
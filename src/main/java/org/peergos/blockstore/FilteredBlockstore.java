@@ -2,11 +2,20 @@ package org.peergos.blockstore;
 
 import io.ipfs.cid.Cid;
 import io.ipfs.multihash.*;
+import org.peergos.blockstore.filters.bitmap.BitmapFactory;
 import org.peergos.blockstore.metadatadb.BlockMetadata;
 import org.peergos.util.*;
 
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.*;
@@ -15,13 +24,18 @@ public class FilteredBlockstore implements Blockstore {
 
     private final Blockstore blocks;
     private final Filter present;
-    private volatile Filter absent;
-    private final AtomicLong absentCount = new AtomicLong(0);
+    private final AbsentFilter absent;
+    // incremented before a stored block is removed from the absent filter
+    private final AtomicLong writes = new AtomicLong(0);
 
-    public FilteredBlockstore(Blockstore blocks, Filter present) {
+    public FilteredBlockstore(Blockstore blocks, Filter present, AbsentFilter absent) {
         this.blocks = blocks;
         this.present = present;
-        this.absent = buildAbsentFilter();
+        this.absent = absent;
+    }
+
+    public FilteredBlockstore(Blockstore blocks, Filter present) {
+        this(blocks, present, AbsentFilter.build());
     }
 
     public CompletableFuture<Boolean> bloomAdd(Cid cid) {
@@ -29,27 +43,32 @@ public class FilteredBlockstore implements Blockstore {
         return CompletableFuture.completedFuture(true);
     }
 
-    private static Filter buildAbsentFilter() {
-        return CidInfiniFilter.build(1_000, 0.001);
+    private void addAbsentBlock(Cid c, long writesBefore) {
+        absent.add(c);
+        // a put which completed during the lookup may have already tried to remove c, so check again
+        if (writes.get() != writesBefore)
+            blocks.has(c).thenAccept(res -> {
+                if (res)
+                    absent.remove(c);
+            });
     }
 
-    private void addAbsentBlock(Cid c) {
-        if (absentCount.get() > 10_000) {
-            absentCount.set(0);
-            absent = buildAbsentFilter();
-        }
-        absentCount.incrementAndGet();
-        absent.add(c);
+    private Cid stored(Cid c) {
+        present.add(c);
+        writes.incrementAndGet();
+        return absent.remove(c);
     }
 
     @Override
     public CompletableFuture<Boolean> has(Cid c) {
-        if (present.has(c) && ! absent.has(c))
+        if (present.has(c) && ! absent.has(c)) {
+            long writesBefore = writes.get();
             return blocks.has(c).thenApply(res -> {
                 if (! res)
-                    addAbsentBlock(c);
+                    addAbsentBlock(c, writesBefore);
                 return res;
             });
+        }
         return CompletableFuture.completedFuture(false);
     }
 
@@ -59,11 +78,80 @@ public class FilteredBlockstore implements Blockstore {
                 .anyMatch(c -> has(new Cid(1, c, h.getType(), h.getHash())).join()));
     }
 
+    private boolean mayHave(Cid c) {
+        return present.has(c) && ! absent.has(c);
+    }
+
+    @Override
+    public CompletableFuture<List<Boolean>> hasAll(List<Cid> cids) {
+        List<Cid> candidates = cids.stream()
+                .filter(this::mayHave)
+                .collect(Collectors.toList());
+        long writesBefore = writes.get();
+        return blocks.hasAll(candidates).thenApply(res -> {
+            Set<Cid> found = new HashSet<>();
+            for (int i = 0; i < candidates.size(); i++) {
+                if (res.get(i))
+                    found.add(candidates.get(i));
+                else
+                    addAbsentBlock(candidates.get(i), writesBefore);
+            }
+            return cids.stream()
+                    .map(found::contains)
+                    .collect(Collectors.toList());
+        });
+    }
+
+    @Override
+    public CompletableFuture<List<Optional<byte[]>>> getAll(List<Cid> cids) {
+        List<Cid> candidates = cids.stream()
+                .filter(this::mayHave)
+                .collect(Collectors.toList());
+        long writesBefore = writes.get();
+        return blocks.getAll(candidates).thenApply(res -> {
+            Map<Cid, Optional<byte[]>> found = new HashMap<>();
+            for (int i = 0; i < candidates.size(); i++) {
+                if (res.get(i).isPresent())
+                    found.put(candidates.get(i), res.get(i));
+                else
+                    addAbsentBlock(candidates.get(i), writesBefore);
+            }
+            return cids.stream()
+                    .map(c -> found.getOrDefault(c, Optional.empty()))
+                    .collect(Collectors.toList());
+        });
+    }
+
     @Override
     public CompletableFuture<Optional<byte[]>> get(Cid c) {
         if (present.has(c) && ! absent.has(c)) {
+            long writesBefore = writes.get();
             return blocks.get(c).exceptionally(t -> {
-                addAbsentBlock(c);
+                addAbsentBlock(c, writesBefore);
+                return Optional.empty();
+            });
+        }
+        return CompletableFuture.completedFuture(Optional.empty());
+    }
+
+    @Override
+    public CompletableFuture<Optional<ByteBuffer>> getBuffer(Cid c) {
+        if (present.has(c) && ! absent.has(c)) {
+            long writesBefore = writes.get();
+            return blocks.getBuffer(c).exceptionally(t -> {
+                addAbsentBlock(c, writesBefore);
+                return Optional.empty();
+            });
+        }
+        return CompletableFuture.completedFuture(Optional.empty());
+    }
+
+    @Override
+    public CompletableFuture<Optional<InputStream>> getStream(Cid c) {
+        if (present.has(c) && ! absent.has(c)) {
+            long writesBefore = writes.get();
+            return blocks.getStream(c).exceptionally(t -> {
+                addAbsentBlock(c, writesBefore);
                 return Optional.empty();
             });
         }
@@ -73,7 +161,22 @@ public class FilteredBlockstore implements Blockstore {
     @Override
     public CompletableFuture<Cid> put(byte[] block, Cid.Codec codec) {
         return blocks.put(block, codec)
-                .thenApply(present::add);
+                .thenApply(this::stored);
+    }
+
+    @Override
+    public CompletableFuture<List<Cid>> putAll(List<byte[]> blocks, Cid.Codec codec) {
+        return this.blocks.putAll(blocks, codec)
+                .thenApply(cids -> {
+                    cids.forEach(this::stored);
+                    return cids;
+                });
+    }
+
+    @Override
+    public CompletableFuture<Cid> put(ReadableByteChannel block, Cid.Codec codec) {
+        return blocks.put(block, codec)
+                .thenApply(this::stored);
     }
 
     @Override
@@ -81,11 +184,21 @@ public class FilteredBlockstore implements Blockstore {
         return blocks.rm(c);
     }
 
+    @Override
+    public CompletableFuture<Boolean> rmAll(List<Cid> cids) {
+        return blocks.rmAll(cids);
+    }
+
     @Override
     public CompletableFuture<List<Cid>> refs(boolean useBlockstore) {
         return blocks.refs(useBlockstore);
     }
 
+    @Override
+    public Stream<Cid> refStream() {
+        return blocks.refStream();
+    }
+
     public static FilteredBlockstore bloomBased(Blockstore source, double falsePositiveRate) {
         return new FilteredBlockstore(source, CidBloomFilter.build(source, falsePositiveRate));
     }
@@ -94,6 +207,37 @@ public class FilteredBlockstore implements Blockstore {
         return new FilteredBlockstore(source, CidInfiniFilter.build(source, falsePositiveRate));
     }
 
+    /** A bloom filter which, if snapshotDir is present, is saved there and reloaded from there on startup.
+     */
+    public static FilteredBlockstore bloomBased(Blockstore source,
+                                                double falsePositiveRate,
+                                                Optional<Path> snapshotDir,
+                                                AbsentFilter absent) {
+        Filter present = snapshotDir.isPresent() ?
+                PersistentFilter.open(snapshotDir.get(), "bloom", falsePositiveRate, CidBloomFilter::read,
+                        () -> CidBloomFilter.build(source, falsePositiveRate),
+                        PersistentFilter.DEFAULT_SNAPSHOT_INTERVAL_MILLIS) :
+                CidBloomFilter.build(source, falsePositiveRate);
+        return new FilteredBlockstore(source, present, absent);
+    }
+
+    /** An infini filter which, if snapshotDir is present, is saved there and reloaded from there on startup.
+     *
+     * @param bitmaps where the filter is stored in memory
+     */
+    public static FilteredBlockstore infiniBased(Blockstore source,
+                                                 double falsePositiveRate,
+                                                 Optional<Path> snapshotDir,
+                                                 AbsentFilter absent,
+                                                 BitmapFactory bitmaps) {
+        Filter present = snapshotDir.isPresent() ?
+                PersistentFilter.open(snapshotDir.get(), "infini", falsePositiveRate, in -> CidInfiniFilter.read(in, bitmaps),
+                        () -> CidInfiniFilter.build(source, falsePositiveRate, bitmaps),
+                        PersistentFilter.DEFAULT_SNAPSHOT_INTERVAL_MILLIS) :
+                CidInfiniFilter.build(source, falsePositiveRate, bitmaps);
+        return new FilteredBlockstore(source, present, absent);
+    }
+
     @Override
     public CompletableFuture<BlockMetadata> getBlockMetadata(Cid h) {
         return blocks.getBlockMetadata(h);
@@ -0,0 +1,710 @@
+package org.peergos.blockstore;
+
+import io.ipfs.cid.Cid;
+import io.ipfs.multihash.Multihash;
+import org.h2.mvstore.MVMap;
+import org.h2.mvstore.MVStore;
+import org.peergos.Hash;
+import org.peergos.blockstore.metadatadb.BlockMetadata;
+import org.peergos.cbor.CborObject;
+import org.peergos.util.Futures;
+import org.peergos.util.Logging;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import java.util.zip.CRC32C;
+
+/**
+ * A log structured blockstore which appends blocks to large segment files rather than storing one file per block.
+ *
+ * Each record in a segment is: type (1 byte), cid length (4), data length (4), cid, data, crc32c (4).
+ * Removals append a tombstone record, whose data is the id of the segment holding the removed block. A tombstone only
+ * removes the record in that segment, so replaying an older tombstone can't remove a block which was put again since.
+ * The cid -> (segment, offset, length) index is kept on disk in an MVStore, which is committed periodically together
+ * with the log position it covers, so startup only replays the records written since the last commit.
+ * Sealed segments with enough dead bytes are compacted in the background by copying their live records forward.
+ */
+public class PackBlockstore implements Blockstore {
+
+    private static final Logger LOG = Logging.LOG();
+
+    private static final String SEGMENT_SUFFIX = ".pack";
+    private static final String LEGACY_INDEX_SUFFIX = ".idx";
+    private static final String INDEX_FILE = "index.mv";
+    private static final byte PUT = 1;
+    private static final byte DELETE = 2;
+    private static final int HEADER_SIZE = 9;
+    private static final int TRAILER_SIZE = 4;
+    private static final int MAX_CID_SIZE = 256;
+    private static final byte[] CHECKPOINT = "checkpoint".getBytes();
+    private static final long COMMIT_INTERVAL_MILLIS = 1_000;
+
+    private final Path packsRoot;
+    private final long maxSegmentSize;
+    private final double compactionThreshold;
+    private final boolean sync;
+    private final MVStore indexStore;
+    // cid -> location of the live record
+    private final MVMap<byte[], byte[]> index;
+    // segment id -> dead bytes, and the checkpoint
+    private final MVMap<byte[], byte[]> state;
+    private final ConcurrentSkipListMap<Integer, Segment> segments = new ConcurrentSkipListMap<>();
+    private final AtomicBoolean running = new AtomicBoolean(true);
+    private final Object compactionLock = new Object();
+    private final Optional<Thread> compactor;
+    private volatile Segment active; // only replaced while holding the lock on this
+
+    public PackBlockstore(Path root, long maxSegmentSize, double compactionThreshold, boolean sync, long compactionIntervalMillis) {
+        if (root == null || !root.toFile().isDirectory()) {
+            throw new IllegalStateException("Path must be a directory! " + root);
+        }
+        if (compactionThreshold <= 0.0 || compactionThreshold > 1.0)
+            throw new IllegalStateException("Invalid compaction threshold: " + compactionThreshold);
+        this.packsRoot = root;
+        this.maxSegmentSize = maxSegmentSize;
+        this.compactionThreshold = compactionThreshold;
+        this.sync = sync;
+        this.indexStore = openIndex(root.resolve(INDEX_FILE));
+        this.index = indexStore.openMap("index");
+        this.state = indexStore.openMap("state");
+        try {
+            recover();
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+        LOG.info("Using PackBlockStore at location: " + root + " with " + index.sizeAsLong() + " blocks in " + segments.size() + " segments");
+        Thread committer = new Thread(this::runCommits, "PackIndexCommitter");
+        committer.setDaemon(true);
+        committer.start();
+        if (compactionIntervalMillis > 0) {
+            Thread compactor = new Thread(() -> runCompaction(compactionIntervalMillis), "PackCompactor");
+            compactor.setDaemon(true);
+            compactor.start();
+            this.compactor = Optional.of(compactor);
+        } else
+            this.compactor = Optional.empty();
+    }
+
+    private static MVStore openIndex(Path file) {
+        try {
+            return new MVStore.Builder()
+                    .fileName(file.toAbsolutePath().toString())
+                    .autoCommitDisabled()
+                    .open();
+        } catch (RuntimeException e) {
+            // the index can always be rebuilt from the segments
+            LOG.log(Level.WARNING, "Rebuilding corrupt pack index " + file + ": " + e.getMessage(), e);
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException f) {
+                throw new RuntimeException(f.getMessage(), f);
+            }
+            return new MVStore.Builder()
+                    .fileName(file.toAbsolutePath().toString())
+                    .autoCommitDisabled()
+                    .open();
+        }
+    }
+
+    public PackBlockstore(Path ipfsPath, Map<String, Object> params) {
+        this(buildPacksDirectory(ipfsPath.resolve(getParam(params, "path", "packs"))),
+                Long.parseLong(getParam(params, "maxSegmentSize", "" + 256 * 1024 * 1024)),
+                Double.parseDouble(getParam(params, "compactionThreshold", "0.5")),
+                Boolean.parseBoolean(getParam(params, "sync", "true")),
+                Long.parseLong(getParam(params, "compactionIntervalSeconds", "600")) * 1000);
+    }
+
+    private static String getParam(Map<String, Object> params, String key, String defaultValue) {
+        if (params.containsKey(key)) {
+            return ((String) params.get(key)).trim();
+        } else {
+            return defaultValue;
+        }
+    }
+
+    private static Path buildPacksDirectory(Path packsPath) {
+        File packsDirectory = packsPath.toFile();
+        if (!packsDirectory.exists()) {
+            if (!packsDirectory.mkdirs()) {
+                throw new IllegalStateException("Unable to make packs directory");
+            }
+        } else if (packsDirectory.isFile()) {
+            throw new IllegalStateException("Unable to create packs directory");
+        }
+        return packsPath;
+    }
+
+    private static final class Location {
+        public final int segment;
+        public final long offset;
+        public final int cidLength, length;
+
+        public Location(int segment, long offset, int cidLength, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.cidLength = cidLength;
+            this.length = length;
+        }
+
+        public long dataOffset() {
+            return offset + HEADER_SIZE + cidLength;
+        }
+
+        public int recordSize() {
+            return HEADER_SIZE + cidLength + length + TRAILER_SIZE;
+        }
+
+        public byte[] serialize() {
+            return ByteBuffer.allocate(20)
+                    .putInt(segment)
+                    .putLong(offset)
+                    .putInt(cidLength)
+                    .putInt(length)
+                    .array();
+        }
+
+        public static Location deserialize(byte[] raw) {
+            ByteBuffer buf = ByteBuffer.wrap(raw);
+            return new Location(buf.getInt(), buf.getLong(), buf.getInt(), buf.getInt());
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Location))
+                return false;
+            Location other = (Location) o;
+            return segment == other.segment && offset == other.offset;
+        }
+
+        @Override
+        public int hashCode() {
+            return segment * 31 + Long.hashCode(offset);
+        }
+    }
+
+    private final class Segment {
+        public final int id;
+        public final Path file;
+        public final AtomicLong size = new AtomicLong(0);
+        // how much of the segment is known to be on disk
+        public final AtomicLong durable = new AtomicLong(0);
+        public final AtomicLong deadBytes = new AtomicLong(0);
+        public volatile boolean deleted = false;
+        private volatile FileChannel channel;
+        private final Object syncLock = new Object();
+
+        public Segment(int id) throws IOException {
+            this.id = id;
+            this.file = packsRoot.resolve(segmentName(id) + SEGMENT_SUFFIX);
+            this.channel = open();
+        }
+
+        private FileChannel open() throws IOException {
+            return FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+
+        public FileChannel channel() throws IOException {
+            FileChannel current = channel;
+            if (current.isOpen() || deleted)
+                return current;
+            // a thread interrupted during I/O closes the channel for everyone
+            synchronized (this) {
+                if (!channel.isOpen() && !deleted)
+                    channel = open();
+                return channel;
+            }
+        }
+
+        /** Wait until everything up to end is on disk. Concurrent writers share a single fsync.
+         */
+        public void syncTo(long end) throws IOException {
+            if (durable.get() >= end)
+                return;
+            synchronized (syncLock) {
+                if (durable.get() >= end || deleted)
+                    return;
+                long target = size.get();
+                channel().force(false);
+                durable.accumulateAndGet(target, Math::max);
+            }
+        }
+
+        public synchronized void delete() throws IOException {
+            deleted = true;
+            channel.close();
+            Files.deleteIfExists(file);
+        }
+    }
+
+    private static String segmentName(int id) {
+        return String.format("%08d", id);
+    }
+
+    private static byte[] segmentKey(int id) {
+        return ByteBuffer.allocate(4).putInt(id).array();
+    }
+
+    private void recover() throws IOException {
+        List<Integer> ids;
+        try (Stream<Path> files = Files.list(packsRoot)) {
+            ids = files.map(p -> p.getFileName().toString())
+                    .filter(n -> n.endsWith(SEGMENT_SUFFIX))
+                    .map(n -> Integer.parseInt(n.substring(0, n.length() - SEGMENT_SUFFIX.length())))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+        byte[] rawCheckpoint = state.get(CHECKPOINT);
+        int checkpointSegment = -1;
+        long checkpointOffset = 0;
+        // the checkpoint is always in the active segment, which is never compacted
+        if (rawCheckpoint == null || ! ids.contains(ByteBuffer.wrap(rawCheckpoint).getInt())) {
+            if (! ids.isEmpty())
+                LOG.info("Rebuilding pack index from " + ids.size() + " segments");
+            index.clear();
+            state.clear();
+        } else {
+            ByteBuffer buf = ByteBuffer.wrap(rawCheckpoint);
+            checkpointSegment = buf.getInt();
+            checkpointOffset = buf.getLong();
+        }
+        for (int i = 0; i < ids.size(); i++) {
+            Segment s = new Segment(ids.get(i));
+            segments.put(s.id, s);
+            byte[] dead = state.get(segmentKey(s.id));
+            if (dead != null)
+                s.deadBytes.set(ByteBuffer.wrap(dead).getLong());
+            if (s.id < checkpointSegment) {
+                // sealed and fully indexed
+                s.size.set(s.channel().size());
+            } else {
+                scan(s, s.id == checkpointSegment ? checkpointOffset : 0);
+            }
+            s.durable.set(s.size.get());
+        }
+        for (byte[] key : new ArrayList<>(state.keySet())) {
+            if (key.length == 4 && ! segments.containsKey(ByteBuffer.wrap(key).getInt()))
+                state.remove(key);
+        }
+        try (Stream<Path> files = Files.list(packsRoot)) {
+            // index files from earlier versions, which kept the index in memory
+            for (Path p : files.filter(p -> p.getFileName().toString().endsWith(LEGACY_INDEX_SUFFIX)).collect(Collectors.toList()))
+                Files.delete(p);
+        }
+        if (segments.isEmpty())
+            newActiveSegment(0);
+        else
+            active = segments.lastEntry().getValue();
+        commit();
+    }
+
+    /**
+     * Replay every valid record in a segment from the given offset, truncating a torn record at the end.
+     */
+    private void scan(Segment s, long from) throws IOException {
+        FileChannel ch = s.channel();
+        long fileSize = ch.size();
+        long pos = Math.min(from, fileSize);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        while (pos + HEADER_SIZE + TRAILER_SIZE <= fileSize) {
+            header.clear();
+            readFully(ch, header, pos);
+            header.flip();
+            byte type = header.get();
+            int cidLength = header.getInt();
+            int length = header.getInt();
+            if ((type != PUT && type != DELETE) || cidLength <= 0 || cidLength > MAX_CID_SIZE || length < 0)
+                break;
+            long recordSize = (long) HEADER_SIZE + cidLength + length + TRAILER_SIZE;
+            if (pos + recordSize > fileSize)
+                break;
+            ByteBuffer record = ByteBuffer.allocate((int) recordSize);
+            readFully(ch, record, pos);
+            CRC32C crc = new CRC32C();
+            crc.update(record.array(), 0, (int) recordSize - TRAILER_SIZE);
+            if ((int) crc.getValue() != record.getInt((int) recordSize - TRAILER_SIZE))
+                break;
+            Cid cid = Cid.cast(Arrays.copyOfRange(record.array(), HEADER_SIZE, HEADER_SIZE + cidLength));
+            Optional<Integer> removedFrom = type == DELETE ?
+                    removedSegment(Arrays.copyOfRange(record.array(), HEADER_SIZE + cidLength, HEADER_SIZE + cidLength + length)) :
+                    Optional.empty();
+            apply(type, cid, new Location(s.id, pos, cidLength, length), removedFrom);
+            pos += recordSize;
+        }
+        if (pos < fileSize) {
+            LOG.warning("Truncating torn record at " + pos + " in pack segment " + s.file);
+            ch.truncate(pos);
+            ch.force(true);
+        }
+        s.size.set(pos);
+    }
+
+    /** Update the index for a record. Replaying a record which is already in the index does nothing.
+     *
+     * @param removedFrom for a tombstone, the segment of the record it removes, if recorded
+     * @return the location of the record this replaces or removes
+     */
+    private Optional<Location> apply(byte type, Cid cid, Location loc, Optional<Integer> removedFrom) {
+        byte[] key = cid.toBytes();
+        byte[] raw = index.get(key);
+        Location previous = raw == null ? null : Location.deserialize(raw);
+        if (type == PUT) {
+            if (loc.equals(previous))
+                return Optional.empty();
+            index.put(key, loc.serialize());
+        } else {
+            // tombstones are only needed to rebuild the index, so they count towards compacting their segment
+            addDeadBytes(loc.segment, loc.recordSize());
+            if (previous == null || removedFrom.map(id -> id != previous.segment).orElse(false))
+                return Optional.empty();
+            index.remove(key);
+        }
+        if (previous != null)
+            addDeadBytes(previous.segment, previous.recordSize());
+        return Optional.ofNullable(previous);
+    }
+
+    private void addDeadBytes(int segment, long bytes) {
+        Segment s = segments.get(segment);
+        if (s == null)
+            return;
+        long dead = s.deadBytes.addAndGet(bytes);
+        state.put(segmentKey(s.id), ByteBuffer.allocate(8).putLong(dead).array());
+    }
+
+    private Optional<Location> lookup(Cid c) {
+        byte[] raw = index.get(c.toBytes());
+        return raw == null ? Optional.empty() : Optional.of(Location.deserialize(raw));
+    }
+
+    /** Make the index durable up to the current end of the log.
+     */
+    private void commit() throws IOException {
+        // do most of the fsync without blocking writers
+        Segment current = active;
+        current.syncTo(current.size.get());
+        synchronized (this) {
+            Segment s = active;
+            // the index must not refer to records which could be lost
+            s.syncTo(s.size.get());
+            state.put(CHECKPOINT, ByteBuffer.allocate(12).putInt(s.id).putLong(s.size.get()).array());
+            indexStore.commit();
+        }
+    }
+
+    private void runCommits() {
+        while (running.get()) {
+            try {
+                Thread.sleep(COMMIT_INTERVAL_MILLIS);
+                if (running.get())
+                    commit();
+            } catch (Throwable e) {
+                LOG.log(Level.WARNING, e.getMessage(), e);
+            }
+        }
+    }
+
+    private void newActiveSegment(int id) throws IOException {
+        Segment s = new Segment(id);
+        segments.put(id, s);
+        active = s;
+    }
+
+    private static void readFully(FileChannel ch, ByteBuffer buf, long pos) throws IOException {
+        long start = pos - buf.position();
+        while (buf.hasRemaining()) {
+            if (ch.read(buf, start + buf.position()) < 0)
+                throw new EOFException();
+        }
+    }
+
+    private synchronized Location append(byte type, Cid cid, byte[] data) throws IOException {
+        byte[] cidBytes = cid.toBytes();
+        int recordSize = HEADER_SIZE + cidBytes.length + data.length + TRAILER_SIZE;
+        ByteBuffer record = ByteBuffer.allocate(recordSize);
+        record.put(type);
+        record.putInt(cidBytes.length);
+        record.putInt(data.length);
+        record.put(cidBytes);
+        record.put(data);
+        CRC32C crc = new CRC32C();
+        crc.update(record.array(), 0, recordSize - TRAILER_SIZE);
+        record.putInt((int) crc.getValue());
+        record.flip();
+
+        Segment s = active;
+        long offset = s.size.get();
+        FileChannel ch = s.channel();
+        while (record.hasRemaining())
+            ch.write(record, offset + record.position());
+        s.size.addAndGet(recordSize);
+        Location loc = new Location(s.id, offset, cidBytes.length, data.length);
+        apply(type, cid, loc, type == DELETE ? removedSegment(data) : Optional.empty());
+        if (s.size.get() >= maxSegmentSize) {
+            s.syncTo(s.size.get());
+            newActiveSegment(s.id + 1);
+        }
+        return loc;
+    }
+
+    /** Append a record and, if configured, wait for it to reach disk without holding the write lock.
+     */
+    private Location appendAndSync(byte type, Cid cid, byte[] data) throws IOException {
+        Location loc = append(type, cid, data);
+        if (sync) {
+            Segment s = segments.get(loc.segment);
+            if (s != null)
+                s.syncTo(loc.offset + loc.recordSize());
+        }
+        return loc;
+    }
+
+    private static byte[] tombstone(int removedSegment) {
+        return ByteBuffer.allocate(4).putInt(removedSegment).array();
+    }
+
+    private static Optional<Integer> removedSegment(byte[] tombstone) {
+        // tombstones written before they recorded their segment are empty
+        return tombstone.length == 4 ? Optional.of(ByteBuffer.wrap(tombstone).getInt()) : Optional.empty();
+    }
+
+    private byte[] read(Location loc) throws IOException {
+        Segment s = segments.get(loc.segment);
+        if (s == null)
+            throw new ClosedChannelException();
+        ByteBuffer buf = ByteBuffer.allocate(loc.length);
+        readFully(s.channel(), buf, loc.dataOffset());
+        return buf.array();
+    }
+
+    @Override
+    public CompletableFuture<Boolean> has(Cid c) {
+        return CompletableFuture.completedFuture(index.containsKey(c.toBytes()));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> hasAny(Multihash h) {
+        return Futures.of(Stream.of(Cid.Codec.DagCbor, Cid.Codec.Raw, Cid.Codec.DagProtobuf)
+                .anyMatch(c -> has(new Cid(1, c, h.getType(), h.getHash())).join()));
+    }
+
+    @Override
+    public CompletableFuture<Optional<byte[]>> get(Cid c) {
+        while (true) {
+            Optional<Location> loc = lookup(c);
+            if (loc.isEmpty())
+                return CompletableFuture.completedFuture(Optional.empty());
+            try {
+                return CompletableFuture.completedFuture(Optional.of(read(loc.get())));
+            } catch (ClosedByInterruptException e) {
+                throw new RuntimeException(e.getMessage(), e);
+            } catch (ClosedChannelException e) {
+                // the segment was compacted concurrently, look up the new location
+            } catch (IOException e) {
+                throw new RuntimeException(e.getMessage(), e);
+            }
+        }
+    }
+
+    @Override
+    public CompletableFuture<Cid> put(byte[] block, Cid.Codec codec) {
+        Cid cid = new Cid(1, codec, Multihash.Type.sha2_256, Hash.sha256(block));
+        if (index.containsKey(cid.toBytes()))
+            return CompletableFuture.completedFuture(cid);
+        try {
+            appendAndSync(PUT, cid, block);
+            return CompletableFuture.completedFuture(cid);
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public CompletableFuture<Boolean> rm(Cid c) {
+        try {
+            Location loc;
+            synchronized (this) {
+                Optional<Location> existing = lookup(c);
+                if (existing.isEmpty())
+                    return CompletableFuture.completedFuture(false);
+                loc = append(DELETE, c, tombstone(existing.get().segment));
+            }
+            if (sync) {
+                Segment s = segments.get(loc.segment);
+                if (s != null)
+                    s.syncTo(loc.offset + loc.recordSize());
+            }
+            return CompletableFuture.completedFuture(true);
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public CompletableFuture<Boolean> bloomAdd(Cid cid) {
+        //not implemented
+        return CompletableFuture.completedFuture(false);
+    }
+
+    @Override
+    public CompletableFuture<List<Cid>> refs(boolean useBlockstore) {
+        return CompletableFuture.completedFuture(refStream().collect(Collectors.toList()));
+    }
+
+    @Override
+    public Stream<Cid> refStream() {
+        Iterator<byte[]> keys = index.keyIterator(null);
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(keys, Spliterator.ORDERED), false)
+                .map(Cid::cast);
+    }
+
+    @Override
+    public CompletableFuture<BlockMetadata> getBlockMetadata(Cid h) {
+        Optional<byte[]> block = get(h).join();
+        if (block.isEmpty())
+            throw new IllegalStateException("Block not present locally: " + h);
+        return Futures.of(new BlockMetadata(block.get().length, CborObject.getLinks(h, block.get())));
+    }
+
+    private void runCompaction(long intervalMillis) {
+        while (running.get()) {
+            try {
+                Thread.sleep(intervalMillis);
+                compact();
+            } catch (InterruptedException e) {
+                return;
+            } catch (Throwable e) {
+                LOG.log(Level.WARNING, e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * Rewrite the live records of every sealed segment whose fraction of dead bytes is above the threshold.
+     */
+    public void compact() throws IOException {
+        synchronized (compactionLock) {
+            if (! running.get())
+                return;
+            // make sure the index covers every sealed segment, so their tombstones are only needed to rebuild it
+            commit();
+            for (Segment s : new ArrayList<>(segments.values())) {
+                if (s == active)
+                    continue;
+                long size = s.size.get();
+                if (size == 0 || s.deadBytes.get() < size * compactionThreshold)
+                    continue;
+                compact(s);
+            }
+        }
+    }
+
+    private void compact(Segment s) throws IOException {
+        long t0 = System.currentTimeMillis();
+        // tombstones in the oldest segment can only refer to records in that segment
+        boolean oldest = segments.firstKey() == s.id;
+        long moved = 0, dropped = 0;
+        FileChannel ch = s.channel();
+        long end = s.size.get();
+        long pos = 0;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        while (pos < end) {
+            header.clear();
+            readFully(ch, header, pos);
+            header.flip();
+            byte type = header.get();
+            int cidLength = header.getInt();
+            int length = header.getInt();
+            ByteBuffer cidBuf = ByteBuffer.allocate(cidLength);
+            readFully(ch, cidBuf, pos + HEADER_SIZE);
+            Cid cid = Cid.cast(cidBuf.array());
+            Location loc = new Location(s.id, pos, cidLength, length);
+            if (type == PUT) {
+                if (isLive(cid, loc) && copyIfLive(cid, loc, read(loc)))
+                    moved++;
+            } else {
+                // a tombstone is needed while the record it removes still exists in an earlier segment, even if the
+                // block has been put again since, as it only removes that record
+                byte[] tombstone = read(loc);
+                Optional<Integer> removedFrom = removedSegment(tombstone);
+                boolean needed = removedFrom.map(id -> id != s.id && segments.containsKey(id)).orElse(! oldest);
+                if (needed)
+                    carryTombstone(cid, tombstone);
+                else
+                    dropped++;
+            }
+            pos += loc.recordSize();
+        }
+        // the index must not point into the segment once it is deleted
+        commit();
+        segments.remove(s.id);
+        s.delete();
+        state.remove(segmentKey(s.id));
+        LOG.info("Compacted pack segment " + segmentName(s.id) + ", moved " + moved + " blocks and dropped "
+                + dropped + " tombstones in " + (System.currentTimeMillis() - t0) + "ms");
+    }
+
+    private boolean isLive(Cid cid, Location loc) {
+        return lookup(cid).map(loc::equals).orElse(false);
+    }
+
+    private synchronized boolean copyIfLive(Cid cid, Location loc, byte[] data) throws IOException {
+        // re-check under the write lock in case the block was removed while we were reading it
+        if (!isLive(cid, loc))
+            return false;
+        append(PUT, cid, data);
+        return true;
+    }
+
+    private synchronized void carryTombstone(Cid cid, byte[] tombstone) throws IOException {
+        // a tombstone which doesn't record its segment would also remove a later put of the block
+        if (removedSegment(tombstone).isPresent() || !index.containsKey(cid.toBytes()))
+            append(DELETE, cid, tombstone);
+    }
+
+    /** Wait for a running compaction to finish, then commit the index and close the files.
+     */
+    public void close() {
+        synchronized (compactionLock) {
+            if (! running.getAndSet(false))
+                return;
+            synchronized (this) {
+                try {
+                    commit();
+                } catch (IOException e) {
+                    LOG.log(Level.WARNING, e.getMessage(), e);
+                }
+                indexStore.close();
+                for (Segment s : segments.values()) {
+                    try {
+                        s.channel().close();
+                    } catch (IOException e) {
+                        LOG.log(Level.WARNING, e.getMessage(), e);
+                    }
+                }
+            }
+        }
+        // the compactor is sleeping, as compactions can't start once we are closed
+        compactor.ifPresent(t -> {
+            t.interrupt();
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+    }
+}
@@ -0,0 +1,421 @@
+package org.peergos.blockstore;
+
+import io.ipfs.cid.*;
+import org.peergos.util.*;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+import java.util.logging.*;
+import java.util.zip.*;
+
+/** A filter which is saved to disk periodically and on shutdown, so it can be reloaded at startup instead of being
+ *  rebuilt from every block.
+ *
+ *  Cids added since the last snapshot are appended to a journal, which is synced before an add returns, and on reload
+ *  the journal is replayed from the point the snapshot was taken. Once a snapshot is saved the journal only keeps the
+ *  cids added while it was being written. When more cids have been added than the filter was sized for, it is rebuilt
+ *  in the background and swapped in.
+ */
+public class PersistentFilter implements Filter {
+
+    private static final Logger LOG = Logging.LOG();
+    private static final int MAGIC = 0x6e666c74;
+    // bumped whenever a filter's serialized form changes, older snapshots are then rebuilt rather than misread
+    // 2: segmented infini filters and blocked bloom filters, 3: filter capacity, payload length and checksum
+    private static final int VERSION = 3;
+    private static final String SNAPSHOT = "filter.snapshot";
+    private static final String JOURNAL = "filter.journal";
+    private static final int CHUNK_SIZE = 1024 * 1024;
+    public static final long DEFAULT_SNAPSHOT_INTERVAL_MILLIS = 10 * 60_000;
+
+    public interface Reader {
+        Filter read(DataInput in) throws IOException;
+    }
+
+    private final Path dir;
+    private final String type;
+    private final double falsePositiveRate;
+    private final Supplier<Filter> builder;
+    private final Object snapshotLock = new Object(), syncLock = new Object();
+    private final AtomicLong synced = new AtomicLong();
+    private volatile Filter target;
+    // guarded by this
+    private FileChannel journal;
+    private long written;
+    private boolean dirty;
+    private List<Cid> addedDuringRebuild;
+    private boolean rebuildFailed;
+
+    private PersistentFilter(Filter target, Path dir, String type, double falsePositiveRate, Supplier<Filter> builder,
+                             FileChannel journal, boolean dirty) {
+        this.target = target;
+        this.dir = dir;
+        this.type = type;
+        this.falsePositiveRate = falsePositiveRate;
+        this.builder = builder;
+        this.journal = journal;
+        this.dirty = dirty;
+    }
+
+    @Override
+    public boolean has(Cid c) {
+        return target.has(c);
+    }
+
+    @Override
+    public Cid add(Cid c) {
+        byte[] raw = c.toBytes();
+        ByteBuffer record = ByteBuffer.allocate(2 + raw.length)
+                .putShort((short) raw.length)
+                .put(raw)
+                .flip();
+        long end;
+        synchronized (this) {
+            target.add(c);
+            if (addedDuringRebuild != null)
+                addedDuringRebuild.add(c);
+            try {
+                while (record.hasRemaining())
+                    journal.write(record);
+            } catch (IOException e) {
+                throw new RuntimeException(e.getMessage(), e);
+            }
+            written += 2 + raw.length;
+            end = written;
+            dirty = true;
+            if (addedDuringRebuild == null && ! rebuildFailed && target.count() > target.capacity())
+                startRebuild();
+        }
+        sync(end);
+        return c;
+    }
+
+    /** Wait until the journal is on disk up to end. Concurrent adds share a single fsync.
+     */
+    private void sync(long end) {
+        if (synced.get() >= end)
+            return;
+        synchronized (syncLock) {
+            if (synced.get() >= end)
+                return;
+            long upTo;
+            FileChannel channel;
+            synchronized (this) {
+                upTo = written;
+                channel = journal;
+            }
+            try {
+                channel.force(false);
+            } catch (ClosedChannelException e) {
+                // the journal was replaced by a snapshot, which syncs everything it keeps
+            } catch (IOException e) {
+                throw new RuntimeException(e.getMessage(), e);
+            }
+            synced.accumulateAndGet(upTo, Math::max);
+        }
+    }
+
+    private void startRebuild() {
+        LOG.info("Filter has " + target.count() + " entries but was sized for " + target.capacity() + ", rebuilding");
+        addedDuringRebuild = new ArrayList<>();
+        Thread rebuild = new Thread(() -> {
+            Filter bigger;
+            try {
+                bigger = builder.get();
+            } catch (Throwable t) {
+                LOG.log(Level.WARNING, "Couldn't rebuild filter", t);
+                synchronized (this) {
+                    addedDuringRebuild = null;
+                    rebuildFailed = true;
+                }
+                return;
+            }
+            synchronized (this) {
+                // blocks added during the scan may not have been listed
+                addedDuringRebuild.forEach(bigger::add);
+                addedDuringRebuild = null;
+                target = bigger;
+                dirty = true;
+            }
+            LOG.info("Rebuilt filter for " + bigger.capacity() + " entries");
+        }, "FilterRebuild");
+        rebuild.setDaemon(true);
+        rebuild.start();
+    }
+
+    @Override
+    public long capacity() {
+        return target.capacity();
+    }
+
+    @Override
+    public long count() {
+        return target.count();
+    }
+
+    @Override
+    public void writeTo(DataOutput out) throws IOException {
+        target.writeTo(out);
+    }
+
+    /** Collects the serialized filter in chunks, so filters larger than an array can be copied.
+     */
+    private static final class Chunks extends OutputStream {
+        private final List<byte[]> chunks = new ArrayList<>();
+        private long size;
+
+        @Override
+        public void write(int b) {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            while (len > 0) {
+                int inChunk = (int) (size % CHUNK_SIZE);
+                if (inChunk == 0)
+                    chunks.add(new byte[CHUNK_SIZE]);
+                int n = Math.min(len, CHUNK_SIZE - inChunk);
+                System.arraycopy(b, off, chunks.get(chunks.size() - 1), inChunk, n);
+                off += n;
+                len -= n;
+                size += n;
+            }
+        }
+
+        public void writeTo(OutputStream out, Checksum crc) throws IOException {
+            long remaining = size;
+            for (byte[] chunk : chunks) {
+                int n = (int) Math.min(remaining, CHUNK_SIZE);
+                crc.update(chunk, 0, n);
+                out.write(chunk, 0, n);
+                remaining -= n;
+            }
+        }
+    }
+
+    /** Write the filter to disk, if anything has been added since the last snapshot. The filter is copied under the
+     *  lock, and written without blocking adds.
+     */
+    public void snapshot() {
+        synchronized (snapshotLock) {
+            long start = System.currentTimeMillis();
+            Chunks copy = new Chunks();
+            long journalMark;
+            try {
+                synchronized (this) {
+                    if (! dirty)
+                        return;
+                    DataOutputStream out = new DataOutputStream(copy);
+                    target.writeTo(out);
+                    out.flush();
+                    journalMark = journal.size();
+                    dirty = false;
+                }
+            } catch (IOException e) {
+                LOG.log(Level.WARNING, "Couldn't copy filter for snapshot", e);
+                return;
+            }
+            Path tmp = dir.resolve(SNAPSHOT + ".tmp");
+            try {
+                try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING);
+                     DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), CHUNK_SIZE))) {
+                    out.writeInt(MAGIC);
+                    out.writeInt(VERSION);
+                    out.writeUTF(type);
+                    out.writeDouble(falsePositiveRate);
+                    out.writeLong(copy.size);
+                    CRC32C crc = new CRC32C();
+                    copy.writeTo(out, crc);
+                    out.writeInt((int) crc.getValue());
+                    out.flush();
+                    channel.force(true);
+                }
+                Files.move(tmp, dir.resolve(SNAPSHOT), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                // a crash before this point only means replaying cids which are already in the snapshot
+                dropJournalBefore(journalMark);
+                LOG.info("Saved " + type + " filter snapshot in " + (System.currentTimeMillis() - start) + "ms");
+            } catch (IOException e) {
+                synchronized (this) {
+                    dirty = true;
+                }
+                LOG.log(Level.WARNING, "Couldn't save filter snapshot", e);
+            }
+        }
+    }
+
+    /** Remove the journal records which are in the snapshot, keeping any added while it was written.
+     */
+    private synchronized void dropJournalBefore(long mark) throws IOException {
+        long size = journal.size();
+        if (size == mark) {
+            journal.truncate(0);
+            return;
+        }
+        Path tmp = dir.resolve(JOURNAL + ".tmp");
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            long pos = mark;
+            while (pos < size)
+                pos += journal.transferTo(pos, size - pos, out);
+            out.force(true);
+        }
+        Files.move(tmp, dir.resolve(JOURNAL), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        journal.close();
+        journal = FileChannel.open(dir.resolve(JOURNAL), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        journal.position(journal.size());
+        // everything added so far is either in the snapshot or the synced copy of the journal
+        synced.accumulateAndGet(written, Math::max);
+    }
+
+    /** Load the filter snapshot from dir, replaying any cids added after it was taken. If there is no usable snapshot
+     *  the filter is built from scratch.
+     *
+     * @param type a name for the kind of filter, a snapshot of a different type or false positive rate is not used
+     * @param builder builds the filter from the blockstore, when there is no snapshot or the filter is full
+     * @param snapshotIntervalMillis how often to save a snapshot, 0 to only save on shutdown
+     */
+    public static PersistentFilter open(Path dir,
+                                        String type,
+                                        double falsePositiveRate,
+                                        Reader reader,
+                                        Supplier<Filter> builder,
+                                        long snapshotIntervalMillis) {
+        try {
+            Files.createDirectories(dir);
+            FileChannel journal = FileChannel.open(dir.resolve(JOURNAL), StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            Filter loaded = load(dir, type, falsePositiveRate, reader);
+            PersistentFilter res;
+            long replayed = loaded == null ? -1 : replayOrRebuild(journal, loaded);
+            if (replayed >= 0) {
+                res = new PersistentFilter(loaded, dir, type, falsePositiveRate, builder, journal, replayed > 0);
+            } else {
+                journal.truncate(0);
+                res = new PersistentFilter(builder.get(), dir, type, falsePositiveRate, builder, journal, true);
+            }
+            journal.position(journal.size());
+            if (res.count() > res.capacity()) {
+                synchronized (res) {
+                    res.startRebuild();
+                }
+            }
+            res.startSnapshots(snapshotIntervalMillis);
+            return res;
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+    }
+
+    /** Remove any saved snapshot, when the filter will be built without one and it would become stale.
+     */
+    public static void discard(Path dir) {
+        try {
+            Files.deleteIfExists(dir.resolve(SNAPSHOT));
+            Files.deleteIfExists(dir.resolve(JOURNAL));
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+    }
+
+    private void startSnapshots(long intervalMillis) {
+        if (intervalMillis > 0) {
+            ScheduledExecutorService snapshots = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "FilterSnapshot");
+                t.setDaemon(true);
+                return t;
+            });
+            // the first snapshot saves a freshly built filter
+            snapshots.scheduleWithFixedDelay(this::snapshot, 0, intervalMillis, TimeUnit.MILLISECONDS);
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(this::snapshot));
+    }
+
+    private static Filter load(Path dir, String type, double falsePositiveRate, Reader reader) {
+        Path snapshot = dir.resolve(SNAPSHOT);
+        if (! Files.exists(snapshot))
+            return null;
+        long start = System.currentTimeMillis();
+        try {
+            long fileSize = Files.size(snapshot);
+            long length;
+            long offset;
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(snapshot), CHUNK_SIZE))) {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                    LOG.info("Filter snapshot format has changed, rebuilding filter");
+                    return null;
+                }
+                String snapshotType = in.readUTF();
+                if (! snapshotType.equals(type) || in.readDouble() != falsePositiveRate) {
+                    LOG.info("Filter config has changed, rebuilding filter");
+                    return null;
+                }
+                length = in.readLong();
+                offset = 4 + 4 + 2 + snapshotType.getBytes("UTF-8").length + 8 + 8;
+                // check the length and checksum before the reader allocates anything based on the contents
+                if (length < 0 || offset + length + 4 != fileSize)
+                    throw new IOException("Filter snapshot length " + length + " doesn't match file size " + fileSize);
+                CRC32C crc = new CRC32C();
+                byte[] buf = new byte[CHUNK_SIZE];
+                for (long remaining = length; remaining > 0; ) {
+                    int n = in.read(buf, 0, (int) Math.min(buf.length, remaining));
+                    if (n < 0)
+                        throw new EOFException();
+                    crc.update(buf, 0, n);
+                    remaining -= n;
+                }
+                if (in.readInt() != (int) crc.getValue())
+                    throw new IOException("Filter snapshot checksum mismatch");
+            }
+            try (InputStream raw = Files.newInputStream(snapshot)) {
+                raw.skipNBytes(offset);
+                DataInputStream in = new DataInputStream(new BufferedInputStream(raw, CHUNK_SIZE));
+                Filter res = reader.read(in);
+                LOG.info("Loaded " + type + " filter snapshot in " + (System.currentTimeMillis() - start) + "ms");
+                return res;
+            }
+        } catch (IOException | RuntimeException e) {
+            LOG.log(Level.WARNING, "Couldn't load filter snapshot, rebuilding filter", e);
+            return null;
+        }
+    }
+
+    private static long replayOrRebuild(FileChannel journal, Filter loaded) {
+        long start = System.currentTimeMillis();
+        try {
+            long replayed = replay(journal, loaded);
+            LOG.info("Replayed " + replayed + " cids added since the last filter snapshot in " +
+                    (System.currentTimeMillis() - start) + "ms");
+            return replayed;
+        } catch (IOException | RuntimeException e) {
+            LOG.log(Level.WARNING, "Couldn't replay filter journal, rebuilding filter", e);
+            return -1;
+        }
+    }
+
+    private static long replay(FileChannel journal, Filter target) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(journal.position(0))));
+        long count = 0, end = 0;
+        while (true) {
+            byte[] raw;
+            try {
+                raw = new byte[in.readUnsignedShort()];
+                in.readFully(raw);
+            } catch (EOFException e) {
+                // drop a partially written final record from a crash, so later records can be read
+                journal.truncate(end);
+                return count;
+            }
+            target.add(Cid.cast(raw));
+            end += 2 + raw.length;
+            count++;
+        }
+    }
+}
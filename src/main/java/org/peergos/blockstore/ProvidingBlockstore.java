@@ -4,6 +4,9 @@ import io.ipfs.cid.*;
 import io.ipfs.multihash.*;
 import org.peergos.blockstore.metadatadb.*;
 
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.stream.*;
@@ -27,11 +30,31 @@ public class ProvidingBlockstore implements Blockstore {
         return target.hasAny(h);
     }
 
+    @Override
+    public CompletableFuture<List<Boolean>> hasAll(List<Cid> cids) {
+        return target.hasAll(cids);
+    }
+
     @Override
     public CompletableFuture<Optional<byte[]>> get(Cid c) {
         return target.get(c);
     }
 
+    @Override
+    public CompletableFuture<List<Optional<byte[]>>> getAll(List<Cid> cids) {
+        return target.getAll(cids);
+    }
+
+    @Override
+    public CompletableFuture<Optional<ByteBuffer>> getBuffer(Cid c) {
+        return target.getBuffer(c);
+    }
+
+    @Override
+    public CompletableFuture<Optional<InputStream>> getStream(Cid c) {
+        return target.getStream(c);
+    }
+
     @Override
     public CompletableFuture<Cid> put(byte[] block, Cid.Codec codec) {
         CompletableFuture<Cid> res = target.put(block, codec);
@@ -39,11 +62,30 @@ public class ProvidingBlockstore implements Blockstore {
         return res;
     }
 
+    @Override
+    public CompletableFuture<List<Cid>> putAll(List<byte[]> blocks, Cid.Codec codec) {
+        CompletableFuture<List<Cid>> res = target.putAll(blocks, codec);
+        res.thenApply(toPublish::addAll);
+        return res;
+    }
+
+    @Override
+    public CompletableFuture<Cid> put(ReadableByteChannel block, Cid.Codec codec) {
+        CompletableFuture<Cid> res = target.put(block, codec);
+        res.thenApply(toPublish::add);
+        return res;
+    }
+
     @Override
     public CompletableFuture<Boolean> rm(Cid c) {
         return target.rm(c);
     }
 
+    @Override
+    public CompletableFuture<Boolean> rmAll(List<Cid> cids) {
+        return target.rmAll(cids);
+    }
+
     @Override
     public CompletableFuture<List<Cid>> refs(boolean useBlockstore) {
         return target.refs(useBlockstore);
@@ -7,6 +7,8 @@ import org.peergos.blockstore.metadatadb.BlockMetadata;
 import org.peergos.cbor.*;
 import org.peergos.util.*;
 
+import java.io.*;
+import java.nio.*;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.stream.*;
@@ -31,6 +33,16 @@ public class RamBlockstore implements Blockstore {
         return CompletableFuture.completedFuture(Optional.ofNullable(blocks.get(c)));
     }
 
+    @Override
+    public CompletableFuture<Optional<ByteBuffer>> getBuffer(Cid c) {
+        return CompletableFuture.completedFuture(Optional.ofNullable(blocks.get(c)).map(b -> ByteBuffer.wrap(b).asReadOnlyBuffer()));
+    }
+
+    @Override
+    public CompletableFuture<Optional<InputStream>> getStream(Cid c) {
+        return CompletableFuture.completedFuture(Optional.ofNullable(blocks.get(c)).map(ByteArrayInputStream::new));
+    }
+
     @Override
     public CompletableFuture<Cid> put(byte[] block, Cid.Codec codec) {
         Cid cid = new Cid(1, codec, Multihash.Type.sha2_256, Hash.sha256(block));
@@ -0,0 +1,540 @@
+package org.peergos.blockstore;
+
+import io.ipfs.cid.Cid;
+import io.ipfs.multihash.Multihash;
+import io.prometheus.client.Counter;
+import org.peergos.Hash;
+import org.peergos.blockstore.metadatadb.BlockMetadata;
+import org.peergos.blockstore.metadatadb.BlockMetadataStore;
+import org.peergos.util.Futures;
+import org.peergos.util.Logging;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/** A bounded local disk cache in front of a remote blockstore, e.g. S3.
+ *
+ *  Reads are served from the cache when possible, otherwise they are fetched from the remote store and cached. The
+ *  least recently used blocks are evicted once the cache exceeds its size limit.
+ *
+ *  With write back enabled, puts complete once the block is in the local cache and a journal entry is durable. A
+ *  background thread then uploads them to the remote store. Blocks which have not been uploaded yet are never evicted,
+ *  and are re-queued from the journal after a restart. A block is journalled before it is added to the cache, so an
+ *  eviction can never see it as clean before it has been uploaded. Concurrent puts share the fsync of their journal
+ *  entries, and the journal is rewritten with only the pending blocks once it has accumulated enough completed uploads.
+ */
+public class TieredBlockstore implements Blockstore {
+
+    private static final Logger LOG = Logging.LOG();
+    private static final String JOURNAL = "writeback.journal";
+    // rewrite the journal once it has this many records of completed uploads
+    private static final int JOURNAL_COMPACTION_THRESHOLD = 10_000;
+
+    private static final Counter cacheHits = Counter.build()
+            .name("ipfs_block_cache_hits_total")
+            .help("Number of block reads served from the local cache tier")
+            .register();
+    private static final Counter cacheMisses = Counter.build()
+            .name("ipfs_block_cache_misses_total")
+            .help("Number of block reads that went to the remote tier")
+            .register();
+    private static final Counter writeBackUploads = Counter.build()
+            .name("ipfs_block_writeback_uploads_total")
+            .help("Number of blocks uploaded to the remote tier by the write back queue")
+            .register();
+
+    private final Blockstore remote;
+    private final FileBlockstore cache;
+    private final long maxCacheBytes;
+    private final LinkedHashMap<Cid, Long> lru = new LinkedHashMap<>(1024, 0.75f, true);
+    private long cachedBytes = 0;
+    // serialise writing a block into the cache with evicting it
+    private final Object[] stripes = new Object[64];
+    // serialise uploading a block with removing it, so a removed block is never uploaded again
+    private final Object[] uploadStripes = new Object[64];
+
+    private final boolean writeBack;
+    private final Set<Cid> dirty = ConcurrentHashMap.newKeySet();
+    private final BlockingQueue<Cid> toUpload;
+    private final Path journalPath;
+    // replaced while holding both the lock on this and syncLock
+    private FileChannel journal;
+    // bytes appended to the journal, and how many of them are on disk, counting across rewrites
+    private volatile long journalAppended = 0;
+    private volatile long journalSynced = 0;
+    private final Object syncLock = new Object();
+    private int cleanRecords = 0;
+    private final Thread uploader;
+    private volatile boolean running = true;
+
+    public TieredBlockstore(Blockstore remote, Path cacheRoot, long maxCacheBytes, boolean writeBack, int writeBackQueueSize) {
+        this.remote = remote;
+        this.maxCacheBytes = maxCacheBytes;
+        this.writeBack = writeBack;
+        try {
+            Files.createDirectories(cacheRoot);
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+        for (int i = 0; i < stripes.length; i++)
+            stripes[i] = new Object();
+        for (int i = 0; i < uploadStripes.length; i++)
+            uploadStripes[i] = new Object();
+        this.cache = new FileBlockstore(cacheRoot);
+        for (Cid c : cache.refs(true).join())
+            lru.put(c, cache.size(c));
+        cachedBytes = lru.values().stream().mapToLong(x -> x).sum();
+
+        this.journalPath = cacheRoot.resolve(JOURNAL);
+        if (writeBack) {
+            Set<Cid> pending = replayJournal();
+            this.toUpload = new LinkedBlockingQueue<>(Math.max(writeBackQueueSize, pending.size()));
+            dirty.addAll(pending);
+            toUpload.addAll(pending);
+            if (! pending.isEmpty())
+                LOG.info("Resuming upload of " + pending.size() + " blocks from write back journal");
+            this.uploader = new Thread(this::uploadLoop, "TieredBlockstore-writeback");
+            uploader.setDaemon(true);
+            uploader.start();
+        } else {
+            this.toUpload = null;
+            this.uploader = null;
+        }
+        evict();
+        LOG.info("Using local block cache at " + cacheRoot + " with " + lru.size() + " blocks (" + cachedBytes + " bytes)");
+    }
+
+    /** Read the journal, rewrite it with only the blocks still pending upload, and open it for appending.
+     */
+    private Set<Cid> replayJournal() {
+        Set<Cid> pending = new LinkedHashSet<>();
+        try {
+            if (journalPath.toFile().exists()) {
+                for (String line : Files.readAllLines(journalPath, StandardCharsets.UTF_8)) {
+                    if (line.length() < 2)
+                        continue; // torn final line
+                    Cid cid;
+                    try {
+                        cid = Cid.decode(line.substring(1));
+                    } catch (Exception e) {
+                        continue;
+                    }
+                    if (line.charAt(0) == '+')
+                        pending.add(cid);
+                    else if (line.charAt(0) == '-')
+                        pending.remove(cid);
+                }
+            }
+            pending.removeIf(c -> ! cache.has(c).join());
+            rewriteJournal(pending);
+            return pending;
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+    }
+
+    /** Atomically replace the journal with one listing only the given pending blocks, and open it for appending.
+     */
+    private void rewriteJournal(Set<Cid> pending) throws IOException {
+        Path tmp = journalPath.resolveSibling(JOURNAL + ".tmp");
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer entries = ByteBuffer.wrap(pending.stream()
+                    .map(c -> "+" + c + "\n")
+                    .collect(Collectors.joining())
+                    .getBytes(StandardCharsets.UTF_8));
+            while (entries.hasRemaining())
+                out.write(entries);
+            out.force(false);
+        }
+        Files.move(tmp, journalPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        synchronized (syncLock) {
+            if (journal != null)
+                journal.close();
+            journal = FileChannel.open(journalPath, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            journalSynced = journalAppended;
+        }
+        cleanRecords = 0;
+    }
+
+    /**
+     * @return the journal position after the entry
+     */
+    private long appendToJournal(char op, Cid c) throws IOException {
+        ByteBuffer entry = ByteBuffer.wrap((op + c.toString() + "\n").getBytes(StandardCharsets.UTF_8));
+        int size = entry.remaining();
+        while (entry.hasRemaining())
+            journal.write(entry);
+        journalAppended += size;
+        return journalAppended;
+    }
+
+    /** Wait until the journal is on disk up to the given position. Concurrent writers share a single fsync.
+     */
+    private void syncJournal(long position) throws IOException {
+        if (journalSynced >= position)
+            return;
+        synchronized (syncLock) {
+            if (journalSynced >= position)
+                return;
+            long target = journalAppended;
+            journal.force(false);
+            journalSynced = target;
+        }
+    }
+
+    /**
+     * @return true if the block wasn't already pending upload
+     */
+    private boolean markDirty(Cid c) {
+        long position;
+        synchronized (this) {
+            if (! dirty.add(c))
+                return false;
+            try {
+                position = appendToJournal('+', c);
+            } catch (IOException e) {
+                dirty.remove(c);
+                throw new RuntimeException(e.getMessage(), e);
+            }
+        }
+        try {
+            syncJournal(position);
+            return true;
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+    }
+
+    private synchronized void markClean(Cid c) {
+        try {
+            if (! dirty.remove(c))
+                return;
+            if (dirty.isEmpty()) {
+                journal.truncate(0);
+                cleanRecords = 0;
+            } else if (++cleanRecords > Math.max(JOURNAL_COMPACTION_THRESHOLD, dirty.size()))
+                rewriteJournal(new LinkedHashSet<>(dirty));
+            else
+                appendToJournal('-', c);
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Unable to update write back journal: " + e.getMessage(), e);
+        }
+    }
+
+    private void uploadLoop() {
+        // failed uploads are retried once the queue is empty, as putting them back would block while it is full
+        Queue<Cid> retries = new ArrayDeque<>();
+        while (running) {
+            Cid c;
+            try {
+                // poll rather than being interrupted, which would close the journal channel mid write
+                c = toUpload.poll(100, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (c == null)
+                c = retries.poll();
+            if (c == null)
+                continue;
+            try {
+                if (upload(c))
+                    evict();
+            } catch (Exception e) {
+                LOG.log(Level.WARNING, "Failed to upload block " + c + ", will retry: " + e.getMessage());
+                retries.add(c);
+                try {
+                    for (int i = 0; i < 10 && running; i++)
+                        Thread.sleep(100);
+                } catch (InterruptedException f) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return true if the block is now in the remote store
+     */
+    private boolean upload(Cid c) {
+        synchronized (uploadStripe(c)) {
+            if (! dirty.contains(c))
+                return false; // removed before upload
+            if (remote.has(c).join()) {
+                markClean(c);
+                return true;
+            }
+            Optional<byte[]> block = cache.get(c).join();
+            if (block.isEmpty()) {
+                LOG.warning("Block pending upload is missing from the local cache: " + c);
+                markClean(c);
+                return false;
+            }
+            remote.put(block.get(), c.codec).join();
+            markClean(c);
+            writeBackUploads.inc();
+            return true;
+        }
+    }
+
+    public int pendingUploads() {
+        return dirty.size();
+    }
+
+    /** Stop uploading. Blocks which haven't been uploaded stay in the journal, and are uploaded after a restart.
+     */
+    public void close() {
+        running = false;
+        if (uploader != null) {
+            try {
+                uploader.join(10_000);
+            } catch (InterruptedException e) {}
+        }
+        try {
+            if (journal != null)
+                journal.close();
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, e.getMessage(), e);
+        }
+    }
+
+    private boolean isCached(Cid c) {
+        synchronized (lru) {
+            return lru.containsKey(c);
+        }
+    }
+
+    private boolean touch(Cid c) {
+        synchronized (lru) {
+            return lru.get(c) != null;
+        }
+    }
+
+    private void forget(Cid c) {
+        synchronized (lru) {
+            Long size = lru.remove(c);
+            if (size != null)
+                cachedBytes -= size;
+        }
+    }
+
+    private Object stripe(Cid c) {
+        return stripes[(c.hashCode() & Integer.MAX_VALUE) % stripes.length];
+    }
+
+    private Object uploadStripe(Cid c) {
+        return uploadStripes[(c.hashCode() & Integer.MAX_VALUE) % uploadStripes.length];
+    }
+
+    /** Drop a block from the cache and from the upload queue, waiting for an upload of it in progress.
+     *
+     * @return true if the block was pending upload
+     */
+    private boolean removeLocal(Cid c) {
+        synchronized (uploadStripe(c)) {
+            boolean wasDirty = dirty.contains(c);
+            markClean(c);
+            forget(c);
+            cache.rm(c).join();
+            return wasDirty;
+        }
+    }
+
+    private void writeToCache(Cid c, byte[] block) {
+        synchronized (stripe(c)) {
+            cache.put(block, c.codec).join();
+            synchronized (lru) {
+                if (lru.put(c, (long) block.length) == null)
+                    cachedBytes += block.length;
+            }
+        }
+    }
+
+    private void addToCache(Cid c, byte[] block) {
+        // the cache is keyed by the sha256 of the block
+        if (c.getType() != Multihash.Type.sha2_256 || isCached(c))
+            return;
+        writeToCache(c, block);
+        evict();
+    }
+
+    private void evict() {
+        List<Cid> toRemove = new ArrayList<>();
+        synchronized (lru) {
+            Iterator<Map.Entry<Cid, Long>> it = lru.entrySet().iterator();
+            while (cachedBytes > maxCacheBytes && it.hasNext()) {
+                Map.Entry<Cid, Long> e = it.next();
+                if (dirty.contains(e.getKey()))
+                    continue;
+                it.remove();
+                cachedBytes -= e.getValue();
+                toRemove.add(e.getKey());
+            }
+        }
+        for (Cid c : toRemove) {
+            synchronized (stripe(c)) {
+                // it may have been written again since we chose it
+                if (! dirty.contains(c) && ! isCached(c))
+                    cache.rm(c).join();
+            }
+        }
+    }
+
+    @Override
+    public CompletableFuture<Boolean> has(Cid c) {
+        if (isCached(c))
+            return Futures.of(true);
+        return remote.has(c);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> hasAny(Multihash h) {
+        return Futures.of(Stream.of(Cid.Codec.DagCbor, Cid.Codec.Raw, Cid.Codec.DagProtobuf)
+                .anyMatch(c -> has(new Cid(1, c, h.getType(), h.getHash())).join()));
+    }
+
+    @Override
+    public CompletableFuture<Optional<byte[]>> get(Cid c) {
+        if (touch(c)) {
+            Optional<byte[]> local = cache.get(c).join();
+            if (local.isPresent()) {
+                cacheHits.inc();
+                return Futures.of(local);
+            }
+            // evicted concurrently
+            forget(c);
+        }
+        cacheMisses.inc();
+        return remote.get(c).thenApply(res -> {
+            res.ifPresent(b -> addToCache(c, b));
+            return res;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Optional<ByteBuffer>> getBuffer(Cid c) {
+        if (touch(c)) {
+            Optional<ByteBuffer> local = cache.getBuffer(c).join();
+            if (local.isPresent()) {
+                cacheHits.inc();
+                return Futures.of(local);
+            }
+            forget(c);
+        }
+        return get(c).thenApply(res -> res.map(ByteBuffer::wrap));
+    }
+
+    @Override
+    public CompletableFuture<Optional<InputStream>> getStream(Cid c) {
+        if (touch(c)) {
+            Optional<InputStream> local = cache.getStream(c).join();
+            if (local.isPresent()) {
+                cacheHits.inc();
+                return Futures.of(local);
+            }
+            forget(c);
+        }
+        return get(c).thenApply(res -> res.map(ByteArrayInputStream::new));
+    }
+
+    @Override
+    public CompletableFuture<Cid> put(byte[] block, Cid.Codec codec) {
+        if (! writeBack)
+            return remote.put(block, codec).thenApply(cid -> {
+                addToCache(cid, block);
+                return cid;
+            });
+        Cid cid = new Cid(1, codec, Multihash.Type.sha2_256, Hash.sha256(block));
+        // a clean cached block has already been uploaded
+        if (touch(cid) && ! dirty.contains(cid))
+            return Futures.of(cid);
+        // journal the block first, so it can't be evicted before it is uploaded, the uploader skips blocks the remote
+        // store already has
+        boolean added = markDirty(cid);
+        writeToCache(cid, block);
+        if (added) {
+            try {
+                toUpload.put(cid);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        evict();
+        return Futures.of(cid);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> rm(Cid c) {
+        boolean wasDirty = removeLocal(c);
+        return remote.rm(c).thenApply(res -> res || wasDirty);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> rmAll(List<Cid> cids) {
+        boolean anyDirty = false;
+        for (Cid c : cids)
+            anyDirty |= removeLocal(c);
+        boolean wasDirty = anyDirty;
+        return remote.rmAll(cids).thenApply(res -> res || wasDirty);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> bloomAdd(Cid c) {
+        return remote.bloomAdd(c);
+    }
+
+    @Override
+    public CompletableFuture<List<Cid>> refs(boolean useBlockstore) {
+        return remote.refs(useBlockstore).thenApply(res -> {
+            if (dirty.isEmpty())
+                return res;
+            Set<Cid> all = new LinkedHashSet<>(res);
+            all.addAll(dirty);
+            return new ArrayList<>(all);
+        });
+    }
+
+    @Override
+    public Stream<Cid> refStream() {
+        Set<Cid> pending = Set.copyOf(dirty);
+        return Stream.concat(pending.stream(), remote.refStream().filter(c -> ! pending.contains(c)));
+    }
+
+    @Override
+    public CompletableFuture<BlockMetadata> getBlockMetadata(Cid h) {
+        // avoid remote requests when we have the block locally
+        if (isCached(h) && (h.codec == Cid.Codec.Raw || h.codec == Cid.Codec.DagCbor)) {
+            Optional<byte[]> local = cache.get(h).join();
+            if (local.isPresent())
+                return Futures.of(BlockMetadataStore.extractMetadata(h, local.get()));
+        }
+        return remote.getBlockMetadata(h);
+    }
+}
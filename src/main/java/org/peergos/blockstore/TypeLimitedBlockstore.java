@@ -5,7 +5,12 @@ import io.ipfs.multihash.*;
 import org.peergos.blockstore.metadatadb.BlockMetadata;
 import org.peergos.util.*;
 
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
@@ -45,6 +50,21 @@ public class TypeLimitedBlockstore implements Blockstore {
         return CompletableFuture.completedFuture(false);
     }
 
+    @Override
+    public CompletableFuture<List<Boolean>> hasAll(List<Cid> cids) {
+        List<Cid> allowed = cids.stream()
+                .filter(c -> allowedCodecs.contains(c.codec))
+                .collect(Collectors.toList());
+        return blocks.hasAll(allowed).thenApply(res -> {
+            Map<Cid, Boolean> found = new HashMap<>();
+            for (int i = 0; i < allowed.size(); i++)
+                found.put(allowed.get(i), res.get(i));
+            return cids.stream()
+                    .map(c -> found.getOrDefault(c, false))
+                    .collect(Collectors.toList());
+        });
+    }
+
     @Override
     public CompletableFuture<Optional<byte[]>> get(Cid cid) {
         if (allowedCodecs.contains(cid.codec)) {
@@ -53,6 +73,37 @@ public class TypeLimitedBlockstore implements Blockstore {
         return CompletableFuture.completedFuture(Optional.empty());
     }
 
+    @Override
+    public CompletableFuture<List<Optional<byte[]>>> getAll(List<Cid> cids) {
+        List<Cid> allowed = cids.stream()
+                .filter(c -> allowedCodecs.contains(c.codec))
+                .collect(Collectors.toList());
+        return blocks.getAll(allowed).thenApply(res -> {
+            Map<Cid, Optional<byte[]>> found = new HashMap<>();
+            for (int i = 0; i < allowed.size(); i++)
+                found.put(allowed.get(i), res.get(i));
+            return cids.stream()
+                    .map(c -> found.getOrDefault(c, Optional.empty()))
+                    .collect(Collectors.toList());
+        });
+    }
+
+    @Override
+    public CompletableFuture<Optional<ByteBuffer>> getBuffer(Cid cid) {
+        if (allowedCodecs.contains(cid.codec)) {
+            return blocks.getBuffer(cid);
+        }
+        return CompletableFuture.completedFuture(Optional.empty());
+    }
+
+    @Override
+    public CompletableFuture<Optional<InputStream>> getStream(Cid cid) {
+        if (allowedCodecs.contains(cid.codec)) {
+            return blocks.getStream(cid);
+        }
+        return CompletableFuture.completedFuture(Optional.empty());
+    }
+
     @Override
     public CompletableFuture<Cid> put(byte[] block, Cid.Codec codec) {
         if (allowedCodecs.contains(codec)) {
@@ -61,6 +112,22 @@ public class TypeLimitedBlockstore implements Blockstore {
         throw new IllegalArgumentException("Unsupported codec: " + codec);
     }
 
+    @Override
+    public CompletableFuture<List<Cid>> putAll(List<byte[]> blocks, Cid.Codec codec) {
+        if (allowedCodecs.contains(codec)) {
+            return this.blocks.putAll(blocks, codec);
+        }
+        throw new IllegalArgumentException("Unsupported codec: " + codec);
+    }
+
+    @Override
+    public CompletableFuture<Cid> put(ReadableByteChannel block, Cid.Codec codec) {
+        if (allowedCodecs.contains(codec)) {
+            return blocks.put(block, codec);
+        }
+        throw new IllegalArgumentException("Unsupported codec: " + codec);
+    }
+
     @Override
     public CompletableFuture<Boolean> rm(Cid cid) {
         if (allowedCodecs.contains(cid.codec)) {
@@ -69,6 +136,15 @@ public class TypeLimitedBlockstore implements Blockstore {
         throw new IllegalArgumentException("Unsupported codec: " + cid.codec);
     }
 
+    @Override
+    public CompletableFuture<Boolean> rmAll(List<Cid> cids) {
+        for (Cid cid : cids) {
+            if (! allowedCodecs.contains(cid.codec))
+                throw new IllegalArgumentException("Unsupported codec: " + cid.codec);
+        }
+        return blocks.rmAll(cids);
+    }
+
     @Override
     public CompletableFuture<List<Cid>> refs(boolean useBlockstore) {
         return blocks.refs(useBlockstore).thenApply(res -> res.stream()
@@ -76,6 +152,11 @@ public class TypeLimitedBlockstore implements Blockstore {
                 .collect(Collectors.toList()));
     }
 
+    @Override
+    public Stream<Cid> refStream() {
+        return blocks.refStream().filter(c -> allowedCodecs.contains(c.codec));
+    }
+
     @Override
     public CompletableFuture<BlockMetadata> getBlockMetadata(Cid h) {
         return blocks.getBlockMetadata(h);
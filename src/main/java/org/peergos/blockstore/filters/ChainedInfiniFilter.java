@@ -1,7 +1,12 @@
 package org.peergos.blockstore.filters;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.ArrayList;
 
+import org.peergos.blockstore.filters.bitmap.BitmapFactory;
+
 /*
  * The following example assumes we begin with an InfiniFilter with 2^3, or 8 cells and 4 bits per fingerprint
  * The example assumes decreasing the FPR polynomially, or in other words
@@ -46,10 +51,45 @@ public class ChainedInfiniFilter extends InfiniFilter {
 	int former_phase = 0;
 	
 	public ChainedInfiniFilter(int power_of_two, int bits_per_entry) {
-		super(power_of_two, bits_per_entry);
+		this(power_of_two, bits_per_entry, BitmapFactory.ON_HEAP);
+	}
+
+	public ChainedInfiniFilter(int power_of_two, int bits_per_entry, BitmapFactory bitmaps) {
+		super(power_of_two, bits_per_entry, bitmaps);
 		older_filters = new ArrayList<InfiniFilter>();
 	}
 	
+	// restores a filter written with write, including its former and older filters
+	public ChainedInfiniFilter(DataInput in, BitmapFactory bitmaps) throws IOException {
+		super(in, bitmaps);
+		count_until_replacing_former = in.readInt();
+		count_until_expanding_former = in.readInt();
+		former_phase = in.readInt();
+		if (in.readBoolean()) {
+			former = new InfiniFilter(in, bitmaps);
+		}
+		int num_older = in.readInt();
+		older_filters = new ArrayList<InfiniFilter>(num_older);
+		for (int i = 0; i < num_older; i++) {
+			older_filters.add(new InfiniFilter(in, bitmaps));
+		}
+	}
+	
+	public void write(DataOutput out) throws IOException {
+		super.write(out);
+		out.writeInt(count_until_replacing_former);
+		out.writeInt(count_until_expanding_former);
+		out.writeInt(former_phase);
+		out.writeBoolean(former != null);
+		if (former != null) {
+			former.write(out);
+		}
+		out.writeInt(older_filters.size());
+		for (InfiniFilter older : older_filters) {
+			older.write(out);
+		}
+	}
+	
 	void handle_empty_fingerprint(long bucket_index, QuotientFilter current) {
 		long bucket1 = bucket_index;
 		long fingerprint = bucket_index >> former.power_of_two_size;
@@ -73,18 +113,18 @@ public class ChainedInfiniFilter extends InfiniFilter {
 		
 	}
 	
-	// The hash function is being computed here for each filter 
-	// However, it's not such an expensive function, so it's probably not a performance issue. 
-	public boolean search(long input) {
-		if (super.search(input)) {
+	// Every search variant ends up here, so entries which have moved to the former or older filters are found
+	// whether the input is a long, a string or bytes. Each filter derives its slot and fingerprint from the same hash.
+	protected boolean _search(long large_hash) {
+		if (super._search(large_hash)) {
 			return true;
 		}
-		if (former != null && former.search(input)) {
+		if (former != null && former._search(large_hash)) {
 			return true;
 		}
 		
 		for (QuotientFilter qf : older_filters) {
-			if (qf.search(input)) {
+			if (qf._search(large_hash)) {
 				return true;
 			}
 		}
@@ -96,7 +136,7 @@ public class ChainedInfiniFilter extends InfiniFilter {
 		
 		//System.out.println("starting expansion " + num_expansions);
 		if (num_expansions == original_fingerprint_size ) { // first time we create a former filter
-			former = new InfiniFilter(power_of_two_size - original_fingerprint_size + 1, original_fingerprint_size + 3);
+			former = new InfiniFilter(power_of_two_size - original_fingerprint_size + 1, original_fingerprint_size + 3, bitmaps);
 			former.ht = this.ht;
 			former.fprStyle = fprStyle;
 			count_until_replacing_former = original_fingerprint_size;
@@ -119,7 +159,7 @@ public class ChainedInfiniFilter extends InfiniFilter {
 			int FP_diff = prev_FP_size - new_FP_size;
 			count_until_expanding_former = FP_diff + 1;
 			
-			former = new InfiniFilter(former.power_of_two_size + 1, new_FP_size + 3);
+			former = new InfiniFilter(former.power_of_two_size + 1, new_FP_size + 3, bitmaps);
 			former.ht = this.ht;
 			former.original_fingerprint_size = original_fingerprint_size;
 			former.fprStyle = fprStyle;
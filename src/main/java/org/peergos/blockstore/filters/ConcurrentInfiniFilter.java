@@ -0,0 +1,136 @@
+package org.peergos.blockstore.filters;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.StampedLock;
+
+import org.peergos.blockstore.filters.bitmap.BitmapFactory;
+
+/*
+ * A thread safe infini filter made of independent segments, each a ChainedInfiniFilter guarded by its own lock.
+ * An entry's segment is chosen from its hash, so threads working on different segments never contend.
+ *
+ * Searches first run optimistically without taking the lock and are only retried under a read lock if a write
+ * to the same segment happened meanwhile. Inserts shift entries along a run, and expansions rebuild the whole
+ * segment, so they take the segment's write lock.
+ */
+public class ConcurrentInfiniFilter {
+
+	private static final long SEGMENT_SEED = 0x5bd1e995L;
+
+	private final ChainedInfiniFilter[] segments;
+	private final StampedLock[] locks;
+	private final int segment_bits;
+
+	public ConcurrentInfiniFilter(int segment_bits, int power_of_two, int bits_per_entry) {
+		this(segment_bits, power_of_two, bits_per_entry, BitmapFactory.ON_HEAP);
+	}
+
+	public ConcurrentInfiniFilter(int segment_bits, int power_of_two, int bits_per_entry, BitmapFactory bitmaps) {
+		if (segment_bits < 0 || segment_bits >= power_of_two) {
+			throw new IllegalArgumentException("Invalid number of segments");
+		}
+		this.segment_bits = segment_bits;
+		int num_segments = 1 << segment_bits;
+		segments = new ChainedInfiniFilter[num_segments];
+		locks = new StampedLock[num_segments];
+		for (int i = 0; i < num_segments; i++) {
+			segments[i] = new ChainedInfiniFilter(power_of_two - segment_bits, bits_per_entry, bitmaps);
+			locks[i] = new StampedLock();
+		}
+	}
+
+	// restores a filter written with write
+	public ConcurrentInfiniFilter(DataInput in, BitmapFactory bitmaps) throws IOException {
+		segment_bits = in.readInt();
+		int num_segments = 1 << segment_bits;
+		segments = new ChainedInfiniFilter[num_segments];
+		locks = new StampedLock[num_segments];
+		for (int i = 0; i < num_segments; i++) {
+			segments[i] = new ChainedInfiniFilter(in, bitmaps);
+			locks[i] = new StampedLock();
+		}
+	}
+
+	public void set_expand_autonomously(boolean val) {
+		for (int i = 0; i < segments.length; i++) {
+			long stamp = locks[i].writeLock();
+			try {
+				segments[i].set_expand_autonomously(val);
+			} finally {
+				locks[i].unlockWrite(stamp);
+			}
+		}
+	}
+
+	// the slot and fingerprint come from the low bits of the hash, so the segment is chosen from a rehash
+	private int segment(long large_hash) {
+		if (segment_bits == 0) {
+			return 0;
+		}
+		return (int) (XxHash.xxHash64(large_hash, SEGMENT_SEED) >>> (64 - segment_bits));
+	}
+
+	public boolean search(byte[] input) {
+		long large_hash = HashFunctions.xxhash(ByteBuffer.wrap(input));
+		int i = segment(large_hash);
+		ChainedInfiniFilter segment = segments[i];
+		StampedLock lock = locks[i];
+		long stamp = lock.tryOptimisticRead();
+		if (stamp != 0) {
+			try {
+				boolean res = segment._search(large_hash);
+				if (lock.validate(stamp)) {
+					return res;
+				}
+			} catch (RuntimeException e) {
+				// the segment changed under us and we read an inconsistent state, retry under the lock
+			}
+		}
+		stamp = lock.readLock();
+		try {
+			return segment._search(large_hash);
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	public boolean insert(byte[] input, boolean insert_only_if_no_match) {
+		long large_hash = HashFunctions.xxhash(ByteBuffer.wrap(input));
+		int i = segment(large_hash);
+		long stamp = locks[i].writeLock();
+		try {
+			return segments[i]._insert(large_hash, insert_only_if_no_match);
+		} finally {
+			locks[i].unlockWrite(stamp);
+		}
+	}
+
+	public long get_num_entries() {
+		long total = 0;
+		for (int i = 0; i < segments.length; i++) {
+			long stamp = locks[i].readLock();
+			try {
+				total += segments[i].get_num_entries(true);
+			} finally {
+				locks[i].unlockRead(stamp);
+			}
+		}
+		return total;
+	}
+
+	// writes each segment under its read lock, so inserts to other segments can continue
+	public void write(DataOutput out) throws IOException {
+		out.writeInt(segment_bits);
+		for (int i = 0; i < segments.length; i++) {
+			long stamp = locks[i].readLock();
+			try {
+				segments[i].write(out);
+			} finally {
+				locks[i].unlockRead(stamp);
+			}
+		}
+	}
+}
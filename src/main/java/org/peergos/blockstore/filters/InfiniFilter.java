@@ -1,6 +1,12 @@
 
 package org.peergos.blockstore.filters;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.peergos.blockstore.filters.bitmap.BitmapFactory;
+
 public class InfiniFilter extends QuotientFilter {
 
 	long empty_fingerprint;
@@ -10,12 +16,24 @@ public class InfiniFilter extends QuotientFilter {
 		fprStyle = val;
 	}
 	
-	InfiniFilter(int power_of_two, int bits_per_entry) {
-		super(power_of_two, bits_per_entry);
+	InfiniFilter(int power_of_two, int bits_per_entry, BitmapFactory bitmaps) {
+		super(power_of_two, bits_per_entry, bitmaps);
 		max_entries_before_expansion = (long)(Math.pow(2, power_of_two_size) * expansion_threshold);
 		empty_fingerprint = (1L << fingerprintLength) - 2L;
 	}
 	
+	InfiniFilter(DataInput in, BitmapFactory bitmaps) throws IOException {
+		super(in, bitmaps);
+		empty_fingerprint = in.readLong();
+		fprStyle = FingerprintGrowthStrategy.FalsePositiveRateExpansion.values()[in.readInt()];
+	}
+	
+	public void write(DataOutput out) throws IOException {
+		super.write(out);
+		out.writeLong(empty_fingerprint);
+		out.writeInt(fprStyle.ordinal());
+	}
+	
 	protected boolean compare(long index, long fingerprint) {
 		long generation = parse_unary(index);
 		long first_fp_bit = index * bitPerEntry + 3;
@@ -129,7 +147,7 @@ public class InfiniFilter extends QuotientFilter {
 	void expand() {
 		int new_fingerprint_size = FingerprintGrowthStrategy.get_new_fingerprint_size(original_fingerprint_size, num_expansions, fprStyle);
 		//System.out.println("FP size: " + new_fingerprint_size);
-		QuotientFilter new_qf = new QuotientFilter(power_of_two_size + 1, new_fingerprint_size + 3);
+		QuotientFilter new_qf = new QuotientFilter(power_of_two_size + 1, new_fingerprint_size + 3, bitmaps);
 		Iterator it = new Iterator(this);		
 		long unary_mask = prep_unary_mask(fingerprintLength, new_fingerprint_size);
 		
@@ -1,11 +1,14 @@
 package org.peergos.blockstore.filters;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.Set;
 
 import org.peergos.blockstore.filters.bitmap.Bitmap;
-import org.peergos.blockstore.filters.bitmap.QuickBitVectorWrapper;
+import org.peergos.blockstore.filters.bitmap.BitmapFactory;
 
 public class QuotientFilter extends Filter {
 
@@ -15,6 +18,8 @@ public class QuotientFilter extends Filter {
 	int num_extension_slots;
 	int num_existing_entries;
 	Bitmap filter;
+	// creates the bitmaps for this filter and any it expands into
+	BitmapFactory bitmaps;
 	
 	double expansion_threshold;
 	long max_entries_before_expansion;
@@ -32,6 +37,11 @@ public class QuotientFilter extends Filter {
 	
 	
 	public QuotientFilter(int power_of_two, int bits_per_entry) {
+		this(power_of_two, bits_per_entry, BitmapFactory.ON_HEAP);
+	}
+
+	public QuotientFilter(int power_of_two, int bits_per_entry, BitmapFactory bitmaps) {
+		this.bitmaps = bitmaps;
 		power_of_two_size = power_of_two;
 		bitPerEntry = bits_per_entry; 
 		fingerprintLength = bits_per_entry - 3;
@@ -73,7 +83,7 @@ public class QuotientFilter extends Filter {
 	}
 	
 	Bitmap make_filter(long init_size, int bits_per_entry) {
-		return new QuickBitVectorWrapper(bits_per_entry,  init_size + num_extension_slots);
+		return bitmaps.create(bits_per_entry,  init_size + num_extension_slots);
 	}
 	
 	public int get_fingerprint_length() {
@@ -85,9 +95,45 @@ public class QuotientFilter extends Filter {
 		bitPerEntry = bits_per_entry; 
 		fingerprintLength = bits_per_entry - 3;
 		filter = bitmap;
+		bitmaps = BitmapFactory.ON_HEAP;
 		num_extension_slots = power_of_two * 2;
 	}
 	
+	// restores a filter written with write
+	QuotientFilter(DataInput in, BitmapFactory bitmaps) throws IOException {
+		this.bitmaps = bitmaps;
+		power_of_two_size = in.readInt();
+		bitPerEntry = in.readInt();
+		fingerprintLength = in.readInt();
+		num_extension_slots = in.readInt();
+		num_existing_entries = in.readInt();
+		expansion_threshold = in.readDouble();
+		max_entries_before_expansion = in.readLong();
+		expand_autonomously = in.readBoolean();
+		is_full = in.readBoolean();
+		original_fingerprint_size = in.readInt();
+		num_expansions = in.readInt();
+		ht = HashType.values()[in.readInt()];
+		filter = bitmaps.read(in);
+	}
+	
+	// writes the state of the filter, so it can be restored without re-inserting every entry
+	public void write(DataOutput out) throws IOException {
+		out.writeInt(power_of_two_size);
+		out.writeInt(bitPerEntry);
+		out.writeInt(fingerprintLength);
+		out.writeInt(num_extension_slots);
+		out.writeInt(num_existing_entries);
+		out.writeDouble(expansion_threshold);
+		out.writeLong(max_entries_before_expansion);
+		out.writeBoolean(expand_autonomously);
+		out.writeBoolean(is_full);
+		out.writeInt(original_fingerprint_size);
+		out.writeInt(num_expansions);
+		out.writeInt(ht.ordinal());
+		filter.write(out);
+	}
+	
 	void expand() {
 		is_full = true;
 	}
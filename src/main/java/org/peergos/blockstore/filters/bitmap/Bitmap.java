@@ -1,8 +1,12 @@
 package org.peergos.blockstore.filters.bitmap;
 
+import java.io.DataOutput;
+import java.io.IOException;
+
 public abstract class Bitmap {
 	
 	public abstract long size();
+	public abstract void write(DataOutput out) throws IOException;
 	public abstract void set(long bit_index, boolean value);
 	public abstract void setFromTo(long from, long to, long value);
 	public abstract boolean get(long bit_index);
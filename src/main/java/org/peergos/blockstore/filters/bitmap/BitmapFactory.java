@@ -0,0 +1,28 @@
+package org.peergos.blockstore.filters.bitmap;
+
+import java.io.DataInput;
+import java.io.IOException;
+
+/*
+ * Creates the bitmaps a filter stores its slots in, so a filter and every filter it expands into use the same kind
+ * of storage.
+ */
+public interface BitmapFactory {
+
+	Bitmap create(int bits_per_entry, long num_entries);
+
+	// restores a bitmap written with Bitmap.write
+	Bitmap read(DataInput in) throws IOException;
+
+	BitmapFactory ON_HEAP = new BitmapFactory() {
+		@Override
+		public Bitmap create(int bits_per_entry, long num_entries) {
+			return new QuickBitVectorWrapper(bits_per_entry, num_entries);
+		}
+
+		@Override
+		public Bitmap read(DataInput in) throws IOException {
+			return new QuickBitVectorWrapper(in);
+		}
+	};
+}
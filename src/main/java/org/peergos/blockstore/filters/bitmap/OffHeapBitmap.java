@@ -0,0 +1,194 @@
+package org.peergos.blockstore.filters.bitmap;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/*
+ * A bitmap stored outside the java heap, so large filters don't add to the memory the garbage collector has to trace
+ * and copy. It has the same layout and serialized form as QuickBitVectorWrapper.
+ *
+ * The bits are kept in direct byte buffers of at most 1 GiB each, either anonymous memory or mapped from a file. A
+ * mapped file is deleted as soon as it is mapped, so the operating system can page the bitmap out to it under memory
+ * pressure but it never outlives the process. The memory is released when the bitmap is garbage collected.
+ */
+public class OffHeapBitmap extends Bitmap {
+
+	private static final int ADDRESS_BITS_PER_UNIT = 6;
+	private static final int BITS_PER_UNIT = 64;
+	private static final int BIT_INDEX_MASK = 63;
+	private static final int UNITS_PER_CHUNK_BITS = 27;
+	private static final long UNITS_PER_CHUNK = 1L << UNITS_PER_CHUNK_BITS;
+	private static final long CHUNK_INDEX_MASK = UNITS_PER_CHUNK - 1;
+
+	private final ByteBuffer[] chunks;
+	private final long num_units;
+
+	private OffHeapBitmap(long num_units, Path mapped_file) {
+		this.num_units = num_units;
+		chunks = new ByteBuffer[(int) ((num_units + UNITS_PER_CHUNK - 1) >> UNITS_PER_CHUNK_BITS)];
+		try (FileChannel channel = mapped_file == null ? null : FileChannel.open(mapped_file,
+				StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			for (int i = 0; i < chunks.length; i++) {
+				long units = Math.min(UNITS_PER_CHUNK, num_units - i * UNITS_PER_CHUNK);
+				chunks[i] = channel == null ?
+						ByteBuffer.allocateDirect((int) (units * Long.BYTES)) :
+						channel.map(FileChannel.MapMode.READ_WRITE, i * UNITS_PER_CHUNK * Long.BYTES, units * Long.BYTES);
+				chunks[i].order(ByteOrder.nativeOrder());
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		} finally {
+			if (mapped_file != null) {
+				try {
+					Files.deleteIfExists(mapped_file);
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+			}
+		}
+	}
+
+	private static long num_units(int bits_per_entry, long num_entries) {
+		return ((num_entries * bits_per_entry - 1) >> ADDRESS_BITS_PER_UNIT) + 1;
+	}
+
+	public OffHeapBitmap(int bits_per_entry, long num_entries) {
+		this(num_units(bits_per_entry, num_entries), null);
+	}
+
+	public static BitmapFactory direct() {
+		return new BitmapFactory() {
+			@Override
+			public Bitmap create(int bits_per_entry, long num_entries) {
+				return new OffHeapBitmap(bits_per_entry, num_entries);
+			}
+
+			@Override
+			public Bitmap read(DataInput in) throws IOException {
+				return OffHeapBitmap.read(in, null);
+			}
+		};
+	}
+
+	// bitmaps are mapped from temporary files in dir
+	public static BitmapFactory mapped(Path dir) {
+		try {
+			Files.createDirectories(dir);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		return new BitmapFactory() {
+			private Path next_file() {
+				try {
+					return Files.createTempFile(dir, "bitmap", ".tmp");
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+			}
+
+			@Override
+			public Bitmap create(int bits_per_entry, long num_entries) {
+				return new OffHeapBitmap(num_units(bits_per_entry, num_entries), next_file());
+			}
+
+			@Override
+			public Bitmap read(DataInput in) throws IOException {
+				return OffHeapBitmap.read(in, next_file());
+			}
+		};
+	}
+
+	private static OffHeapBitmap read(DataInput in, Path mapped_file) throws IOException {
+		OffHeapBitmap res = new OffHeapBitmap(in.readInt(), mapped_file);
+		for (long i = 0; i < res.num_units; i++) {
+			res.put_unit(i, in.readLong());
+		}
+		return res;
+	}
+
+	@Override
+	public void write(DataOutput out) throws IOException {
+		out.writeInt((int) num_units);
+		for (long i = 0; i < num_units; i++) {
+			out.writeLong(get_unit(i));
+		}
+	}
+
+	private long get_unit(long unit) {
+		return chunks[(int) (unit >> UNITS_PER_CHUNK_BITS)].getLong((int) (unit & CHUNK_INDEX_MASK) << 3);
+	}
+
+	private void put_unit(long unit, long value) {
+		chunks[(int) (unit >> UNITS_PER_CHUNK_BITS)].putLong((int) (unit & CHUNK_INDEX_MASK) << 3, value);
+	}
+
+	@Override
+	public long size() {
+		return num_units * BITS_PER_UNIT;
+	}
+
+	@Override
+	public void set(long bit_index, boolean value) {
+		long unit = bit_index >> ADDRESS_BITS_PER_UNIT;
+		long mask = 1L << (bit_index & BIT_INDEX_MASK);
+		long current = get_unit(unit);
+		put_unit(unit, value ? current | mask : current & ~mask);
+	}
+
+	@Override
+	public boolean get(long bit_index) {
+		return (get_unit(bit_index >> ADDRESS_BITS_PER_UNIT) & (1L << (bit_index & BIT_INDEX_MASK))) != 0;
+	}
+
+	// the same as QuickBitVector.putLongFromTo, with to exclusive
+	@Override
+	public void setFromTo(long from, long to, long value) {
+		to--;
+		if (from > to) {
+			return;
+		}
+		long from_unit = from >> ADDRESS_BITS_PER_UNIT;
+		long to_unit = to >> ADDRESS_BITS_PER_UNIT;
+		int from_offset = (int) (from & BIT_INDEX_MASK);
+		int to_offset = (int) (to & BIT_INDEX_MASK);
+
+		long clean_value = value & ~QuickBitVector.bitMaskWithBitsSetFromTo(to - from + 1, BIT_INDEX_MASK);
+		if (from_unit == to_unit) {
+			long mask = QuickBitVector.bitMaskWithBitsSetFromTo(from_offset, to_offset);
+			put_unit(from_unit, (get_unit(from_unit) & ~mask) | (clean_value << from_offset));
+			return;
+		}
+		long mask = QuickBitVector.bitMaskWithBitsSetFromTo(from_offset, BIT_INDEX_MASK);
+		put_unit(from_unit, (get_unit(from_unit) & ~mask) | (clean_value << from_offset));
+		mask = QuickBitVector.bitMaskWithBitsSetFromTo(0, to_offset);
+		put_unit(to_unit, (get_unit(to_unit) & ~mask) | (clean_value >>> (BITS_PER_UNIT - from_offset)));
+	}
+
+	// the same as QuickBitVector.getLongFromTo, with to exclusive
+	@Override
+	public long getFromTo(long from, long to) {
+		to--;
+		if (from > to) {
+			return 0L;
+		}
+		long from_unit = from >> ADDRESS_BITS_PER_UNIT;
+		long to_unit = to >> ADDRESS_BITS_PER_UNIT;
+		int from_offset = (int) (from & BIT_INDEX_MASK);
+		int to_offset = (int) (to & BIT_INDEX_MASK);
+
+		if (from_unit == to_unit) {
+			long mask = QuickBitVector.bitMaskWithBitsSetFromTo(from_offset, to_offset);
+			return (get_unit(from_unit) & mask) >>> from_offset;
+		}
+		long low = (get_unit(from_unit) & QuickBitVector.bitMaskWithBitsSetFromTo(from_offset, BIT_INDEX_MASK)) >>> from_offset;
+		long high = (get_unit(to_unit) & QuickBitVector.bitMaskWithBitsSetFromTo(0, to_offset)) << (BITS_PER_UNIT - from_offset);
+		return low | high;
+	}
+}
@@ -1,5 +1,9 @@
 package org.peergos.blockstore.filters.bitmap;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
 public class QuickBitVectorWrapper extends Bitmap {
 
 	long[] bs;
@@ -8,6 +12,21 @@ public class QuickBitVectorWrapper extends Bitmap {
 		bs = QuickBitVector.makeBitVector(num_entries, bits_per_entry);
 	}
 
+	public QuickBitVectorWrapper(DataInput in) throws IOException {
+		bs = new long[in.readInt()];
+		for (int i = 0; i < bs.length; i++) {
+			bs[i] = in.readLong();
+		}
+	}
+
+	@Override
+	public void write(DataOutput out) throws IOException {
+		out.writeInt(bs.length);
+		for (long unit : bs) {
+			out.writeLong(unit);
+		}
+	}
+
 	@Override
 	public long size() {
 		return (long)bs.length * Long.BYTES * 8L;
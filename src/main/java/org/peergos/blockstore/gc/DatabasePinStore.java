@@ -0,0 +1,93 @@
+package org.peergos.blockstore.gc;
+
+import io.ipfs.cid.Cid;
+import org.peergos.util.ConnectionPool;
+
+import java.sql.*;
+import java.util.*;
+
+public class DatabasePinStore implements PinStore {
+
+    private final String connectionStringPrefix = "jdbc:h2:";
+    private final ConnectionPool pool;
+
+    private final String PIN_TABLE = "pins";
+    private final int SIZE_OF_CID = 200;
+
+    /*
+     * @param location - location of the database on disk, which can be shared with the record store
+     */
+    public DatabasePinStore(String location, int poolSize) {
+        this.pool = new ConnectionPool(connectionStringPrefix + location, poolSize, false);
+        createTable();
+    }
+
+    @Override
+    public void close() throws Exception {
+        pool.close();
+    }
+
+    private void createTable() {
+        String createSQL = "create table if not exists " + PIN_TABLE
+                + " (cid VARCHAR(" + SIZE_OF_CID + ") primary key not null);";
+        try (Connection connection = pool.get();
+             PreparedStatement create = connection.prepareStatement(createSQL)) {
+            create.execute();
+        } catch (SQLException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    @Override
+    public void add(Cid root) {
+        String updateSQL = "MERGE INTO " + PIN_TABLE + " (cid) VALUES (?);";
+        try (Connection connection = pool.get();
+             PreparedStatement pstmt = connection.prepareStatement(updateSQL)) {
+            pstmt.setString(1, root.toString());
+            pstmt.executeUpdate();
+        } catch (SQLException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    @Override
+    public void remove(Cid root) {
+        String deleteSQL = "DELETE FROM " + PIN_TABLE + " WHERE cid=?";
+        try (Connection connection = pool.get();
+             PreparedStatement pstmt = connection.prepareStatement(deleteSQL)) {
+            pstmt.setString(1, root.toString());
+            pstmt.executeUpdate();
+        } catch (SQLException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    @Override
+    public boolean isPinned(Cid root) {
+        String selectSQL = "SELECT cid FROM " + PIN_TABLE + " WHERE cid=?";
+        try (Connection connection = pool.get();
+             PreparedStatement pstmt = connection.prepareStatement(selectSQL)) {
+            pstmt.setString(1, root.toString());
+            try (ResultSet rs = pstmt.executeQuery()) {
+                return rs.next();
+            }
+        } catch (SQLException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    @Override
+    public List<Cid> list() {
+        String selectSQL = "SELECT cid FROM " + PIN_TABLE;
+        try (Connection connection = pool.get();
+             PreparedStatement pstmt = connection.prepareStatement(selectSQL);
+             ResultSet rs = pstmt.executeQuery()) {
+            List<Cid> res = new ArrayList<>();
+            while (rs.next())
+                res.add(Cid.decode(rs.getString(1)));
+            return res;
+        } catch (SQLException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+}
@@ -0,0 +1,284 @@
+package org.peergos.blockstore.gc;
+
+import io.ipfs.cid.*;
+import io.ipfs.multihash.*;
+import io.prometheus.client.*;
+import org.peergos.blockstore.*;
+import org.peergos.cbor.*;
+import org.peergos.util.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.logging.*;
+import java.util.stream.*;
+
+/** Remove every block which isn't reachable from a pinned root.
+ *
+ *  The mark phase walks the links from the block metadata of each reachable block, a level at a time with a parallel
+ *  pool, recording visited cids in a {@link MarkSet}. The sweep then streams the blockstore's refs and removes unmarked
+ *  blocks in rate limited batches. Blocks written while this runs are kept by the {@link GcBlockstore}, so ingest can
+ *  continue throughout.
+ */
+public class GarbageCollector {
+
+    private static final Logger LOG = Logging.LOG();
+
+    private static final Counter marked = Counter.build()
+            .name("nabu_gc_marked_total")
+            .help("Number of reachable blocks marked by garbage collection")
+            .register();
+    private static final Counter removed = Counter.build()
+            .name("nabu_gc_removed_total")
+            .help("Number of unreachable blocks removed by garbage collection")
+            .register();
+    private static final Counter runs = Counter.build()
+            .name("nabu_gc_runs_total")
+            .help("Number of completed garbage collections")
+            .register();
+    private static final Gauge running = Gauge.build()
+            .name("nabu_gc_running")
+            .help("Whether a garbage collection is in progress")
+            .register();
+
+    public static class Result {
+        public final long marked, removed;
+
+        public Result(long marked, long removed) {
+            this.marked = marked;
+            this.removed = removed;
+        }
+    }
+
+    private final GcBlockstore blocks;
+    private final PinStore pins;
+    private final int parallelism;
+    private final int batchSize;
+    private final double maxBlocksPerSecond;
+    private final AtomicBoolean collecting = new AtomicBoolean(false);
+
+    /**
+     * @param parallelism number of blocks to read links from concurrently
+     * @param batchSize number of blocks to remove at once
+     * @param maxBlocksPerSecond rate limit on the sweep, or 0 for no limit
+     */
+    public GarbageCollector(GcBlockstore blocks, PinStore pins, int parallelism, int batchSize, double maxBlocksPerSecond) {
+        if (parallelism < 1 || batchSize < 1 || maxBlocksPerSecond < 0)
+            throw new IllegalArgumentException("Invalid garbage collection parameters");
+        this.blocks = blocks;
+        this.pins = pins;
+        this.parallelism = parallelism;
+        this.batchSize = batchSize;
+        this.maxBlocksPerSecond = maxBlocksPerSecond;
+    }
+
+    public PinStore pins() {
+        return pins;
+    }
+
+    /** Pin root, so that it and every block reachable from it are kept.
+     */
+    public void pin(Cid root) {
+        pins.add(root);
+        // a collection which listed the pins before this was added would otherwise miss it
+        long stamp = blocks.lockMarking();
+        try {
+            Optional<MarkSet> marks = blocks.marking();
+            if (marks.isEmpty())
+                return;
+            marks.get().shade(root);
+            traceGrey(marks.get(), false);
+        } finally {
+            blocks.unlockMarking(stamp);
+        }
+    }
+
+    public void unpin(Cid root) {
+        pins.remove(root);
+    }
+
+    public boolean isCollecting() {
+        return collecting.get();
+    }
+
+    /** Run a collection in the calling thread.
+     *
+     * @throws IllegalStateException if a collection is already running, or a reachable block can't be read
+     */
+    public Result collect() {
+        if (! collecting.compareAndSet(false, true))
+            throw new IllegalStateException("Garbage collection already in progress");
+        running.set(1);
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        MarkSet marks = blocks.startMarking();
+        try {
+            LOG.info("Starting garbage collection...");
+            long start = System.currentTimeMillis();
+            long reachable = mark(pins.list(), marks, pool);
+            LOG.info("Garbage collection marked " + reachable + " reachable blocks in " + (System.currentTimeMillis() - start) + "ms");
+            long deleted = sweep(marks);
+            runs.inc();
+            LOG.info("Garbage collection removed " + deleted + " blocks in " + (System.currentTimeMillis() - start) + "ms");
+            return new Result(marks.size(), deleted);
+        } finally {
+            blocks.stopMarking();
+            pool.shutdown();
+            running.set(0);
+            collecting.set(false);
+        }
+    }
+
+    /** Run a collection in a new daemon thread.
+     *
+     * @throws IllegalStateException if a collection is already running
+     */
+    public CompletableFuture<Result> collectInBackground() {
+        if (collecting.get())
+            throw new IllegalStateException("Garbage collection already in progress");
+        CompletableFuture<Result> res = new CompletableFuture<>();
+        Thread collector = new Thread(() -> {
+            try {
+                res.complete(collect());
+            } catch (Throwable t) {
+                LOG.log(Level.WARNING, "Garbage collection failed: " + t.getMessage(), t);
+                res.completeExceptionally(t);
+            }
+        }, "GarbageCollector");
+        collector.setDaemon(true);
+        collector.start();
+        return res;
+    }
+
+    /** Run a collection every interval, in a daemon thread.
+     */
+    public void start(long intervalMillis) {
+        Thread collector = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(intervalMillis);
+                    collect();
+                } catch (InterruptedException e) {
+                    return;
+                } catch (Throwable t) {
+                    LOG.log(Level.WARNING, "Garbage collection failed: " + t.getMessage(), t);
+                }
+            }
+        }, "GarbageCollector");
+        collector.setDaemon(true);
+        collector.start();
+    }
+
+    private long mark(List<Cid> roots, MarkSet marks, ForkJoinPool pool) {
+        List<Cid> frontier = roots.stream()
+                .filter(marks::add)
+                .collect(Collectors.toList());
+        long total = frontier.size();
+        while (! frontier.isEmpty()) {
+            List<Cid> level = frontier;
+            frontier = pool.submit(() -> level.parallelStream()
+                    .flatMap(c -> links(c).orElse(Collections.emptyList()).stream())
+                    .filter(marks::add)
+                    .collect(Collectors.toList())).join();
+            total += frontier.size();
+        }
+        marked.inc(total);
+        return total;
+    }
+
+    /** Follow the links of blocks marked by writes since the last call.
+     *
+     * @param complete whether every write which marked a block has finished, so absent blocks can be dropped
+     */
+    private void traceGrey(MarkSet marks, boolean complete) {
+        List<Cid> pending = new ArrayList<>();
+        Optional<Cid> next;
+        while ((next = marks.pollGrey()).isPresent()) {
+            Cid c = next.get();
+            Optional<List<Cid>> links = links(c);
+            if (links.isEmpty()) {
+                if (! complete)
+                    pending.add(c);
+                continue;
+            }
+            for (Cid link : links.get())
+                marks.shade(link);
+        }
+        marks.requeueGrey(pending);
+    }
+
+    /**
+     * @return the links of c, or empty if it is not in the blockstore
+     */
+    private Optional<List<Cid>> links(Cid c) {
+        if (c.getType() == Multihash.Type.id)
+            return Optional.of(c.codec == Cid.Codec.DagCbor ?
+                    CborObject.getLinks(c, c.getHash()) :
+                    Collections.emptyList());
+        if (c.codec == Cid.Codec.Raw)
+            return Optional.of(Collections.emptyList());
+        Blockstore target = blocks.target();
+        try {
+            return Optional.of(target.getBlockMetadata(c).join().links);
+        } catch (Exception e) {
+            if (! target.has(c).join())
+                return Optional.empty();
+            // sweeping now could remove blocks which are only reachable through this one
+            throw new IllegalStateException("Unable to read links of " + c + ", aborting garbage collection", e);
+        }
+    }
+
+    private long sweep(MarkSet marks) {
+        long start = System.nanoTime();
+        long done = 0, deleted = 0;
+        try (Stream<Cid> refs = blocks.target().refStream()) {
+            Iterator<Cid> it = refs.iterator();
+            while (it.hasNext()) {
+                List<Cid> batch = new ArrayList<>(batchSize);
+                while (it.hasNext() && batch.size() < batchSize)
+                    batch.add(it.next());
+                deleted += sweepBatch(batch, marks);
+                done += batch.size();
+                throttle(start, done);
+            }
+        }
+        return deleted;
+    }
+
+    private long sweepBatch(List<Cid> batch, MarkSet marks) {
+        traceGrey(marks, false);
+        List<Cid> candidates = batch.stream()
+                .filter(c -> ! marks.contains(c))
+                .collect(Collectors.toList());
+        if (candidates.isEmpty())
+            return 0;
+        long stamp = blocks.lockSweep();
+        try {
+            // writes are blocked now, so follow the links of anything they marked before deciding
+            traceGrey(marks, true);
+            List<Cid> garbage = candidates.stream()
+                    .filter(c -> ! marks.contains(c))
+                    .collect(Collectors.toList());
+            if (garbage.isEmpty())
+                return 0;
+            blocks.target().rmAll(garbage).join();
+            removed.inc(garbage.size());
+            return garbage.size();
+        } finally {
+            blocks.unlockSweep(stamp);
+        }
+    }
+
+    private void throttle(long startNanos, long done) {
+        if (maxBlocksPerSecond <= 0)
+            return;
+        long expectedNanos = (long) (done / maxBlocksPerSecond * 1_000_000_000L);
+        long aheadNanos = expectedNanos - (System.nanoTime() - startNanos);
+        if (aheadNanos <= 0)
+            return;
+        try {
+            TimeUnit.NANOSECONDS.sleep(aheadNanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package org.peergos.blockstore.gc;
+
+import io.ipfs.cid.*;
+import io.ipfs.multihash.*;
+import org.peergos.*;
+import org.peergos.blockstore.*;
+import org.peergos.blockstore.metadatadb.*;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
+import java.util.function.*;
+import java.util.stream.*;
+
+/** A blockstore which keeps blocks written, or found by has, while a garbage collection is running.
+ *
+ *  During a collection such blocks are marked, and their links later followed, so they are not swept even if they
+ *  aren't yet reachable from a pin. These operations hold a read lock until they complete, and the sweep deletes each batch under the write lock, so a
+ *  block can't be deleted between being marked and being written.
+ */
+public class GcBlockstore implements Blockstore {
+
+    private final Blockstore target;
+    private final StampedLock sweepLock = new StampedLock();
+    // only changed while holding the write lock, so ops which hold the read lock see a consistent value
+    private volatile MarkSet marking;
+
+    public GcBlockstore(Blockstore target) {
+        this.target = target;
+    }
+
+    Blockstore target() {
+        return target;
+    }
+
+    /** Start marking once every write already in progress has completed.
+     */
+    MarkSet startMarking() {
+        MarkSet marks = new MarkSet();
+        long stamp = sweepLock.writeLock();
+        try {
+            marking = marks;
+        } finally {
+            sweepLock.unlockWrite(stamp);
+        }
+        return marks;
+    }
+
+    void stopMarking() {
+        long stamp = sweepLock.writeLock();
+        try {
+            marking = null;
+        } finally {
+            sweepLock.unlockWrite(stamp);
+        }
+    }
+
+    Optional<MarkSet> marking() {
+        return Optional.ofNullable(marking);
+    }
+
+    long lockSweep() {
+        return sweepLock.writeLock();
+    }
+
+    void unlockSweep(long stamp) {
+        sweepLock.unlockWrite(stamp);
+    }
+
+    long lockMarking() {
+        return sweepLock.readLock();
+    }
+
+    void unlockMarking(long stamp) {
+        sweepLock.unlockRead(stamp);
+    }
+
+    /** Run op while holding the read lock, if a collection is running, otherwise run unmarked.
+     *  The read lock is held either way, so a collection can't start part way through a write it doesn't know about.
+     */
+    private <T> CompletableFuture<T> marked(Function<MarkSet, CompletableFuture<T>> op, Supplier<CompletableFuture<T>> unmarked) {
+        long stamp = sweepLock.readLock();
+        try {
+            MarkSet marks = marking;
+            CompletableFuture<T> res = marks == null ? unmarked.get() : op.apply(marks);
+            return res.whenComplete((r, t) -> sweepLock.unlockRead(stamp));
+        } catch (RuntimeException e) {
+            sweepLock.unlockRead(stamp);
+            throw e;
+        }
+    }
+
+    private static Cid hashToCid(byte[] block, Cid.Codec codec) {
+        return Cid.buildCidV1(codec, Multihash.Type.sha2_256, Hash.sha256(block));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> has(Cid c) {
+        return marked(marks -> target.has(c).thenApply(res -> {
+            if (res)
+                marks.shade(c);
+            return res;
+        }), () -> target.has(c));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> hasAny(Multihash h) {
+        return target.hasAny(h);
+    }
+
+    @Override
+    public CompletableFuture<List<Boolean>> hasAll(List<Cid> cids) {
+        return marked(marks -> target.hasAll(cids).thenApply(res -> {
+            for (int i = 0; i < cids.size(); i++)
+                if (res.get(i))
+                    marks.shade(cids.get(i));
+            return res;
+        }), () -> target.hasAll(cids));
+    }
+
+    @Override
+    public CompletableFuture<Optional<byte[]>> get(Cid c) {
+        return target.get(c);
+    }
+
+    @Override
+    public CompletableFuture<List<Optional<byte[]>>> getAll(List<Cid> cids) {
+        return target.getAll(cids);
+    }
+
+    @Override
+    public CompletableFuture<Optional<ByteBuffer>> getBuffer(Cid c) {
+        return target.getBuffer(c);
+    }
+
+    @Override
+    public CompletableFuture<Optional<InputStream>> getStream(Cid c) {
+        return target.getStream(c);
+    }
+
+    @Override
+    public CompletableFuture<Cid> put(byte[] block, Cid.Codec codec) {
+        return marked(marks -> {
+            // mark before writing, as the block may already exist and be in the current sweep batch
+            marks.shade(hashToCid(block, codec));
+            return target.put(block, codec);
+        }, () -> target.put(block, codec));
+    }
+
+    @Override
+    public CompletableFuture<List<Cid>> putAll(List<byte[]> blocks, Cid.Codec codec) {
+        return marked(marks -> {
+            for (byte[] block : blocks)
+                marks.shade(hashToCid(block, codec));
+            return target.putAll(blocks, codec);
+        }, () -> target.putAll(blocks, codec));
+    }
+
+    @Override
+    public CompletableFuture<Cid> put(ReadableByteChannel block, Cid.Codec codec) {
+        return marked(marks -> {
+            // the cid has to be known before writing, so read the block into memory during a collection
+            byte[] raw;
+            try {
+                raw = Channels.newInputStream(block).readAllBytes();
+            } catch (IOException e) {
+                throw new RuntimeException(e.getMessage(), e);
+            }
+            marks.shade(hashToCid(raw, codec));
+            return target.put(raw, codec);
+        }, () -> target.put(block, codec));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> rm(Cid c) {
+        return target.rm(c);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> rmAll(List<Cid> cids) {
+        return target.rmAll(cids);
+    }
+
+    @Override
+    public CompletableFuture<List<Cid>> refs(boolean useBlockstore) {
+        return target.refs(useBlockstore);
+    }
+
+    @Override
+    public Stream<Cid> refStream() {
+        return target.refStream();
+    }
+
+    @Override
+    public CompletableFuture<Boolean> bloomAdd(Cid cid) {
+        return target.bloomAdd(cid);
+    }
+
+    @Override
+    public CompletableFuture<BlockMetadata> getBlockMetadata(Cid h) {
+        return target.getBlockMetadata(h);
+    }
+}
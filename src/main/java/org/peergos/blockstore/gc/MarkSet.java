@@ -0,0 +1,138 @@
+package org.peergos.blockstore.gc;
+
+import io.ipfs.cid.*;
+import io.ipfs.multihash.*;
+import org.peergos.*;
+
+import java.lang.invoke.*;
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/** A concurrent set of cids, storing 128 bits of each one's hash in open addressed tables.
+ *
+ *  The set is split into independently locked stripes, chosen by hash, so marking threads rarely contend. Unlike a
+ *  bloom filter there are no false positives in practice, which matters because a cid wrongly considered marked
+ *  would not have its links followed.
+ */
+class MarkSet {
+
+    private static final int STRIPE_BITS = 6;
+    private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+    private static final class Stripe {
+        // pairs of longs, 0, 0 is an empty slot
+        private long[] slots = new long[2 * 1024];
+        private int size;
+
+        synchronized boolean add(long h1, long h2) {
+            if (size + 1 > slots.length / 4)
+                resize();
+            if (! insert(slots, h1, h2))
+                return false;
+            size++;
+            return true;
+        }
+
+        synchronized boolean contains(long h1, long h2) {
+            int mask = slots.length / 2 - 1;
+            for (int i = (int) h1 & mask; ; i = (i + 1) & mask) {
+                long a = slots[2 * i], b = slots[2 * i + 1];
+                if (a == 0 && b == 0)
+                    return false;
+                if (a == h1 && b == h2)
+                    return true;
+            }
+        }
+
+        synchronized int size() {
+            return size;
+        }
+
+        private static boolean insert(long[] slots, long h1, long h2) {
+            int mask = slots.length / 2 - 1;
+            for (int i = (int) h1 & mask; ; i = (i + 1) & mask) {
+                long a = slots[2 * i], b = slots[2 * i + 1];
+                if (a == 0 && b == 0) {
+                    slots[2 * i] = h1;
+                    slots[2 * i + 1] = h2;
+                    return true;
+                }
+                if (a == h1 && b == h2)
+                    return false;
+            }
+        }
+
+        private void resize() {
+            long[] bigger = new long[slots.length * 2];
+            for (int i = 0; i < slots.length; i += 2)
+                if (slots[i] != 0 || slots[i + 1] != 0)
+                    insert(bigger, slots[i], slots[i + 1]);
+            slots = bigger;
+        }
+    }
+
+    private final Stripe[] stripes = new Stripe[1 << STRIPE_BITS];
+    // marked by writes during the collection, but whose links haven't been followed yet
+    private final Queue<Cid> grey = new ConcurrentLinkedQueue<>();
+
+    MarkSet() {
+        for (int i = 0; i < stripes.length; i++)
+            stripes[i] = new Stripe();
+    }
+
+    private static byte[] key(Cid c) {
+        byte[] digest = c.getHash();
+        if (c.getType() != Multihash.Type.id && digest.length >= 16)
+            return digest;
+        return Hash.sha256(c.toBytes());
+    }
+
+    private static long hash1(Cid c, byte[] key) {
+        // the same digest under a different codec or version is a different block
+        long h = (long) LONGS.get(key, 0) ^ (c.codec.type * 0x9E3779B97F4A7C15L) ^ c.version;
+        // h1 also picks the stripe and slot, so it must not be 0 for an empty slot to be recognised
+        return h == 0 ? 1 : h;
+    }
+
+    private Stripe stripe(long h1) {
+        return stripes[(int) (h1 >>> (Long.SIZE - STRIPE_BITS))];
+    }
+
+    /**
+     * @return true if c was not already in the set
+     */
+    boolean add(Cid c) {
+        byte[] key = key(c);
+        long h1 = hash1(c, key);
+        return stripe(h1).add(h1, (long) LONGS.get(key, 8));
+    }
+
+    /** Mark c, and queue it to have its links followed.
+     */
+    void shade(Cid c) {
+        if (add(c))
+            grey.add(c);
+    }
+
+    Optional<Cid> pollGrey() {
+        return Optional.ofNullable(grey.poll());
+    }
+
+    void requeueGrey(Collection<Cid> cids) {
+        grey.addAll(cids);
+    }
+
+    boolean contains(Cid c) {
+        byte[] key = key(c);
+        long h1 = hash1(c, key);
+        return stripe(h1).contains(h1, (long) LONGS.get(key, 8));
+    }
+
+    long size() {
+        long total = 0;
+        for (Stripe s : stripes)
+            total += s.size();
+        return total;
+    }
+}
@@ -0,0 +1,18 @@
+package org.peergos.blockstore.gc;
+
+import io.ipfs.cid.*;
+
+import java.util.*;
+
+/** The roots which garbage collection keeps, along with every block reachable from them.
+ */
+public interface PinStore extends AutoCloseable {
+
+    void add(Cid root);
+
+    void remove(Cid root);
+
+    boolean isPinned(Cid root);
+
+    List<Cid> list();
+}
@@ -0,0 +1,34 @@
+package org.peergos.blockstore.gc;
+
+import io.ipfs.cid.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+public class RamPinStore implements PinStore {
+
+    private final Set<Cid> roots = ConcurrentHashMap.newKeySet();
+
+    @Override
+    public void add(Cid root) {
+        roots.add(root);
+    }
+
+    @Override
+    public void remove(Cid root) {
+        roots.remove(root);
+    }
+
+    @Override
+    public boolean isPinned(Cid root) {
+        return roots.contains(root);
+    }
+
+    @Override
+    public List<Cid> list() {
+        return new ArrayList<>(roots);
+    }
+
+    @Override
+    public void close() {}
+}
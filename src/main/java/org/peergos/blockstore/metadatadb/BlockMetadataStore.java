@@ -4,7 +4,9 @@ import io.ipfs.cid.Cid;
 import org.peergos.cbor.CborObject;
 
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
@@ -13,6 +15,18 @@ public interface BlockMetadataStore {
 
     Optional<BlockMetadata> get(Cid block);
 
+    /**
+     * @param blocks
+     * @return the metadata of those blocks which are present
+     */
+    default Map<Cid, BlockMetadata> getAll(List<Cid> blocks) {
+        Map<Cid, BlockMetadata> res = new HashMap<>();
+        for (Cid block : blocks) {
+            get(block).ifPresent(meta -> res.put(block, meta));
+        }
+        return res;
+    }
+
     void put(Cid block, BlockMetadata meta);
 
     void remove(Cid block);
@@ -39,7 +53,7 @@ public interface BlockMetadataStore {
                     .links().stream()
                     .map(h -> (Cid) h)
                     .collect(Collectors.toList());
-            BlockMetadata meta = new BlockMetadata(data.length, links);
+            BlockMetadata meta = new BlockMetadata(data.length, CompactLinks.of(links));
             return meta;
         } else {
             throw new IllegalStateException("Unsupported Block type");
@@ -47,4 +61,8 @@ public interface BlockMetadataStore {
     }
 
     void compact();
+
+    /** Make all metadata written so far durable before returning.
+     */
+    default void flush() {}
 }
@@ -4,10 +4,18 @@ import io.ipfs.cid.Cid;
 import io.ipfs.multihash.Multihash;
 import org.peergos.Hash;
 import org.peergos.blockstore.Blockstore;
+import org.peergos.util.ByteBufferInputStream;
 import org.peergos.util.Futures;
 
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.stream.*;
 
@@ -30,6 +38,23 @@ public class CachingBlockMetadataStore implements Blockstore {
                 });
     }
 
+    @Override
+    public CompletableFuture<List<Cid>> putAll(List<byte[]> blocks, Cid.Codec codec) {
+        return target.putAll(blocks, codec)
+                .thenApply(cids -> {
+                    for (int i = 0; i < cids.size(); i++)
+                        metadata.put(cids.get(i), blocks.get(i));
+                    return cids;
+                });
+    }
+
+    @Override
+    public CompletableFuture<Cid> put(ReadableByteChannel block, Cid.Codec codec) {
+        // read the stored block back through getBuffer to populate the metadata
+        return target.put(block, codec)
+                .thenCompose(cid -> getBuffer(cid).thenApply(b -> cid));
+    }
+
     @Override
     public CompletableFuture<BlockMetadata> getBlockMetadata(Cid block) {
         Optional<BlockMetadata> meta = metadata.get(block);
@@ -63,6 +88,31 @@ public class CachingBlockMetadataStore implements Blockstore {
         });
     }
 
+    @Override
+    public CompletableFuture<Optional<ByteBuffer>> getBuffer(Cid hash) {
+        return target.getBuffer(hash).thenApply(bopt -> {
+            bopt.ifPresent(b -> {
+                if (metadata.get(hash).isPresent())
+                    return;
+                if (hash.codec == Cid.Codec.Raw) {
+                    metadata.put(hash, new BlockMetadata(b.remaining(), Collections.emptyList()));
+                } else {
+                    byte[] block = new byte[b.remaining()];
+                    b.duplicate().get(block);
+                    cacheBlockMetadata(block, hash.codec);
+                }
+            });
+            return bopt;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Optional<InputStream>> getStream(Cid hash) {
+        if (metadata.get(hash).isPresent())
+            return target.getStream(hash);
+        return getBuffer(hash).thenApply(bopt -> bopt.map(ByteBufferInputStream::new));
+    }
+
     @Override
     public CompletableFuture<Boolean> has(Cid c) {
         Optional<BlockMetadata> meta = metadata.get(c);
@@ -71,6 +121,42 @@ public class CachingBlockMetadataStore implements Blockstore {
         return get(c).thenApply(opt -> opt.isPresent());
     }
 
+    @Override
+    public CompletableFuture<List<Boolean>> hasAll(List<Cid> cids) {
+        Map<Cid, BlockMetadata> known = metadata.getAll(cids);
+        List<Cid> unknown = cids.stream()
+                .filter(c -> ! known.containsKey(c))
+                .collect(Collectors.toList());
+        if (unknown.isEmpty())
+            return Futures.of(cids.stream().map(c -> true).collect(Collectors.toList()));
+        return target.getAll(unknown).thenApply(blocks -> {
+            Set<Cid> found = new HashSet<>(known.keySet());
+            for (int i = 0; i < unknown.size(); i++) {
+                Optional<byte[]> block = blocks.get(i);
+                if (block.isPresent()) {
+                    cacheBlockMetadata(block.get(), unknown.get(i).codec);
+                    found.add(unknown.get(i));
+                }
+            }
+            return cids.stream()
+                    .map(found::contains)
+                    .collect(Collectors.toList());
+        });
+    }
+
+    @Override
+    public CompletableFuture<List<Optional<byte[]>>> getAll(List<Cid> cids) {
+        Map<Cid, BlockMetadata> known = metadata.getAll(cids);
+        return target.getAll(cids).thenApply(blocks -> {
+            for (int i = 0; i < cids.size(); i++) {
+                Cid cid = cids.get(i);
+                if (! known.containsKey(cid))
+                    blocks.get(i).ifPresent(b -> cacheBlockMetadata(b, cid.codec));
+            }
+            return blocks;
+        });
+    }
+
     @Override
     public CompletableFuture<Boolean> hasAny(Multihash h) {
         return Futures.of(Stream.of(Cid.Codec.DagCbor, Cid.Codec.Raw, Cid.Codec.DagProtobuf)
@@ -89,6 +175,11 @@ public class CachingBlockMetadataStore implements Blockstore {
         return CompletableFuture.completedFuture(metadata.list().collect(Collectors.toList()));
     }
 
+    @Override
+    public Stream<Cid> refStream() {
+        return target.refStream();
+    }
+
     @Override
     public CompletableFuture<Boolean> rm(Cid c) {
         return target.rm(c).thenApply(res -> {
@@ -99,14 +190,24 @@ public class CachingBlockMetadataStore implements Blockstore {
         });
     }
 
-    public void updateMetadataStoreIfEmpty() {
-        if (metadata.size() > 0)
-            return;
-        List<Cid> cids = target.refs(true).join();
-        for(Cid c : cids) {
-            Optional<BlockMetadata> existing = metadata.get(c);
-            if (existing.isEmpty())
-                metadata.put(c, target.getBlockMetadata(c).join());
-        }
+    @Override
+    public CompletableFuture<Boolean> rmAll(List<Cid> cids) {
+        return target.rmAll(cids).thenApply(res -> {
+            if (res) {
+                cids.forEach(metadata::remove);
+                return true;
+            }
+            List<Boolean> remaining = target.hasAll(cids).join();
+            for (int i = 0; i < cids.size(); i++) {
+                if (! remaining.get(i))
+                    metadata.remove(cids.get(i));
+            }
+            return false;
+        });
+    }
+
+    public void updateMetadataStore(MetadataBackfill backfill) {
+        // block files aren't listed in key order, so a resumed backfill re-lists and skips the blocks already done
+        backfill.run(this, metadata, cursor -> refStream());
     }
 }
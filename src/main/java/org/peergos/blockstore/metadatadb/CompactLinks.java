@@ -0,0 +1,128 @@
+package org.peergos.blockstore.metadatadb;
+
+import io.ipfs.cid.Cid;
+import org.peergos.cbor.CborObject;
+
+import java.io.ByteArrayOutputStream;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+
+/** The links of a block stored as a single byte array of concatenated varint length prefixed cids.
+ *  Each cid is only decoded when it is accessed.
+ *
+ *  The encoding starts with a zero byte, which can't start a cbor list, so links stored in the older cbor format can
+ *  still be read.
+ */
+public class CompactLinks extends AbstractList<Cid> {
+
+    private static final byte FORMAT = 0;
+    private static final CompactLinks EMPTY = new CompactLinks(new byte[] {FORMAT});
+
+    private final byte[] data;
+    private final int[] starts;
+    private final int[] ends;
+    private final Cid[] decoded;
+
+    private CompactLinks(byte[] data) {
+        this.data = data;
+        int count = 0;
+        for (int offset = 1; offset < data.length; count++) {
+            long len = readVarint(data, offset);
+            offset += varintSize(len) + (int) len;
+        }
+        this.starts = new int[count];
+        this.ends = new int[count];
+        int offset = 1;
+        for (int i = 0; i < count; i++) {
+            long len = readVarint(data, offset);
+            starts[i] = offset + varintSize(len);
+            ends[i] = starts[i] + (int) len;
+            offset = ends[i];
+        }
+        if (offset != data.length)
+            throw new IllegalStateException("Invalid compact links encoding");
+        this.decoded = new Cid[count];
+    }
+
+    @Override
+    public Cid get(int index) {
+        Cid res = decoded[index];
+        if (res == null) {
+            res = Cid.cast(Arrays.copyOfRange(data, starts[index], ends[index]));
+            decoded[index] = res;
+        }
+        return res;
+    }
+
+    @Override
+    public int size() {
+        return starts.length;
+    }
+
+    /**
+     * @return the number of bytes in the encoded form
+     */
+    public int encodedSize() {
+        return data.length;
+    }
+
+    public static List<Cid> of(List<Cid> links) {
+        if (links instanceof CompactLinks)
+            return links;
+        return links.isEmpty() ? EMPTY : new CompactLinks(encode(links));
+    }
+
+    public static byte[] encode(List<Cid> links) {
+        if (links instanceof CompactLinks)
+            return ((CompactLinks) links).data;
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        bout.write(FORMAT);
+        for (Cid link : links) {
+            byte[] raw = link.toBytes();
+            writeVarint(bout, raw.length);
+            bout.write(raw, 0, raw.length);
+        }
+        return bout.toByteArray();
+    }
+
+    /**
+     * @param stored links in either the compact or the older cbor encoding
+     */
+    public static List<Cid> decode(byte[] stored) {
+        if (stored.length > 0 && stored[0] == FORMAT)
+            return stored.length == 1 ? EMPTY : new CompactLinks(stored);
+        return ((CborObject.CborList) CborObject.fromByteArray(stored))
+                .map(cbor -> Cid.cast(((CborObject.CborByteArray) cbor).value));
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, long value) {
+        while (value >= 0x80) {
+            out.write((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long readVarint(byte[] data, int offset) {
+        long res = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (offset >= data.length)
+                throw new IllegalStateException("Truncated varint in compact links");
+            byte b = data[offset++];
+            res |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return res;
+        }
+        throw new IllegalStateException("Varint too long in compact links");
+    }
+
+    private static int varintSize(long value) {
+        int size = 1;
+        while (value >= 0x80) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+}
@@ -0,0 +1,324 @@
+package org.peergos.blockstore.metadatadb;
+
+import io.ipfs.cid.Cid;
+import io.prometheus.client.Counter;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.stream.Stream;
+
+/** A bounded in memory cache of block metadata in front of another metadata store, including absent blocks.
+ *  Absent blocks are only remembered for a short time, as another writer to the backing store may add them.
+ *
+ *  The cache is split into independently locked LRU segments, each with a share of the total byte budget. New entries
+ *  are only admitted over an eviction victim if they have been requested more often recently, as estimated by a
+ *  count-min sketch (TinyLFU admission), so a scan of cold blocks can't flush the hot set. Writes are always admitted.
+ */
+public class HotBlockMetadataStore implements BlockMetadataStore {
+
+    private static final Counter hits = Counter.build()
+            .name("nabu_metadata_cache_hits_total")
+            .help("Number of block metadata lookups served from memory")
+            .register();
+    private static final Counter negativeHits = Counter.build()
+            .name("nabu_metadata_cache_negative_hits_total")
+            .help("Number of lookups for absent blocks served from memory")
+            .register();
+    private static final Counter misses = Counter.build()
+            .name("nabu_metadata_cache_misses_total")
+            .help("Number of block metadata lookups that went to the backing store")
+            .register();
+    private static final Counter evictions = Counter.build()
+            .name("nabu_metadata_cache_evictions_total")
+            .help("Number of block metadata entries evicted from memory")
+            .register();
+
+    private static final BlockMetadata ABSENT = new BlockMetadata(-1, List.of());
+    private static final int SEGMENTS = 64;
+    public static final long DEFAULT_ABSENT_TTL_MILLIS = 5_000;
+    // rough heap cost of an entry excluding links, and of each link
+    private static final int ENTRY_OVERHEAD = 160;
+    private static final int LINK_OVERHEAD = 120;
+
+    private final BlockMetadataStore target;
+    private final Segment[] segments;
+    private final FrequencySketch sketch;
+
+    public HotBlockMetadataStore(BlockMetadataStore target, long maxBytes) {
+        this(target, maxBytes, DEFAULT_ABSENT_TTL_MILLIS);
+    }
+
+    /**
+     * @param absentTtlMillis how long a block which was absent from the backing store is assumed to still be absent
+     */
+    public HotBlockMetadataStore(BlockMetadataStore target, long maxBytes, long absentTtlMillis) {
+        if (maxBytes < SEGMENTS * ENTRY_OVERHEAD)
+            throw new IllegalArgumentException("Metadata cache too small: " + maxBytes);
+        if (absentTtlMillis < 0)
+            throw new IllegalArgumentException("Invalid absent block ttl: " + absentTtlMillis);
+        this.target = target;
+        this.segments = new Segment[SEGMENTS];
+        for (int i = 0; i < SEGMENTS; i++)
+            segments[i] = new Segment(maxBytes / SEGMENTS, absentTtlMillis);
+        this.sketch = new FrequencySketch(maxBytes / ENTRY_OVERHEAD);
+    }
+
+    private Segment segment(Cid c) {
+        return segments[spread(c.hashCode()) & (SEGMENTS - 1)];
+    }
+
+    private static int spread(int h) {
+        h ^= h >>> 16;
+        h *= 0x45d9f3b;
+        return h ^ (h >>> 16);
+    }
+
+    private static long weight(BlockMetadata meta) {
+        return ENTRY_OVERHEAD + (long) meta.links.size() * LINK_OVERHEAD;
+    }
+
+    @Override
+    public Optional<BlockMetadata> get(Cid block) {
+        sketch.increment(block);
+        Segment seg = segment(block);
+        long version;
+        synchronized (seg) {
+            BlockMetadata cached = seg.lookup(block);
+            if (cached != null) {
+                if (cached == ABSENT) {
+                    negativeHits.inc();
+                    return Optional.empty();
+                }
+                hits.inc();
+                return Optional.of(cached);
+            }
+            version = seg.version;
+        }
+        misses.inc();
+        Optional<BlockMetadata> res = target.get(block);
+        seg.admit(block, res.orElse(ABSENT), version, sketch);
+        return res;
+    }
+
+    @Override
+    public Map<Cid, BlockMetadata> getAll(List<Cid> blocks) {
+        Map<Cid, BlockMetadata> res = new HashMap<>();
+        List<Cid> toFetch = new ArrayList<>();
+        Map<Cid, Long> versions = new HashMap<>();
+        for (Cid block : blocks) {
+            sketch.increment(block);
+            Segment seg = segment(block);
+            synchronized (seg) {
+                BlockMetadata cached = seg.lookup(block);
+                if (cached == ABSENT) {
+                    negativeHits.inc();
+                } else if (cached != null) {
+                    hits.inc();
+                    res.put(block, cached);
+                } else {
+                    toFetch.add(block);
+                    versions.put(block, seg.version);
+                }
+            }
+        }
+        if (toFetch.isEmpty())
+            return res;
+        misses.inc(toFetch.size());
+        Map<Cid, BlockMetadata> fetched = target.getAll(toFetch);
+        for (Cid block : toFetch) {
+            BlockMetadata meta = fetched.get(block);
+            if (meta != null)
+                res.put(block, meta);
+            segment(block).admit(block, meta != null ? meta : ABSENT, versions.get(block), sketch);
+        }
+        return res;
+    }
+
+    @Override
+    public void put(Cid block, BlockMetadata meta) {
+        Segment seg = segment(block);
+        synchronized (seg) {
+            BlockMetadata cached = seg.entries.get(block);
+            if (cached != null && cached != ABSENT)
+                return;
+        }
+        target.put(block, meta);
+        seg.write(block, meta);
+    }
+
+    @Override
+    public BlockMetadata put(Cid block, byte[] data) {
+        Segment seg = segment(block);
+        synchronized (seg) {
+            BlockMetadata cached = seg.entries.get(block);
+            if (cached != null && cached != ABSENT)
+                return cached;
+        }
+        return BlockMetadataStore.super.put(block, data);
+    }
+
+    @Override
+    public void remove(Cid block) {
+        target.remove(block);
+        segment(block).write(block, ABSENT);
+    }
+
+    @Override
+    public long size() {
+        return target.size();
+    }
+
+    @Override
+    public Stream<Cid> list() {
+        return target.list();
+    }
+
+    @Override
+    public Stream<Cid> listCbor() {
+        return target.listCbor();
+    }
+
+    @Override
+    public void compact() {
+        target.compact();
+    }
+
+    @Override
+    public void flush() {
+        target.flush();
+    }
+
+    private static class Segment {
+        private final long maxBytes;
+        private final long absentTtlMillis;
+        private final LinkedHashMap<Cid, BlockMetadata> entries = new LinkedHashMap<>(16, 0.75f, true);
+        // when each absent entry stops being trusted
+        private final Map<Cid, Long> absentUntil = new HashMap<>();
+        private long bytes;
+        // incremented on every write, so a lookup that raced with a write doesn't cache a stale result
+        private long version;
+
+        Segment(long maxBytes, long absentTtlMillis) {
+            this.maxBytes = maxBytes;
+            this.absentTtlMillis = absentTtlMillis;
+        }
+
+        /** @return the cached metadata, ABSENT, or null if the block must be looked up in the backing store
+         */
+        synchronized BlockMetadata lookup(Cid block) {
+            BlockMetadata cached = entries.get(block);
+            if (cached == ABSENT && absentUntil.get(block) <= System.currentTimeMillis()) {
+                remove(block);
+                return null;
+            }
+            return cached;
+        }
+
+        synchronized void write(Cid block, BlockMetadata meta) {
+            version++;
+            insert(block, meta);
+        }
+
+        synchronized void admit(Cid block, BlockMetadata meta, long readVersion, FrequencySketch sketch) {
+            if (version != readVersion || entries.containsKey(block))
+                return;
+            long w = weight(meta);
+            if (bytes + w > maxBytes && ! entries.isEmpty()) {
+                Cid victim = entries.keySet().iterator().next();
+                if (sketch.frequency(block) <= sketch.frequency(victim))
+                    return;
+            }
+            insert(block, meta);
+        }
+
+        private void remove(Cid block) {
+            BlockMetadata old = entries.remove(block);
+            if (old != null)
+                bytes -= weight(old);
+            absentUntil.remove(block);
+        }
+
+        private void insert(Cid block, BlockMetadata meta) {
+            BlockMetadata old = entries.put(block, meta);
+            if (old != null)
+                bytes -= weight(old);
+            bytes += weight(meta);
+            if (meta == ABSENT)
+                absentUntil.put(block, System.currentTimeMillis() + absentTtlMillis);
+            else
+                absentUntil.remove(block);
+            Iterator<Map.Entry<Cid, BlockMetadata>> it = entries.entrySet().iterator();
+            while (bytes > maxBytes && it.hasNext()) {
+                Map.Entry<Cid, BlockMetadata> eldest = it.next();
+                if (eldest.getKey().equals(block))
+                    continue;
+                bytes -= weight(eldest.getValue());
+                absentUntil.remove(eldest.getKey());
+                it.remove();
+                evictions.inc();
+            }
+        }
+    }
+
+    /** An approximate count of recent accesses per block, with 4 bit counters which are halved periodically.
+     *  Increments can race, which only makes the estimate slightly less accurate.
+     */
+    private static class FrequencySketch {
+        private static final int DEPTH = 4;
+        private static final int MAX_COUNT = 15;
+        // two counters per byte
+        private final byte[] counters;
+        private final int mask;
+        private final long resetPeriod;
+        private long additions;
+
+        FrequencySketch(long expectedEntries) {
+            long entries = Math.max(64, Math.min(1 << 22, expectedEntries));
+            int width = Integer.highestOneBit((int) (4 * entries) - 1) << 1;
+            this.counters = new byte[width * DEPTH / 2];
+            this.mask = width - 1;
+            this.resetPeriod = 10 * entries;
+        }
+
+        private int index(int hash, int row) {
+            int h = spread(hash + row * 0x9E3779B9);
+            return row * (mask + 1) + (h & mask);
+        }
+
+        private int get(int i) {
+            return (counters[i >> 1] >> ((i & 1) << 2)) & MAX_COUNT;
+        }
+
+        int frequency(Cid c) {
+            int hash = c.hashCode();
+            int min = MAX_COUNT;
+            for (int row = 0; row < DEPTH; row++)
+                min = Math.min(min, get(index(hash, row)));
+            return min;
+        }
+
+        void increment(Cid c) {
+            int hash = c.hashCode();
+            for (int row = 0; row < DEPTH; row++) {
+                int i = index(hash, row);
+                if (get(i) < MAX_COUNT)
+                    counters[i >> 1] += (byte) (1 << ((i & 1) << 2));
+            }
+            if (++additions >= resetPeriod)
+                reset();
+        }
+
+        private synchronized void reset() {
+            if (additions < resetPeriod)
+                return;
+            additions = 0;
+            for (int i = 0; i < counters.length; i++)
+                counters[i] = (byte) ((counters[i] >> 1) & 0x77);
+        }
+    }
+}
@@ -3,7 +3,7 @@ package org.peergos.blockstore.metadatadb;
 
 import io.ipfs.cid.Cid;
 import org.peergos.blockstore.metadatadb.sql.BlockMetadataSqlSupplier;
-import org.peergos.cbor.CborObject;
+import org.peergos.util.ConnectionPool;
 import org.peergos.util.Logging;
 
 import java.sql.Connection;
@@ -11,14 +11,33 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Optional;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Supplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
+/** Block metadata in a SQL database.
+ *
+ *  Puts use group commit: a put returns once its row is committed, and puts which arrive while an insert is running
+ *  are written together in the next one, so concurrent writers share statements without anything being buffered past
+ *  the return of put.
+ */
 public class JdbcBlockMetadataStore implements BlockMetadataStore {
 
     private static final Logger LOG = Logging.LOG();
@@ -26,11 +45,58 @@ public class JdbcBlockMetadataStore implements BlockMetadataStore {
     private static final String REMOVE = "DELETE FROM blockmetadata where cid = ?;";
     private static final String LIST = "SELECT cid FROM blockmetadata;";
     private static final String SIZE = "SELECT COUNT(*) FROM blockmetadata;";
+    private static final int MAX_BATCH_SIZE = 1000;
+    private static final int MAX_RECENT_WRITES = 10_000;
+    private static final int LIST_FETCH_SIZE = 10_000;
     private Supplier<Connection> conn;
+    // used for lookups, this may be a read only replica
+    private final Supplier<Connection> reads;
+    // held for the duration of a listing, which may do lookups while it is open
+    private final Supplier<Connection> listings;
     private final BlockMetadataSqlSupplier commands;
+    // writes not yet committed to the db, these are visible to reads
+    private final Map<Cid, BlockMetadata> pending = new ConcurrentHashMap<>();
+    // recently flushed blocks, to avoid re-inserting metadata on repeated puts
+    private final Map<Cid, Boolean> written = Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Cid, Boolean> eldest) {
+            return size() > MAX_RECENT_WRITES;
+        }
+    });
+    // held while inserting, so only one commit runs at a time
+    private final Object flushLock = new Object();
+    private final Object batchLock = new Object();
+    // the following are guarded by batchLock
+    // completes when the writes now pending are committed
+    private CompletableFuture<Void> nextCommit = new CompletableFuture<>();
+    // whether a writer is committing on behalf of the others
+    private boolean committing;
 
     public JdbcBlockMetadataStore(Supplier<Connection> conn, BlockMetadataSqlSupplier commands) {
+        this(conn, conn, commands);
+    }
+
+    /**
+     * @param reads connections for lookups, e.g. a pool of connections to a read replica
+     */
+    public JdbcBlockMetadataStore(Supplier<Connection> conn, Supplier<Connection> reads, BlockMetadataSqlSupplier commands) {
+        this(conn, reads, conn, commands);
+    }
+
+    /**
+     * @param reads connections for lookups, e.g. a pool of connections to a read replica
+     * @param listings connections to the primary db for streaming listings
+     */
+    public JdbcBlockMetadataStore(Supplier<Connection> conn,
+                                  Supplier<Connection> reads,
+                                  Supplier<Connection> listings,
+                                  BlockMetadataSqlSupplier commands) {
+        // a caller doing lookups while iterating a listing would wait forever for a second connection
+        if (listings instanceof ConnectionPool && ((ConnectionPool) listings).size() < 2 && (listings == conn || listings == reads))
+            throw new IllegalArgumentException("A connection pool shared with listings needs at least 2 connections");
         this.conn = conn;
+        this.reads = reads;
+        this.listings = listings;
         this.commands = commands;
         init(commands);
     }
@@ -39,6 +105,16 @@ public class JdbcBlockMetadataStore implements BlockMetadataStore {
         return getConnection(true, true);
     }
 
+    private Connection getReadConnection(Supplier<Connection> source) {
+        Connection connection = source.get();
+        try {
+            connection.setAutoCommit(true);
+            return connection;
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     private Connection getConnection(boolean autocommit, boolean serializable) {
         Connection connection = conn.get();
         try {
@@ -73,28 +149,92 @@ public class JdbcBlockMetadataStore implements BlockMetadataStore {
         }
     }
 
+    /** Write all pending metadata to the db.
+     */
+    @Override
+    public void flush() {
+        synchronized (flushLock) {
+            commitPending();
+        }
+    }
+
+    // must hold flushLock
+    private void commitPending() {
+        List<Map.Entry<Cid, BlockMetadata>> batch;
+        CompletableFuture<Void> commit;
+        synchronized (batchLock) {
+            batch = new ArrayList<>(pending.entrySet());
+            commit = nextCommit;
+            nextCommit = new CompletableFuture<>();
+        }
+        if (! batch.isEmpty()) {
+            try (Connection conn = getConnection()) {
+                for (int start = 0; start < batch.size(); start += MAX_BATCH_SIZE)
+                    insert(conn, batch.subList(start, Math.min(batch.size(), start + MAX_BATCH_SIZE)));
+            } catch (SQLException sqe) {
+                LOG.log(Level.WARNING, sqe.getMessage(), sqe);
+                RuntimeException failure = new RuntimeException(sqe);
+                // the rows stay pending, so the next commit retries them
+                commit.completeExceptionally(failure);
+                throw failure;
+            }
+            for (Map.Entry<Cid, BlockMetadata> e : batch) {
+                pending.remove(e.getKey(), e.getValue());
+                written.put(e.getKey(), true);
+            }
+        }
+        commit.complete(null);
+    }
+
+    private void insert(Connection conn, List<Map.Entry<Cid, BlockMetadata>> rows) throws SQLException {
+        // pooled connections cache the prepared statement for each batch size
+        try (PreparedStatement insert = conn.prepareStatement(commands.batchAddMetadataCommand(rows.size()))) {
+            int index = 1;
+            for (Map.Entry<Cid, BlockMetadata> row : rows) {
+                insert.setBytes(index++, row.getKey().toBytes());
+                insert.setLong(index++, row.getValue().size);
+                insert.setBytes(index++, CompactLinks.encode(row.getValue().links));
+            }
+            insert.executeUpdate();
+        }
+    }
+
     public void remove(Cid block) {
-        try (Connection conn = getConnection();
-             PreparedStatement remove = conn.prepareStatement(REMOVE)) {
+        // hold the flush lock so a concurrent flush can't re-insert the block
+        synchronized (flushLock) {
+            pending.remove(block);
+            written.remove(block);
+            try (Connection conn = getConnection();
+                 PreparedStatement remove = conn.prepareStatement(REMOVE)) {
 
-            remove.setBytes(1, block.toBytes());
-            remove.executeUpdate();
-        } catch (SQLException sqe) {
-            LOG.log(Level.WARNING, sqe.getMessage(), sqe);
-            throw new RuntimeException(sqe);
+                remove.setBytes(1, block.toBytes());
+                remove.executeUpdate();
+            } catch (SQLException sqe) {
+                LOG.log(Level.WARNING, sqe.getMessage(), sqe);
+                throw new RuntimeException(sqe);
+            }
         }
     }
 
     @Override
     public Optional<BlockMetadata> get(Cid block) {
-        try (Connection conn = getConnection();
+        BlockMetadata unflushed = pending.get(block);
+        if (unflushed != null)
+            return Optional.of(unflushed);
+        Optional<BlockMetadata> res = get(block, reads);
+        if (res.isPresent() || reads == conn)
+            return res;
+        // the replica may not have caught up with a recent flush
+        return get(block, conn);
+    }
+
+    private Optional<BlockMetadata> get(Cid block, Supplier<Connection> source) {
+        try (Connection conn = getReadConnection(source);
              PreparedStatement stmt = conn.prepareStatement(GET_INFO)) {
             stmt.setBytes(1, block.toBytes());
             ResultSet rs = stmt.executeQuery();
             while (rs.next()) {
-                List<Cid> links = ((CborObject.CborList) CborObject.fromByteArray(rs.getBytes("links")))
-                        .map(cbor -> Cid.cast(((CborObject.CborByteArray)cbor).value));
-                return Optional.of(new BlockMetadata(rs.getInt("size"), links));
+                return Optional.of(fromRow(rs));
             }
             return Optional.empty();
         } catch (SQLException sqe) {
@@ -103,27 +243,104 @@ public class JdbcBlockMetadataStore implements BlockMetadataStore {
         }
     }
 
+    private static BlockMetadata fromRow(ResultSet rs) throws SQLException {
+        return new BlockMetadata(rs.getInt("size"), CompactLinks.decode(rs.getBytes("links")));
+    }
+
+    @Override
+    public Map<Cid, BlockMetadata> getAll(List<Cid> blocks) {
+        Map<Cid, BlockMetadata> res = new HashMap<>();
+        List<Cid> toQuery = new ArrayList<>();
+        for (Cid block : blocks) {
+            BlockMetadata unflushed = pending.get(block);
+            if (unflushed != null)
+                res.put(block, unflushed);
+            else
+                toQuery.add(block);
+        }
+        query(toQuery, reads, res);
+        if (reads != conn && res.size() < blocks.size()) {
+            // the replica may not have caught up with a recent flush
+            List<Cid> missing = toQuery.stream()
+                    .filter(c -> ! res.containsKey(c))
+                    .collect(Collectors.toList());
+            query(missing, conn, res);
+        }
+        return res;
+    }
+
+    private void query(List<Cid> toQuery, Supplier<Connection> source, Map<Cid, BlockMetadata> res) {
+        for (int start = 0; start < toQuery.size(); start += MAX_BATCH_SIZE) {
+            List<Cid> batch = toQuery.subList(start, Math.min(toQuery.size(), start + MAX_BATCH_SIZE));
+            String query = "SELECT * FROM blockmetadata WHERE cid IN (" +
+                    batch.stream().map(c -> "?").collect(Collectors.joining(", ")) + ");";
+            try (Connection conn = getReadConnection(source);
+                 PreparedStatement stmt = conn.prepareStatement(query)) {
+                for (int i = 0; i < batch.size(); i++)
+                    stmt.setBytes(i + 1, batch.get(i).toBytes());
+                ResultSet rs = stmt.executeQuery();
+                while (rs.next()) {
+                    res.put(Cid.cast(rs.getBytes("cid")), fromRow(rs));
+                }
+            } catch (SQLException sqe) {
+                LOG.log(Level.WARNING, sqe.getMessage(), sqe);
+                throw new RuntimeException(sqe);
+            }
+        }
+    }
+
+    /** Returns once the metadata is committed to the db.
+     */
     @Override
     public void put(Cid block, BlockMetadata meta) {
-        try (Connection conn = getConnection();
-             PreparedStatement insert = conn.prepareStatement(commands.addMetadataCommand())) {
-
-            insert.setBytes(1, block.toBytes());
-            insert.setLong(2, meta.size);
-            insert.setBytes(3, new CborObject.CborList(meta.links.stream()
-                    .map(Cid::toBytes)
-                    .map(CborObject.CborByteArray::new)
-                    .collect(Collectors.toList()))
-                    .toByteArray());
-            insert.executeUpdate();
-        } catch (SQLException sqe) {
-            LOG.log(Level.WARNING, sqe.getMessage(), sqe);
-            throw new RuntimeException(sqe);
+        if (written.containsKey(block))
+            return;
+        CompletableFuture<Void> committed;
+        synchronized (batchLock) {
+            pending.putIfAbsent(block, meta);
+            committed = nextCommit;
+        }
+        awaitCommit(committed);
+    }
+
+    /** Wait for a commit. If no other writer is committing, commit everything pending, including the writes of those
+     *  waiting.
+     */
+    private void awaitCommit(CompletableFuture<Void> committed) {
+        while (true) {
+            synchronized (batchLock) {
+                while (committing && ! committed.isDone()) {
+                    try {
+                        batchLock.wait();
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e.getMessage(), e);
+                    }
+                }
+                if (committed.isDone())
+                    break;
+                committing = true;
+            }
+            try {
+                flush();
+            } catch (RuntimeException e) {
+                // reported to every waiter through the commit's future
+            } finally {
+                synchronized (batchLock) {
+                    committing = false;
+                    batchLock.notifyAll();
+                }
+            }
+        }
+        try {
+            committed.join();
+        } catch (CompletionException e) {
+            throw new RuntimeException(e.getCause().getMessage(), e.getCause());
         }
     }
 
     @Override
     public long size() {
+        flush();
         try (Connection conn = getConnection();
              PreparedStatement stmt = conn.prepareStatement(SIZE)) {
             ResultSet rs = stmt.executeQuery();
@@ -137,34 +354,87 @@ public class JdbcBlockMetadataStore implements BlockMetadataStore {
 
     @Override
     public Stream<Cid> list() {
-        try (Connection conn = getConnection();
-             PreparedStatement stmt = conn.prepareStatement(LIST)) {
-            ResultSet rs = stmt.executeQuery();
-            List<Cid> res = new ArrayList<>();
-            while (rs.next()) {
-                res.add(Cid.cast(rs.getBytes("cid")));
-            }
-            return res.stream();
-        } catch (SQLException sqe) {
-            LOG.log(Level.WARNING, sqe.getMessage(), sqe);
-            throw new RuntimeException(sqe);
-        }
+        return streamCids();
     }
 
     @Override
     public Stream<Cid> listCbor() {
-        try (Connection conn = getConnection();
-             PreparedStatement stmt = conn.prepareStatement(LIST)) {
+        return streamCids().filter(cid -> cid.codec != Cid.Codec.Raw);
+    }
+
+    /** Stream the cids from a cursor rather than loading the whole table. The statement is closed when the stream is
+     *  exhausted or closed.
+     */
+    private Stream<Cid> streamCids() {
+        flush();
+        Connection conn = listings.get();
+        boolean transaction = commands.cursorsNeedTransaction();
+        PreparedStatement stmt = null;
+        try {
+            if (transaction)
+                conn.setAutoCommit(false);
+            stmt = conn.prepareStatement(LIST, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            stmt.setFetchSize(LIST_FETCH_SIZE);
             ResultSet rs = stmt.executeQuery();
-            List<Cid> res = new ArrayList<>();
-            while (rs.next()) {
-                Cid cid = Cid.cast(rs.getBytes("cid"));
-                if (cid.codec != Cid.Codec.Raw) {
-                    res.add(cid);
+            PreparedStatement toClose = stmt;
+            AtomicBoolean closed = new AtomicBoolean(false);
+            Runnable close = () -> {
+                if (! closed.compareAndSet(false, true))
+                    return;
+                try {
+                    rs.close();
+                    toClose.close();
+                    if (transaction)
+                        conn.setAutoCommit(true);
+                    conn.close();
+                } catch (SQLException e) {
+                    LOG.log(Level.WARNING, e.getMessage(), e);
                 }
-            }
-            return res.stream();
+            };
+            Iterator<Cid> it = new Iterator<>() {
+                private Cid next;
+                private boolean done;
+
+                @Override
+                public boolean hasNext() {
+                    if (next != null)
+                        return true;
+                    if (done)
+                        return false;
+                    try {
+                        if (rs.next()) {
+                            next = Cid.cast(rs.getBytes("cid"));
+                            return true;
+                        }
+                    } catch (SQLException sqe) {
+                        done = true;
+                        close.run();
+                        throw new RuntimeException(sqe);
+                    }
+                    done = true;
+                    close.run();
+                    return false;
+                }
+
+                @Override
+                public Cid next() {
+                    if (! hasNext())
+                        throw new NoSuchElementException();
+                    Cid res = next;
+                    next = null;
+                    return res;
+                }
+            };
+            return StreamSupport.stream(Spliterators.spliteratorUnknownSize(it, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                    .onClose(close);
         } catch (SQLException sqe) {
+            try {
+                if (stmt != null)
+                    stmt.close();
+                if (transaction)
+                    conn.setAutoCommit(true);
+                conn.close();
+            } catch (SQLException e) {}
             LOG.log(Level.WARNING, sqe.getMessage(), sqe);
             throw new RuntimeException(sqe);
         }
@@ -0,0 +1,124 @@
+package org.peergos.blockstore.metadatadb;
+
+import io.ipfs.cid.Cid;
+import org.h2.mvstore.MVMap;
+import org.h2.mvstore.MVStore;
+import org.peergos.util.Logging;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/** Block metadata in an embedded key value store, keyed by cid bytes, without going through SQL.
+ *  Values are the block size followed by the compact links encoding.
+ */
+public class MVStoreBlockMetadataStore implements BlockMetadataStore, AutoCloseable {
+
+    private static final Logger LOG = Logging.LOG();
+    private static final String MAP_NAME = "blockmetadata";
+    private static final int COMPACT_MILLIS = 60_000;
+
+    private final MVStore store;
+    private final MVMap<byte[], byte[]> metadata;
+
+    public MVStoreBlockMetadataStore(Path file) {
+        this.store = new MVStore.Builder()
+                .fileName(file.toAbsolutePath().toString())
+                .open();
+        this.metadata = store.openMap(MAP_NAME);
+        // changes are committed in the background, make sure the last ones reach disk
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close));
+        LOG.info("Using key value block metadata store at " + file + " with " + metadata.sizeAsLong() + " blocks");
+    }
+
+    private static byte[] encode(BlockMetadata meta) {
+        byte[] links = CompactLinks.encode(meta.links);
+        return ByteBuffer.allocate(4 + links.length)
+                .putInt(meta.size)
+                .put(links)
+                .array();
+    }
+
+    private static BlockMetadata decode(byte[] value) {
+        int size = ByteBuffer.wrap(value).getInt();
+        return new BlockMetadata(size, CompactLinks.decode(Arrays.copyOfRange(value, 4, value.length)));
+    }
+
+    @Override
+    public Optional<BlockMetadata> get(Cid block) {
+        byte[] value = metadata.get(block.toBytes());
+        return value == null ? Optional.empty() : Optional.of(decode(value));
+    }
+
+    @Override
+    public void put(Cid block, BlockMetadata meta) {
+        metadata.putIfAbsent(block.toBytes(), encode(meta));
+    }
+
+    @Override
+    public void remove(Cid block) {
+        metadata.remove(block.toBytes());
+    }
+
+    @Override
+    public long size() {
+        return metadata.sizeAsLong();
+    }
+
+    @Override
+    public Stream<Cid> list() {
+        Iterator<byte[]> keys = metadata.keyIterator(null);
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(keys, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                .map(Cid::cast);
+    }
+
+    @Override
+    public Stream<Cid> listCbor() {
+        return list().filter(cid -> cid.codec != Cid.Codec.Raw);
+    }
+
+    @Override
+    public void compact() {
+        store.compactFile(COMPACT_MILLIS);
+    }
+
+    @Override
+    public void close() {
+        if (! store.isClosed())
+            store.close();
+    }
+
+    /** Copy all the metadata from another store, skipping blocks which are already present.
+     *
+     * @return the number of blocks copied
+     */
+    public long importFrom(BlockMetadataStore source, int batchSize) {
+        long copied = 0;
+        try (Stream<Cid> all = source.list()) {
+            Iterator<Cid> it = all.iterator();
+            List<Cid> batch = new ArrayList<>(batchSize);
+            while (it.hasNext()) {
+                batch.add(it.next());
+                if (batch.size() == batchSize || ! it.hasNext()) {
+                    for (Map.Entry<Cid, BlockMetadata> e : source.getAll(batch).entrySet()) {
+                        if (metadata.putIfAbsent(e.getKey().toBytes(), encode(e.getValue())) == null)
+                            copied++;
+                    }
+                    batch.clear();
+                    store.commit();
+                }
+            }
+        }
+        return copied;
+    }
+}
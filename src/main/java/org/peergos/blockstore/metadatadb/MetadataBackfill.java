@@ -0,0 +1,281 @@
+package org.peergos.blockstore.metadatadb;
+
+import io.ipfs.cid.Cid;
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+import org.peergos.blockstore.Blockstore;
+import org.peergos.util.Logging;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/** Populate a block metadata store from the blocks in a blockstore.
+ *
+ *  Blocks are processed in batches from a streaming listing. After each batch a checkpoint with the key of the last
+ *  block is written, so an interrupted backfill resumes where it left off. Stores which can list in key order resume
+ *  their listing from that key, others re-list and skip the blocks which already have metadata. Stores which can list
+ *  ranges of keys independently are listed a key prefix at a time, with the prefixes listed concurrently and each
+ *  resumed from its own checkpoint.
+ */
+public class MetadataBackfill {
+
+    private static final Logger LOG = Logging.LOG();
+
+    private static final Counter processed = Counter.build()
+            .name("nabu_metadata_backfill_blocks_total")
+            .help("Number of blocks whose metadata has been populated by the backfill")
+            .register();
+    private static final Counter skipped = Counter.build()
+            .name("nabu_metadata_backfill_skipped_total")
+            .help("Number of blocks skipped by the backfill because their metadata was already present")
+            .register();
+    private static final Counter failed = Counter.build()
+            .name("nabu_metadata_backfill_failures_total")
+            .help("Number of blocks the backfill failed to read")
+            .register();
+    private static final Gauge running = Gauge.build()
+            .name("nabu_metadata_backfill_running")
+            .help("Whether a metadata backfill is in progress")
+            .register();
+
+    private static final String CURSOR = "cursor";
+    private static final String DONE = "done";
+    private static final String COMPLETE = "complete";
+
+    private final Path checkpoint;
+    private final int parallelism;
+    private final int batchSize;
+    private final double maxBlocksPerSecond;
+
+    /**
+     * @param checkpoint file to record progress in
+     * @param parallelism number of blocks to read concurrently
+     * @param batchSize number of blocks between checkpoints
+     * @param maxBlocksPerSecond rate limit on block reads, or 0 for no limit
+     */
+    public MetadataBackfill(Path checkpoint, int parallelism, int batchSize, double maxBlocksPerSecond) {
+        if (parallelism < 1 || batchSize < 1 || maxBlocksPerSecond < 0)
+            throw new IllegalArgumentException("Invalid metadata backfill parameters");
+        this.checkpoint = checkpoint;
+        this.parallelism = parallelism;
+        this.batchSize = batchSize;
+        this.maxBlocksPerSecond = maxBlocksPerSecond;
+    }
+
+    public MetadataBackfill(Path checkpoint, Map<String, Object> params) {
+        this(checkpoint,
+                Integer.parseInt(((String) params.getOrDefault("backfillParallelism", "10")).trim()),
+                Integer.parseInt(((String) params.getOrDefault("backfillBatchSize", "1000")).trim()),
+                Double.parseDouble(((String) params.getOrDefault("backfillRateLimit", "0")).trim()));
+    }
+
+    private Properties readCheckpoint() {
+        Properties props = new Properties();
+        try {
+            if (checkpoint.toFile().exists())
+                props.load(new StringReader(Files.readString(checkpoint, StandardCharsets.UTF_8)));
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Ignoring unreadable metadata backfill checkpoint: " + e.getMessage(), e);
+        }
+        return props;
+    }
+
+    private static String cursorKey(String partition) {
+        return partition.isEmpty() ? CURSOR : CURSOR + "." + partition;
+    }
+
+    private static String doneKey(String partition) {
+        return DONE + "." + partition;
+    }
+
+    private synchronized void writeCheckpoint(Map<String, String> cursors, Set<String> done, boolean complete) {
+        Properties props = new Properties();
+        cursors.forEach((partition, cursor) -> props.setProperty(cursorKey(partition), cursor));
+        done.forEach(partition -> props.setProperty(doneKey(partition), "true"));
+        props.setProperty(COMPLETE, Boolean.toString(complete));
+        try {
+            StringWriter out = new StringWriter();
+            props.store(out, null);
+            Path tmp = checkpoint.resolveSibling(checkpoint.getFileName() + ".tmp");
+            Files.writeString(tmp, out.toString(), StandardCharsets.UTF_8);
+            Files.move(tmp, checkpoint, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+    }
+
+    public boolean isComplete() {
+        return Boolean.parseBoolean(readCheckpoint().getProperty(COMPLETE, "false"));
+    }
+
+    /**
+     * @param blocks the store to read metadata from; its getBlockMetadata is expected to record the result in metadata
+     * @param metadata the store to populate
+     * @param refsAfter lists the blocks with keys after the given key, or all blocks if the store can't list in key order
+     */
+    public void run(Blockstore blocks, BlockMetadataStore metadata, Function<Optional<String>, Stream<Cid>> refsAfter) {
+        run(blocks, metadata, List.of(""), (prefix, cursor) -> refsAfter.apply(cursor));
+    }
+
+    /**
+     * @param blocks the store to read metadata from; its getBlockMetadata is expected to record the result in metadata
+     * @param metadata the store to populate
+     * @param partitions key prefixes which together cover every block, which are listed concurrently
+     * @param refsAfter lists the blocks with the given key prefix and keys after the given key
+     */
+    public void run(Blockstore blocks,
+                    BlockMetadataStore metadata,
+                    List<String> partitions,
+                    BiFunction<String, Optional<String>, Stream<Cid>> refsAfter) {
+        Properties state = readCheckpoint();
+        if (Boolean.parseBoolean(state.getProperty(COMPLETE, "false")))
+            return;
+        if (! checkpoint.toFile().exists() && metadata.size() > 0) {
+            // populated before checkpoints existed
+            writeCheckpoint(Collections.emptyMap(), Collections.emptySet(), true);
+            return;
+        }
+        Map<String, String> cursors = new ConcurrentHashMap<>();
+        Set<String> done = ConcurrentHashMap.newKeySet();
+        Optional<String> legacyCursor = Optional.ofNullable(state.getProperty(CURSOR));
+        for (String partition : partitions) {
+            if (Boolean.parseBoolean(state.getProperty(doneKey(partition), "false"))) {
+                done.add(partition);
+                continue;
+            }
+            String cursor = state.getProperty(cursorKey(partition));
+            if (cursor == null && legacyCursor.isPresent()) {
+                // resuming a backfill which listed every partition in key order
+                String legacy = legacyCursor.get();
+                if (legacy.startsWith(partition))
+                    cursor = legacy;
+                else if (partition.compareTo(legacy) < 0)
+                    done.add(partition);
+            }
+            if (cursor != null)
+                cursors.put(partition, cursor);
+        }
+        // a crash before the first batch must not look like a store which was populated before checkpoints existed
+        writeCheckpoint(cursors, done, false);
+
+        List<String> remaining = partitions.stream()
+                .filter(p -> ! done.contains(p))
+                .collect(Collectors.toList());
+        LOG.info("Updating block metadata store" + (cursors.isEmpty() ? "" : ", resuming after " + cursors.values()) + "...");
+        running.set(1);
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        ExecutorService listers = Executors.newFixedThreadPool(Math.max(1, Math.min(parallelism, remaining.size())), r -> {
+            Thread t = new Thread(r, "MetadataBackfill");
+            t.setDaemon(true);
+            return t;
+        });
+        long start = System.nanoTime();
+        AtomicLong updated = new AtomicLong();
+        try {
+            List<Future<?>> listings = new ArrayList<>();
+            for (String partition : remaining) {
+                listings.add(listers.submit(() -> {
+                    try (Stream<Cid> refs = refsAfter.apply(partition, Optional.ofNullable(cursors.get(partition)))) {
+                        Iterator<Cid> it = refs.iterator();
+                        while (it.hasNext()) {
+                            List<Cid> batch = new ArrayList<>(batchSize);
+                            while (it.hasNext() && batch.size() < batchSize)
+                                batch.add(it.next());
+                            long total = updated.addAndGet(processBatch(blocks, metadata, batch, pool));
+                            metadata.flush();
+                            cursors.put(partition, blocks.hashToKey(batch.get(batch.size() - 1)));
+                            writeCheckpoint(cursors, done, false);
+                            LOG.info("Populating block metadata: " + total + " blocks updated");
+                            throttle(start, total);
+                        }
+                    }
+                    metadata.flush();
+                    done.add(partition);
+                    cursors.remove(partition);
+                    writeCheckpoint(cursors, done, false);
+                }));
+            }
+            for (Future<?> listing : listings) {
+                try {
+                    listing.get();
+                } catch (ExecutionException e) {
+                    listers.shutdownNow();
+                    if (e.getCause() instanceof RuntimeException)
+                        throw (RuntimeException) e.getCause();
+                    throw new RuntimeException(e.getCause().getMessage(), e.getCause());
+                } catch (InterruptedException e) {
+                    listers.shutdownNow();
+                    throw new RuntimeException(e.getMessage(), e);
+                }
+            }
+            metadata.flush();
+            writeCheckpoint(Collections.emptyMap(), Collections.emptySet(), true);
+            LOG.info("Finished updating block metadata store, " + updated.get() + " blocks updated.");
+        } finally {
+            listers.shutdown();
+            pool.shutdown();
+            running.set(0);
+        }
+    }
+
+    private long processBatch(Blockstore blocks, BlockMetadataStore metadata, List<Cid> batch, ForkJoinPool pool) {
+        Map<Cid, BlockMetadata> existing = metadata.getAll(batch);
+        List<Cid> missing = new ArrayList<>();
+        for (Cid c : batch) {
+            if (! existing.containsKey(c))
+                missing.add(c);
+        }
+        skipped.inc(batch.size() - missing.size());
+        pool.submit(() -> missing.parallelStream().forEach(c -> {
+            try {
+                blocks.getBlockMetadata(c).join();
+                processed.inc();
+            } catch (Exception e) {
+                failed.inc();
+                LOG.log(Level.WARNING, "Unable to populate metadata for " + c + ": " + e.getMessage());
+            }
+        })).join();
+        return missing.size();
+    }
+
+    private void throttle(long startNanos, long done) {
+        if (maxBlocksPerSecond <= 0)
+            return;
+        long expectedNanos = (long) (done / maxBlocksPerSecond * 1_000_000_000L);
+        long aheadNanos = expectedNanos - (System.nanoTime() - startNanos);
+        if (aheadNanos <= 0)
+            return;
+        try {
+            TimeUnit.NANOSECONDS.sleep(aheadNanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
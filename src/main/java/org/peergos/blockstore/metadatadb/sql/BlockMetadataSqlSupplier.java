@@ -13,8 +13,19 @@ public interface BlockMetadataSqlSupplier {
 
     String addMetadataCommand();
 
+    /** An insert of multiple rows which ignores rows that are already present.
+     */
+    String batchAddMetadataCommand(int rows);
+
     String vacuumCommand();
 
+    /** Whether a query only streams its results with a fetch size inside a transaction, otherwise the whole result is
+     *  loaded at once.
+     */
+    default boolean cursorsNeedTransaction() {
+        return false;
+    }
+
     default String createBlockMetadataStoreTableCommand() {
         return "CREATE TABLE IF NOT EXISTS blockmetadata (cid " + getByteArrayType() + " primary key not null, " +
                 "size " + sqlInteger() + " not null, " +
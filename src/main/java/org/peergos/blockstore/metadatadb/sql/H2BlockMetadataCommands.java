@@ -1,5 +1,7 @@
 package org.peergos.blockstore.metadatadb.sql;
 
+import java.util.Collections;
+
 public class H2BlockMetadataCommands implements BlockMetadataSqlSupplier {
 
     @Override
@@ -12,6 +14,13 @@ public class H2BlockMetadataCommands implements BlockMetadataSqlSupplier {
         return "INSERT INTO blockmetadata (cid, size, links) VALUES(?, ?, ?) ON CONFLICT DO NOTHING;";
     }
 
+    @Override
+    public String batchAddMetadataCommand(int rows) {
+        return "INSERT INTO blockmetadata (cid, size, links) VALUES" +
+                String.join(",", Collections.nCopies(rows, "(?, ?, ?)")) +
+                " ON CONFLICT DO NOTHING;";
+    }
+
     @Override
     public String getByteArrayType() {
         return "OBJECT";
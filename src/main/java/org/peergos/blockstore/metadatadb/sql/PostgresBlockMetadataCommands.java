@@ -0,0 +1,38 @@
+package org.peergos.blockstore.metadatadb.sql;
+
+import java.util.Collections;
+
+public class PostgresBlockMetadataCommands implements BlockMetadataSqlSupplier {
+
+    @Override
+    public String vacuumCommand() {
+        return "VACUUM;";
+    }
+
+    @Override
+    public String addMetadataCommand() {
+        return "INSERT INTO blockmetadata (cid, size, links) VALUES(?, ?, ?) ON CONFLICT DO NOTHING;";
+    }
+
+    @Override
+    public String batchAddMetadataCommand(int rows) {
+        return "INSERT INTO blockmetadata (cid, size, links) VALUES" +
+                String.join(",", Collections.nCopies(rows, "(?, ?, ?)")) +
+                " ON CONFLICT DO NOTHING;";
+    }
+
+    @Override
+    public String getByteArrayType() {
+        return "BYTEA";
+    }
+
+    @Override
+    public String sqlInteger() {
+        return "BIGINT";
+    }
+
+    @Override
+    public boolean cursorsNeedTransaction() {
+        return true;
+    }
+}
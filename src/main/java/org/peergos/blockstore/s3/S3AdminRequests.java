@@ -1,5 +1,7 @@
 package org.peergos.blockstore.s3;
 
+import org.peergos.Hash;
+import org.peergos.util.ArrayOps;
 import org.peergos.util.Hasher;
 import org.w3c.dom.Document;
 import org.w3c.dom.Node;
@@ -9,17 +11,22 @@ import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
 import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.time.Instant;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
+import java.util.function.BiFunction;
 import java.util.function.Function;
 import java.util.function.Supplier;
 
 public class S3AdminRequests {
 
+    public static final int MAX_BULK_DELETE = 1000;
 
     private static Instant normaliseDate(ZonedDateTime timestamp) {
         return timestamp.withNano(0).withZoneSameInstant(ZoneId.of("UTC")).toInstant();
@@ -83,12 +90,28 @@ public class S3AdminRequests {
                                                               String s3SecretKey,
                                                               boolean useHttps,
                                                               Hasher h) {
+        return preSignList(prefix, maxKeys, continuationToken, Optional.empty(), now, host, region, accessKeyId,
+                s3SecretKey, useHttps, h);
+    }
+
+    public static CompletableFuture<PresignedUrl> preSignList(String prefix,
+                                                              int maxKeys,
+                                                              Optional<String> continuationToken,
+                                                              Optional<String> startAfter,
+                                                              ZonedDateTime now,
+                                                              String host,
+                                                              String region,
+                                                              String accessKeyId,
+                                                              String s3SecretKey,
+                                                              boolean useHttps,
+                                                              Hasher h) {
         Map<String, String> extraQueryParameters = new LinkedHashMap<>();
         extraQueryParameters.put("list-type", "2");
         extraQueryParameters.put("max-keys", "" + maxKeys);
         extraQueryParameters.put("fetch-owner", "false");
         extraQueryParameters.put("prefix", prefix);
         continuationToken.ifPresent(t -> extraQueryParameters.put("continuation-token", t));
+        startAfter.ifPresent(k -> extraQueryParameters.put("start-after", k));
 
         Instant normalised = normaliseDate(now);
         S3Request policy = new S3Request("GET", host, "", S3Request.UNSIGNED, Optional.empty(), false, true,
@@ -109,8 +132,12 @@ public class S3AdminRequests {
                                                boolean useHttps,
                                                Hasher h) {
         PresignedUrl listReq = preSignList(prefix, maxKeys, continuationToken, now, host, region, accessKeyId, s3SecretKey, useHttps, h).join();
+        return parseListObjects(prefix, getter.apply(listReq), builder);
+    }
+
+    public static ListObjectsReply parseListObjects(String prefix, byte[] reply, Supplier<DocumentBuilder> builder) {
         try {
-            ByteArrayInputStream bais = new ByteArrayInputStream(getter.apply(listReq));
+            ByteArrayInputStream bais = new ByteArrayInputStream(reply);
             if (false) { //debugging code
                 String docString = new String(bais.readAllBytes());
                 System.currentTimeMillis();
@@ -155,4 +182,94 @@ public class S3AdminRequests {
             throw new RuntimeException(e);
         }
     }
+
+    public static class BulkDeleteReply {
+        public final List<String> deletedKeys;
+        public final List<String> failedKeys;
+
+        public BulkDeleteReply(List<String> deletedKeys, List<String> failedKeys) {
+            this.deletedKeys = deletedKeys;
+            this.failedKeys = failedKeys;
+        }
+    }
+
+    /** Delete up to 1000 keys in a single DeleteObjects request.
+     *
+     * @link https://docs.aws.amazon.com/AmazonS3/latest/API/API_DeleteObjects.html
+     */
+    public static CompletableFuture<BulkDeleteReply> bulkDelete(List<String> keys,
+                                                                String path,
+                                                                ZonedDateTime now,
+                                                                String host,
+                                                                String region,
+                                                                String accessKeyId,
+                                                                String s3SecretKey,
+                                                                BiFunction<PresignedUrl, byte[], CompletableFuture<byte[]>> poster,
+                                                                Supplier<DocumentBuilder> builder,
+                                                                boolean useHttps,
+                                                                Hasher h) {
+        if (keys.size() > MAX_BULK_DELETE)
+            throw new IllegalArgumentException("At most " + MAX_BULK_DELETE + " keys can be deleted in one request");
+        StringBuilder xml = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>")
+                .append("<Delete xmlns=\"http://s3.amazonaws.com/doc/2006-03-01/\"><Quiet>true</Quiet>");
+        for (String key : keys)
+            xml.append("<Object><Key>").append(escapeXml(key)).append("</Key></Object>");
+        xml.append("</Delete>");
+        byte[] body = xml.toString().getBytes(StandardCharsets.UTF_8);
+
+        Map<String, String> extraHeaders = new TreeMap<>();
+        extraHeaders.put("Content-Length", "" + body.length);
+        extraHeaders.put("Content-MD5", Base64.getEncoder().encodeToString(md5(body)));
+        extraHeaders.put("Content-Type", "application/xml");
+        Map<String, String> extraQueryParameters = new TreeMap<>();
+        extraQueryParameters.put("delete", "");
+        S3Request policy = new S3Request("POST", host, path, ArrayOps.bytesToHex(Hash.sha256(body)), Optional.empty(),
+                false, true, extraQueryParameters, extraHeaders, accessKeyId, region, asAwsDate(now));
+        return S3Request.preSignRequest(policy, path, host, s3SecretKey, useHttps, h)
+                .thenCompose(url -> poster.apply(url, body))
+                .thenApply(reply -> parseBulkDelete(keys, reply, builder));
+    }
+
+    private static BulkDeleteReply parseBulkDelete(List<String> keys, byte[] reply, Supplier<DocumentBuilder> builder) {
+        try {
+            Document xml = builder.get().parse(new ByteArrayInputStream(reply));
+            Set<String> failed = new LinkedHashSet<>();
+            NodeList topLevel = xml.getFirstChild().getChildNodes();
+            for (int t = 0; t < topLevel.getLength(); t++) {
+                Node top = topLevel.item(t);
+                if (! "Error".equals(top.getNodeName()))
+                    continue;
+                NodeList childNodes = top.getChildNodes();
+                for (int i = 0; i < childNodes.getLength(); i++) {
+                    Node n = childNodes.item(i);
+                    if ("Key".equals(n.getNodeName()))
+                        failed.add(n.getTextContent());
+                }
+            }
+            List<String> deleted = new ArrayList<>();
+            for (String key : keys) {
+                if (! failed.contains(key))
+                    deleted.add(key);
+            }
+            return new BulkDeleteReply(deleted, new ArrayList<>(failed));
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static String escapeXml(String in) {
+        return in.replace("&", "&amp;")
+                .replace("<", "&lt;")
+                .replace(">", "&gt;")
+                .replace("\"", "&quot;")
+                .replace("'", "&apos;");
+    }
+
+    private static byte[] md5(byte[] in) {
+        try {
+            return MessageDigest.getInstance("MD5").digest(in);
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
 }
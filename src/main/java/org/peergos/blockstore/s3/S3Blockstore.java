@@ -9,38 +9,40 @@ import org.peergos.blockstore.Blockstore;
 import org.peergos.blockstore.RateLimitException;
 import org.peergos.blockstore.metadatadb.BlockMetadata;
 import org.peergos.blockstore.metadatadb.BlockMetadataStore;
+import org.peergos.blockstore.metadatadb.MetadataBackfill;
 import org.peergos.cbor.CborObject;
 import org.peergos.util.ArrayOps;
 import org.peergos.util.Futures;
 import org.peergos.util.Hasher;
-import org.peergos.util.HttpUtil;
 import org.peergos.util.Logging;
 import org.peergos.util.Pair;
 
 import javax.net.ssl.SSLException;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.net.SocketTimeoutException;
+import java.io.InputStream;
+import java.net.http.HttpTimeoutException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.time.ZonedDateTime;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.Queue;
 import java.util.TreeMap;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ForkJoinPool;
-import java.util.concurrent.ForkJoinTask;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.function.Consumer;
 import java.util.function.Supplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
-import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
 public class S3Blockstore implements Blockstore {
@@ -92,6 +94,10 @@ public class S3Blockstore implements Blockstore {
             .help("Number of times we get a http 429 rate limit response")
             .register();
 
+    // the base32 alphabet used in block keys, in lexicographic order
+    private static final String KEY_ALPHABET = "234567ABCDEFGHIJKLMNOPQRSTUVWXYZ";
+    private static final int MAX_LIST_SPLIT_DEPTH = 12;
+
     private final String region;
     private final String bucket;
     private final String regionEndpoint;
@@ -105,6 +111,7 @@ public class S3Blockstore implements Blockstore {
     private final Hasher hasher;
 
     private final BlockMetadataStore blockMetadata;
+    private final S3HttpClient http;
 
     public S3Blockstore(Map<String, Object> params, BlockMetadataStore blockMetadata) {
         this.blockMetadata = blockMetadata;
@@ -141,6 +148,7 @@ public class S3Blockstore implements Blockstore {
                 rootDirectory : rootDirectory + "/");
 
         hasher = new Hasher();
+        http = new S3HttpClient(Integer.parseInt(getParam(params, "maxInFlight", "64")), useHttps);
         LOG.info("Using S3BlockStore");
     }
 
@@ -241,59 +249,39 @@ public class S3Blockstore implements Blockstore {
         return Futures.of(blockMetadata.put(h, bloc));
     }
 
-    public void updateMetadataStoreIfEmpty() {
-        if (blockMetadata.size() > 0)
-            return;
-        LOG.info("Updating block metadata store from S3. Listing blocks...");
-        List<Cid> all = directRefs().join();
-        LOG.info("Updating block metadata store from S3. Updating db with " + all.size() + " blocks...");
-
-        int updateParallelism = 10;
-        ForkJoinPool pool = new ForkJoinPool(updateParallelism);
-        int batchSize = all.size() / updateParallelism;
-        AtomicLong progress = new AtomicLong(0);
-        int tenth = batchSize / 10;
-
-        List<ForkJoinTask<Optional<BlockMetadata>>> futures = IntStream.range(0, updateParallelism)
-                .mapToObj(b -> pool.submit(() -> IntStream.range(b * batchSize, (b + 1) * batchSize)
-                        .mapToObj(i -> {
-                            BlockMetadata res = getBlockMetadata(all.get(i)).join();
-                            if (i % (batchSize / 10) == 0) {
-                                long updatedProgress = progress.addAndGet(tenth);
-                                if (updatedProgress * 10 / all.size() > (updatedProgress - tenth) * 10 / all.size())
-                                    LOG.info("Populating block metadata: " + updatedProgress * 100 / all.size() + "% done");
-                            }
-                            return res;
-                        })
-                        .reduce((x, y) -> y)))
-                .collect(Collectors.toList());
-        futures.stream()
-                .map(ForkJoinTask::join)
+    public void updateMetadataStore(MetadataBackfill backfill) {
+        // list each range of keys concurrently, as a single listing of a large bucket takes days
+        List<String> partitions = KEY_ALPHABET.chars()
+                .mapToObj(c -> String.valueOf((char) c))
                 .collect(Collectors.toList());
-        LOG.info("Finished updating block metadata store from S3.");
-    }
-
-    private static <V> V getWithBackoff(Supplier<V> req) {
-        long sleep = 100;
-        for (int i = 0; i < 20; i++) {
-            try {
-                return req.get();
-            } catch (RateLimitException e) {
-                try {
-                    Thread.sleep(sleep);
-                } catch (InterruptedException f) {
-                }
-                sleep *= 2;
-            }
-        }
-        throw new IllegalStateException("Couldn't process request because of rate limit!");
+        backfill.run(this, blockMetadata, partitions, this::refStream);
+    }
+
+    private static <V> CompletableFuture<V> getWithBackoff(Supplier<CompletableFuture<V>> req) {
+        return S3HttpClient.withBackoff(req);
+    }
+
+    private static Throwable unwrap(Throwable t) {
+        return t instanceof CompletionException && t.getCause() != null ? t.getCause() : t;
+    }
+
+    /** Every block written is recorded in the metadata store before its put completes, so that is the only lookup.
+     */
+    private static boolean isPresent(Optional<BlockMetadata> meta) {
+        return meta.isPresent();
     }
 
     @Override
     public CompletableFuture<Boolean> has(Cid cid) {
-        if (blockMetadata.get(cid).isEmpty())
-            return CompletableFuture.completedFuture(false);
-        return getWithBackoff(() -> getSizeWithoutRetry(cid)).thenApply(optSize -> optSize.isPresent());
+        return Futures.of(isPresent(blockMetadata.get(cid)));
+    }
+
+    @Override
+    public CompletableFuture<List<Boolean>> hasAll(List<Cid> cids) {
+        Map<Cid, BlockMetadata> known = blockMetadata.getAll(cids);
+        return Futures.of(cids.stream()
+                .map(c -> isPresent(Optional.ofNullable(known.get(c))))
+                .collect(Collectors.toList()));
     }
 
     @Override
@@ -308,30 +296,27 @@ public class S3Blockstore implements Blockstore {
             return Futures.of(Optional.of(meta.get().size));
         if (cid.getType() == Multihash.Type.id) // Identity hashes are not actually stored explicitly
             return Futures.of(Optional.of(0));
-        try {
-            PresignedUrl headUrl = S3Request.preSignHead(folder + hashToKey(cid), Optional.of(60),
-                    S3AdminRequests.asAwsDate(ZonedDateTime.now()), host, region, accessKeyId, secretKey, useHttps, hasher).join();
-            Map<String, List<String>> headRes = HttpUtil.head(headUrl.base, headUrl.fields);
-            blockHeads.inc();
-            long size = Long.parseLong(headRes.get("Content-Length").get(0));
-            return Futures.of(Optional.of((int) size));
-        } catch (FileNotFoundException f) {
-            LOG.warning("S3 404 error reading " + cid);
-            return Futures.of(Optional.empty());
-        } catch (IOException e) {
-            String msg = e.getMessage();
-            boolean rateLimitedResult = msg.startsWith("<?xml version=\"1.0\" encoding=\"UTF-8\"?><Error><Code>SlowDown</Code>");
-            if (rateLimitedResult) {
-                rateLimited.inc();
-                throw new RateLimitException();
-            }
-            boolean notFound = msg.startsWith("<?xml version=\"1.0\" encoding=\"UTF-8\"?><Error><Code>NoSuchKey</Code>");
-            if (!notFound) {
-                LOG.warning("S3 error reading " + cid);
-                LOG.log(Level.WARNING, msg, e);
-            }
-            return Futures.of(Optional.empty());
-        }
+        PresignedUrl headUrl = S3Request.signHead(folder + hashToKey(cid),
+                S3AdminRequests.asAwsDate(ZonedDateTime.now()), host, region, accessKeyId, secretKey, useHttps, hasher).join();
+        return http.head(headUrl)
+                .thenApply(headRes -> {
+                    blockHeads.inc();
+                    long size = Long.parseLong(headRes.get("Content-Length").get(0));
+                    return Optional.of((int) size);
+                }).exceptionally(t -> {
+                    Throwable cause = unwrap(t);
+                    if (cause instanceof RateLimitException) {
+                        rateLimited.inc();
+                        throw (RateLimitException) cause;
+                    }
+                    if (cause instanceof FileNotFoundException) {
+                        LOG.warning("S3 404 error reading " + cid);
+                    } else {
+                        LOG.warning("S3 error reading " + cid);
+                        LOG.log(Level.WARNING, cause.getMessage(), cause);
+                    }
+                    return Optional.empty();
+                });
     }
 
     @Override
@@ -341,38 +326,70 @@ public class S3Blockstore implements Blockstore {
         return getWithBackoff(() -> getWithoutRetry(cid));
     }
 
+    @Override
+    public CompletableFuture<List<Optional<byte[]>>> getAll(List<Cid> cids) {
+        Map<Cid, BlockMetadata> known = blockMetadata.getAll(cids);
+        return Futures.combineAllInOrder(cids.stream()
+                .map(c -> known.containsKey(c) ?
+                        getWithBackoff(() -> getWithoutRetry(c)).exceptionally(t -> Optional.empty()) :
+                        CompletableFuture.completedFuture(Optional.<byte[]>empty()))
+                .collect(Collectors.toList()));
+    }
+
+    private <V> CompletableFuture<V> handleGetError(String path, Throwable t) {
+        Throwable cause = unwrap(t);
+        if (cause instanceof RateLimitException || cause instanceof HttpTimeoutException || cause instanceof SSLException) {
+            // S3 can't handle the load so treat this as a rate limit and slow down
+            getRateLimited.inc();
+            rateLimited.inc();
+            return Futures.errored(new RateLimitException());
+        }
+        if (! (cause instanceof FileNotFoundException)) {
+            LOG.warning("S3 error reading " + path);
+            LOG.log(Level.WARNING, cause.getMessage(), cause);
+        }
+        failedBlockGets.inc();
+        return Futures.errored(cause);
+    }
+
     private CompletableFuture<Optional<byte[]>> getWithoutRetry(Cid cid) {
         String path = folder + hashToKey(cid);
         Optional<Pair<Integer, Integer>> range = Optional.empty();
-        PresignedUrl getUrl = S3Request.preSignGet(path, Optional.of(600), range,
+        PresignedUrl getUrl = S3Request.signGet(path, range,
                 S3AdminRequests.asAwsDate(ZonedDateTime.now()), host, region, accessKeyId, secretKey, useHttps, hasher).join();
         Histogram.Timer readTimer = readTimerLog.labels("read").startTimer();
-        try {
-            byte[] block = HttpUtil.get(getUrl.base, getUrl.fields);
-            blockGets.inc();
-            blockMetadata.put(cid, block);
-            return Futures.of(Optional.of(block));
-        } catch (SocketTimeoutException | SSLException e) {
-            // S3 can't handle the load so treat this as a rate limit and slow down
-            throw new RateLimitException();
-        } catch (IOException e) {
-            String msg = e.getMessage();
-            boolean rateLimitedResult = msg.startsWith("<?xml version=\"1.0\" encoding=\"UTF-8\"?><Error><Code>SlowDown</Code>");
-            if (rateLimitedResult) {
-                getRateLimited.inc();
-                rateLimited.inc();
-                throw new RateLimitException();
-            }
-            boolean notFound = msg.startsWith("<?xml version=\"1.0\" encoding=\"UTF-8\"?><Error><Code>NoSuchKey</Code>");
-            if (!notFound) {
-                LOG.warning("S3 error reading " + path);
-                LOG.log(Level.WARNING, msg, e);
-            }
-            failedBlockGets.inc();
-            return Futures.errored(e);
-        } finally {
-            readTimer.observeDuration();
-        }
+        return http.get(getUrl)
+                .thenApply(block -> {
+                    blockGets.inc();
+                    return Optional.of(block);
+                }).handle((res, t) -> {
+                    readTimer.observeDuration();
+                    if (t == null)
+                        return Futures.of(res);
+                    return this.<Optional<byte[]>>handleGetError(path, t);
+                }).thenCompose(x -> x);
+    }
+
+    @Override
+    public CompletableFuture<Optional<InputStream>> getStream(Cid cid) {
+        if (blockMetadata.get(cid).isEmpty())
+            return CompletableFuture.completedFuture(Optional.empty());
+        return getWithBackoff(() -> getStreamWithoutRetry(cid));
+    }
+
+    private CompletableFuture<Optional<InputStream>> getStreamWithoutRetry(Cid cid) {
+        String path = folder + hashToKey(cid);
+        PresignedUrl getUrl = S3Request.signGet(path, Optional.empty(),
+                S3AdminRequests.asAwsDate(ZonedDateTime.now()), host, region, accessKeyId, secretKey, useHttps, hasher).join();
+        return http.getStream(getUrl)
+                .thenApply(block -> {
+                    blockGets.inc();
+                    return Optional.of(block);
+                }).handle((res, t) -> {
+                    if (t == null)
+                        return Futures.of(res);
+                    return this.<Optional<InputStream>>handleGetError(path, t);
+                }).thenCompose(x -> x);
     }
 
     @Override
@@ -380,48 +397,79 @@ public class S3Blockstore implements Blockstore {
         return getWithBackoff(() -> putWithoutRetry(block, codec));
     }
 
+    @Override
+    public CompletableFuture<List<Cid>> putAll(List<byte[]> blocks, Cid.Codec codec) {
+        return Futures.combineAllInOrder(blocks.stream()
+                .map(b -> put(b, codec))
+                .collect(Collectors.toList()));
+    }
+
     public CompletableFuture<Cid> putWithoutRetry(byte[] block, Cid.Codec codec) {
         Histogram.Timer writeTimer = writeTimerLog.labels("write").startTimer();
         byte[] hash = Hash.sha256(block);
         Cid cid = new Cid(1, codec, Multihash.Type.sha2_256, hash);
-        String key = hashToKey(cid);
-        try {
-            String s3Key = folder + key;
-            Map<String, String> extraHeaders = new TreeMap<>();
-            extraHeaders.put("Content-Type", "application/octet-stream");
-            String contentHash = ArrayOps.bytesToHex(hash);
-            PresignedUrl putUrl = S3Request.preSignPut(s3Key, block.length, contentHash, false,
-                    S3AdminRequests.asAwsDate(ZonedDateTime.now()), host, extraHeaders, region, accessKeyId, secretKey, useHttps, hasher).join();
-            HttpUtil.put(putUrl.base, putUrl.fields, block);
-            blockMetadata.put(cid, block);
-            blockPuts.inc();
-            blockPutBytes.labels("size").observe(block.length);
-            return CompletableFuture.completedFuture(cid);
-        } catch (IOException e) {
-            String msg = e.getMessage();
-            boolean rateLimitedResult = msg.startsWith("<?xml version=\"1.0\" encoding=\"UTF-8\"?><Error><Code>SlowDown</Code>");
-            if (rateLimitedResult) {
-                rateLimited.inc();
-                throw new RateLimitException();
-            }
-            LOG.log(Level.SEVERE, e.getMessage(), e);
-            throw new RuntimeException(e.getMessage(), e);
-        } finally {
-            writeTimer.observeDuration();
-        }
+        String s3Key = folder + hashToKey(cid);
+        Map<String, String> extraHeaders = new TreeMap<>();
+        extraHeaders.put("Content-Type", "application/octet-stream");
+        String contentHash = ArrayOps.bytesToHex(hash);
+        PresignedUrl putUrl = S3Request.preSignPut(s3Key, block.length, contentHash, false,
+                S3AdminRequests.asAwsDate(ZonedDateTime.now()), host, extraHeaders, region, accessKeyId, secretKey, useHttps, hasher).join();
+        return http.put(putUrl, block)
+                .thenApply(res -> {
+                    blockMetadata.put(cid, block);
+                    blockPuts.inc();
+                    blockPutBytes.labels("size").observe(block.length);
+                    return cid;
+                }).whenComplete((res, t) -> {
+                    writeTimer.observeDuration();
+                    if (t == null)
+                        return;
+                    Throwable cause = unwrap(t);
+                    if (cause instanceof RateLimitException)
+                        rateLimited.inc();
+                    else
+                        LOG.log(Level.SEVERE, cause.getMessage(), cause);
+                });
     }
 
     @Override
     public CompletableFuture<Boolean> rm(Cid cid) {
-        try {
-            PresignedUrl delUrl = S3Request.preSignDelete(folder + hashToKey(cid), S3AdminRequests.asAwsDate(ZonedDateTime.now()), host,
-                    region, accessKeyId, secretKey, useHttps, hasher).join();
-            HttpUtil.delete(delUrl.base, delUrl.fields);
-            blockMetadata.remove(cid);
-            return CompletableFuture.completedFuture(true);
-        } catch (Exception e) {
-            throw new RuntimeException(e);
+        PresignedUrl delUrl = S3Request.preSignDelete(folder + hashToKey(cid), S3AdminRequests.asAwsDate(ZonedDateTime.now()), host,
+                region, accessKeyId, secretKey, useHttps, hasher).join();
+        return getWithBackoff(() -> http.delete(delUrl))
+                .thenApply(res -> {
+                    blockMetadata.remove(cid);
+                    return true;
+                });
+    }
+
+    @Override
+    public CompletableFuture<Boolean> rmAll(List<Cid> cids) {
+        List<CompletableFuture<Boolean>> batches = new ArrayList<>();
+        for (int start = 0; start < cids.size(); start += S3AdminRequests.MAX_BULK_DELETE) {
+            List<Cid> batch = cids.subList(start, Math.min(cids.size(), start + S3AdminRequests.MAX_BULK_DELETE));
+            batches.add(getWithBackoff(() -> rmBatch(batch)));
         }
+        return Futures.combineAllInOrder(batches)
+                .thenApply(res -> res.stream().allMatch(x -> x));
+    }
+
+    private CompletableFuture<Boolean> rmBatch(List<Cid> batch) {
+        // with path style requests the bucket is the first element of the folder
+        String objectPrefix = useHttps ? folder : folder.substring(bucket.length() + 1);
+        Map<String, Cid> byKey = new LinkedHashMap<>();
+        for (Cid c : batch)
+            byKey.put(objectPrefix + hashToKey(c), c);
+        return S3AdminRequests.bulkDelete(new ArrayList<>(byKey.keySet()), useHttps ? "" : bucket,
+                        ZonedDateTime.now(), host, region, accessKeyId, secretKey, http::post,
+                        S3AdminRequests.builder::get, useHttps, hasher)
+                .thenApply(reply -> {
+                    for (String key : reply.deletedKeys)
+                        blockMetadata.remove(byKey.get(key));
+                    if (! reply.failedKeys.isEmpty())
+                        LOG.warning("Failed to delete " + reply.failedKeys.size() + " blocks from S3");
+                    return reply.failedKeys.isEmpty();
+                });
     }
 
     @Override
@@ -437,42 +485,100 @@ public class S3Blockstore implements Blockstore {
     }
 
     public CompletableFuture<List<Cid>> directRefs() {
-        List<Cid> cidList = new ArrayList<>();
-        applyToAll(obj -> cidList.add(keyToHash(obj.key)), Integer.MAX_VALUE);
-        return CompletableFuture.completedFuture(cidList);
+        Queue<Cid> cids = new ConcurrentLinkedQueue<>();
+        return applyToAll(obj -> cids.add(objectToCid(obj)))
+                .thenApply(x -> new ArrayList<>(cids));
     }
 
-    private void applyToAll(Consumer<S3AdminRequests.ObjectMetadata> processor, long maxObjects) {
-        try {
-            Optional<String> continuationToken = Optional.empty();
-            S3AdminRequests.ListObjectsReply result;
-            long processedObjects = 0;
-            do {
-                result = S3AdminRequests.listObjects(folder, 1_000, continuationToken,
-                        ZonedDateTime.now(), host, region, accessKeyId, secretKey, url -> {
-                            try {
-                                return HttpUtil.get(url.base, url.fields);
-                            } catch (IOException e) {
-                                throw new RuntimeException(e);
-                            }
-                        }, S3AdminRequests.builder::get, useHttps, hasher);
-
-                for (S3AdminRequests.ObjectMetadata objectSummary : result.objects) {
-                    if (objectSummary.key.endsWith("/")) {
-                        LOG.fine(" - " + objectSummary.key + "  " + "(directory)");
-                        continue;
-                    }
-                    processor.accept(objectSummary);
-                    processedObjects++;
-                    if (processedObjects >= maxObjects)
-                        return;
-                }
-                LOG.log(Level.FINE, "Next Continuation Token : " + result.continuationToken);
-                continuationToken = result.continuationToken;
-            } while (result.isTruncated);
+    @Override
+    public Stream<Cid> refStream() {
+        return refStream(Optional.empty());
+    }
 
-        } catch (Exception e) {
-            LOG.log(Level.SEVERE, e.getMessage(), e);
-        }
+    /** Lazily list the blocks in key order, one page at a time.
+     *
+     * @param startAfterKey only list blocks whose key sorts after this
+     */
+    public Stream<Cid> refStream(Optional<String> startAfterKey) {
+        return refStream("", startAfterKey);
+    }
+
+    /** Lazily list the blocks whose keys start with keyPrefix in key order, one page at a time.
+     *
+     * @param startAfterKey only list blocks whose key sorts after this
+     */
+    public Stream<Cid> refStream(String keyPrefix, Optional<String> startAfterKey) {
+        String prefix = folder + keyPrefix;
+        S3AdminRequests.ListObjectsReply first = listPage(prefix, Optional.empty(), startAfterKey.map(k -> folder + k)).join();
+        return Stream.iterate(first, Objects::nonNull,
+                        page -> page.isTruncated && page.continuationToken.isPresent() ?
+                                listPage(prefix, page.continuationToken, Optional.empty()).join() :
+                                null)
+                .flatMap(page -> page.objects.stream())
+                .filter(obj -> ! obj.key.endsWith("/"))
+                .map(this::objectToCid);
+    }
+
+    private Cid objectToCid(S3AdminRequests.ObjectMetadata obj) {
+        return keyToHash(obj.key.startsWith(folder) ? obj.key.substring(folder.length()) : obj.key);
+    }
+
+    /** List every object, splitting the key space by the next character of the key whenever a listing is truncated,
+     *  so that disjoint ranges of the bucket are listed in parallel.
+     */
+    private CompletableFuture<Void> applyToAll(Consumer<S3AdminRequests.ObjectMetadata> processor) {
+        Consumer<S3AdminRequests.ObjectMetadata> filtered = obj -> {
+            if (obj.key.endsWith("/")) {
+                LOG.fine(" - " + obj.key + "  " + "(directory)");
+                return;
+            }
+            processor.accept(obj);
+        };
+        return listPartition(folder, Optional.empty(), filtered)
+                .exceptionally(t -> {
+                    LOG.log(Level.SEVERE, t.getMessage(), t);
+                    return null;
+                });
+    }
+
+    private CompletableFuture<S3AdminRequests.ListObjectsReply> listPage(String prefix,
+                                                                         Optional<String> continuationToken,
+                                                                         Optional<String> startAfter) {
+        return getWithBackoff(() -> S3AdminRequests.preSignList(prefix, 1_000, continuationToken, startAfter,
+                        ZonedDateTime.now(), host, region, accessKeyId, secretKey, useHttps, hasher)
+                .thenCompose(http::get))
+                .thenApply(reply -> S3AdminRequests.parseListObjects(prefix, reply, S3AdminRequests.builder::get));
+    }
+
+    private CompletableFuture<Void> listPartition(String prefix,
+                                                  Optional<String> startAfter,
+                                                  Consumer<S3AdminRequests.ObjectMetadata> processor) {
+        return listPage(prefix, Optional.empty(), startAfter).thenCompose(page -> {
+            page.objects.forEach(processor);
+            if (! page.isTruncated || page.objects.isEmpty())
+                return Futures.of(null);
+            // keys are listed in order, so everything before the last key has been seen
+            String lastKey = page.objects.get(page.objects.size() - 1).key;
+            int next = lastKey.length() > prefix.length() ? KEY_ALPHABET.indexOf(lastKey.charAt(prefix.length())) : -1;
+            if (next < 0 || prefix.length() - folder.length() >= MAX_LIST_SPLIT_DEPTH)
+                return listSerially(prefix, page.continuationToken, processor);
+            List<CompletableFuture<Void>> parts = new ArrayList<>();
+            parts.add(listPartition(prefix + KEY_ALPHABET.charAt(next), Optional.of(lastKey), processor));
+            for (int i = next + 1; i < KEY_ALPHABET.length(); i++)
+                parts.add(listPartition(prefix + KEY_ALPHABET.charAt(i), Optional.empty(), processor));
+            return CompletableFuture.allOf(parts.toArray(new CompletableFuture[0]));
+        });
+    }
+
+    private CompletableFuture<Void> listSerially(String prefix,
+                                                 Optional<String> continuationToken,
+                                                 Consumer<S3AdminRequests.ObjectMetadata> processor) {
+        return listPage(prefix, continuationToken, Optional.empty()).thenCompose(page -> {
+            page.objects.forEach(processor);
+            LOG.log(Level.FINE, "Next Continuation Token : " + page.continuationToken);
+            if (! page.isTruncated)
+                return Futures.of(null);
+            return listSerially(prefix, page.continuationToken, processor);
+        });
     }
 }
@@ -0,0 +1,207 @@
+package org.peergos.blockstore.s3;
+
+import org.peergos.blockstore.RateLimitException;
+import org.peergos.util.Futures;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/** A non-blocking http client for S3 requests which limits the number of requests in flight.
+ *  Requests beyond the limit are queued rather than blocking the caller.
+ */
+public class S3HttpClient {
+
+    // these are set by the client itself and can't be passed through
+    private static final Set<String> RESTRICTED_HEADERS = Set.of("host", "content-length", "connection", "expect", "upgrade");
+    private static final int MAX_RETRIES = 20;
+    private static final long MAX_BACKOFF_MILLIS = 30_000;
+
+    private final HttpClient client;
+    private final HttpClient.Version version;
+    private final int maxInFlight;
+    private final AtomicInteger inFlight = new AtomicInteger(0);
+    private final Queue<Runnable> waiting = new ConcurrentLinkedQueue<>();
+
+    public S3HttpClient(int maxInFlight, boolean useHttps) {
+        if (maxInFlight < 1)
+            throw new IllegalArgumentException("maxInFlight must be positive");
+        this.maxInFlight = maxInFlight;
+        // avoid h2c upgrade attempts against plain http endpoints like a local minio
+        this.version = useHttps ? HttpClient.Version.HTTP_2 : HttpClient.Version.HTTP_1_1;
+        this.client = HttpClient.newBuilder()
+                .version(version)
+                .connectTimeout(Duration.ofSeconds(10))
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .build();
+    }
+
+    public int inFlight() {
+        return inFlight.get();
+    }
+
+    public CompletableFuture<Map<String, List<String>>> head(PresignedUrl url) {
+        return send(request(url).method("HEAD", HttpRequest.BodyPublishers.noBody()), HttpResponse.BodyHandlers.ofByteArray())
+                .thenApply(resp -> resp.headers().map());
+    }
+
+    public CompletableFuture<byte[]> get(PresignedUrl url) {
+        return send(request(url).GET(), HttpResponse.BodyHandlers.ofByteArray())
+                .thenApply(HttpResponse::body);
+    }
+
+    /** The caller must close the returned stream.
+     */
+    public CompletableFuture<InputStream> getStream(PresignedUrl url) {
+        return send(request(url).GET(), HttpResponse.BodyHandlers.ofInputStream())
+                .thenApply(HttpResponse::body);
+    }
+
+    public CompletableFuture<byte[]> put(PresignedUrl url, byte[] body) {
+        return send(request(url).PUT(HttpRequest.BodyPublishers.ofByteArray(body)), HttpResponse.BodyHandlers.ofByteArray())
+                .thenApply(HttpResponse::body);
+    }
+
+    public CompletableFuture<byte[]> post(PresignedUrl url, byte[] body) {
+        return send(request(url).POST(HttpRequest.BodyPublishers.ofByteArray(body)), HttpResponse.BodyHandlers.ofByteArray())
+                .thenApply(HttpResponse::body);
+    }
+
+    public CompletableFuture<byte[]> delete(PresignedUrl url) {
+        return send(request(url).DELETE(), HttpResponse.BodyHandlers.ofByteArray())
+                .thenApply(HttpResponse::body);
+    }
+
+    private HttpRequest.Builder request(PresignedUrl url) {
+        HttpRequest.Builder builder = HttpRequest.newBuilder(URI.create(url.base))
+                .version(version)
+                .timeout(Duration.ofSeconds(60));
+        for (Map.Entry<String, String> e : url.fields.entrySet()) {
+            if (! RESTRICTED_HEADERS.contains(e.getKey().toLowerCase()))
+                builder.header(e.getKey(), e.getValue());
+        }
+        return builder;
+    }
+
+    private <T> CompletableFuture<HttpResponse<T>> send(HttpRequest.Builder req, HttpResponse.BodyHandler<T> handler) {
+        HttpRequest request = req.build();
+        return limit(() -> client.sendAsync(request, handler))
+                .thenApply(S3HttpClient::checkStatus);
+    }
+
+    private static <T> HttpResponse<T> checkStatus(HttpResponse<T> resp) {
+        int code = resp.statusCode();
+        if (code >= 200 && code < 300)
+            return resp;
+        String body = errorBody(resp.body());
+        if (code == 503 || code == 429 || body.contains("<Code>SlowDown</Code>"))
+            throw new RateLimitException();
+        if (code == 404)
+            throw new CompletionException(new FileNotFoundException(body));
+        throw new CompletionException(new IOException(body.isEmpty() ? "HTTP " + code : body));
+    }
+
+    private static String errorBody(Object body) {
+        try {
+            if (body instanceof byte[])
+                return new String((byte[]) body);
+            if (body instanceof InputStream) {
+                try (InputStream in = (InputStream) body) {
+                    return new String(in.readAllBytes());
+                }
+            }
+            return "";
+        } catch (IOException e) {
+            return "";
+        }
+    }
+
+    private <T> CompletableFuture<T> limit(Supplier<CompletableFuture<T>> task) {
+        CompletableFuture<T> res = new CompletableFuture<>();
+        waiting.add(() -> {
+            CompletableFuture<T> started;
+            try {
+                started = task.get();
+            } catch (Throwable t) {
+                started = Futures.errored(t);
+            }
+            started.whenComplete((r, t) -> {
+                inFlight.decrementAndGet();
+                drain();
+                if (t != null)
+                    res.completeExceptionally(t);
+                else
+                    res.complete(r);
+            });
+        });
+        drain();
+        return res;
+    }
+
+    private void drain() {
+        while (! waiting.isEmpty()) {
+            int current = inFlight.get();
+            if (current >= maxInFlight)
+                return;
+            if (! inFlight.compareAndSet(current, current + 1))
+                continue;
+            Runnable next = waiting.poll();
+            if (next == null) {
+                inFlight.decrementAndGet();
+                continue;
+            }
+            next.run();
+        }
+    }
+
+    /** Retry a request on rate limiting with exponential backoff, without blocking a thread while waiting.
+     */
+    public static <V> CompletableFuture<V> withBackoff(Supplier<CompletableFuture<V>> req) {
+        CompletableFuture<V> res = new CompletableFuture<>();
+        attempt(req, 0, 100, res);
+        return res;
+    }
+
+    private static <V> void attempt(Supplier<CompletableFuture<V>> req, int tries, long sleep, CompletableFuture<V> res) {
+        CompletableFuture<V> started;
+        try {
+            started = req.get();
+        } catch (Throwable t) {
+            started = Futures.errored(t);
+        }
+        started.whenComplete((r, t) -> {
+            if (t == null) {
+                res.complete(r);
+                return;
+            }
+            Throwable cause = t instanceof CompletionException && t.getCause() != null ? t.getCause() : t;
+            if (! (cause instanceof RateLimitException)) {
+                res.completeExceptionally(cause);
+                return;
+            }
+            if (tries + 1 >= MAX_RETRIES) {
+                res.completeExceptionally(new IllegalStateException("Couldn't process request because of rate limit!"));
+                return;
+            }
+            long jitter = ThreadLocalRandom.current().nextLong(sleep / 2 + 1);
+            CompletableFuture.delayedExecutor(sleep + jitter, TimeUnit.MILLISECONDS)
+                    .execute(() -> attempt(req, tries + 1, Math.min(sleep * 2, MAX_BACKOFF_MILLIS), res));
+        });
+    }
+}
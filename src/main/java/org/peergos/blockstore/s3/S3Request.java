@@ -9,6 +9,7 @@ import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -16,6 +17,8 @@ public class S3Request {
 
     private static final String ALGORITHM = "AWS4-HMAC-SHA256";
     public static final String UNSIGNED = "UNSIGNED-PAYLOAD";
+    private static final int MAX_CACHED_SIGNING_KEYS = 64;
+    private static final Map<String, Pair<String, byte[]>> signingKeys = new ConcurrentHashMap<>();
 
     public final String verb, host;
     public final String key;
@@ -133,6 +136,50 @@ public class S3Request {
         return preSignNulliPotent("HEAD", key, expirySeconds, Optional.empty(), datetime, host, region, accessKeyId, s3SecretKey, useHttps, h);
     }
 
+    /**
+     * Sign a GET with an Authorization header rather than query parameters, for requests we make ourselves.
+     */
+    public static CompletableFuture<PresignedUrl> signGet(String key,
+                                                          Optional<Pair<Integer, Integer>> range,
+                                                          String datetime,
+                                                          String host,
+                                                          String region,
+                                                          String accessKeyId,
+                                                          String s3SecretKey,
+                                                          boolean useHttps,
+                                                          Hasher h) {
+        return signNulliPotent("GET", key, range, datetime, host, region, accessKeyId, s3SecretKey, useHttps, h);
+    }
+
+    public static CompletableFuture<PresignedUrl> signHead(String key,
+                                                           String datetime,
+                                                           String host,
+                                                           String region,
+                                                           String accessKeyId,
+                                                           String s3SecretKey,
+                                                           boolean useHttps,
+                                                           Hasher h) {
+        return signNulliPotent("HEAD", key, Optional.empty(), datetime, host, region, accessKeyId, s3SecretKey, useHttps, h);
+    }
+
+    private static CompletableFuture<PresignedUrl> signNulliPotent(String verb,
+                                                                   String key,
+                                                                   Optional<Pair<Integer, Integer>> range,
+                                                                   String datetime,
+                                                                   String host,
+                                                                   String region,
+                                                                   String accessKeyId,
+                                                                   String s3SecretKey,
+                                                                   boolean useHttps,
+                                                                   Hasher h) {
+        Map<String, String> extraHeaders = range
+                .map(p -> Stream.of(p).collect(Collectors.toMap(r -> "Range", r -> "bytes="+r.left+"-"+r.right)))
+                .orElse(Collections.emptyMap());
+        S3Request policy = new S3Request(verb, host, key, UNSIGNED, Optional.empty(), false, true,
+                Collections.emptyMap(), extraHeaders, accessKeyId, region, datetime);
+        return preSignRequest(policy, key, host, s3SecretKey, useHttps, h);
+    }
+
     private static CompletableFuture<PresignedUrl> preSignNulliPotent(String verb,
                                                                       String key,
                                                                       Optional<Integer> expiresSeconds,
@@ -175,14 +222,34 @@ public class S3Request {
                                                              String s3SecretKey,
                                                              Hasher hasher) {
         String stringToSign = policy.stringToSign();
-        String shortDate = policy.shortDate;
+        return signingKey(policy.accessKeyId, s3SecretKey, policy.shortDate, policy.region, hasher)
+                .thenCompose(signingKey -> hasher.hmacSha256(signingKey, stringToSign.getBytes()))
+                .thenApply(ArrayOps::bytesToHex);
+    }
 
+    /**
+     * The derived signing key only depends on the date and region, so cache it rather than recomputing the
+     * HMAC chain for every request.
+     */
+    public static CompletableFuture<byte[]> signingKey(String accessKeyId,
+                                                       String s3SecretKey,
+                                                       String shortDate,
+                                                       String region,
+                                                       Hasher hasher) {
+        String scope = accessKeyId + "/" + shortDate + "/" + region;
+        Pair<String, byte[]> cached = signingKeys.get(scope);
+        if (cached != null && cached.left.equals(s3SecretKey))
+            return CompletableFuture.completedFuture(cached.right);
         return hasher.hmacSha256(("AWS4" + s3SecretKey).getBytes(), shortDate.getBytes())
-                .thenCompose(dateKey -> hasher.hmacSha256(dateKey, policy.region.getBytes()))
+                .thenCompose(dateKey -> hasher.hmacSha256(dateKey, region.getBytes()))
                 .thenCompose(dateRegionKey -> hasher.hmacSha256(dateRegionKey, "s3".getBytes()))
                 .thenCompose(dateRegionServiceKey -> hasher.hmacSha256(dateRegionServiceKey, "aws4_request".getBytes()))
-                .thenCompose(signingKey -> hasher.hmacSha256(signingKey, stringToSign.getBytes()))
-                .thenApply(ArrayOps::bytesToHex);
+                .thenApply(signingKey -> {
+                    if (signingKeys.size() >= MAX_CACHED_SIGNING_KEYS)
+                        signingKeys.keySet().removeIf(k -> ! k.contains("/" + shortDate + "/"));
+                    signingKeys.put(scope, new Pair<>(s3SecretKey, signingKey));
+                    return signingKey;
+                });
     }
 
     public String stringToSign() {
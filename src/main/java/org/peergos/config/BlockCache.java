@@ -0,0 +1,53 @@
+package org.peergos.config;
+
+import org.peergos.util.JsonHelper;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/** A local disk cache in front of a remote block mount.
+ */
+public class BlockCache implements Jsonable {
+    public final String path;
+    public final long maxSizeBytes;
+    public final boolean writeBack;
+    public final int writeBackQueueSize;
+
+    public BlockCache(String path, long maxSizeBytes, boolean writeBack, int writeBackQueueSize) {
+        if (maxSizeBytes < 0) {
+            throw new IllegalStateException("Invalid block cache size: " + maxSizeBytes);
+        }
+        if (writeBackQueueSize < 1) {
+            throw new IllegalStateException("Invalid block cache write back queue size: " + writeBackQueueSize);
+        }
+        this.path = path;
+        this.maxSizeBytes = maxSizeBytes;
+        this.writeBack = writeBack;
+        this.writeBackQueueSize = writeBackQueueSize;
+    }
+
+    public static BlockCache none() {
+        return new BlockCache("blockcache", 0, false, 1);
+    }
+
+    public boolean isEnabled() {
+        return maxSizeBytes > 0;
+    }
+
+    public Map<String, Object> toJson() {
+        Map<String, Object> configMap = new LinkedHashMap<>();
+        configMap.put("path", path);
+        configMap.put("maxSize", Long.toString(maxSizeBytes));
+        configMap.put("writeBack", Boolean.toString(writeBack));
+        configMap.put("writeBackQueueSize", Integer.toString(writeBackQueueSize));
+        return configMap;
+    }
+
+    public static BlockCache fromJson(Map<String, Object> json) {
+        return new BlockCache(JsonHelper.getStringProperty(json, "path"),
+                Long.parseLong(JsonHelper.getStringProperty(json, "maxSize")),
+                Boolean.parseBoolean(JsonHelper.getStringProperty(json, "writeBack")),
+                Integer.parseInt(JsonHelper.getStringProperty(json, "writeBackQueueSize"))
+        );
+    }
+}
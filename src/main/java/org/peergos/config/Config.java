@@ -122,9 +122,10 @@ public class Config {
             throw new IllegalStateException("Expecting Addresses/Swarm entries");
         }
         Mount blockMount = config.datastore.blockMount;
-        if (!( (blockMount.prefix.equals("flatfs.datastore")  || blockMount.prefix.equals("s3.datastore"))
+        if (!( (blockMount.prefix.equals("flatfs.datastore")  || blockMount.prefix.equals("s3.datastore")
+                || blockMount.prefix.equals("pack.datastore"))
                 && blockMount.type.equals("measure"))) {
-            throw new IllegalStateException("Expecting /blocks mount to have prefix == ('flatfs.datastore' or 's3.datastore') and type == 'measure'");
+            throw new IllegalStateException("Expecting /blocks mount to have prefix == ('flatfs.datastore' or 's3.datastore' or 'pack.datastore') and type == 'measure'");
         }
         Map<String, Object> blockParams = blockMount.getParams();
         String blockPath = (String) blockParams.get("path");
@@ -136,6 +137,9 @@ public class Config {
         if (blockMount.prefix.equals("s3.datastore") && !blockType.equals("s3ds")) {
             throw new IllegalStateException("Expecting /blocks s3.datastore mount to have a type of 's3ds'");
         }
+        if (blockMount.prefix.equals("pack.datastore") && !blockType.equals("pack")) {
+            throw new IllegalStateException("Expecting /blocks pack.datastore mount to have a type of 'pack'");
+        }
 
         Mount rootMount = config.datastore.rootMount;
         if (!(rootMount.prefix.equals("h2.datastore") && rootMount.type.equals("measure"))) {
@@ -14,12 +14,18 @@ public class DatastoreSection implements Jsonable {
     public final Mount rootMount;
     public final Filter filter;
     public final CodecSet allowedCodecs;
+    public final BlockCache cache;
 
-    public DatastoreSection(Mount blockMount, Mount rootMount, Filter filter, CodecSet allowedCodecs) {
+    public DatastoreSection(Mount blockMount, Mount rootMount, Filter filter, CodecSet allowedCodecs, BlockCache cache) {
         this.blockMount = blockMount;
         this.rootMount = rootMount;
         this.filter = filter;
         this.allowedCodecs = allowedCodecs;
+        this.cache = cache;
+    }
+
+    public DatastoreSection(Mount blockMount, Mount rootMount, Filter filter, CodecSet allowedCodecs) {
+        this(blockMount, rootMount, filter, allowedCodecs, BlockCache.none());
     }
 
     public Map<String, Object> toJson() {
@@ -28,6 +34,9 @@ public class DatastoreSection implements Jsonable {
             datastoreMap.putAll(allowedCodecs.toJson());
         }
         datastoreMap.put("Filter", filter.toJson());
+        if (cache.isEnabled()) {
+            datastoreMap.put("Cache", cache.toJson());
+        }
         List<Map<String, Object>> list = List.of(blockMount.toJson(), rootMount.toJson());
         Map<String, Object> specMap = new LinkedHashMap<>();
         specMap.put("mounts", list);
@@ -42,6 +51,8 @@ public class DatastoreSection implements Jsonable {
         Optional<Map<String, Object>> filterJsonOpt =  JsonHelper.getOptionalPropertyMap(json, "Datastore", "Filter");
         Filter filter = filterJsonOpt.map( f -> Jsonable.parse(f, p -> Filter.fromJson(p))).orElse(Filter.none());
         CodecSet allowedCodecs = Jsonable.parse(json, p -> CodecSet.fromJson(p));
+        Optional<Map<String, Object>> cacheJsonOpt = JsonHelper.getOptionalPropertyMap(json, "Datastore", "Cache");
+        BlockCache cache = cacheJsonOpt.map(c -> Jsonable.parse(c, p -> BlockCache.fromJson(p))).orElse(BlockCache.none());
         String type = JsonHelper.getStringProperty(json, "Datastore", "Spec", "type");
         List<Map<String, Object>> mounts = JsonHelper.getPropertyObjectList(json, "Datastore", "Spec", "mounts");
         List<Mount> mountList = mounts.stream().map(m -> Jsonable.parse(m, p -> Mount.fromJson(p))).collect(Collectors.toList());
@@ -53,6 +64,6 @@ public class DatastoreSection implements Jsonable {
         if (!type.equals("mount")) {
             throw new IllegalStateException("Expecting Datastore/Spec/type == 'mount'");
         }
-        return new DatastoreSection(blockMountOpt.get(), rootMountOpt.get(), filter, allowedCodecs);
+        return new DatastoreSection(blockMountOpt.get(), rootMountOpt.get(), filter, allowedCodecs, cache);
     }
 }
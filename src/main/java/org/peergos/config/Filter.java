@@ -3,21 +3,46 @@ package org.peergos.config;
 import org.peergos.util.JsonHelper;
 
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 public class Filter implements Jsonable {
+    public static final int DEFAULT_ABSENT_SIZE = 30_000;
+    public static final long DEFAULT_ABSENT_TTL_SECONDS = 600;
+    // where an infini filter's bits are kept: on the java heap, in direct memory, or in memory mapped files
+    public static final String HEAP = "heap", DIRECT = "direct", MAPPED = "mapped";
+
     public final FilterType type;
     public final Double falsePositiveRate;
+    // how many absent blocks to remember, and for how long
+    public final int absentSize;
+    public final long absentTtlSeconds;
+    public final String storage;
 
     public Filter(FilterType type, Double falsePositiveRate) {
         this(type.type, falsePositiveRate);
     }
     public Filter(String filterType, Double falsePositiveRate) {
+        this(filterType, falsePositiveRate, DEFAULT_ABSENT_SIZE, DEFAULT_ABSENT_TTL_SECONDS, HEAP);
+    }
+    public Filter(String filterType, Double falsePositiveRate, int absentSize, long absentTtlSeconds, String storage) {
         if (falsePositiveRate < 0.0 || falsePositiveRate > 1.0) {
             throw new IllegalStateException("Invalid Filter false positive rate: " + falsePositiveRate);
         }
+        if (absentSize < 3) {
+            throw new IllegalStateException("Invalid Filter absent size: " + absentSize);
+        }
+        if (absentTtlSeconds <= 0) {
+            throw new IllegalStateException("Invalid Filter absent ttl: " + absentTtlSeconds);
+        }
+        if (! List.of(HEAP, DIRECT, MAPPED).contains(storage)) {
+            throw new IllegalStateException("Invalid Filter storage: " + storage);
+        }
         this.type = FilterType.lookup(filterType);
         this.falsePositiveRate = falsePositiveRate;
+        this.absentSize = absentSize;
+        this.absentTtlSeconds = absentTtlSeconds;
+        this.storage = storage;
     }
     public static Filter none() {
         return new Filter(FilterType.NONE, 0.0);
@@ -26,11 +51,23 @@ public class Filter implements Jsonable {
         Map<String, Object> configMap = new LinkedHashMap<>();
         configMap.put("type", type.type);
         configMap.put("falsePositiveRate", falsePositiveRate.toString());
+        configMap.put("absentSize", Integer.toString(absentSize));
+        configMap.put("absentTtlSeconds", Long.toString(absentTtlSeconds));
+        configMap.put("storage", storage);
         return configMap;
     }
     public static Filter fromJson(Map<String, Object> json) {
         return new Filter(JsonHelper.getStringProperty(json, "type"),
-            Double.parseDouble(JsonHelper.getStringProperty(json, "falsePositiveRate"))
+            Double.parseDouble(JsonHelper.getStringProperty(json, "falsePositiveRate")),
+            JsonHelper.getOptionalProperty(json, "absentSize")
+                    .map(s -> Integer.parseInt((String) s))
+                    .orElse(DEFAULT_ABSENT_SIZE),
+            JsonHelper.getOptionalProperty(json, "absentTtlSeconds")
+                    .map(s -> Long.parseLong((String) s))
+                    .orElse(DEFAULT_ABSENT_TTL_SECONDS),
+            JsonHelper.getOptionalProperty(json, "storage")
+                    .map(s -> (String) s)
+                    .orElse(HEAP)
         );
     }
 }
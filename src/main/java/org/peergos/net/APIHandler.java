@@ -9,6 +9,7 @@ import org.peergos.EmbeddedIpfs;
 import org.peergos.HashedBlock;
 import org.peergos.PeerAddresses;
 import org.peergos.Want;
+import org.peergos.blockstore.gc.GarbageCollector;
 import org.peergos.cbor.CborObject;
 import org.peergos.protocol.ipns.IpnsRecord;
 import org.peergos.protocol.ipns.pb.Ipns;
@@ -53,14 +54,29 @@ public class APIHandler extends Handler {
     public static final String FIND_PROVS = "dht/findprovs";
     public static final String IPNS_GET = "ipns/get";
 
+    public static final String PIN_ADD = "pin/add";
+    public static final String PIN_RM = "pin/rm";
+    public static final String PIN_LS = "pin/ls";
+    public static final String REPO_GC = "repo/gc";
+
     private final EmbeddedIpfs ipfs;
+    private final Optional<GarbageCollector> gc;
     private final int maxBlockSize;
 
-    public APIHandler(EmbeddedIpfs ipfs) {
+    public APIHandler(EmbeddedIpfs ipfs, Optional<GarbageCollector> gc) {
         this.ipfs = ipfs;
+        this.gc = gc;
         this.maxBlockSize = ipfs.maxBlockSize();
     }
 
+    public APIHandler(EmbeddedIpfs ipfs) {
+        this(ipfs, Optional.empty());
+    }
+
+    private GarbageCollector gc() throws APIException {
+        return gc.orElseThrow(() -> new APIException("Garbage collection is not enabled"));
+    }
+
     public void handleCallToAPI(HttpExchange httpExchange) {
 
         long t1 = System.currentTimeMillis();
@@ -103,7 +119,16 @@ public class APIHandler extends Handler {
                     boolean addToBlockstore = Optional.ofNullable(params.get("persist"))
                             .map(a -> Boolean.parseBoolean(a.get(0)))
                             .orElse(true);
-                    List<HashedBlock> block = ipfs.getBlocks(List.of(new Want(Cid.decode(args.get(0)), auth)), peers, addToBlockstore);
+                    Cid cid = Cid.decode(args.get(0));
+                    // serve local blocks straight from the blockstore's buffer
+                    Optional<ByteBuffer> local = ipfs.blockstore.has(cid).join() ?
+                            ipfs.blockstore.getBuffer(cid).join() :
+                            Optional.empty();
+                    if (local.isPresent()) {
+                        replyBuffer(httpExchange, local.get());
+                        break;
+                    }
+                    List<HashedBlock> block = ipfs.getBlocks(List.of(new Want(cid, auth)), peers, addToBlockstore);
                     if (!block.isEmpty()) {
                         replyBytes(httpExchange, block.get(0).block);
                     } else {
@@ -202,10 +227,7 @@ public class APIHandler extends Handler {
                             .stream()
                             .map(Cid::decode)
                             .collect(Collectors.toList());
-                    boolean deleted = true;
-                    for (Cid cid : cids) {
-                        deleted &= ipfs.blockstore.rm(cid).join();
-                    }
+                    boolean deleted = ipfs.blockstore.rmAll(cids).join();
 
                     if (deleted) {
                         Map res = new HashMap<>();
@@ -317,6 +339,52 @@ public class APIHandler extends Handler {
                     replyJson(httpExchange, json);
                     break;
                 }
+                case PIN_ADD: { // https://docs.ipfs.tech/reference/kubo/rpc/#api-v0-pin-add
+                    AggregatedMetrics.API_PIN_ADD.inc();
+                    if (args == null || args.size() != 1) {
+                        throw new APIException("argument \"ipfs-path\" is required");
+                    }
+                    Cid root = Cid.decode(args.get(0));
+                    gc().pin(root);
+                    Map res = new HashMap<>();
+                    res.put("Pins", List.of(root.toString()));
+                    replyJson(httpExchange, JSONParser.toString(res));
+                    break;
+                }
+                case PIN_RM: { // https://docs.ipfs.tech/reference/kubo/rpc/#api-v0-pin-rm
+                    AggregatedMetrics.API_PIN_RM.inc();
+                    if (args == null || args.size() != 1) {
+                        throw new APIException("argument \"ipfs-path\" is required");
+                    }
+                    Cid root = Cid.decode(args.get(0));
+                    gc().unpin(root);
+                    Map res = new HashMap<>();
+                    res.put("Pins", List.of(root.toString()));
+                    replyJson(httpExchange, JSONParser.toString(res));
+                    break;
+                }
+                case PIN_LS: { // https://docs.ipfs.tech/reference/kubo/rpc/#api-v0-pin-ls
+                    AggregatedMetrics.API_PIN_LS.inc();
+                    Map<String, Object> keys = new HashMap<>();
+                    for (Cid root : gc().pins().list()) {
+                        Map<String, String> type = new HashMap<>();
+                        type.put("Type", "recursive");
+                        keys.put(root.toString(), type);
+                    }
+                    Map res = new HashMap<>();
+                    res.put("Keys", keys);
+                    replyJson(httpExchange, JSONParser.toString(res));
+                    break;
+                }
+                case REPO_GC: { // https://docs.ipfs.tech/reference/kubo/rpc/#api-v0-repo-gc
+                    AggregatedMetrics.API_REPO_GC.inc();
+                    // a collection can take hours, so don't hold the request open for it
+                    gc().collectInBackground();
+                    Map res = new HashMap<>();
+                    res.put("Started", true);
+                    replyJson(httpExchange, JSONParser.toString(res));
+                    break;
+                }
                 default: {
                     httpExchange.sendResponseHeaders(404, 0);
                     break;
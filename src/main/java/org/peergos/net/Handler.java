@@ -7,6 +7,9 @@ import org.peergos.util.HttpUtil;
 import org.peergos.util.Logging;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -75,4 +78,18 @@ public abstract class Handler implements HttpHandler {
             LOG.log(Level.WARNING, e.getMessage(), e);
         }
     }
+
+    protected static void replyBuffer(HttpExchange exchange, ByteBuffer body) {
+        try {
+            ByteBuffer toWrite = body.duplicate();
+            exchange.sendResponseHeaders(200, toWrite.remaining());
+            try (WritableByteChannel out = Channels.newChannel(exchange.getResponseBody())) {
+                while (toWrite.hasRemaining())
+                    out.write(toWrite);
+            }
+        } catch (IOException e)
+        {
+            LOG.log(Level.WARNING, e.getMessage(), e);
+        }
+    }
 }
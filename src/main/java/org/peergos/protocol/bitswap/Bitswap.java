@@ -1,6 +1,7 @@
 package org.peergos.protocol.bitswap;
 
 import com.google.protobuf.*;
+import io.ipfs.cid.*;
 import io.ipfs.multihash.Multihash;
 import io.libp2p.core.*;
 import io.libp2p.core.multiformats.*;
@@ -21,20 +22,47 @@ public class Bitswap extends StrictProtocolBinding<BitswapController> implements
     private static final Logger LOG = Logging.LOG();
     public static int MAX_MESSAGE_SIZE = 2*1024*1024;
     public static final String PROTOCOL_ID = "/ipfs/bitswap/1.2.0";
+    // the number of peers to ask for a block when none have said they have it
+    public static final int WANT_BLOCK_PEERS = 2;
+    public static final long REBROADCAST_MILLIS = 5_000, MAX_REBROADCAST_MILLIS = 60_000, MAX_WANT_AGE_MILLIS = 5 * 60_000;
 
     private final BitswapEngine engine;
     private final LRUCache<PeerId, Boolean> connected = new LRUCache<>(100);
-    private final LRUCache<Set<PeerId>, DownloadManager> downloads = new LRUCache<>(100);
+    private final RebroadcastScheduler<Host> rebroadcasts =
+            new RebroadcastScheduler<>(REBROADCAST_MILLIS, MAX_REBROADCAST_MILLIS, MAX_WANT_AGE_MILLIS);
+    // cancels waiting to be sent, batched so a message full of blocks results in one cancel message per peer
+    private final Map<PeerId, PendingCancels> cancels = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "BitswapTimer");
+        t.setDaemon(true);
+        return t;
+    });
+    private final ExecutorService sendExecutor;
+    // provider lookups for sessions block for seconds, so they are kept away from sends
+    private final ExecutorService searchExecutor;
     private AddressBook addrs;
 
     public Bitswap(BitswapEngine engine) {
-        super(PROTOCOL_ID, new BitswapProtocol(engine));
-        this.engine = engine;
+        this(PROTOCOL_ID, engine);
     }
 
     public Bitswap(String protocolId, BitswapEngine engine) {
         super(protocolId, new BitswapProtocol(engine));
         this.engine = engine;
+        AtomicInteger threadCount = new AtomicInteger();
+        this.sendExecutor = Executors.newFixedThreadPool(16, r -> {
+            Thread t = new Thread(r, "BitswapSend-" + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        AtomicInteger searchThreadCount = new AtomicInteger();
+        this.searchExecutor = Executors.newFixedThreadPool(4, r -> {
+            Thread t = new Thread(r, "BitswapSearch-" + searchThreadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        timer.scheduleWithFixedDelay(engine.getPeerTracker()::expire, 1, 1, TimeUnit.SECONDS);
+        timer.scheduleWithFixedDelay(this::tick, 250, 250, TimeUnit.MILLISECONDS);
     }
 
     public void setAddressBook(AddressBook addrs) {
@@ -69,79 +97,162 @@ public class Bitswap extends StrictProtocolBinding<BitswapController> implements
         if (wants.isEmpty())
             return Collections.emptyList();
         List<CompletableFuture<HashedBlock>> results = new ArrayList<>();
+        Map<RebroadcastScheduler.Audience<Host>, Set<Want>> toSend = new HashMap<>();
+        RebroadcastScheduler.Audience<Host> audience = new RebroadcastScheduler.Audience<>(us, peers);
+        long now = System.currentTimeMillis();
         for (Want w : wants) {
             if (w.cid.getType() == Multihash.Type.id)
                 continue;
             CompletableFuture<HashedBlock> res = engine.getWant(w, addToBlockstore);
             results.add(res);
+            // wants already in flight are only sent to peers they haven't been requested from
+            Optional<RebroadcastScheduler.Audience<Host>> sendTo = rebroadcasts.add(w, audience, now);
+            if (sendTo.isEmpty())
+                continue;
+            toSend.computeIfAbsent(sendTo.get(), a -> new HashSet<>()).add(w);
+            // cancelling twice does nothing, so a want requested again from more peers can add another listener
+            res.whenComplete((b, t) -> cancelWant(us, w, rebroadcasts.cancel(w)));
         }
-        sendWants(us, peers);
-        DownloadManager manager = downloads.getOrDefault(peers, new DownloadManager(us, peers));
-        manager.ensureRunning();
+        toSend.forEach((to, toWant) -> sendWants(to.from, toWant, to.peers));
         return results;
     }
 
-    public Set<PeerId> getBroadcastAudience() {
-        HashSet<PeerId> res = new HashSet<>(engine.getConnected());
-        res.addAll(connected.keySet());
-        return res;
+    private void tick() {
+        try {
+            flushCancels();
+            rebroadcasts.due(System.currentTimeMillis())
+                    .forEach((audience, wants) -> sendWants(audience.from, wants, audience.peers));
+            rebroadcasts.takeExpired().forEach((audience, wants) -> {
+                for (Want w : wants) {
+                    // failing the want's future cancels it, unless it has already been answered
+                    if (! engine.failWant(w, new TimeoutException("No block received for " + w.cid + " after " + MAX_WANT_AGE_MILLIS + "ms")))
+                        cancelWant(audience.from, w, rebroadcasts.cancel(w));
+                }
+            });
+        } catch (Throwable t) {
+            LOG.log(Level.WARNING, t.getMessage(), t);
+        }
     }
 
-    private class DownloadManager {
-        private final Host us;
-        private final Set<PeerId> peers;
-        private final AtomicBoolean running = new AtomicBoolean(false);
+    private static final class PendingCancels {
+        final Host us;
+        final Set<Want> wants = ConcurrentHashMap.newKeySet();
 
-        public DownloadManager(Host us, Set<PeerId> peers) {
+        PendingCancels(Host us) {
             this.us = us;
-            this.peers = peers;
         }
+    }
 
-        public void ensureRunning() {
-            if (! running.get())
-                new Thread(() -> run()).start();
+    /** Tell the peers we've sent a want to that we no longer need it.
+     */
+    void cancelWant(Host us, Want w, Collection<PeerId> sentTo) {
+        engine.getPeerTracker().satisfied(w);
+        for (PeerId peer : sentTo)
+            cancels.computeIfAbsent(peer, p -> new PendingCancels(us)).wants.add(w);
+    }
+
+    private void flushCancels() {
+        for (PeerId peer : new ArrayList<>(cancels.keySet())) {
+            PendingCancels pending = cancels.remove(peer);
+            if (pending == null)
+                continue;
+            List<MessageOuterClass.Message.Wantlist.Entry> entries = pending.wants.stream()
+                    .map(w -> MessageOuterClass.Message.Wantlist.Entry.newBuilder()
+                            .setCancel(true)
+                            .setBlock(ByteString.copyFrom(w.cid.toBytes()))
+                            .setAuth(ByteString.copyFrom(ArrayOps.hexToBytes(w.authHex.orElse(""))))
+                            .build())
+                    .collect(Collectors.toList());
+            sendExecutor.execute(() -> sendEntries(pending.us, peer, entries));
         }
+    }
+
+    /** Start a session which fetches from the given peers, or from all connected peers if none are given.
+     */
+    public BitswapSession newSession(Host us, Set<PeerId> peers) {
+        return new BitswapSession(engine, network(us), peers, Optional.empty(), timer, sendExecutor, searchExecutor);
+    }
+
+    /** Start a session which looks up providers of wants that none of its peers have.
+     */
+    public BitswapSession newSession(Host us, Function<Cid, CompletableFuture<List<PeerAddresses>>> providers) {
+        return new BitswapSession(engine, network(us), Collections.emptySet(), Optional.of(providers), timer, sendExecutor, searchExecutor);
+    }
 
-        public void run() {
-            running.set(true);
-            while (true) {
-                try {Thread.sleep(5_000);} catch (InterruptedException e) {}
-                Set<Want> wants = engine.getWants(peers);
-                if (wants.isEmpty())
-                    break;
-                sendWants(us, wants, peers);
+    private BitswapSession.Network network(Host us) {
+        return new BitswapSession.Network() {
+            @Override
+            public PeerId self() {
+                return us.getPeerId();
             }
-            running.set(false);
+
+            @Override
+            public Set<PeerId> broadcastAudience() {
+                return getBroadcastAudience();
+            }
+
+            @Override
+            public void send(PeerId peer, List<MessageOuterClass.Message.Wantlist.Entry> entries) {
+                sendEntries(us, peer, entries);
+            }
+
+            @Override
+            public void cancel(Want w, Set<PeerId> sentTo) {
+                cancelWant(us, w, sentTo);
+            }
+
+            @Override
+            public void addAddresses(PeerId peer, List<Multiaddr> addresses) {
+                us.getAddressBook().addAddrs(peer, 0, addresses.toArray(new Multiaddr[0])).join();
+            }
+        };
+    }
+
+    void sendEntries(Host us, PeerId peer, List<MessageOuterClass.Message.Wantlist.Entry> entries) {
+        try {
+            dialPeer(us, peer, c -> engine.buildAndSendMessages(entries, Collections.emptyList(), Collections.emptyList(), c::send));
+        } catch (Exception e) {
+            LOG.fine("Couldn't send wants to " + peer + ": " + e.getMessage());
         }
     }
 
-    public void sendWants(Host us, Set<PeerId> peers) {
-        Set<Want> wants = engine.getWants(peers);
-        sendWants(us, wants, peers);
+    public Set<PeerId> getBroadcastAudience() {
+        HashSet<PeerId> res = new HashSet<>(engine.getConnected());
+        res.addAll(connected.keySet());
+        return res;
     }
 
     public void sendWants(Host us, Set<Want> wants, Set<PeerId> peers) {
-        Map<Want, PeerId> haves = engine.getHaves();
+        Map<Want, Set<PeerId>> haves = engine.getHaves();
+        PeerTracker tracker = engine.getPeerTracker();
         // broadcast to all connected bitswap peers if none are supplied
         Set<PeerId> audience = peers.isEmpty() ? getBroadcastAudience() : peers;
+        List<PeerId> ranked = tracker.rank(audience);
         LOG.info("Send wants: " + wants.size() + " to " + audience + " cids: " + wants.stream().limit(2).map(w -> w.cid).collect(Collectors.toList()));
-        List<MessageOuterClass.Message.Wantlist.Entry> wantsProto = wants.stream()
-                .map(want -> MessageOuterClass.Message.Wantlist.Entry.newBuilder()
-                        .setWantType(audience.size() <= 2 || haves.containsKey(want) ?
+        // ask the best peers, or a peer which has said it has the block, for the block, and everyone else if they have it
+        int blockPeers = audience.size() <= 2 ? audience.size() : WANT_BLOCK_PEERS;
+        Map<PeerId, List<MessageOuterClass.Message.Wantlist.Entry>> toSend = new HashMap<>();
+        for (Want want : wants) {
+            Set<PeerId> wantHaves = haves.getOrDefault(want, Collections.emptySet());
+            Set<PeerId> blockTargets = ranked.stream()
+                    .filter(wantHaves::contains)
+                    .findFirst()
+                    .map(Set::of)
+                    .orElseGet(() -> new HashSet<>(ranked.subList(0, blockPeers)));
+            for (PeerId peer : ranked) {
+                toSend.computeIfAbsent(peer, p -> new ArrayList<>()).add(MessageOuterClass.Message.Wantlist.Entry.newBuilder()
+                        .setWantType(blockTargets.contains(peer) ?
                                 MessageOuterClass.Message.Wantlist.WantType.Block :
                                 MessageOuterClass.Message.Wantlist.WantType.Have)
+                        .setSendDontHave(true)
                         .setBlock(ByteString.copyFrom(want.cid.toBytes()))
                         .setAuth(ByteString.copyFrom(ArrayOps.hexToBytes(want.authHex.orElse(""))))
-                        .build())
-                .collect(Collectors.toList());
-        engine.buildAndSendMessages(wantsProto, Collections.emptyList(), Collections.emptyList(),
-                msg -> audience.forEach(peer -> {
-                    try {
-                        dialPeer(us, peer, c -> {
-                            c.send(msg);
-                        });
-                    } catch (Exception e) {}
-                }));
+                        .build());
+                tracker.sent(peer, want);
+            }
+            rebroadcasts.sentTo(want, ranked);
+        }
+        toSend.forEach((peer, entries) -> sendExecutor.execute(() -> sendEntries(us, peer, entries)));
     }
 
     private void dialPeer(Host us, PeerId peer, Consumer<BitswapController> action) {
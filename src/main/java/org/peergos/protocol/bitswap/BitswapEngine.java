@@ -16,32 +16,79 @@ import java.io.*;
 import java.nio.charset.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 import java.util.function.*;
 import java.util.logging.*;
 import java.util.stream.*;
 
 public class BitswapEngine {
     private static final Logger LOG = Logging.LOG();
+    private static final Counter droppedWants = Counter.build()
+            .name("bitswap_dropped_wants")
+            .help("Total wants ignored because the peer already had too many pending")
+            .register();
+
+    public static final int DEFAULT_WANT_THREADS = 32;
+    public static final int DEFAULT_MAX_LOOKUPS_PER_PEER = 16;
+    public static final int DEFAULT_MAX_PENDING_WANTS_PER_PEER = 4096;
+    public static final long UNLIMITED_SEND_RATE = 0;
+    // how long presences wait for others to share a message with
+    private static final long PRESENCE_FLUSH_MILLIS = 10;
 
     private final Blockstore store;
     private final int maxMessageSize;
     private final ConcurrentHashMap<Want, WantResult> localWants = new ConcurrentHashMap<>();
     private final ConcurrentHashMap<Want, Boolean> persistBlocks = new ConcurrentHashMap<>();
-    private final ConcurrentHashMap<Want, PeerId> blockHaves = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Want, Set<PeerId>> blockHaves = new ConcurrentHashMap<>();
     private final Map<Want, Boolean> deniedWants = Collections.synchronizedMap(new LRUCache<>(10_000));
     private final Map<PeerId, Map<Want, Boolean>> recentBlocksSent = Collections.synchronizedMap(new LRUCache<>(100));
-    private final Map<PeerId, Map<Want, Long>> recentWantsSent = Collections.synchronizedMap(new org.peergos.util.LRUCache<>(100));
     private final Map<PeerId, Boolean> blockedPeers = Collections.synchronizedMap(new LRUCache<>(1_000));
     private final boolean blockAggressivePeers;
     private final Set<PeerId> connections = new HashSet<>();
     private final BlockRequestAuthoriser authoriser;
+    private final ExecutorService wantExecutor;
+    private final Map<PeerId, Ledger> ledgers = Collections.synchronizedMap(new LRUCache<>(10_000));
+    private final WantScheduler scheduler;
+    private final SendBudget sendBudget;
+    private final Set<BitswapSession> sessions = ConcurrentHashMap.newKeySet();
+    private final PeerTracker tracker = new PeerTracker();
     private AddressBook addressBook;
 
-    public BitswapEngine(Blockstore store, BlockRequestAuthoriser authoriser, int maxMessageSize, boolean blockAggressivePeers) {
+    /**
+     * @param wantThreads number of threads to look up wanted blocks with
+     * @param maxLookupsPerPeer maximum number of concurrent lookups for a single peer's wants
+     * @param maxPendingWantsPerPeer maximum number of a peer's wants waiting to be looked up, later wants are ignored
+     * @param maxSendBytesPerSecond limit on the rate blocks are sent to all peers, or 0 for no limit
+     */
+    public BitswapEngine(Blockstore store,
+                         BlockRequestAuthoriser authoriser,
+                         int maxMessageSize,
+                         boolean blockAggressivePeers,
+                         int wantThreads,
+                         int maxLookupsPerPeer,
+                         int maxPendingWantsPerPeer,
+                         long maxSendBytesPerSecond) {
         this.store = store;
         this.authoriser = authoriser;
         this.maxMessageSize = maxMessageSize;
         this.blockAggressivePeers = blockAggressivePeers;
+        AtomicInteger threadCount = new AtomicInteger();
+        this.wantExecutor = Executors.newFixedThreadPool(wantThreads, r -> {
+            Thread t = new Thread(r, "BitswapWants-" + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        this.scheduler = new WantScheduler(wantExecutor, wantThreads, maxLookupsPerPeer, maxPendingWantsPerPeer, this::getLedger);
+        this.sendBudget = new SendBudget(maxSendBytesPerSecond);
+    }
+
+    public BitswapEngine(Blockstore store, BlockRequestAuthoriser authoriser, int maxMessageSize, boolean blockAggressivePeers, long maxSendBytesPerSecond) {
+        this(store, authoriser, maxMessageSize, blockAggressivePeers, DEFAULT_WANT_THREADS,
+                DEFAULT_MAX_LOOKUPS_PER_PEER, DEFAULT_MAX_PENDING_WANTS_PER_PEER, maxSendBytesPerSecond);
+    }
+
+    public BitswapEngine(Blockstore store, BlockRequestAuthoriser authoriser, int maxMessageSize, boolean blockAggressivePeers) {
+        this(store, authoriser, maxMessageSize, blockAggressivePeers, UNLIMITED_SEND_RATE);
     }
 
     public BitswapEngine(Blockstore store, BlockRequestAuthoriser authoriser, int maxMessageSize) {
@@ -53,6 +100,12 @@ public class BitswapEngine {
         return maxMessageSize;
     }
 
+    public Ledger getLedger(PeerId peer) {
+        synchronized (ledgers) {
+            return ledgers.computeIfAbsent(peer, p -> new Ledger());
+        }
+    }
+
     public boolean allowConnection(PeerId peer) {
         return ! blockAggressivePeers || ! blockedPeers.containsKey(peer);
     }
@@ -76,6 +129,28 @@ public class BitswapEngine {
         return res.result;
     }
 
+    /** Stop waiting for a want, failing the futures of everyone waiting for it.
+     *
+     * @return false if the want wasn't outstanding
+     */
+    public boolean failWant(Want w, Throwable cause) {
+        WantResult waiter = localWants.remove(w);
+        persistBlocks.remove(w);
+        blockHaves.remove(w);
+        if (waiter == null)
+            return false;
+        waiter.result.completeExceptionally(cause);
+        return true;
+    }
+
+    void addSession(BitswapSession session) {
+        sessions.add(session);
+    }
+
+    void removeSession(BitswapSession session) {
+        sessions.remove(session);
+    }
+
     public boolean hasWants() {
         return ! localWants.isEmpty();
     }
@@ -97,34 +172,11 @@ public class BitswapEngine {
         }
     }
 
-    private Map<Want, Long> recentSentWants(PeerId peer) {
-        Map<Want, Long> recent = recentWantsSent.get(peer);
-        if (recent == null) {
-            recent = Collections.synchronizedMap(new LRUCache<>(1000));
-            recentWantsSent.put(peer, recent);
-        }
-        return recent;
-    }
-
-    public Set<Want> getWants(Set<PeerId> peers) {
-        if (peers.size() == 1) {
-            PeerId peer = peers.stream().findFirst().get();
-            Map<Want, Long> recent = recentSentWants(peer);
-
-            long now = System.currentTimeMillis();
-            long minResendWait = 5_000;
-            Set<Want> res = localWants.entrySet().stream()
-                    .filter(e -> e.getValue().creationTime > now - 5*60*1000)
-                    .map(e -> e.getKey())
-                    .filter(w -> ! recent.containsKey(w) || recent.get(w) < now - minResendWait)
-                    .collect(Collectors.toSet());
-            res.forEach(w -> recent.put(w, now));
-            return res;
-        }
-        return localWants.keySet();
+    public PeerTracker getPeerTracker() {
+        return tracker;
     }
 
-    public Map<Want, PeerId> getHaves() {
+    public Map<Want, Set<PeerId>> getHaves() {
         return blockHaves;
     }
 
@@ -142,102 +194,16 @@ public class BitswapEngine {
     }
 
     public void receiveMessage(MessageOuterClass.Message msg, Stream source, Counter sentBytes) {
-
-        List<MessageOuterClass.Message.BlockPresence> presences = new ArrayList<>();
-        List<MessageOuterClass.Message.Block> blocks = new ArrayList<>();
-
-        int messageSize = 0;
         Multihash peerM = Multihash.deserialize(source.remotePeerId().getBytes());
         Cid sourcePeerId = new Cid(1, Cid.Codec.Libp2pKey, peerM.getType(), peerM.getHash());
-        Map<Want, Boolean> recent = recentBlocksSent.get(source.remotePeerId());
-        if (recent == null) {
-            recent = Collections.synchronizedMap(new LRUCache<>(1_000));
-            recentBlocksSent.put(source.remotePeerId(), recent);
-        }
-        int absentBlocks = 0;
-        int presentBlocks = 0;
-        if (msg.hasWantlist()) {
-            for (MessageOuterClass.Message.Wantlist.Entry e : msg.getWantlist().getEntriesList()) {
-                Cid c;
-                try {
-                    c = Cid.cast(e.getBlock().toByteArray());
-                } catch (Exception ex) {
-                    continue;
-                }
-                Optional<String> auth = e.getAuth().isEmpty() ? Optional.empty() : Optional.of(ArrayOps.bytesToHex(e.getAuth().toByteArray()));
-                boolean isCancel = e.getCancel();
-                boolean sendDontHave = e.getSendDontHave();
-                boolean wantBlock = e.getWantType().getNumber() == 0;
-                Want w = new Want(c, auth);
-                if (wantBlock) {
-                    boolean denied = deniedWants.containsKey(w);
-                    if (denied) {
-                        MessageOuterClass.Message.BlockPresence presence = MessageOuterClass.Message.BlockPresence.newBuilder()
-                                .setCid(ByteString.copyFrom(c.toBytes()))
-                                .setType(MessageOuterClass.Message.BlockPresenceType.DontHave)
-                                .build();
-                        presences.add(presence);
-                        messageSize += presence.getSerializedSize();
-                        continue;
-                    }
-                    if (recent.containsKey(w))
-                        continue; // don't re-send this block as we recently sent it to this peer
-                    boolean blockPresent = store.has(c).join();
-                    if (! blockPresent)
-                        absentBlocks++;
-                    else
-                        presentBlocks++;
-                    if (blockPresent && authoriser.allowRead(c, sourcePeerId, auth.orElse("")).join()) {
-                        MessageOuterClass.Message.Block blockP = MessageOuterClass.Message.Block.newBuilder()
-                                .setPrefix(ByteString.copyFrom(prefixBytes(c)))
-                                .setAuth(ByteString.copyFrom(ArrayOps.hexToBytes(auth.orElse(""))))
-                                .setData(ByteString.copyFrom(store.get(c).join().get()))
-                                .build();
-                        int blockSize = blockP.getSerializedSize();
-                        if (blockSize + messageSize > maxMessageSize) {
-                            buildAndSendMessages(Collections.emptyList(), presences, blocks, source::writeAndFlush);
-                            presences = new ArrayList<>();
-                            blocks = new ArrayList<>();
-                            messageSize = 0;
-                        }
-                        messageSize += blockSize;
-                        blocks.add(blockP);
-                        recent.put(w, true);
-                    } else if (sendDontHave) {
-                        if (blockPresent) {
-                            deniedWants.put(w, true);
-                            LOG.info("Rejecting auth for block " + c + " from " + sourcePeerId.bareMultihash());
-                        }
-                        MessageOuterClass.Message.BlockPresence presence = MessageOuterClass.Message.BlockPresence.newBuilder()
-                                .setCid(ByteString.copyFrom(c.toBytes()))
-                                .setType(MessageOuterClass.Message.BlockPresenceType.DontHave)
-                                .build();
-                        presences.add(presence);
-                        messageSize += presence.getSerializedSize();
-                    } else if (blockPresent) {
-                        deniedWants.put(w, true);
-                        LOG.info("Rejecting repeated invalid auth for block " + c + " from " + sourcePeerId.bareMultihash());
-                    }
-                } else {
-                    boolean hasBlock = store.has(c).join();
-                    if (hasBlock) {
-                        MessageOuterClass.Message.BlockPresence presence = MessageOuterClass.Message.BlockPresence.newBuilder()
-                                .setCid(ByteString.copyFrom(c.toBytes()))
-                                .setType(MessageOuterClass.Message.BlockPresenceType.Have)
-                                .build();
-                        presences.add(presence);
-                        messageSize += presence.getSerializedSize();
-                    } else if (sendDontHave) {
-                        MessageOuterClass.Message.BlockPresence presence = MessageOuterClass.Message.BlockPresence.newBuilder()
-                                .setCid(ByteString.copyFrom(c.toBytes()))
-                                .setType(MessageOuterClass.Message.BlockPresenceType.DontHave)
-                                .build();
-                        presences.add(presence);
-                        messageSize += presence.getSerializedSize();
-                    }
-                }
-            }
-        }
+        ReplyBatch replies = new ReplyBatch(reply -> {
+            sentBytes.inc(reply.getSerializedSize());
+            source.writeAndFlush(reply);
+        });
+        // lookups run on the want executor, this is called on a network thread which must not block
+        CompletableFuture<WantCounts> served = msg.hasWantlist() ?
+                serveWants(msg.getWantlist().getEntriesList(), source.remotePeerId(), sourcePeerId, replies) :
+                CompletableFuture.completedFuture(new WantCounts());
 
         LOG.fine("Bitswap received " + msg.getWantlist().getEntriesCount() + " wants, " + msg.getPayloadCount() +
                 " blocks and " + msg.getBlockPresencesCount() + " presences from " + sourcePeerId);
@@ -248,6 +214,7 @@ public class BitswapEngine {
                     Optional.empty() :
                     Optional.of(ArrayOps.bytesToHex(block.getAuth().toByteArray()));
             byte[] data = block.getData().toByteArray();
+            getLedger(source.remotePeerId()).received(data.length);
             ByteArrayInputStream bin = new ByteArrayInputStream(cidPrefix);
             try {
                 long version = Cid.readVarint(bin);
@@ -263,12 +230,17 @@ public class BitswapEngine {
                     WantResult waiter = localWants.get(w);
                     if (waiter != null) {
                         receivedWantedBlock = true;
+                        tracker.receivedBlock(source.remotePeerId(), w, data.length);
+                        for (BitswapSession session : sessions)
+                            session.receivedBlock(source.remotePeerId(), w);
                         if (persistBlocks.containsKey(w)) {
                             store.put(data, codec);
                             persistBlocks.remove(w);
                         }
                         waiter.result.complete(new HashedBlock(c, data));
                         localWants.remove(w);
+                        blockHaves.remove(w);
+                        tracker.satisfied(w);
                     } else
                         LOG.info("Received block we don't want: " + c + " from " + sourcePeerId.bareMultihash());
                 }
@@ -286,23 +258,202 @@ public class BitswapEngine {
                     Optional.of(ArrayOps.bytesToHex(blockPresence.getAuth().toByteArray()));
             Want w = new Want(c, auth);
             boolean have = blockPresence.getType().getNumber() == 0;
-            if (have && localWants.containsKey(w)) {
+            if (! localWants.containsKey(w))
+                continue;
+            tracker.receivedPresence(source.remotePeerId(), w, have);
+            if (have) {
                 receivedRequestedHave = true;
-                blockHaves.put(w, source.remotePeerId());
+                blockHaves.computeIfAbsent(w, x -> ConcurrentHashMap.newKeySet()).add(source.remotePeerId());
+            }
+            for (BitswapSession session : sessions)
+                session.receivedPresence(source.remotePeerId(), w, have);
+        }
+        boolean receivedRelevant = receivedRequestedHave || receivedWantedBlock;
+        served.thenAccept(counts -> {
+            replies.flush();
+            if (counts.absent.get() > 10 && counts.present.get() == 0 && ! receivedRelevant) {
+                // This peer is sending us lots of irrelevant requests, block them
+                blockedPeers.put(source.remotePeerId(), true);
+                source.close();
+            }
+        });
+    }
+
+    private static final class WantCounts {
+        final AtomicInteger absent = new AtomicInteger(), present = new AtomicInteger();
+    }
+
+    /** Replies to a peer's wantlist, sent as soon as enough are ready to fill a message. Presences are also sent after
+     *  a short delay, so they don't wait for slow block lookups in the same wantlist.
+     */
+    private final class ReplyBatch {
+        private final Consumer<MessageOuterClass.Message> sender;
+        private final List<MessageOuterClass.Message.BlockPresence> presences = new ArrayList<>();
+        private final List<MessageOuterClass.Message.Block> blocks = new ArrayList<>();
+        private int messageSize;
+        private boolean flushScheduled;
+
+        ReplyBatch(Consumer<MessageOuterClass.Message> sender) {
+            this.sender = sender;
+        }
+
+        synchronized void add(MessageOuterClass.Message.BlockPresence presence) {
+            int size = presence.getSerializedSize();
+            if (size + messageSize > maxMessageSize)
+                flush();
+            presences.add(presence);
+            messageSize += size;
+            if (! flushScheduled) {
+                flushScheduled = true;
+                CompletableFuture.delayedExecutor(PRESENCE_FLUSH_MILLIS, TimeUnit.MILLISECONDS, wantExecutor)
+                        .execute(this::flush);
             }
         }
-        if (absentBlocks > 10 && presentBlocks == 0 && ! receivedRequestedHave && ! receivedWantedBlock) {
-            // This peer is sending us lots of irrelevant requests, block them
-            blockedPeers.put(source.remotePeerId(), true);
-            source.close();
+
+        synchronized void add(MessageOuterClass.Message.Block block) {
+            int size = block.getSerializedSize();
+            if (size + messageSize > maxMessageSize)
+                flush();
+            blocks.add(block);
+            messageSize += size;
         }
 
-        if (presences.isEmpty() && blocks.isEmpty())
-            return;
+        synchronized void flush() {
+            flushScheduled = false;
+            if (presences.isEmpty() && blocks.isEmpty())
+                return;
+            buildAndSendMessages(Collections.emptyList(), presences, blocks, sender);
+            presences.clear();
+            blocks.clear();
+            messageSize = 0;
+        }
+    }
 
-        buildAndSendMessages(Collections.emptyList(), presences, blocks, reply -> {
-            sentBytes.inc(reply.getSerializedSize());
-            source.writeAndFlush(reply);
+    private static MessageOuterClass.Message.BlockPresence presence(Cid c, MessageOuterClass.Message.BlockPresenceType type) {
+        return MessageOuterClass.Message.BlockPresence.newBuilder()
+                .setCid(ByteString.copyFrom(c.toBytes()))
+                .setType(type)
+                .build();
+    }
+
+    private CompletableFuture<WantCounts> serveWants(List<MessageOuterClass.Message.Wantlist.Entry> entries,
+                                                     PeerId peer,
+                                                     Cid sourcePeerId,
+                                                     ReplyBatch replies) {
+        Map<Want, Boolean> recent = recentBlocksSent.get(peer);
+        if (recent == null) {
+            recent = Collections.synchronizedMap(new LRUCache<>(1_000));
+            recentBlocksSent.put(peer, recent);
+        }
+        Map<Want, Boolean> recentlySent = recent;
+        WantCounts counts = new WantCounts();
+        List<CompletableFuture<Void>> results = new ArrayList<>();
+        for (MessageOuterClass.Message.Wantlist.Entry e : entries) {
+            Cid c;
+            try {
+                c = Cid.cast(e.getBlock().toByteArray());
+            } catch (Exception ex) {
+                continue;
+            }
+            Optional<String> auth = e.getAuth().isEmpty() ? Optional.empty() : Optional.of(ArrayOps.bytesToHex(e.getAuth().toByteArray()));
+            Want w = new Want(c, auth);
+            if (e.getCancel()) {
+                scheduler.cancel(peer, w);
+                continue;
+            }
+            boolean sendDontHave = e.getSendDontHave();
+            boolean wantBlock = e.getWantType().getNumber() == 0;
+            Supplier<CompletableFuture<?>> lookup;
+            if (wantBlock) {
+                if (deniedWants.containsKey(w)) {
+                    replies.add(presence(c, MessageOuterClass.Message.BlockPresenceType.DontHave));
+                    continue;
+                }
+                if (recentlySent.containsKey(w))
+                    continue; // don't re-send this block as we recently sent it to this peer
+                lookup = () -> serveBlock(w, sendDontHave, peer, sourcePeerId, recentlySent, counts, replies);
+            } else
+                lookup = () -> serveHave(c, sendDontHave, replies);
+            Optional<CompletableFuture<Void>> queued = scheduler.offer(peer, w, e.getPriority(), lookup);
+            if (queued.isPresent())
+                results.add(queued.get().exceptionally(t -> {
+                    // a failed lookup shouldn't prevent the other replies being sent
+                    LOG.log(Level.WARNING, "Error serving want from " + sourcePeerId.bareMultihash() + ": " + t.getMessage(), t);
+                    return null;
+                }));
+            else
+                droppedWants.inc();
+        }
+        return CompletableFuture.allOf(results.toArray(new CompletableFuture[0]))
+                .thenApply(x -> counts);
+    }
+
+    private CompletableFuture<Void> serveBlock(Want w,
+                                               boolean sendDontHave,
+                                               PeerId peer,
+                                               Cid sourcePeerId,
+                                               Map<Want, Boolean> recent,
+                                               WantCounts counts,
+                                               ReplyBatch replies) {
+        Cid c = w.cid;
+        String auth = w.authHex.orElse("");
+        return store.has(c).thenComposeAsync(blockPresent -> {
+            if (blockPresent)
+                counts.present.incrementAndGet();
+            else
+                counts.absent.incrementAndGet();
+            CompletableFuture<Boolean> allowed = blockPresent ?
+                    authoriser.allowRead(c, sourcePeerId, auth) :
+                    CompletableFuture.completedFuture(false);
+            return allowed.thenComposeAsync(allow -> {
+                if (allow)
+                    return store.getBuffer(c).thenCompose(data -> {
+                        if (data.isEmpty()) {
+                            if (sendDontHave) // removed since the has
+                                replies.add(presence(c, MessageOuterClass.Message.BlockPresenceType.DontHave));
+                            return CompletableFuture.completedFuture(null);
+                        }
+                        int size = data.get().remaining();
+                        MessageOuterClass.Message.Block block = MessageOuterClass.Message.Block.newBuilder()
+                                .setPrefix(ByteString.copyFrom(prefixBytes(c)))
+                                .setAuth(ByteString.copyFrom(ArrayOps.hexToBytes(auth)))
+                                .setData(UnsafeByteOperations.unsafeWrap(data.get()))
+                                .build();
+                        Runnable send = () -> {
+                            replies.add(block);
+                            recent.put(w, true);
+                            getLedger(peer).sent(size);
+                        };
+                        // the lookup isn't finished until the block is sent, so a throttled peer can't start more
+                        long waitNanos = sendBudget.reserve(size);
+                        if (waitNanos == 0) {
+                            send.run();
+                            return CompletableFuture.completedFuture(null);
+                        }
+                        return CompletableFuture.runAsync(send,
+                                CompletableFuture.delayedExecutor(waitNanos, TimeUnit.NANOSECONDS, wantExecutor));
+                    });
+                if (sendDontHave) {
+                    if (blockPresent) {
+                        deniedWants.put(w, true);
+                        LOG.info("Rejecting auth for block " + c + " from " + sourcePeerId.bareMultihash());
+                    }
+                    replies.add(presence(c, MessageOuterClass.Message.BlockPresenceType.DontHave));
+                } else if (blockPresent) {
+                    deniedWants.put(w, true);
+                    LOG.info("Rejecting repeated invalid auth for block " + c + " from " + sourcePeerId.bareMultihash());
+                }
+                return CompletableFuture.completedFuture(null);
+            }, wantExecutor);
+        }, wantExecutor);
+    }
+
+    private CompletableFuture<Void> serveHave(Cid c, boolean sendDontHave, ReplyBatch replies) {
+        return store.has(c).thenAccept(hasBlock -> {
+            if (hasBlock)
+                replies.add(presence(c, MessageOuterClass.Message.BlockPresenceType.Have));
+            else if (sendDontHave)
+                replies.add(presence(c, MessageOuterClass.Message.BlockPresenceType.DontHave));
         });
     }
 
@@ -0,0 +1,296 @@
+package org.peergos.protocol.bitswap;
+
+import com.google.protobuf.*;
+import io.ipfs.cid.*;
+import io.ipfs.multihash.Multihash;
+import io.libp2p.core.*;
+import io.libp2p.core.multiformats.*;
+import org.peergos.*;
+import org.peergos.protocol.bitswap.pb.*;
+import org.peergos.util.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+import java.util.logging.*;
+import java.util.stream.*;
+
+/** A group of related wants, typically the blocks of one DAG, fetched from the peers which have been useful for it.
+ *
+ *  The session tracks which peers have sent blocks, HAVEs and DONT_HAVEs for its wants. Wants are sent as WANT_BLOCK to
+ *  a peer likely to have the block, either one which has said HAVE or one of the best peers so far, with consecutive
+ *  wants split across different peers. Every other candidate gets a WANT_HAVE, so we learn who else has it. If no
+ *  candidate has a want, providers are looked up in the DHT and added to the session.
+ */
+public class BitswapSession implements AutoCloseable {
+    private static final Logger LOG = Logging.LOG();
+
+    public static final long REBROADCAST_MILLIS = 5_000;
+    public static final long SEARCH_INTERVAL_MILLIS = 30_000;
+    // how many of the best peers to split WANT_BLOCKs across
+    private static final int MAX_BLOCK_PEERS = 3;
+
+    private static final class SessionPeer {
+        final AtomicLong blocks = new AtomicLong(), haves = new AtomicLong(), dontHaves = new AtomicLong();
+
+        long score() {
+            return 4 * blocks.get() + haves.get() - dontHaves.get();
+        }
+    }
+
+    private static final class WantState {
+        final CompletableFuture<HashedBlock> result;
+        final Set<PeerId> haves = ConcurrentHashMap.newKeySet(), dontHaves = ConcurrentHashMap.newKeySet();
+        final Set<PeerId> blockRequested = ConcurrentHashMap.newKeySet(), sentTo = ConcurrentHashMap.newKeySet();
+        volatile long lastSent, lastSearch;
+        // how long to wait for the peers we asked for the block before asking again
+        volatile long timeout = REBROADCAST_MILLIS;
+        volatile int resends;
+
+        /** Wait for the given peer timeout, doubled for each time the want has already been resent.
+         */
+        void backoff(long peerTimeout) {
+            timeout = Math.min(Bitswap.MAX_REBROADCAST_MILLIS, peerTimeout << Math.min(resends, 4));
+        }
+
+        WantState(CompletableFuture<HashedBlock> result) {
+            this.result = result;
+        }
+    }
+
+    /** What a session needs from the network, so it can be run without one.
+     */
+    interface Network {
+        PeerId self();
+
+        Set<PeerId> broadcastAudience();
+
+        void send(PeerId peer, List<MessageOuterClass.Message.Wantlist.Entry> entries);
+
+        /** Tell the peers a want was sent to that it is no longer needed.
+         */
+        void cancel(Want w, Set<PeerId> sentTo);
+
+        void addAddresses(PeerId peer, List<Multiaddr> addresses);
+    }
+
+    private final BitswapEngine engine;
+    private final PeerTracker tracker;
+    private final Network network;
+    private final boolean fixedPeers;
+    private final Optional<Function<Cid, CompletableFuture<List<PeerAddresses>>>> providers;
+    private final Map<PeerId, SessionPeer> peers = new ConcurrentHashMap<>();
+    private final Map<Want, WantState> pending = new ConcurrentHashMap<>();
+    private final AtomicBoolean searching = new AtomicBoolean(false);
+    private final ScheduledFuture<?> rebroadcast;
+    private final Executor sender, searcher;
+    private final AtomicLong sent = new AtomicLong();
+
+    /**
+     * @param sender runs sends to peers, which can block while dialling
+     * @param searcher runs provider lookups, which can block for much longer than a send
+     */
+    BitswapSession(BitswapEngine engine,
+                   Network network,
+                   Set<PeerId> initialPeers,
+                   Optional<Function<Cid, CompletableFuture<List<PeerAddresses>>>> providers,
+                   ScheduledExecutorService timer,
+                   Executor sender,
+                   Executor searcher) {
+        this.engine = engine;
+        this.tracker = engine.getPeerTracker();
+        this.network = network;
+        this.fixedPeers = ! initialPeers.isEmpty();
+        this.providers = providers;
+        this.sender = sender;
+        this.searcher = searcher;
+        initialPeers.forEach(p -> peers.put(p, new SessionPeer()));
+        engine.addSession(this);
+        // not the RebroadcastScheduler, a session's resends depend on which of its peers were asked and how fast they are
+        this.rebroadcast = timer.scheduleWithFixedDelay(this::tick, 1_000, 1_000, TimeUnit.MILLISECONDS);
+    }
+
+    public List<CompletableFuture<HashedBlock>> get(List<Want> wants, boolean addToBlockstore) {
+        List<CompletableFuture<HashedBlock>> results = new ArrayList<>();
+        List<Want> toSend = new ArrayList<>();
+        for (Want w : wants) {
+            if (w.cid.getType() == Multihash.Type.id)
+                continue;
+            CompletableFuture<HashedBlock> res = engine.getWant(w, addToBlockstore);
+            results.add(res);
+            if (pending.putIfAbsent(w, new WantState(res)) == null) {
+                toSend.add(w);
+                res.whenComplete((b, t) -> {
+                    WantState done = pending.remove(w);
+                    if (done != null)
+                        network.cancel(w, done.sentTo);
+                });
+            }
+        }
+        send(toSend);
+        return results;
+    }
+
+    public Set<PeerId> getPeers() {
+        return new HashSet<>(peers.keySet());
+    }
+
+    @Override
+    public void close() {
+        rebroadcast.cancel(false);
+        engine.removeSession(this);
+    }
+
+    /**
+     * @return the session's peers, those which have been most useful to this session first, then the fastest
+     */
+    private List<PeerId> rankedPeers() {
+        Map<PeerId, Long> scores = peers.entrySet().stream()
+                .collect(Collectors.toMap(Map.Entry::getKey, e -> e.getValue().score()));
+        return tracker.rank(scores.keySet()).stream()
+                .sorted(Comparator.comparing((PeerId p) -> scores.get(p)).reversed())
+                .collect(Collectors.toList());
+    }
+
+    private void send(Collection<Want> wants) {
+        if (wants.isEmpty())
+            return;
+        List<PeerId> candidates = rankedPeers();
+        if (candidates.isEmpty()) // nobody has been useful yet, ask everyone we're connected to
+            candidates = tracker.rank(network.broadcastAudience());
+        int blockPeers = Math.min(MAX_BLOCK_PEERS, candidates.size());
+        long now = System.currentTimeMillis();
+        Map<PeerId, List<MessageOuterClass.Message.Wantlist.Entry>> toSend = new HashMap<>();
+        int i = 0;
+        for (Want w : wants) {
+            WantState state = pending.get(w);
+            if (state == null)
+                continue;
+            state.lastSent = now;
+            Set<PeerId> blockTargets = new HashSet<>();
+            Optional<PeerId> bestHave = candidates.stream().filter(state.haves::contains).findFirst();
+            if (bestHave.isPresent())
+                blockTargets.add(bestHave.get());
+            else if (candidates.size() <= 2)
+                blockTargets.addAll(candidates);
+            else if (blockPeers > 0)
+                blockTargets.add(candidates.get(i++ % blockPeers));
+            // slow peers are given longer before we ask someone else
+            state.backoff(blockTargets.stream()
+                    .mapToLong(tracker::timeoutMillis)
+                    .max()
+                    .orElse(REBROADCAST_MILLIS));
+            for (PeerId peer : candidates) {
+                if (state.dontHaves.contains(peer))
+                    continue;
+                boolean wantBlock = blockTargets.contains(peer);
+                if (wantBlock)
+                    state.blockRequested.add(peer);
+                state.sentTo.add(peer);
+                toSend.computeIfAbsent(peer, p -> new ArrayList<>()).add(entry(w, wantBlock));
+                tracker.sent(peer, w);
+            }
+        }
+        toSend.forEach(this::sendTo);
+    }
+
+    private static MessageOuterClass.Message.Wantlist.Entry entry(Want w, boolean wantBlock) {
+        return MessageOuterClass.Message.Wantlist.Entry.newBuilder()
+                .setWantType(wantBlock ?
+                        MessageOuterClass.Message.Wantlist.WantType.Block :
+                        MessageOuterClass.Message.Wantlist.WantType.Have)
+                .setSendDontHave(true)
+                .setBlock(ByteString.copyFrom(w.cid.toBytes()))
+                .setAuth(ByteString.copyFrom(ArrayOps.hexToBytes(w.authHex.orElse(""))))
+                .build();
+    }
+
+    private void sendTo(PeerId peer, List<MessageOuterClass.Message.Wantlist.Entry> entries) {
+        sent.addAndGet(entries.size());
+        // dialling can be slow, so send to each peer in parallel
+        sender.execute(() -> network.send(peer, entries));
+    }
+
+    void receivedBlock(PeerId from, Want w) {
+        if (! pending.containsKey(w))
+            return;
+        peers.computeIfAbsent(from, p -> new SessionPeer()).blocks.incrementAndGet();
+    }
+
+    void receivedPresence(PeerId from, Want w, boolean have) {
+        WantState state = pending.get(w);
+        if (state == null)
+            return;
+        SessionPeer peer = peers.computeIfAbsent(from, p -> new SessionPeer());
+        if (have) {
+            peer.haves.incrementAndGet();
+            state.haves.add(from);
+            // ask for the block straight away if we haven't already asked a peer which has it
+            if (state.blockRequested.stream().noneMatch(state.haves::contains) && state.blockRequested.add(from)) {
+                state.backoff(tracker.timeoutMillis(from));
+                state.lastSent = System.currentTimeMillis();
+                state.sentTo.add(from);
+                tracker.sent(from, w);
+                sendTo(from, List.of(entry(w, true)));
+            }
+        } else {
+            peer.dontHaves.incrementAndGet();
+            state.dontHaves.add(from);
+            if (state.haves.isEmpty() && state.dontHaves.containsAll(peers.keySet()))
+                search(w, state);
+        }
+    }
+
+    private void tick() {
+        try {
+            long now = System.currentTimeMillis();
+            List<Want> due = new ArrayList<>();
+            for (Map.Entry<Want, WantState> e : pending.entrySet()) {
+                WantState state = e.getValue();
+                if (state.result.isDone() || now - state.lastSent < state.timeout)
+                    continue;
+                state.resends++;
+                due.add(e.getKey());
+                if (state.haves.isEmpty())
+                    search(e.getKey(), state);
+            }
+            send(due);
+        } catch (Throwable t) {
+            LOG.log(Level.WARNING, t.getMessage(), t);
+        }
+    }
+
+    /** Look for providers of a want which none of our peers have, one search at a time.
+     */
+    private void search(Want w, WantState state) {
+        if (fixedPeers || providers.isEmpty())
+            return;
+        long now = System.currentTimeMillis();
+        if (now - state.lastSearch < SEARCH_INTERVAL_MILLIS || ! searching.compareAndSet(false, true))
+            return;
+        state.lastSearch = now;
+        CompletableFuture.runAsync(() -> {
+            try {
+                List<PeerAddresses> found = providers.get().apply(w.cid).join();
+                List<PeerId> added = new ArrayList<>();
+                for (PeerAddresses provider : found) {
+                    PeerId peer = PeerId.fromBase58(provider.peerId.toBase58());
+                    if (peer.equals(network.self()))
+                        continue;
+                    if (! provider.addresses.isEmpty())
+                        network.addAddresses(peer, provider.addresses);
+                    if (peers.putIfAbsent(peer, new SessionPeer()) == null)
+                        added.add(peer);
+                }
+                LOG.fine("Session found " + added.size() + " new providers for " + w.cid);
+                if (! added.isEmpty()) // the new peers are likely to have the rest of the DAG too
+                    send(new ArrayList<>(pending.keySet()));
+            } catch (Exception e) {
+                LOG.log(Level.FINE, "Provider search failed for " + w.cid + ": " + e.getMessage(), e);
+            } finally {
+                searching.set(false);
+            }
+        }, searcher);
+    }
+}
@@ -0,0 +1,55 @@
+package org.peergos.protocol.bitswap;
+
+import java.util.concurrent.atomic.*;
+
+/** What has been exchanged with a single peer, used to weight how much of our serving capacity they get.
+ */
+public class Ledger {
+    private static final double MAX_WEIGHT = 4;
+
+    private final AtomicLong bytesSent = new AtomicLong(), bytesReceived = new AtomicLong();
+    private final AtomicLong blocksSent = new AtomicLong(), blocksReceived = new AtomicLong();
+
+    public void sent(int blockSize) {
+        bytesSent.addAndGet(blockSize);
+        blocksSent.incrementAndGet();
+    }
+
+    public void received(int blockSize) {
+        bytesReceived.addAndGet(blockSize);
+        blocksReceived.incrementAndGet();
+    }
+
+    public long bytesSent() {
+        return bytesSent.get();
+    }
+
+    public long bytesReceived() {
+        return bytesReceived.get();
+    }
+
+    public long blocksSent() {
+        return blocksSent.get();
+    }
+
+    public long blocksReceived() {
+        return blocksReceived.get();
+    }
+
+    /**
+     * @return the ratio of bytes we have sent them to bytes they have sent us
+     */
+    public double debtRatio() {
+        return bytesSent.get() / (bytesReceived.get() + 1.0);
+    }
+
+    /** Peers who have only taken from us have a weight of 1, and those who have sent us data get up to 4 times as
+     *  many turns, in proportion to the fraction of the traffic between us that they sent.
+     */
+    public double weight() {
+        long received = bytesReceived.get();
+        if (received == 0)
+            return 1;
+        return 1 + (MAX_WEIGHT - 1) * received / (double) (received + bytesSent.get());
+    }
+}
@@ -0,0 +1,227 @@
+package org.peergos.protocol.bitswap;
+
+import io.libp2p.core.*;
+import org.peergos.*;
+import org.peergos.util.LRUCache;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.*;
+
+/** Tracks how well each peer has answered our wants, so wants can be routed to the peers most likely to answer
+ *  quickly.
+ *
+ *  For each peer we keep exponentially weighted moving averages of the response latency and its deviation, the
+ *  fraction of wants answered with a block or HAVE, and the rate blocks arrive at. A want which isn't answered within
+ *  the peer's timeout, derived from its latency in the same way as a TCP retransmission timeout, counts as a miss and
+ *  a slow response.
+ */
+public class PeerTracker {
+
+    public static final long MIN_TIMEOUT_MILLIS = 500;
+    public static final long MAX_TIMEOUT_MILLIS = 30_000;
+    public static final long DEFAULT_TIMEOUT_MILLIS = 5_000;
+    private static final double ALPHA = 0.2;
+    // assumed for peers we haven't heard from yet
+    private static final double INITIAL_LATENCY_MILLIS = 1_000, INITIAL_HIT_RATE = 0.5;
+    private static final int MAX_OUTSTANDING = 10_000;
+
+    public static final class PeerStats {
+        // wants sent and not yet answered, in the order they were sent
+        private final LinkedHashMap<Want, Long> outstanding = new LinkedHashMap<>();
+        private double latencyMillis = INITIAL_LATENCY_MILLIS, latencyDeviation = INITIAL_LATENCY_MILLIS / 2;
+        private double hitRate = INITIAL_HIT_RATE, bytesPerSecond;
+        private long responses, timeouts;
+
+        private synchronized void sent(Want w, long nowNanos) {
+            outstanding.remove(w);
+            outstanding.put(w, nowNanos);
+            if (outstanding.size() > MAX_OUTSTANDING)
+                outstanding.remove(outstanding.keySet().iterator().next());
+        }
+
+        /**
+         * @return the latency in millis if this answers a want we sent
+         */
+        private Optional<Double> answered(Want w, boolean hit, long nowNanos) {
+            Long sent = outstanding.remove(w);
+            if (sent == null)
+                return Optional.empty();
+            double latency = (nowNanos - sent) / 1_000_000.0;
+            sample(latency, hit);
+            responses++;
+            return Optional.of(latency);
+        }
+
+        private void sample(double latency, boolean hit) {
+            if (responses + timeouts == 0) {
+                latencyMillis = latency;
+                latencyDeviation = latency / 2;
+            } else {
+                latencyDeviation += ALPHA * (Math.abs(latency - latencyMillis) - latencyDeviation);
+                latencyMillis += ALPHA * (latency - latencyMillis);
+            }
+            hitRate += ALPHA * ((hit ? 1 : 0) - hitRate);
+        }
+
+        private synchronized void receivedPresence(Want w, boolean have, long nowNanos) {
+            answered(w, have, nowNanos);
+        }
+
+        private synchronized void receivedBlock(Want w, int bytes, long nowNanos) {
+            answered(w, true, nowNanos).ifPresent(latency ->
+                    bytesPerSecond += ALPHA * (bytes * 1000.0 / Math.max(1, latency) - bytesPerSecond));
+        }
+
+        private synchronized void forget(Want w) {
+            outstanding.remove(w);
+        }
+
+        private synchronized List<Want> expire(long nowNanos) {
+            long timeoutNanos = timeoutMillis() * 1_000_000;
+            List<Want> expired = new ArrayList<>();
+            Iterator<Map.Entry<Want, Long>> it = outstanding.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Want, Long> next = it.next();
+                if (nowNanos - next.getValue() < timeoutNanos)
+                    break;
+                it.remove();
+                expired.add(next.getKey());
+            }
+            for (int i = 0; i < expired.size(); i++) {
+                // treat the timeout as a slow miss, which also backs off the next timeout
+                sample(timeoutNanos / 1_000_000.0, false);
+                timeouts++;
+            }
+            return expired;
+        }
+
+        public synchronized long timeoutMillis() {
+            long timeout = (long) (latencyMillis + 4 * latencyDeviation);
+            return Math.max(MIN_TIMEOUT_MILLIS, Math.min(MAX_TIMEOUT_MILLIS, timeout));
+        }
+
+        public synchronized double latencyMillis() {
+            return latencyMillis;
+        }
+
+        public synchronized double hitRate() {
+            return hitRate;
+        }
+
+        public synchronized double bytesPerSecond() {
+            return bytesPerSecond;
+        }
+
+        public synchronized long timeouts() {
+            return timeouts;
+        }
+
+        /** The expected rate of useful responses, higher is better.
+         */
+        public synchronized double score() {
+            return hitRate * 1000 / (latencyMillis + 1);
+        }
+    }
+
+    private final Map<PeerId, PeerStats> peers = Collections.synchronizedMap(new LRUCache<>(10_000));
+    // the peers each want is outstanding at, so they can all be told when it is no longer needed
+    private final Map<Want, Set<PeerId>> outstanding = new ConcurrentHashMap<>();
+
+    private PeerStats stats(PeerId peer) {
+        return peers.computeIfAbsent(peer, p -> new PeerStats());
+    }
+
+    public Optional<PeerStats> getStats(PeerId peer) {
+        return Optional.ofNullable(peers.get(peer));
+    }
+
+    public void sent(PeerId peer, Want w) {
+        sent(peer, w, System.nanoTime());
+    }
+
+    void sent(PeerId peer, Want w, long nowNanos) {
+        stats(peer).sent(w, nowNanos);
+        outstanding.computeIfAbsent(w, x -> ConcurrentHashMap.newKeySet()).add(peer);
+    }
+
+    private void answered(PeerId peer, Want w) {
+        outstanding.computeIfPresent(w, (x, sentTo) -> {
+            sentTo.remove(peer);
+            return sentTo.isEmpty() ? null : sentTo;
+        });
+    }
+
+    /** Stop waiting for answers to a want, because the block has arrived or the want was cancelled, so peers which
+     *  haven't answered yet aren't charged with a timeout.
+     */
+    public void satisfied(Want w) {
+        Set<PeerId> sentTo = outstanding.remove(w);
+        if (sentTo == null)
+            return;
+        for (PeerId peer : sentTo)
+            getStats(peer).ifPresent(s -> s.forget(w));
+    }
+
+    public void receivedPresence(PeerId peer, Want w, boolean have) {
+        receivedPresence(peer, w, have, System.nanoTime());
+    }
+
+    void receivedPresence(PeerId peer, Want w, boolean have, long nowNanos) {
+        stats(peer).receivedPresence(w, have, nowNanos);
+        answered(peer, w);
+    }
+
+    public void receivedBlock(PeerId peer, Want w, int bytes) {
+        receivedBlock(peer, w, bytes, System.nanoTime());
+    }
+
+    void receivedBlock(PeerId peer, Want w, int bytes, long nowNanos) {
+        stats(peer).receivedBlock(w, bytes, nowNanos);
+        answered(peer, w);
+    }
+
+    /** Count every want which has gone unanswered for longer than its peer's timeout as a timeout.
+     *
+     * @return the number of wants which timed out
+     */
+    public int expire() {
+        return expire(System.nanoTime());
+    }
+
+    int expire(long nowNanos) {
+        List<Map.Entry<PeerId, PeerStats>> all;
+        synchronized (peers) {
+            all = new ArrayList<>(peers.entrySet());
+        }
+        int expired = 0;
+        for (Map.Entry<PeerId, PeerStats> e : all) {
+            List<Want> timedOut = e.getValue().expire(nowNanos);
+            for (Want w : timedOut)
+                answered(e.getKey(), w);
+            expired += timedOut.size();
+        }
+        return expired;
+    }
+
+    public long timeoutMillis(PeerId peer) {
+        return getStats(peer).map(PeerStats::timeoutMillis).orElse(DEFAULT_TIMEOUT_MILLIS);
+    }
+
+    public double score(PeerId peer) {
+        return getStats(peer).map(PeerStats::score).orElse(INITIAL_HIT_RATE * 1000 / (INITIAL_LATENCY_MILLIS + 1));
+    }
+
+    /**
+     * @return the peers, best first
+     */
+    public List<PeerId> rank(Collection<PeerId> candidates) {
+        Map<PeerId, Double> scores = candidates.stream()
+                .distinct()
+                .collect(Collectors.toMap(p -> p, this::score));
+        return scores.entrySet().stream()
+                .sorted((a, b) -> Double.compare(b.getValue(), a.getValue()))
+                .map(Map.Entry::getKey)
+                .collect(Collectors.toList());
+    }
+}
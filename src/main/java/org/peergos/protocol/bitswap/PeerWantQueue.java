@@ -0,0 +1,94 @@
+package org.peergos.protocol.bitswap;
+
+import io.libp2p.core.*;
+import org.peergos.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+
+/** The wants from a single peer which are waiting to be looked up, highest priority first.
+ *
+ *  Not thread safe, the {@link WantScheduler} guards every queue with its own lock.
+ */
+class PeerWantQueue {
+
+    static final class Task {
+        final Want want;
+        final int priority;
+        final long seq;
+        final Supplier<CompletableFuture<?>> lookup;
+        // completes when the lookup has finished, or the want was cancelled
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        Task(Want want, int priority, long seq, Supplier<CompletableFuture<?>> lookup) {
+            this.want = want;
+            this.priority = priority;
+            this.seq = seq;
+            this.lookup = lookup;
+        }
+    }
+
+    private static final Comparator<Task> ORDER = Comparator.<Task>comparingInt(t -> -t.priority)
+            .thenComparingLong(t -> t.seq);
+
+    final PeerId peer;
+    final Ledger ledger;
+    private final int maxPending;
+    private final PriorityQueue<Task> pending = new PriorityQueue<>(ORDER);
+    private final Map<Want, Task> byWant = new HashMap<>();
+    private long seq;
+    int inFlight;
+    // turns remaining in the current round
+    double deficit;
+    boolean ready;
+
+    PeerWantQueue(PeerId peer, Ledger ledger, int maxPending) {
+        this.peer = peer;
+        this.ledger = ledger;
+        this.maxPending = maxPending;
+    }
+
+    /**
+     * @return the queued task, the task already queued for the want, or empty if the queue is full
+     */
+    Optional<Task> offer(Want want, int priority, Supplier<CompletableFuture<?>> lookup) {
+        Task existing = byWant.get(want);
+        if (existing != null)
+            return Optional.of(existing);
+        if (pending.size() >= maxPending)
+            return Optional.empty();
+        Task task = new Task(want, priority, seq++, lookup);
+        pending.add(task);
+        byWant.put(want, task);
+        return Optional.of(task);
+    }
+
+    Task poll() {
+        Task next = pending.poll();
+        if (next != null)
+            byWant.remove(next.want);
+        return next;
+    }
+
+    /** Remove a want which hasn't been looked up yet.
+     */
+    Optional<Task> cancel(Want want) {
+        Task task = byWant.remove(want);
+        if (task != null)
+            pending.remove(task);
+        return Optional.ofNullable(task);
+    }
+
+    boolean hasPending() {
+        return ! pending.isEmpty();
+    }
+
+    int pending() {
+        return pending.size();
+    }
+
+    boolean isIdle() {
+        return inFlight == 0 && pending.isEmpty();
+    }
+}
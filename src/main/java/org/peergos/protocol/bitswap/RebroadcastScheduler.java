@@ -0,0 +1,168 @@
+package org.peergos.protocol.bitswap;
+
+import io.libp2p.core.*;
+import org.peergos.*;
+
+import java.util.*;
+
+/** Decides when unanswered wants should be sent again.
+ *
+ *  Each want has its own deadline, which doubles after every rebroadcast up to a maximum, and wants stop being sent
+ *  once they are older than the maximum age. Due wants are grouped by the audience they were requested from, so they
+ *  can be sent in as few messages as possible. A want requested again from other peers is sent to the union of them.
+ *  The peers a want was sent to are remembered until it is cancelled, so they can be sent a cancel when the want is
+ *  answered or given up on.
+ *
+ * @param <A> who a want is sent from
+ */
+public class RebroadcastScheduler<A> {
+
+    /** Who a want is sent from and to. No peers means every connected peer.
+     */
+    public static final class Audience<A> {
+        public final A from;
+        public final Set<PeerId> peers;
+
+        public Audience(A from, Set<PeerId> peers) {
+            this.from = from;
+            this.peers = peers;
+        }
+
+        public boolean isEveryone() {
+            return peers.isEmpty();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o)
+                return true;
+            if (! (o instanceof Audience))
+                return false;
+            Audience<?> other = (Audience<?>) o;
+            return Objects.equals(from, other.from) && peers.equals(other.peers);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(from) * 31 + peers.hashCode();
+        }
+    }
+
+    private static final class Entry<A> {
+        final Want want;
+        final long created;
+        final Set<PeerId> sentTo = new HashSet<>();
+        Audience<A> audience;
+        long due, delay;
+        boolean cancelled;
+
+        Entry(Want want, Audience<A> audience, long created, long delay) {
+            this.want = want;
+            this.audience = audience;
+            this.created = created;
+            this.delay = delay;
+            this.due = created + delay;
+        }
+    }
+
+    private final long initialDelayMillis, maxDelayMillis, maxAgeMillis;
+    private final Map<Want, Entry<A>> entries = new HashMap<>();
+    private final PriorityQueue<Entry<A>> queue = new PriorityQueue<>(Comparator.comparingLong(e -> e.due));
+    private final List<Entry<A>> expired = new ArrayList<>();
+
+    public RebroadcastScheduler(long initialDelayMillis, long maxDelayMillis, long maxAgeMillis) {
+        if (initialDelayMillis <= 0 || maxDelayMillis < initialDelayMillis)
+            throw new IllegalArgumentException("Invalid rebroadcast delays " + initialDelayMillis + ", " + maxDelayMillis);
+        this.initialDelayMillis = initialDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+        this.maxAgeMillis = maxAgeMillis;
+    }
+
+    /** Schedule a want, or add the audience to that of a want which is already scheduled.
+     *
+     * @return who the want needs sending to now, which is the whole audience unless it was already scheduled
+     */
+    public synchronized Optional<Audience<A>> add(Want w, Audience<A> audience, long nowMillis) {
+        Entry<A> existing = entries.get(w);
+        if (existing == null) {
+            Entry<A> entry = new Entry<>(w, audience, nowMillis, initialDelayMillis);
+            entries.put(w, entry);
+            queue.add(entry);
+            return Optional.of(audience);
+        }
+        Audience<A> current = existing.audience;
+        if (current.isEveryone()) {
+            // only peers which weren't connected when it was last sent are new
+            Set<PeerId> unasked = new HashSet<>(audience.peers);
+            unasked.removeAll(existing.sentTo);
+            return unasked.isEmpty() ? Optional.empty() : Optional.of(new Audience<>(current.from, unasked));
+        }
+        if (audience.isEveryone()) {
+            existing.audience = new Audience<>(current.from, Collections.emptySet());
+            return Optional.of(existing.audience);
+        }
+        Set<PeerId> added = new HashSet<>(audience.peers);
+        added.removeAll(current.peers);
+        if (added.isEmpty())
+            return Optional.empty();
+        Set<PeerId> merged = new HashSet<>(current.peers);
+        merged.addAll(added);
+        existing.audience = new Audience<>(current.from, merged);
+        return Optional.of(new Audience<>(current.from, added));
+    }
+
+    public synchronized void sentTo(Want w, Collection<PeerId> peers) {
+        Entry<A> entry = entries.get(w);
+        if (entry != null)
+            entry.sentTo.addAll(peers);
+    }
+
+    /** Stop rebroadcasting a want.
+     *
+     * @return the peers the want has been sent to
+     */
+    public synchronized Set<PeerId> cancel(Want w) {
+        Entry<A> entry = entries.remove(w);
+        if (entry == null)
+            return Collections.emptySet();
+        // removed lazily from the queue
+        entry.cancelled = true;
+        return entry.sentTo;
+    }
+
+    /** Take the wants which are due to be sent again, and schedule their next rebroadcast.
+     */
+    public synchronized Map<Audience<A>, Set<Want>> due(long nowMillis) {
+        Map<Audience<A>, Set<Want>> res = new HashMap<>();
+        while (! queue.isEmpty() && queue.peek().due <= nowMillis) {
+            Entry<A> entry = queue.poll();
+            if (entry.cancelled)
+                continue;
+            if (nowMillis - entry.created > maxAgeMillis) {
+                // kept until it is cancelled, so we still know who to send a cancel to
+                expired.add(entry);
+                continue;
+            }
+            res.computeIfAbsent(entry.audience, a -> new HashSet<>()).add(entry.want);
+            entry.delay = Math.min(maxDelayMillis, entry.delay * 2);
+            entry.due = nowMillis + entry.delay;
+            queue.add(entry);
+        }
+        return res;
+    }
+
+    /** Take the wants which have been given up on since the last call, grouped by audience. Each should be cancelled.
+     */
+    public synchronized Map<Audience<A>, Set<Want>> takeExpired() {
+        Map<Audience<A>, Set<Want>> res = new HashMap<>();
+        for (Entry<A> entry : expired)
+            if (! entry.cancelled)
+                res.computeIfAbsent(entry.audience, a -> new HashSet<>()).add(entry.want);
+        expired.clear();
+        return res;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+}
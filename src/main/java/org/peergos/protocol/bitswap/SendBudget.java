@@ -0,0 +1,33 @@
+package org.peergos.protocol.bitswap;
+
+/** A limit on the rate of outbound block bytes, shared by every peer.
+ *
+ *  Each block reserves its size from the budget and is delayed until the bytes reserved before it have been sent at
+ *  the configured rate.
+ */
+class SendBudget {
+
+    private final double bytesPerNano;
+    private long nextFreeNanos = System.nanoTime();
+
+    /**
+     * @param maxBytesPerSecond the rate limit, or 0 for no limit
+     */
+    SendBudget(long maxBytesPerSecond) {
+        if (maxBytesPerSecond < 0)
+            throw new IllegalArgumentException("Invalid bitswap send rate: " + maxBytesPerSecond);
+        this.bytesPerNano = maxBytesPerSecond / 1_000_000_000.0;
+    }
+
+    /**
+     * @return how long to wait before sending, in nanoseconds
+     */
+    synchronized long reserve(int bytes) {
+        if (bytesPerNano == 0)
+            return 0;
+        long now = System.nanoTime();
+        long start = Math.max(now, nextFreeNanos);
+        nextFreeNanos = start + (long) (bytes / bytesPerNano);
+        return start - now;
+    }
+}
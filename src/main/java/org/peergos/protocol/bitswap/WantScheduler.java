@@ -0,0 +1,143 @@
+package org.peergos.protocol.bitswap;
+
+import io.libp2p.core.*;
+import org.peergos.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+
+/** Decides the order in which peers' wants are looked up and served.
+ *
+ *  Each peer's wants wait in a priority queue. Peers with pending wants take turns in a weighted round robin, where a
+ *  peer's weight comes from its {@link Ledger}, and at most maxActive lookups run at once. A peer can also have at most
+ *  maxInFlightPerPeer lookups running, so one heavy peer can't starve the others however many wants it sends.
+ */
+class WantScheduler {
+
+    private final Executor executor;
+    private final int maxActive, maxInFlightPerPeer, maxPendingPerPeer;
+    private final Function<PeerId, Ledger> ledgers;
+    private final Map<PeerId, PeerWantQueue> queues = new HashMap<>();
+    // peers with pending wants and spare capacity, in round robin order
+    private final Deque<PeerWantQueue> ready = new ArrayDeque<>();
+    private int active;
+
+    WantScheduler(Executor executor,
+                  int maxActive,
+                  int maxInFlightPerPeer,
+                  int maxPendingPerPeer,
+                  Function<PeerId, Ledger> ledgers) {
+        this.executor = executor;
+        this.maxActive = maxActive;
+        this.maxInFlightPerPeer = maxInFlightPerPeer;
+        this.maxPendingPerPeer = maxPendingPerPeer;
+        this.ledgers = ledgers;
+    }
+
+    /**
+     * @return a future which completes when the lookup finishes or is cancelled, which is shared with an earlier offer
+     *         of the same want if it is still queued, or empty if the peer's queue is full
+     */
+    synchronized Optional<CompletableFuture<Void>> offer(PeerId peer, Want want, int priority, Supplier<CompletableFuture<?>> lookup) {
+        PeerWantQueue queue = queues.computeIfAbsent(peer, p -> new PeerWantQueue(p, ledgers.apply(p), maxPendingPerPeer));
+        Optional<PeerWantQueue.Task> task = queue.offer(want, priority, lookup);
+        if (task.isEmpty()) {
+            if (queue.isIdle())
+                queues.remove(peer);
+            return Optional.empty();
+        }
+        markReady(queue);
+        dispatch();
+        return task.map(t -> t.done);
+    }
+
+    void cancel(PeerId peer, Want want) {
+        Optional<PeerWantQueue.Task> cancelled;
+        synchronized (this) {
+            PeerWantQueue queue = queues.get(peer);
+            if (queue == null)
+                return;
+            cancelled = queue.cancel(want);
+            if (queue.ready && ! queue.hasPending()) {
+                ready.remove(queue);
+                queue.ready = false;
+            }
+            if (queue.isIdle())
+                queues.remove(peer);
+        }
+        cancelled.ifPresent(t -> t.done.complete(null));
+    }
+
+    synchronized int pending(PeerId peer) {
+        PeerWantQueue queue = queues.get(peer);
+        return queue == null ? 0 : queue.pending();
+    }
+
+    synchronized boolean isIdle() {
+        return queues.isEmpty();
+    }
+
+    private void markReady(PeerWantQueue queue) {
+        if (! queue.ready && queue.hasPending() && queue.inFlight < maxInFlightPerPeer) {
+            queue.ready = true;
+            ready.addLast(queue);
+        }
+    }
+
+    private void dispatch() {
+        while (active < maxActive && ! ready.isEmpty()) {
+            PeerWantQueue queue = ready.peekFirst();
+            if (queue.deficit < 1) {
+                // start the peer's next round at the back
+                queue.deficit += queue.ledger.weight();
+                ready.addLast(ready.pollFirst());
+                continue;
+            }
+            PeerWantQueue.Task task = queue.poll();
+            queue.deficit--;
+            queue.inFlight++;
+            active++;
+            if (! queue.hasPending() || queue.inFlight >= maxInFlightPerPeer) {
+                ready.pollFirst();
+                queue.ready = false;
+            }
+            try {
+                executor.execute(() -> run(queue, task));
+            } catch (RejectedExecutionException e) {
+                release(queue);
+                task.done.completeExceptionally(e);
+                return;
+            }
+        }
+    }
+
+    private void run(PeerWantQueue queue, PeerWantQueue.Task task) {
+        CompletableFuture<?> res;
+        try {
+            res = task.lookup.get();
+        } catch (Throwable t) {
+            res = CompletableFuture.failedFuture(t);
+        }
+        res.whenComplete((r, t) -> {
+            synchronized (this) {
+                release(queue);
+                dispatch();
+            }
+            if (t != null)
+                task.done.completeExceptionally(t);
+            else
+                task.done.complete(null);
+        });
+    }
+
+    private void release(PeerWantQueue queue) {
+        queue.inFlight--;
+        active--;
+        if (queue.isIdle()) {
+            queue.deficit = 0;
+            queues.remove(queue.peer, queue);
+        } else
+            markReady(queue);
+    }
+}
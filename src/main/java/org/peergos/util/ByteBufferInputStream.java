@@ -0,0 +1,43 @@
+package org.peergos.util;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+public class ByteBufferInputStream extends InputStream {
+
+    private final ByteBuffer buf;
+
+    public ByteBufferInputStream(ByteBuffer buf) {
+        this.buf = buf.duplicate();
+    }
+
+    @Override
+    public int read() {
+        return buf.hasRemaining() ? buf.get() & 0xFF : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+        if (len == 0)
+            return 0;
+        if (! buf.hasRemaining())
+            return -1;
+        int n = Math.min(len, buf.remaining());
+        buf.get(b, off, n);
+        return n;
+    }
+
+    @Override
+    public long skip(long n) {
+        if (n <= 0)
+            return 0;
+        int skipped = (int) Math.min(n, buf.remaining());
+        buf.position(buf.position() + skipped);
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        return buf.remaining();
+    }
+}
@@ -0,0 +1,243 @@
+package org.peergos.util;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/** A fixed size pool of jdbc connections, opened lazily. Closing a connection obtained from the pool returns it to
+ *  the pool.
+ *
+ *  Statements prepared with prepareStatement(String) are cached on the underlying connection, and closing them only
+ *  clears their parameters. As a connection is only used by one thread at a time, each thread reuses the prepared
+ *  statements of the connection it holds. Preparing a statement which is still open, e.g. in a nested query, gives a
+ *  separate uncached statement, so the outer one's parameters and results are untouched.
+ *
+ *  Each borrowed connection holds one of the pool's connections until it is closed, so a thread which borrows a
+ *  second connection while holding one needs a pool of at least 2.
+ */
+public class ConnectionPool implements Supplier<Connection>, AutoCloseable {
+
+    private static final Logger LOG = Logging.LOG();
+    private static final int MAX_CACHED_STATEMENTS = 32;
+    private static final long BORROW_TIMEOUT_MILLIS = 30_000;
+
+    private final String url;
+    private final int size;
+    private final boolean readOnly;
+    private final BlockingQueue<Pooled> idle = new LinkedBlockingQueue<>();
+    private final AtomicInteger open = new AtomicInteger();
+    private volatile boolean closed;
+
+    /**
+     * @param url the jdbc url, including any credentials
+     * @param size the maximum number of open connections
+     * @param readOnly whether connections are only used for reads, e.g. to a replica
+     */
+    public ConnectionPool(String url, int size, boolean readOnly) {
+        if (size < 1)
+            throw new IllegalArgumentException("Connection pool size must be positive");
+        this.url = url;
+        this.size = size;
+        this.readOnly = readOnly;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int openConnections() {
+        return open.get();
+    }
+
+    @Override
+    public Connection get() {
+        if (closed)
+            throw new IllegalStateException("Connection pool is closed");
+        Pooled conn = idle.poll();
+        if (conn == null)
+            conn = tryOpen();
+        if (conn == null) {
+            try {
+                conn = idle.poll(BORROW_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(e);
+            }
+            if (conn == null)
+                throw new IllegalStateException("Timed out waiting for a database connection");
+        }
+        return conn.borrow();
+    }
+
+    private Pooled tryOpen() {
+        while (true) {
+            int current = open.get();
+            if (current >= size)
+                return null;
+            if (open.compareAndSet(current, current + 1))
+                break;
+        }
+        try {
+            Connection physical = DriverManager.getConnection(url);
+            physical.setAutoCommit(true);
+            if (readOnly)
+                physical.setReadOnly(true);
+            return new Pooled(physical);
+        } catch (SQLException e) {
+            open.decrementAndGet();
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void release(Pooled conn) {
+        try {
+            if (! closed && ! conn.physical.isClosed()) {
+                if (! conn.physical.getAutoCommit()) {
+                    conn.physical.rollback();
+                    conn.physical.setAutoCommit(true);
+                }
+                idle.add(conn);
+                return;
+            }
+        } catch (SQLException e) {
+            LOG.log(Level.WARNING, "Discarding broken database connection", e);
+        }
+        open.decrementAndGet();
+        conn.closePhysical();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        Pooled conn;
+        while ((conn = idle.poll()) != null) {
+            open.decrementAndGet();
+            conn.closePhysical();
+        }
+    }
+
+    private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    private class Pooled {
+        private final Connection physical;
+        private final Map<String, PreparedStatement> statements = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+                if (size() <= MAX_CACHED_STATEMENTS)
+                    return false;
+                // a statement in use is closed by its proxy instead
+                if (inUse.contains(eldest.getValue()))
+                    return true;
+                try {
+                    eldest.getValue().close();
+                } catch (SQLException e) {}
+                return true;
+            }
+        };
+        private final Set<PreparedStatement> inUse = Collections.newSetFromMap(new IdentityHashMap<>());
+
+        Pooled(Connection physical) {
+            this.physical = physical;
+        }
+
+        Connection borrow() {
+            AtomicBoolean released = new AtomicBoolean(false);
+            InvocationHandler handler = (proxy, method, args) -> {
+                switch (method.getName()) {
+                    case "close":
+                        if (released.compareAndSet(false, true)) {
+                            inUse.clear();
+                            release(this);
+                        }
+                        return null;
+                    case "isClosed":
+                        return released.get() || physical.isClosed();
+                    case "equals":
+                        return proxy == args[0];
+                    case "hashCode":
+                        return System.identityHashCode(proxy);
+                    case "toString":
+                        return "Pooled " + physical;
+                }
+                if (released.get())
+                    throw new SQLException("Connection has been returned to the pool");
+                if (method.getName().equals("prepareStatement") && args.length == 1)
+                    return prepare((String) args[0]);
+                return invoke(physical, method, args);
+            };
+            return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                    new Class[] {Connection.class}, handler);
+        }
+
+        private PreparedStatement prepare(String sql) throws SQLException {
+            PreparedStatement cached = statements.get(sql);
+            if (cached != null && inUse.contains(cached))
+                return physical.prepareStatement(sql);
+            if (cached == null || cached.isClosed()) {
+                cached = physical.prepareStatement(sql);
+                statements.put(sql, cached);
+            }
+            PreparedStatement target = cached;
+            inUse.add(target);
+            AtomicBoolean closed = new AtomicBoolean(false);
+            InvocationHandler handler = (proxy, method, args) -> {
+                switch (method.getName()) {
+                    case "close":
+                        if (! closed.compareAndSet(false, true))
+                            return null;
+                        inUse.remove(target);
+                        if (statements.get(sql) == target)
+                            target.clearParameters();
+                        else
+                            target.close();
+                        return null;
+                    case "isClosed":
+                        return closed.get() || target.isClosed();
+                    case "equals":
+                        return proxy == args[0];
+                    case "hashCode":
+                        return System.identityHashCode(proxy);
+                }
+                if (closed.get())
+                    throw new SQLException("Statement is closed");
+                return invoke(target, method, args);
+            };
+            return (PreparedStatement) Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(),
+                    new Class[] {PreparedStatement.class}, handler);
+        }
+
+        void closePhysical() {
+            statements.clear();
+            inUse.clear();
+            try {
+                physical.close();
+            } catch (SQLException e) {
+                LOG.log(Level.WARNING, e.getMessage(), e);
+            }
+        }
+    }
+}
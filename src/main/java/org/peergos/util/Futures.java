@@ -2,6 +2,7 @@ package org.peergos.util;
 
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
 
 public class Futures {
 
@@ -25,4 +26,11 @@ public class Futures {
         err.completeExceptionally(t);
         return err;
     }
+
+    public static <T> CompletableFuture<List<T>> combineAllInOrder(List<CompletableFuture<T>> futures) {
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture[0]))
+                .thenApply(x -> futures.stream()
+                        .map(CompletableFuture::join)
+                        .collect(Collectors.toList()));
+    }
 }
@@ -5,19 +5,30 @@ import org.peergos.Hash;
 import javax.crypto.Mac;
 import javax.crypto.SecretKey;
 import javax.crypto.spec.SecretKeySpec;
+import java.security.NoSuchAlgorithmException;
 import java.util.concurrent.CompletableFuture;
 
 public class Hasher {
 
+    private static final String HMAC_ALGORITHM = "HMACSHA256";
+
+    // Mac.getInstance does a provider lookup, so reuse one instance per thread
+    private static final ThreadLocal<Mac> hmac = ThreadLocal.withInitial(() -> {
+        try {
+            return Mac.getInstance(HMAC_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    });
+
     public CompletableFuture<byte[]> sha256(byte[] input) {
         return CompletableFuture.completedFuture(Hash.sha256(input));
     }
 
     public CompletableFuture<byte[]> hmacSha256(byte[] secretKeyBytes, byte[] message) {
         try {
-            String algorithm = "HMACSHA256";
-            Mac mac = Mac.getInstance(algorithm);
-            SecretKey secretKey = new SecretKeySpec(secretKeyBytes, algorithm);
+            Mac mac = hmac.get();
+            SecretKey secretKey = new SecretKeySpec(secretKeyBytes, HMAC_ALGORITHM);
             mac.init(secretKey);
             return Futures.of(mac.doFinal(message));
         } catch (Exception e) {
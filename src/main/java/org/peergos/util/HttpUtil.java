@@ -105,6 +105,12 @@ public class HttpUtil {
     }
 
     public static byte[] get(String uri, Map<String, String> fields) throws IOException {
+        return readFully(getStream(uri, fields));
+    }
+
+    /** Issue a GET and return the response body without reading it into memory. The caller must close the stream.
+     */
+    public static InputStream getStream(String uri, Map<String, String> fields) throws IOException {
         try {
             HttpURLConnection conn = (HttpURLConnection) new URI(uri).toURL().openConnection();
             conn.setConnectTimeout(10_000);
@@ -120,8 +126,7 @@ public class HttpUtil {
                     throw new RateLimitException();
                 if (respCode == 404)
                     throw new FileNotFoundException();
-                InputStream in = conn.getInputStream();
-                return readFully(in);
+                return conn.getInputStream();
             } catch (IOException e) {
                 InputStream err = conn.getErrorStream();
                 if (err == null)
@@ -7,12 +7,33 @@ import org.junit.Assert;
 import org.junit.BeforeClass;
 import org.junit.Test;
 import org.peergos.blockstore.FileBlockstore;
+import org.peergos.blockstore.PackBlockstore;
+import org.peergos.blockstore.metadatadb.CachingBlockMetadataStore;
+import org.peergos.blockstore.metadatadb.JdbcBlockMetadataStore;
+import org.peergos.blockstore.metadatadb.MetadataBackfill;
+import org.peergos.blockstore.metadatadb.sql.H2BlockMetadataCommands;
+import org.peergos.blockstore.metadatadb.sql.UncloseableConnection;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.List;
 import java.util.Optional;
+import java.util.Properties;
+import java.util.Random;
+import java.util.function.BiFunction;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 public class BlockStoreTest {
 
@@ -69,4 +90,198 @@ public class BlockStoreTest {
         Assert.assertTrue("data match", str.equals(msg));
     }
 
+    @Test
+    public void testFileStoreBuffer() throws IOException {
+        FileBlockstore bs = new FileBlockstore(TMP_DATA_FOLDER.toPath());
+        Random r = new Random(7);
+        for (int size : new int[] {1000, 512 * 1024}) {
+            byte[] block = new byte[size];
+            r.nextBytes(block);
+            Cid cid = bs.put(block, Cid.Codec.Raw).join();
+            ByteBuffer buf = bs.getBuffer(cid).join().get();
+            Assert.assertEquals("buffer size", size, buf.remaining());
+            Assert.assertEquals("buffer match", ByteBuffer.wrap(block), buf);
+            Assert.assertArrayEquals("bytes match", block, bs.get(cid).join().get());
+
+            Cid streamed = bs.put(Channels.newChannel(new ByteArrayInputStream(block)), Cid.Codec.Raw).join();
+            Assert.assertEquals("streamed cid", cid, streamed);
+            try (InputStream in = bs.getStream(streamed).join().get()) {
+                Assert.assertArrayEquals("stream match", block, in.readAllBytes());
+            }
+            // putting the block again must not disturb readers of the existing file
+            Assert.assertEquals("repeat cid", cid, bs.put(block, Cid.Codec.Raw).join());
+            Assert.assertEquals("buffer after put", ByteBuffer.wrap(block), buf);
+            // the buffer belongs to the caller
+            Assert.assertTrue("rm", bs.rm(cid).join());
+            Assert.assertEquals("buffer after rm", ByteBuffer.wrap(block), buf);
+        }
+        Cid missing = new Cid(1, Cid.Codec.Raw, Multihash.Type.sha2_256, Hash.sha256(new byte[1]));
+        Assert.assertTrue("missing block", bs.getBuffer(missing).join().isEmpty());
+    }
+
+    @Test
+    public void testFileStoreBatch() {
+        FileBlockstore bs = new FileBlockstore(TMP_DATA_FOLDER.toPath());
+        List<byte[]> blocks = new ArrayList<>();
+        for (int i = 0; i < 20; i++)
+            blocks.add(("batch block " + i).getBytes());
+        List<Cid> cids = bs.putAll(blocks, Cid.Codec.Raw).join();
+        Assert.assertEquals(blocks.size(), cids.size());
+
+        Cid missing = new Cid(1, Cid.Codec.Raw, Multihash.Type.sha2_256, new byte[32]);
+        List<Cid> query = new ArrayList<>(cids);
+        query.add(5, missing);
+        List<Boolean> has = bs.hasAll(query).join();
+        List<Optional<byte[]>> got = bs.getAll(query).join();
+        Assert.assertFalse(has.get(5));
+        Assert.assertTrue(got.get(5).isEmpty());
+        for (int i = 0; i < cids.size(); i++) {
+            int q = i < 5 ? i : i + 1;
+            Assert.assertTrue(has.get(q));
+            Assert.assertArrayEquals(blocks.get(i), got.get(q).get());
+        }
+    }
+
+    @Test
+    public void testMetadataBackfill() throws IOException {
+        Path root = TMP_DATA_FOLDER.toPath().resolve("backfill");
+        root.toFile().mkdirs();
+        FileBlockstore bs = new FileBlockstore(root);
+        for (int i = 0; i < 25; i++)
+            bs.put(("backfill block " + i).getBytes(), Cid.Codec.Raw).join();
+        RamBlockMetadataStore meta = new RamBlockMetadataStore();
+        CachingBlockMetadataStore blocks = new CachingBlockMetadataStore(bs, meta);
+        Path checkpoint = root.resolve("metadata-backfill");
+
+        // interrupt the listing part way through
+        MetadataBackfill interrupted = new MetadataBackfill(checkpoint, 1, 4, 0);
+        try {
+            interrupted.run(blocks, meta, cursor -> blocks.refStream().peek(c -> {
+                        if (meta.size() >= 8)
+                            throw new IllegalStateException("interrupted");
+                    }));
+            Assert.fail();
+        } catch (IllegalStateException expected) {}
+        Assert.assertFalse(interrupted.isComplete());
+        Assert.assertEquals(8, meta.size());
+
+        MetadataBackfill resumed = new MetadataBackfill(checkpoint, 1, 4, 0);
+        blocks.updateMetadataStore(resumed);
+        Assert.assertTrue(resumed.isComplete());
+        Assert.assertEquals(25, meta.size());
+        for (Cid c : bs.refs(true).join())
+            Assert.assertEquals(bs.size(c), meta.get(c).get().size);
+    }
+
+    @Test
+    public void testPartitionedMetadataBackfill() throws IOException {
+        Path root = TMP_DATA_FOLDER.toPath().resolve("partitioned-backfill");
+        root.toFile().mkdirs();
+        FileBlockstore bs = new FileBlockstore(root);
+        for (int i = 0; i < 25; i++)
+            bs.put(("partitioned block " + i).getBytes(), Cid.Codec.Raw).join();
+        RamBlockMetadataStore meta = new RamBlockMetadataStore();
+        CachingBlockMetadataStore blocks = new CachingBlockMetadataStore(bs, meta);
+        Path checkpoint = root.resolve("metadata-backfill");
+        List<String> partitions = List.of("A", "B", "C", "D", "E", "F", "G", "H", "I", "J", "K", "L", "M", "N", "O",
+                "P", "Q", "R", "S", "T", "U", "V", "W", "X", "Y", "Z", "2", "3", "4", "5", "6", "7");
+        BiFunction<String, Optional<String>, Stream<Cid>> refsAfter = (prefix, cursor) -> bs.refStream()
+                .map(bs::hashToKey)
+                .filter(k -> k.startsWith(prefix) && cursor.map(c -> k.compareTo(c) > 0).orElse(true))
+                .sorted()
+                .map(bs::keyToHash);
+
+        // crash before the first batch completes
+        MetadataBackfill crashed = new MetadataBackfill(checkpoint, 4, 4, 0);
+        try {
+            crashed.run(blocks, meta, partitions, (prefix, cursor) -> refsAfter.apply(prefix, cursor).peek(c -> {
+                throw new IllegalStateException("crashed");
+            }));
+            Assert.fail();
+        } catch (IllegalStateException expected) {}
+        Assert.assertFalse(crashed.isComplete());
+        // a block written since must not make the store look fully populated
+        blocks.put("written after the crash".getBytes(), Cid.Codec.Raw).join();
+        Assert.assertEquals(1, meta.size());
+
+        MetadataBackfill resumed = new MetadataBackfill(checkpoint, 4, 4, 0);
+        resumed.run(blocks, meta, partitions, refsAfter);
+        Assert.assertTrue(resumed.isComplete());
+        Assert.assertEquals(26, meta.size());
+    }
+
+    @Test
+    public void testMetadataBackfillIntoSqlStore() throws Exception {
+        Path root = TMP_DATA_FOLDER.toPath().resolve("sql-backfill");
+        root.toFile().mkdirs();
+        FileBlockstore bs = new FileBlockstore(root);
+        for (int i = 0; i < 25; i++)
+            bs.put(("sql backfill block " + i).getBytes(), Cid.Codec.Raw).join();
+        String url = "jdbc:h2:mem:backfill;MODE=PostgreSQL;DATABASE_TO_LOWER=TRUE;DEFAULT_NULL_ORDERING=HIGH";
+        Connection instance = new UncloseableConnection(DriverManager.getConnection(url));
+        instance.setAutoCommit(true);
+        JdbcBlockMetadataStore meta = new JdbcBlockMetadataStore(() -> instance, new H2BlockMetadataCommands());
+        Connection other = new UncloseableConnection(DriverManager.getConnection(url));
+        other.setAutoCommit(true);
+        JdbcBlockMetadataStore reader = new JdbcBlockMetadataStore(() -> other, new H2BlockMetadataCommands());
+        CachingBlockMetadataStore blocks = new CachingBlockMetadataStore(bs, meta);
+        Path checkpoint = root.resolve("metadata-backfill");
+        List<String> keys = bs.refStream().map(bs::hashToKey).sorted().collect(Collectors.toList());
+
+        // every block up to a checkpointed cursor must already be in the db
+        List<String> uncommitted = Collections.synchronizedList(new ArrayList<>());
+        MetadataBackfill backfill = new MetadataBackfill(checkpoint, 2, 4, 0);
+        backfill.run(blocks, meta, cursor -> keys.stream()
+                .filter(k -> cursor.map(c -> k.compareTo(c) > 0).orElse(true))
+                .map(bs::keyToHash)
+                .peek(c -> {
+                    Properties state = new Properties();
+                    try {
+                        state.load(new StringReader(Files.readString(checkpoint)));
+                    } catch (IOException e) {
+                        throw new RuntimeException(e.getMessage(), e);
+                    }
+                    String done = state.getProperty("cursor");
+                    if (done != null)
+                        keys.stream()
+                                .filter(k -> k.compareTo(done) <= 0)
+                                .filter(k -> reader.get(bs.keyToHash(k)).isEmpty())
+                                .forEach(uncommitted::add);
+                }));
+        Assert.assertTrue(backfill.isComplete());
+        Assert.assertTrue(uncommitted.isEmpty());
+        Assert.assertEquals(keys.size(), reader.size());
+    }
+
+    @Test
+    public void testPackStore() throws IOException {
+        Path packs = TMP_DATA_FOLDER.toPath().resolve("packs");
+        packs.toFile().mkdirs();
+        PackBlockstore bs = new PackBlockstore(packs, 4096, 0.5, false, 0);
+        Random r = new Random(42);
+        List<Cid> cids = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            byte[] block = new byte[200];
+            r.nextBytes(block);
+            cids.add(bs.put(block, Cid.Codec.Raw).join());
+        }
+        for (int i = 0; i < cids.size(); i += 2) {
+            Assert.assertTrue("rm", bs.rm(cids.get(i)).join());
+        }
+        bs.compact();
+        bs.close();
+
+        // reopen and check the index is recovered correctly
+        PackBlockstore reopened = new PackBlockstore(packs, 4096, 0.5, false, 0);
+        for (int i = 0; i < cids.size(); i++) {
+            Cid cid = cids.get(i);
+            Assert.assertEquals("has " + cid, i % 2 == 1, reopened.has(cid).join());
+            Optional<byte[]> data = reopened.get(cid).join();
+            Assert.assertEquals("get " + cid, i % 2 == 1, data.isPresent());
+            if (data.isPresent())
+                Assert.assertEquals("data match", cid, new Cid(1, Cid.Codec.Raw, Multihash.Type.sha2_256, Hash.sha256(data.get())));
+        }
+        Assert.assertEquals("refs", cids.size() / 2, reopened.refs(false).join().size());
+        reopened.close();
+    }
 }
@@ -1,12 +1,16 @@
 package org.peergos;
 import io.ipfs.cid.Cid;
+import io.ipfs.multihash.Multihash;
 import org.junit.Assert;
 import org.junit.Test;
 import org.peergos.protocol.dht.DatabaseRecordStore;
 import org.peergos.protocol.ipns.IpnsRecord;
+import org.peergos.util.ConnectionPool;
 
+import java.sql.*;
 import java.time.LocalDateTime;
-import java.util.Optional;
+import java.util.*;
+import java.util.concurrent.*;
 public class DatabaseRecordStoreTest {
 
     @Test
@@ -37,4 +41,70 @@ public class DatabaseRecordStoreTest {
             throw new IllegalStateException(ex);
         }
     }
+
+    @Test
+    public void concurrentUse() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(2 * DatabaseRecordStore.DEFAULT_POOL_SIZE);
+        try (DatabaseRecordStore bs = new DatabaseRecordStore("mem:")) {
+            IpnsRecord record = new IpnsRecord("raw".getBytes(), 1, 2, LocalDateTime.now(), "value".getBytes());
+            List<Cid> peerIds = new ArrayList<>();
+            for (int i = 0; i < 64; i++) {
+                byte[] hash = new byte[32];
+                hash[0] = (byte) i;
+                peerIds.add(Cid.buildCidV1(Cid.Codec.Raw, Multihash.Type.sha2_256, hash));
+            }
+            List<Future<?>> done = new ArrayList<>();
+            for (Cid peerId : peerIds)
+                done.add(pool.submit(() -> {
+                    bs.put(peerId, record);
+                    Assert.assertTrue(bs.get(peerId).isPresent());
+                }));
+            for (Future<?> f : done)
+                f.get(10, TimeUnit.SECONDS);
+            // every connection in the pool sees the same in memory database
+            for (Cid peerId : peerIds)
+                Assert.assertTrue(bs.get(peerId).isPresent());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void nestedUse() throws Exception {
+        try (ConnectionPool pool = new ConnectionPool("jdbc:h2:mem:nested", 2, false);
+             Connection outer = pool.get()) {
+            try (PreparedStatement create = outer.prepareStatement("create table t (x int)")) {
+                create.execute();
+            }
+            try (PreparedStatement insert = outer.prepareStatement("insert into t values (1), (2)")) {
+                insert.execute();
+            }
+            String select = "select x from t where x >= ? order by x";
+            try (PreparedStatement query = outer.prepareStatement(select)) {
+                query.setInt(1, 1);
+                try (ResultSet rs = query.executeQuery()) {
+                    Assert.assertTrue(rs.next());
+                    // the same statement prepared again while the outer one is open doesn't disturb its results
+                    try (PreparedStatement inner = outer.prepareStatement(select)) {
+                        inner.setInt(1, 2);
+                        try (ResultSet innerRs = inner.executeQuery()) {
+                            Assert.assertTrue(innerRs.next());
+                            Assert.assertEquals(2, innerRs.getInt(1));
+                        }
+                    }
+                    // as does a second connection borrowed while holding the first
+                    try (Connection second = pool.get();
+                         PreparedStatement other = second.prepareStatement(select)) {
+                        other.setInt(1, 1);
+                        try (ResultSet otherRs = other.executeQuery()) {
+                            Assert.assertTrue(otherRs.next());
+                        }
+                    }
+                    Assert.assertEquals(1, rs.getInt(1));
+                    Assert.assertTrue(rs.next());
+                    Assert.assertEquals(2, rs.getInt(1));
+                }
+            }
+        }
+    }
 }
@@ -0,0 +1,113 @@
+package org.peergos;
+
+import io.ipfs.cid.Cid;
+import io.ipfs.multihash.Multihash;
+import org.junit.Assert;
+import org.junit.Test;
+import org.peergos.blockstore.metadatadb.BlockMetadata;
+import org.peergos.blockstore.metadatadb.HotBlockMetadataStore;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class HotBlockMetadataStoreTest {
+
+    private static class CountingStore extends RamBlockMetadataStore {
+        final AtomicInteger gets = new AtomicInteger();
+
+        @Override
+        public Optional<BlockMetadata> get(Cid block) {
+            gets.incrementAndGet();
+            return super.get(block);
+        }
+    }
+
+    private static List<Cid> randomCids(Random r, int count) {
+        List<Cid> res = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            byte[] hash = new byte[32];
+            r.nextBytes(hash);
+            res.add(new Cid(1, Cid.Codec.Raw, Multihash.Type.sha2_256, hash));
+        }
+        return res;
+    }
+
+    @Test
+    public void hotLookupsAreServedFromMemory() {
+        CountingStore target = new CountingStore();
+        HotBlockMetadataStore cache = new HotBlockMetadataStore(target, 1024 * 1024);
+        List<Cid> cids = randomCids(new Random(1), 100);
+        for (Cid c : cids)
+            target.put(c, new BlockMetadata(10, Collections.emptyList()));
+
+        for (int i = 0; i < 10; i++)
+            for (Cid c : cids)
+                Assert.assertTrue(cache.get(c).isPresent());
+        Assert.assertEquals(cids.size(), target.gets.get());
+    }
+
+    @Test
+    public void absentBlocks() {
+        CountingStore target = new CountingStore();
+        HotBlockMetadataStore cache = new HotBlockMetadataStore(target, 1024 * 1024);
+        Cid missing = randomCids(new Random(2), 1).get(0);
+        for (int i = 0; i < 5; i++)
+            Assert.assertTrue(cache.get(missing).isEmpty());
+        Assert.assertEquals(1, target.gets.get());
+
+        cache.put(missing, new BlockMetadata(3, Collections.emptyList()));
+        Assert.assertEquals(3, cache.get(missing).get().size);
+        Assert.assertEquals(1, cache.getAll(List.of(missing)).size());
+
+        cache.remove(missing);
+        Assert.assertTrue(cache.get(missing).isEmpty());
+        Assert.assertTrue(target.get(missing).isEmpty());
+    }
+
+    @Test
+    public void absentBlocksAddedByAnotherWriterExpire() throws Exception {
+        CountingStore target = new CountingStore();
+        HotBlockMetadataStore cache = new HotBlockMetadataStore(target, 1024 * 1024, 100);
+        List<Cid> missing = randomCids(new Random(4), 2);
+        Assert.assertTrue(cache.get(missing.get(0)).isEmpty());
+        Assert.assertTrue(cache.getAll(missing).isEmpty());
+
+        // written to the backing store directly, as by another node sharing it
+        for (Cid c : missing)
+            target.put(c, new BlockMetadata(5, Collections.emptyList()));
+        Assert.assertTrue(cache.get(missing.get(0)).isEmpty());
+
+        Thread.sleep(200);
+        Assert.assertEquals(5, cache.get(missing.get(0)).get().size);
+        Assert.assertEquals(missing.size(), cache.getAll(missing).size());
+    }
+
+    @Test
+    public void scanDoesNotEvictHotSet() {
+        CountingStore target = new CountingStore();
+        // room for roughly 200 entries
+        HotBlockMetadataStore cache = new HotBlockMetadataStore(target, 200 * 160);
+        Random r = new Random(3);
+        List<Cid> hot = randomCids(r, 50);
+        List<Cid> cold = randomCids(r, 5_000);
+        for (Cid c : hot)
+            target.put(c, new BlockMetadata(1, Collections.emptyList()));
+        for (Cid c : cold)
+            target.put(c, new BlockMetadata(1, Collections.emptyList()));
+
+        // a scan of cold blocks interleaved with repeated lookups of hot blocks
+        for (int i = 0; i < cold.size(); i++) {
+            cache.get(cold.get(i));
+            if (i % 100 == 0)
+                hot.forEach(cache::get);
+        }
+
+        int before = target.gets.get();
+        hot.forEach(cache::get);
+        Assert.assertTrue("hot entries evicted", target.gets.get() - before < hot.size() / 2);
+    }
+}
@@ -0,0 +1,185 @@
+package org.peergos;
+
+import io.ipfs.cid.Cid;
+import io.ipfs.multihash.Multihash;
+import org.junit.Assert;
+import org.junit.Test;
+import org.peergos.blockstore.metadatadb.BlockMetadata;
+import org.peergos.blockstore.metadatadb.CompactLinks;
+import org.peergos.blockstore.metadatadb.JdbcBlockMetadataStore;
+import org.peergos.blockstore.metadatadb.sql.H2BlockMetadataCommands;
+import org.peergos.blockstore.metadatadb.sql.UncloseableConnection;
+import org.peergos.cbor.CborObject;
+import org.peergos.util.ConnectionPool;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+public class JdbcBlockMetadataStoreTest {
+
+    private static JdbcBlockMetadataStore build(String name) throws Exception {
+        Connection h2Instance = DriverManager.getConnection("jdbc:h2:mem:" + name +
+                ";MODE=PostgreSQL;DATABASE_TO_LOWER=TRUE;DEFAULT_NULL_ORDERING=HIGH");
+        Connection instance = new UncloseableConnection(h2Instance);
+        instance.setAutoCommit(true);
+        return new JdbcBlockMetadataStore(() -> instance, new H2BlockMetadataCommands());
+    }
+
+    private static List<Cid> randomCids(int count) {
+        Random r = new Random(42);
+        List<Cid> res = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            byte[] hash = new byte[32];
+            r.nextBytes(hash);
+            res.add(new Cid(1, Cid.Codec.DagCbor, Multihash.Type.sha2_256, hash));
+        }
+        return res;
+    }
+
+    @Test
+    public void writes() throws Exception {
+        JdbcBlockMetadataStore store = build("writes");
+        List<Cid> cids = randomCids(2_500);
+        for (int i = 0; i < cids.size(); i++)
+            store.put(cids.get(i), new BlockMetadata(i, Collections.singletonList(cids.get((i + 1) % cids.size()))));
+
+        Cid last = cids.get(cids.size() - 1);
+        Assert.assertEquals(cids.size() - 1, store.get(last).get().size);
+        Map<Cid, BlockMetadata> all = store.getAll(cids);
+        Assert.assertEquals(cids.size(), all.size());
+        Assert.assertEquals(cids.get(1), all.get(cids.get(0)).links.get(0));
+
+        // repeated puts don't overwrite
+        store.put(cids.get(0), new BlockMetadata(12345, Collections.emptyList()));
+        Assert.assertEquals(cids.size(), store.size());
+        Assert.assertEquals(0, store.get(cids.get(0)).get().size);
+
+        store.remove(last);
+        Assert.assertTrue(store.get(last).isEmpty());
+        store.put(last, new BlockMetadata(7, Collections.emptyList()));
+        Assert.assertEquals(7, store.get(last).get().size);
+        Assert.assertEquals(cids.size(), store.list().count());
+    }
+
+    @Test
+    public void putsAreCommittedBeforeReturning() throws Exception {
+        JdbcBlockMetadataStore store = build("committed");
+        JdbcBlockMetadataStore reader = build("committed");
+        List<Cid> cids = randomCids(2_000);
+        ExecutorService threads = Executors.newFixedThreadPool(16);
+        List<Future<Boolean>> results = new ArrayList<>();
+        // concurrent puts are committed together, but each is in the db by the time it returns
+        for (Cid c : cids)
+            results.add(threads.submit(() -> {
+                store.put(c, new BlockMetadata(c.hashCode(), Collections.emptyList()));
+                return reader.get(c).map(m -> m.size == c.hashCode()).orElse(false);
+            }));
+        for (Future<Boolean> res : results)
+            Assert.assertTrue(res.get());
+        threads.shutdown();
+        Assert.assertEquals(cids.size(), reader.getAll(cids).size());
+    }
+
+    @Test
+    public void compactLinks() {
+        List<Cid> links = randomCids(300);
+        byte[] encoded = CompactLinks.encode(links);
+        List<Cid> decoded = CompactLinks.decode(encoded);
+        Assert.assertEquals(links, decoded);
+        Assert.assertArrayEquals(encoded, CompactLinks.encode(decoded));
+        Assert.assertTrue(CompactLinks.decode(CompactLinks.encode(Collections.emptyList())).isEmpty());
+
+        // links written in the older cbor format are still readable
+        byte[] cbor = new CborObject.CborList(links.stream()
+                .map(Cid::toBytes)
+                .map(CborObject.CborByteArray::new)
+                .collect(Collectors.toList()))
+                .toByteArray();
+        Assert.assertEquals(links, CompactLinks.decode(cbor));
+        Assert.assertTrue(encoded.length < cbor.length);
+    }
+
+    @Test
+    public void streamingList() throws Exception {
+        JdbcBlockMetadataStore store = build("streaming");
+        List<Cid> cids = randomCids(25_000);
+        for (Cid c : cids)
+            store.put(c, new BlockMetadata(1, Collections.emptyList()));
+        try (Stream<Cid> all = store.list()) {
+            Assert.assertEquals(cids.size(), all.count());
+        }
+        Assert.assertEquals(cids.size(), store.listCbor().count());
+    }
+
+    @Test
+    public void pooledConcurrentReads() throws Exception {
+        ConnectionPool pool = new ConnectionPool("jdbc:h2:mem:pooled;MODE=PostgreSQL;DATABASE_TO_LOWER=TRUE;DEFAULT_NULL_ORDERING=HIGH", 4, false);
+        JdbcBlockMetadataStore store = new JdbcBlockMetadataStore(pool, pool, new H2BlockMetadataCommands());
+        List<Cid> cids = randomCids(1_000);
+        for (Cid c : cids)
+            store.put(c, new BlockMetadata(c.hashCode(), Collections.emptyList()));
+
+        ExecutorService threads = Executors.newFixedThreadPool(16);
+        List<Future<Boolean>> results = new ArrayList<>();
+        for (Cid c : cids)
+            results.add(threads.submit(() -> store.get(c).get().size == c.hashCode()));
+        for (Future<Boolean> res : results)
+            Assert.assertTrue(res.get());
+        threads.shutdown();
+
+        Assert.assertTrue(pool.openConnections() <= pool.size());
+        Assert.assertEquals(cids.size(), store.size());
+        pool.close();
+    }
+
+    @Test
+    public void listingWhileLookingUpWithSingleConnection() throws Exception {
+        String url = "jdbc:h2:mem:single;MODE=PostgreSQL;DATABASE_TO_LOWER=TRUE;DEFAULT_NULL_ORDERING=HIGH";
+        ConnectionPool pool = new ConnectionPool(url, 1, false);
+        try {
+            new JdbcBlockMetadataStore(pool, pool, new H2BlockMetadataCommands());
+            Assert.fail("A single shared connection would deadlock");
+        } catch (IllegalArgumentException expected) {}
+
+        ConnectionPool listings = new ConnectionPool(url, 1, false);
+        JdbcBlockMetadataStore store = new JdbcBlockMetadataStore(pool, pool, listings, new H2BlockMetadataCommands());
+        List<Cid> cids = randomCids(100);
+        for (Cid c : cids)
+            store.put(c, new BlockMetadata(1, Collections.emptyList()));
+        // as done by a migration, look up each batch while the listing is open
+        try (Stream<Cid> all = store.list()) {
+            List<Cid> listed = all.collect(Collectors.toList());
+            Assert.assertEquals(cids.size(), store.getAll(listed).size());
+        }
+        pool.close();
+        listings.close();
+    }
+
+    @Test
+    public void replicaMissesFallBackToPrimary() throws Exception {
+        String options = ";MODE=PostgreSQL;DATABASE_TO_LOWER=TRUE;DEFAULT_NULL_ORDERING=HIGH";
+        ConnectionPool primary = new ConnectionPool("jdbc:h2:mem:primary" + options, 2, false);
+        ConnectionPool replica = new ConnectionPool("jdbc:h2:mem:replica" + options, 2, false);
+        // a replica which never catches up
+        new JdbcBlockMetadataStore(replica, new H2BlockMetadataCommands());
+        JdbcBlockMetadataStore store = new JdbcBlockMetadataStore(primary, replica, new H2BlockMetadataCommands());
+        List<Cid> cids = randomCids(10);
+        for (Cid c : cids)
+            store.put(c, new BlockMetadata(c.hashCode(), Collections.emptyList()));
+        for (Cid c : cids)
+            Assert.assertEquals(c.hashCode(), store.get(c).get().size);
+        Assert.assertEquals(cids.size(), store.getAll(cids).size());
+        primary.close();
+        replica.close();
+    }
+}
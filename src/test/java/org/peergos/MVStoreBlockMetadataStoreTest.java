@@ -0,0 +1,74 @@
+package org.peergos;
+
+import io.ipfs.cid.Cid;
+import io.ipfs.multihash.Multihash;
+import org.junit.Assert;
+import org.junit.Test;
+import org.peergos.blockstore.metadatadb.BlockMetadata;
+import org.peergos.blockstore.metadatadb.MVStoreBlockMetadataStore;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+public class MVStoreBlockMetadataStoreTest {
+
+    private static List<Cid> randomCids(Random r, int count, Cid.Codec codec) {
+        List<Cid> res = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            byte[] hash = new byte[32];
+            r.nextBytes(hash);
+            res.add(new Cid(1, codec, Multihash.Type.sha2_256, hash));
+        }
+        return res;
+    }
+
+    @Test
+    public void basicOperations() throws Exception {
+        Path file = Files.createTempDirectory("nabu-kv").resolve("metadata.kv");
+        Random r = new Random(1);
+        List<Cid> raw = randomCids(r, 100, Cid.Codec.Raw);
+        List<Cid> cbor = randomCids(r, 100, Cid.Codec.DagCbor);
+        try (MVStoreBlockMetadataStore store = new MVStoreBlockMetadataStore(file)) {
+            for (Cid c : raw)
+                store.put(c, new BlockMetadata(1, Collections.emptyList()));
+            for (Cid c : cbor)
+                store.put(c, new BlockMetadata(2, raw.subList(0, 3)));
+
+            Assert.assertEquals(200, store.size());
+            Assert.assertEquals(raw.subList(0, 3), store.get(cbor.get(0)).get().links);
+            Assert.assertEquals(new HashSet<>(cbor), store.listCbor().collect(Collectors.toSet()));
+
+            store.remove(raw.get(0));
+            Assert.assertTrue(store.get(raw.get(0)).isEmpty());
+        }
+
+        // everything is persisted
+        try (MVStoreBlockMetadataStore store = new MVStoreBlockMetadataStore(file)) {
+            Assert.assertEquals(199, store.size());
+            Assert.assertEquals(1, store.get(raw.get(1)).get().size);
+        }
+    }
+
+    @Test
+    public void importFromOtherStore() throws Exception {
+        RamBlockMetadataStore source = new RamBlockMetadataStore();
+        List<Cid> cids = randomCids(new Random(2), 2_500, Cid.Codec.DagCbor);
+        for (Cid c : cids)
+            source.put(c, new BlockMetadata(10, Collections.singletonList(cids.get(0))));
+
+        Path file = Files.createTempDirectory("nabu-kv").resolve("metadata.kv");
+        try (MVStoreBlockMetadataStore store = new MVStoreBlockMetadataStore(file)) {
+            Assert.assertEquals(cids.size(), store.importFrom(source, 1000));
+            Assert.assertEquals(cids.size(), store.size());
+            Assert.assertEquals(cids.get(0), store.get(cids.get(1)).get().links.get(0));
+            // a second import copies nothing
+            Assert.assertEquals(0, store.importFrom(source, 1000));
+        }
+    }
+}
@@ -41,7 +41,7 @@ public class S3BlockStoreTest {
         testFileStore(metadata);
     }
 
-    public void testFileStore(BlockMetadataStore metadata) {
+    private static Map<String, Object> params() {
         Map<String, Object> params = new HashMap<>();
         params.put("type", "s3ds");
         params.put("region", "local");
@@ -50,8 +50,32 @@ public class S3BlockStoreTest {
         params.put("regionEndpoint", "localhost:9000");
         params.put("accessKey", "test");
         params.put("secretKey", "testdslocal");
+        return params;
+    }
 
-        S3Blockstore bs = new S3Blockstore(params, metadata);
+    @Test
+    public void hasAllMatchesHas() {
+        // answered from the metadata store alone, so no S3 server is needed
+        BlockMetadataStore metadata = new RamBlockMetadataStore();
+        S3Blockstore bs = new S3Blockstore(params(), metadata);
+        List<Cid> cids = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            byte[] block = ("block " + i).getBytes();
+            Cid cid = new Cid(1, Cid.Codec.Raw, Multihash.Type.sha2_256, Hash.sha256(block));
+            cids.add(cid);
+            if (i % 3 == 0)
+                metadata.put(cid, block);
+        }
+        cids.add(new Cid(1, Cid.Codec.Raw, Multihash.Type.id, new byte[0]));
+
+        List<Boolean> all = bs.hasAll(cids).join();
+        for (int i = 0; i < cids.size(); i++)
+            Assert.assertEquals(cids.get(i).toString(), bs.has(cids.get(i)).join(), all.get(i));
+        Assert.assertEquals(7, all.stream().filter(x -> x).count());
+    }
+
+    public void testFileStore(BlockMetadataStore metadata) {
+        S3Blockstore bs = new S3Blockstore(params(), metadata);
 
         String msg = "hello world!";
         byte[] block = msg.getBytes();
@@ -0,0 +1,112 @@
+package org.peergos.blockstore;
+
+import io.ipfs.cid.*;
+import io.ipfs.multihash.*;
+import org.junit.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+public class AbsentFilterTest {
+    private static Random r = new Random(3);
+
+    private static Cid randomCid() {
+        byte[] hash = new byte[32];
+        r.nextBytes(hash);
+        return new Cid(1, Cid.Codec.Raw, Multihash.Type.sha2_256, hash);
+    }
+
+    private static class CountingBlockstore extends RamBlockstore {
+        final AtomicLong lookups = new AtomicLong();
+
+        @Override
+        public CompletableFuture<Boolean> has(Cid c) {
+            lookups.incrementAndGet();
+            return super.has(c);
+        }
+    }
+
+    /** A filter which claims to have everything, so every request reaches the absent filter
+     */
+    private static class AllPresent implements Filter {
+        @Override
+        public boolean has(Cid c) {
+            return true;
+        }
+
+        @Override
+        public Cid add(Cid c) {
+            return c;
+        }
+    }
+
+    @Test
+    public void repeatedMissesAreCached() {
+        CountingBlockstore source = new CountingBlockstore();
+        FilteredBlockstore filtered = new FilteredBlockstore(source, new AllPresent(), new AbsentFilter(30_000, 60_000));
+        List<Cid> absent = new ArrayList<>();
+        for (int i = 0; i < 20_000; i++)
+            absent.add(randomCid());
+        for (Cid c : absent)
+            Assert.assertFalse(filtered.has(c).join());
+        long lookups = source.lookups.get();
+        for (Cid c : absent)
+            Assert.assertFalse(filtered.has(c).join());
+        // only false positives of the absent filter reach the blockstore
+        Assert.assertTrue(source.lookups.get() - lookups < absent.size() / 100);
+    }
+
+    @Test
+    public void putRemovesAbsent() {
+        byte[] block = new byte[10];
+        r.nextBytes(block);
+        RamBlockstore source = new RamBlockstore();
+        Cid cid = source.put(block, Cid.Codec.Raw).join();
+        source.rm(cid).join();
+
+        FilteredBlockstore filtered = new FilteredBlockstore(source, new AllPresent(), new AbsentFilter(30_000, 60_000));
+        Assert.assertFalse(filtered.has(cid).join());
+        Assert.assertEquals(cid, filtered.put(block, Cid.Codec.Raw).join());
+        Assert.assertTrue(filtered.has(cid).join());
+        Assert.assertTrue(filtered.get(cid).join().isPresent());
+    }
+
+    @Test
+    public void entriesExpire() throws Exception {
+        AbsentFilter absent = new AbsentFilter(3_000, 300);
+        Cid old = randomCid();
+        absent.add(old);
+        Assert.assertTrue(absent.has(old));
+        Thread.sleep(400);
+        Assert.assertFalse(absent.has(old));
+        // later additions start new generations and are still remembered
+        Cid recent = randomCid();
+        absent.add(recent);
+        Assert.assertTrue(absent.has(recent));
+    }
+
+    @Test
+    public void oldestGenerationIsDropped() {
+        AbsentFilter absent = new AbsentFilter(3_000, 60_000);
+        List<Cid> first = new ArrayList<>();
+        for (int i = 0; i < 1_000; i++)
+            first.add(absent.add(randomCid()));
+        for (int i = 0; i < 3_000; i++)
+            absent.add(randomCid());
+        long remembered = first.stream().filter(absent::has).count();
+        Assert.assertTrue(remembered < 10);
+    }
+
+    @Test
+    public void repeatedAddsDontRotate() {
+        AbsentFilter absent = new AbsentFilter(3_000, 60_000);
+        Cid early = absent.add(randomCid());
+        Cid repeated = randomCid();
+        // many more adds than fit in all the generations
+        for (int i = 0; i < 10_000; i++)
+            absent.add(repeated);
+        Assert.assertTrue(absent.has(early));
+        Assert.assertTrue(absent.has(repeated));
+    }
+}
@@ -5,6 +5,7 @@ import io.ipfs.multihash.*;
 import org.junit.*;
 
 import java.util.*;
+import java.util.concurrent.*;
 
 public class BloomTest {
     private static Random r = new Random(42);
@@ -40,6 +41,34 @@ public class BloomTest {
         checkFalsePositiveRate(bloom, 14);
     }
 
+    @Test
+    public void concurrentAdds() throws Exception {
+        CidBloomFilter bloom = new CidBloomFilter(new BlockedBloomFilter(200_000, 0.01), 200_000);
+        int threads = 8;
+        List<List<Cid>> added = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            List<Cid> cids = new ArrayList<>();
+            for (int i = 0; i < 25_000; i++) {
+                byte[] hash = new byte[32];
+                r.nextBytes(hash);
+                cids.add(new Cid(1, Cid.Codec.Raw, Multihash.Type.sha2_256, hash));
+            }
+            added.add(cids);
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<?>> res = new ArrayList<>();
+        for (List<Cid> cids : added)
+            res.add(pool.submit(() -> cids.forEach(bloom::add)));
+        for (Future<?> f : res)
+            f.get();
+        pool.shutdown();
+
+        for (List<Cid> cids : added)
+            for (Cid c : cids)
+                Assert.assertTrue(bloom.has(c));
+        checkFalsePositiveRate(bloom, 1.1);
+    }
+
     private static void addRandomBlocks(int nBlocks, Blockstore b) {
         for (int i = 0; i < nBlocks; i++) {
             byte[] block = new byte[10];
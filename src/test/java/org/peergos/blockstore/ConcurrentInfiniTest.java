@@ -0,0 +1,100 @@
+package org.peergos.blockstore;
+
+import org.junit.*;
+import org.peergos.blockstore.filters.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+public class ConcurrentInfiniTest {
+
+    private static byte[][] randomKeys(int count, long seed) {
+        Random r = new Random(seed);
+        byte[][] res = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            res[i] = new byte[36];
+            r.nextBytes(res[i]);
+        }
+        return res;
+    }
+
+    @Test
+    public void concurrentInsertAndSearch() throws Exception {
+        // start small so segments expand while being searched
+        ConcurrentInfiniFilter filter = new ConcurrentInfiniFilter(4, 10, 16);
+        filter.set_expand_autonomously(true);
+        byte[][] existing = randomKeys(50_000, 1);
+        for (byte[] key : existing)
+            filter.insert(key, true);
+
+        int writers = 8;
+        byte[][] added = randomKeys(400_000, 2);
+        ExecutorService pool = Executors.newFixedThreadPool(writers * 2);
+        AtomicBoolean done = new AtomicBoolean(false);
+        AtomicLong falseNegatives = new AtomicLong();
+        List<Future<?>> readers = new ArrayList<>();
+        for (int t = 0; t < writers; t++) {
+            int offset = t;
+            readers.add(pool.submit(() -> {
+                while (! done.get())
+                    for (int i = offset; i < existing.length; i += writers)
+                        if (! filter.search(existing[i]))
+                            falseNegatives.incrementAndGet();
+            }));
+        }
+        List<Future<?>> inserts = new ArrayList<>();
+        for (int t = 0; t < writers; t++) {
+            int offset = t;
+            inserts.add(pool.submit(() -> {
+                for (int i = offset; i < added.length; i += writers)
+                    filter.insert(added[i], true);
+            }));
+        }
+        for (Future<?> f : inserts)
+            f.get();
+        done.set(true);
+        for (Future<?> f : readers)
+            f.get();
+        pool.shutdown();
+
+        Assert.assertEquals(0, falseNegatives.get());
+        for (byte[] key : added)
+            Assert.assertTrue(filter.search(key));
+        for (byte[] key : existing)
+            Assert.assertTrue(filter.search(key));
+    }
+
+    @Test
+    public void throughput() throws Exception {
+        byte[][] keys = randomKeys(1 << 20, 3);
+        for (int threads = 1; threads <= 32; threads *= 2) {
+            ConcurrentInfiniFilter filter = new ConcurrentInfiniFilter(4, 21, 16);
+            for (int i = 0; i < keys.length / 2; i++)
+                filter.insert(keys[i], true);
+            ExecutorService pool = Executors.newFixedThreadPool(threads);
+            int opsPerThread = 1_000_000 / threads;
+            List<Future<?>> res = new ArrayList<>();
+            long start = System.nanoTime();
+            for (int t = 0; t < threads; t++) {
+                long seed = t;
+                res.add(pool.submit(() -> {
+                    Random r = new Random(seed);
+                    for (int i = 0; i < opsPerThread; i++) {
+                        byte[] key = keys[r.nextInt(keys.length)];
+                        // 10% adds, 90% lookups, like a blockstore serving wants
+                        if (i % 10 == 0)
+                            filter.insert(key, true);
+                        else
+                            filter.search(key);
+                    }
+                }));
+            }
+            for (Future<?> f : res)
+                f.get();
+            long durationNanos = System.nanoTime() - start;
+            pool.shutdown();
+            System.out.println(threads + " threads: " + (opsPerThread * threads * 1000L / (durationNanos / 1_000_000 + 1)) + " ops/s");
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package org.peergos.blockstore;
+
+import io.ipfs.cid.*;
+import org.junit.*;
+
+import java.nio.file.*;
+import java.util.*;
+import java.util.function.*;
+
+public class FilterSnapshotTest {
+    private static Random r = new Random(7);
+
+    @Test
+    public void bloom() throws Exception {
+        reloadAndReplay("bloom", CidBloomFilter::read, CidBloomFilter::build);
+    }
+
+    @Test
+    public void infini() throws Exception {
+        reloadAndReplay("infini", CidInfiniFilter::read, CidInfiniFilter::build);
+    }
+
+    private static void reloadAndReplay(String type,
+                                        PersistentFilter.Reader reader,
+                                        BiFunction<Blockstore, Double, Filter> builder) throws Exception {
+        Path dir = Files.createTempDirectory("nabu-filter");
+        RamBlockstore bs = new RamBlockstore();
+        List<Cid> initial = addRandomBlocks(10_000, bs);
+
+        PersistentFilter filter = PersistentFilter.open(dir, type, 0.01, reader, () -> builder.apply(bs, 0.01), 0);
+        List<Cid> beforeSnapshot = addRandomBlocks(1_000, new FilteredBlockstore(bs, filter));
+        filter.snapshot();
+        List<Cid> afterSnapshot = addRandomBlocks(1_000, new FilteredBlockstore(bs, filter));
+
+        // the reloaded filter must not need to scan the blockstore
+        Supplier<Filter> noRebuild = () -> {
+            throw new IllegalStateException("Filter should have been reloaded");
+        };
+        PersistentFilter reloaded = PersistentFilter.open(dir, type, 0.01, reader, noRebuild, 0);
+        for (List<Cid> cids : List.of(initial, beforeSnapshot, afterSnapshot))
+            for (Cid c : cids)
+                Assert.assertTrue(reloaded.has(c));
+
+        // a different false positive rate rebuilds the filter
+        boolean[] rebuilt = {false};
+        PersistentFilter.open(dir, type, 0.001, reader, () -> {
+            rebuilt[0] = true;
+            return builder.apply(bs, 0.001);
+        }, 0);
+        Assert.assertTrue(rebuilt[0]);
+    }
+
+    @Test
+    public void fullBloomIsRebuilt() throws Exception {
+        Path dir = Files.createTempDirectory("nabu-filter");
+        RamBlockstore bs = new RamBlockstore();
+        addRandomBlocks(100, bs);
+        PersistentFilter filter = PersistentFilter.open(dir, "bloom", 0.01, CidBloomFilter::read,
+                () -> CidBloomFilter.build(bs, 0.01), 0);
+        long initialCapacity = filter.capacity();
+        List<Cid> added = addRandomBlocks((int) initialCapacity + 100, new FilteredBlockstore(bs, filter));
+        long end = System.currentTimeMillis() + 10_000;
+        while (filter.capacity() == initialCapacity && System.currentTimeMillis() < end)
+            Thread.sleep(10);
+        Assert.assertTrue(filter.capacity() > filter.count());
+        for (Cid c : added)
+            Assert.assertTrue(filter.has(c));
+
+        // the capacity is persisted with the snapshot
+        filter.snapshot();
+        PersistentFilter reloaded = PersistentFilter.open(dir, "bloom", 0.01, CidBloomFilter::read, () -> {
+            throw new IllegalStateException("Filter should have been reloaded");
+        }, 0);
+        Assert.assertEquals(filter.capacity(), reloaded.capacity());
+    }
+
+    @Test
+    public void corruptSnapshotIsRebuilt() throws Exception {
+        Path dir = Files.createTempDirectory("nabu-filter");
+        RamBlockstore bs = new RamBlockstore();
+        List<Cid> cids = addRandomBlocks(1_000, bs);
+        PersistentFilter.open(dir, "bloom", 0.01, CidBloomFilter::read, () -> CidBloomFilter.build(bs, 0.01), 0)
+                .snapshot();
+        Path snapshot = dir.resolve("filter.snapshot");
+        byte[] raw = Files.readAllBytes(snapshot);
+        // corruption is detected before the filter is read
+        raw[raw.length / 2] ^= 0x7f;
+        Files.write(snapshot, raw);
+
+        boolean[] rebuilt = {false};
+        PersistentFilter reopened = PersistentFilter.open(dir, "bloom", 0.01, CidBloomFilter::read, () -> {
+            rebuilt[0] = true;
+            return CidBloomFilter.build(bs, 0.01);
+        }, 0);
+        Assert.assertTrue(rebuilt[0]);
+        for (Cid c : cids)
+            Assert.assertTrue(reopened.has(c));
+    }
+
+    private static List<Cid> addRandomBlocks(int nBlocks, Blockstore b) {
+        List<Cid> res = new ArrayList<>();
+        for (int i = 0; i < nBlocks; i++) {
+            byte[] block = new byte[10];
+            r.nextBytes(block);
+            res.add(b.put(block, Cid.Codec.Raw).join());
+        }
+        return res;
+    }
+}
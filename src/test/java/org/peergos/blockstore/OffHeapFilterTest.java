@@ -0,0 +1,65 @@
+package org.peergos.blockstore;
+
+import io.ipfs.cid.*;
+import io.ipfs.multihash.*;
+import org.junit.*;
+import org.peergos.blockstore.filters.bitmap.*;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+public class OffHeapFilterTest {
+
+    private static List<Cid> randomCids(int count, long seed) {
+        Random r = new Random(seed);
+        List<Cid> res = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            byte[] hash = new byte[32];
+            r.nextBytes(hash);
+            res.add(new Cid(1, Cid.Codec.Raw, Multihash.Type.sha2_256, hash));
+        }
+        return res;
+    }
+
+    private static byte[] serialize(Filter f) throws IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bout);
+        f.writeTo(out);
+        out.flush();
+        return bout.toByteArray();
+    }
+
+    @Test
+    public void sameAsOnHeap() throws Exception {
+        Path mmapDir = Files.createTempDirectory("nabu-mmap");
+        // more cids than the initial size, so the filters expand
+        List<Cid> cids = randomCids(200_000, 1);
+        CidInfiniFilter heap = CidInfiniFilter.build(1_000, 0.001, BitmapFactory.ON_HEAP);
+        CidInfiniFilter direct = CidInfiniFilter.build(1_000, 0.001, OffHeapBitmap.direct());
+        CidInfiniFilter mapped = CidInfiniFilter.build(1_000, 0.001, OffHeapBitmap.mapped(mmapDir));
+        for (Cid c : cids) {
+            heap.add(c);
+            direct.add(c);
+            mapped.add(c);
+        }
+        for (Cid c : cids) {
+            Assert.assertTrue(direct.has(c));
+            Assert.assertTrue(mapped.has(c));
+        }
+        byte[] expected = serialize(heap);
+        Assert.assertArrayEquals(expected, serialize(direct));
+        Assert.assertArrayEquals(expected, serialize(mapped));
+
+        // snapshots can be restored into either kind of storage
+        CidInfiniFilter restored = CidInfiniFilter.read(new DataInputStream(new ByteArrayInputStream(expected)), OffHeapBitmap.direct());
+        Assert.assertArrayEquals(expected, serialize(restored));
+        for (Cid c : randomCids(10_000, 2))
+            Assert.assertEquals(heap.has(c), restored.has(c));
+
+        // mapped files are removed once mapped
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(mmapDir)) {
+            Assert.assertFalse(files.iterator().hasNext());
+        }
+    }
+}
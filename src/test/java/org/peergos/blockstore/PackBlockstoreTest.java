@@ -0,0 +1,177 @@
+package org.peergos.blockstore;
+
+import io.ipfs.cid.*;
+import org.junit.*;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.stream.*;
+
+public class PackBlockstoreTest {
+
+    private static List<byte[]> randomBlocks(int count, long seed) {
+        Random r = new Random(seed);
+        List<byte[]> res = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            byte[] block = new byte[200];
+            r.nextBytes(block);
+            res.add(block);
+        }
+        return res;
+    }
+
+    private static long segmentBytes(Path dir) throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(p -> p.toString().endsWith(".pack"))
+                    .mapToLong(p -> p.toFile().length())
+                    .sum();
+        }
+    }
+
+    private static void assertContents(PackBlockstore bs, List<Cid> present, List<Cid> absent) {
+        for (Cid c : absent)
+            Assert.assertFalse(bs.has(c).join());
+        for (Cid c : present)
+            Assert.assertTrue(bs.get(c).join().isPresent());
+        Assert.assertEquals(present.size(), bs.refStream().count());
+    }
+
+    @Test
+    public void indexIsRebuiltAfterItIsLost() throws Exception {
+        Path dir = Files.createTempDirectory("nabu-packs");
+        PackBlockstore bs = new PackBlockstore(dir, 4096, 0.5, false, 0);
+        List<byte[]> blocks = randomBlocks(100, 1);
+        List<Cid> cids = new ArrayList<>();
+        for (byte[] b : blocks)
+            cids.add(bs.put(b, Cid.Codec.Raw).join());
+        List<Cid> removed = new ArrayList<>();
+        for (int i = 0; i < cids.size(); i += 3) {
+            Assert.assertTrue(bs.rm(cids.get(i)).join());
+            removed.add(cids.get(i));
+        }
+        List<Cid> present = cids.stream().filter(c -> ! removed.contains(c)).collect(Collectors.toList());
+        bs.close();
+
+        // losing the index must not lose blocks, neither on the rebuild nor on the restart after it
+        for (int restart = 0; restart < 2; restart++) {
+            if (restart == 0)
+                Files.delete(dir.resolve("index.mv"));
+            bs = new PackBlockstore(dir, 4096, 0.5, false, 0);
+            assertContents(bs, present, removed);
+            bs.close();
+        }
+    }
+
+    @Test
+    public void unclosedStoreReplaysTheLog() throws Exception {
+        Path dir = Files.createTempDirectory("nabu-packs");
+        PackBlockstore bs = new PackBlockstore(dir, 4096, 0.5, false, 0);
+        List<Cid> cids = new ArrayList<>();
+        for (byte[] b : randomBlocks(50, 2))
+            cids.add(bs.put(b, Cid.Codec.Raw).join());
+        Assert.assertTrue(bs.rm(cids.get(0)).join());
+        // simulate a crash by copying the files of a running store
+        Path copy = Files.createTempDirectory("nabu-packs");
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path p : files.collect(Collectors.toList()))
+                Files.copy(p, copy.resolve(p.getFileName()));
+        }
+        bs.close();
+
+        PackBlockstore recovered = new PackBlockstore(copy, 4096, 0.5, false, 0);
+        assertContents(recovered, cids.subList(1, cids.size()), cids.subList(0, 1));
+        recovered.close();
+    }
+
+    @Test
+    public void compactionDropsTombstones() throws Exception {
+        Path dir = Files.createTempDirectory("nabu-packs");
+        PackBlockstore bs = new PackBlockstore(dir, 4096, 0.5, false, 0);
+        List<Cid> cids = new ArrayList<>();
+        for (byte[] b : randomBlocks(100, 3))
+            cids.add(bs.put(b, Cid.Codec.Raw).join());
+        for (Cid c : cids)
+            Assert.assertTrue(bs.rm(c).join());
+        // fill the active segment, so every tombstone is in a sealed segment
+        List<Cid> kept = new ArrayList<>();
+        for (byte[] b : randomBlocks(30, 4))
+            kept.add(bs.put(b, Cid.Codec.Raw).join());
+        long before = segmentBytes(dir);
+        // the removed blocks' segments are compacted first, after which their tombstones aren't needed
+        bs.compact();
+        long after = segmentBytes(dir);
+        Assert.assertTrue("segments shrank from " + before + " to " + after, after < before / 2);
+        bs.close();
+
+        PackBlockstore reopened = new PackBlockstore(dir, 4096, 0.5, false, 0);
+        assertContents(reopened, kept, cids);
+        reopened.close();
+    }
+
+    @Test
+    public void carriedTombstoneDoesNotRemoveLaterPut() throws Exception {
+        Path dir = Files.createTempDirectory("nabu-packs");
+        // segments are sealed by each large block
+        PackBlockstore bs = new PackBlockstore(dir, 1000, 0.5, false, 0);
+        Random r = new Random(5);
+        byte[] x = new byte[100];
+        r.nextBytes(x);
+        List<byte[]> large = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            byte[] block = new byte[2000];
+            r.nextBytes(block);
+            large.add(block);
+        }
+        // segment 0: X and a live block, which keeps it from being compacted
+        Cid xCid = bs.put(x, Cid.Codec.Raw).join();
+        Cid kept = bs.put(large.get(0), Cid.Codec.Raw).join();
+        // segment 1: the tombstone of X in segment 0
+        Assert.assertTrue(bs.rm(xCid).join());
+        Cid filler1 = bs.put(large.get(1), Cid.Codec.Raw).join();
+        // segment 2: X again
+        Assert.assertTrue(bs.rm(filler1).join());
+        bs.put(x, Cid.Codec.Raw).join();
+        Cid filler2 = bs.put(large.get(2), Cid.Codec.Raw).join();
+        // the tombstone of X in segment 0 is carried forward while X is live
+        bs.compact();
+        Assert.assertTrue(bs.get(xCid).join().isPresent());
+
+        // segment 3: the tombstone of X in segment 2
+        Assert.assertTrue(bs.rm(xCid).join());
+        Cid filler3 = bs.put(large.get(3), Cid.Codec.Raw).join();
+        Assert.assertTrue(bs.rm(filler2).join());
+        Assert.assertTrue(bs.rm(filler3).join());
+        // compacts segment 2 and then segment 3, dropping the tombstone of X in segment 2
+        bs.compact();
+        Assert.assertFalse(bs.has(xCid).join());
+        bs.close();
+
+        Files.delete(dir.resolve("index.mv"));
+        PackBlockstore rebuilt = new PackBlockstore(dir, 1000, 0.5, false, 0);
+        assertContents(rebuilt, List.of(kept), List.of(xCid, filler1, filler2, filler3));
+        rebuilt.close();
+    }
+
+    @Test
+    public void closeWaitsForCompaction() throws Exception {
+        Path dir = Files.createTempDirectory("nabu-packs");
+        PackBlockstore bs = new PackBlockstore(dir, 4096, 0.5, false, 1);
+        List<Cid> cids = new ArrayList<>();
+        for (byte[] b : randomBlocks(200, 6))
+            cids.add(bs.put(b, Cid.Codec.Raw).join());
+        List<Cid> removed = new ArrayList<>();
+        for (int i = 0; i < cids.size(); i += 2) {
+            Assert.assertTrue(bs.rm(cids.get(i)).join());
+            removed.add(cids.get(i));
+        }
+        bs.close();
+        Assert.assertTrue(Thread.getAllStackTraces().keySet().stream()
+                .noneMatch(t -> t.getName().equals("PackCompactor")));
+
+        PackBlockstore reopened = new PackBlockstore(dir, 4096, 0.5, false, 0);
+        List<Cid> present = cids.stream().filter(c -> ! removed.contains(c)).collect(Collectors.toList());
+        assertContents(reopened, present, removed);
+        reopened.close();
+    }
+}
@@ -0,0 +1,209 @@
+package org.peergos.blockstore;
+
+import io.ipfs.cid.*;
+import org.junit.*;
+
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+public class TieredBlockstoreTest {
+    private static final int BLOCK_SIZE = 1024;
+
+    /** A remote store which can be made to fail or stall uploads
+     */
+    private static class FlakyBlockstore extends RamBlockstore {
+        final AtomicInteger failures = new AtomicInteger();
+        final AtomicInteger attempts = new AtomicInteger();
+        volatile CompletableFuture<Void> gate = CompletableFuture.completedFuture(null);
+
+        @Override
+        public CompletableFuture<Cid> put(byte[] block, Cid.Codec codec) {
+            attempts.incrementAndGet();
+            gate.join();
+            if (failures.getAndUpdate(n -> Math.max(0, n - 1)) > 0)
+                throw new IllegalStateException("Upload failed");
+            return super.put(block, codec);
+        }
+    }
+
+    private static List<byte[]> randomBlocks(int count, long seed) {
+        Random r = new Random(seed);
+        List<byte[]> res = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            byte[] block = new byte[BLOCK_SIZE];
+            r.nextBytes(block);
+            res.add(block);
+        }
+        return res;
+    }
+
+    private static void awaitUploads(TieredBlockstore store) throws InterruptedException {
+        long end = System.currentTimeMillis() + 30_000;
+        while (store.pendingUploads() > 0 && System.currentTimeMillis() < end)
+            Thread.sleep(50);
+        Assert.assertEquals(0, store.pendingUploads());
+    }
+
+    @Test
+    public void evictionDuringPutKeepsPendingBlocks() throws Exception {
+        FlakyBlockstore remote = new FlakyBlockstore();
+        List<Cid> remoteCids = new ArrayList<>();
+        for (byte[] b : randomBlocks(20, 1))
+            remoteCids.add(remote.put(b, Cid.Codec.Raw).join());
+        // stall uploads so the new blocks stay pending
+        remote.gate = new CompletableFuture<>();
+        // room for only a few blocks, so every put and get evicts
+        TieredBlockstore store = new TieredBlockstore(remote, Files.createTempDirectory("nabu-tiered"), 4 * BLOCK_SIZE, true, 10_000);
+        try {
+            List<byte[]> blocks = randomBlocks(200, 2);
+            ExecutorService pool = Executors.newFixedThreadPool(8);
+            List<Future<Cid>> puts = new ArrayList<>();
+            for (byte[] b : blocks)
+                puts.add(pool.submit(() -> store.put(b, Cid.Codec.Raw).join()));
+            // reads of other blocks pull them into the cache and evict concurrently with the puts
+            for (int i = 0; i < 200; i++) {
+                Cid c = remoteCids.get(i % remoteCids.size());
+                pool.submit(() -> store.get(c).join());
+            }
+            List<Cid> written = new ArrayList<>();
+            for (Future<Cid> f : puts)
+                written.add(f.get());
+            pool.shutdown();
+            Assert.assertTrue(pool.awaitTermination(30, TimeUnit.SECONDS));
+            Assert.assertEquals(blocks.size(), store.pendingUploads());
+
+            remote.gate.complete(null);
+            awaitUploads(store);
+            for (int i = 0; i < blocks.size(); i++)
+                Assert.assertArrayEquals(blocks.get(i), remote.get(written.get(i)).join().get());
+        } finally {
+            remote.gate.complete(null);
+            store.close();
+        }
+    }
+
+    @Test
+    public void journalIsReplayedAfterRestart() throws Exception {
+        Path dir = Files.createTempDirectory("nabu-tiered");
+        FlakyBlockstore remote = new FlakyBlockstore();
+        remote.gate = new CompletableFuture<>();
+        TieredBlockstore store = new TieredBlockstore(remote, dir, 1024 * BLOCK_SIZE, true, 1_000);
+        List<byte[]> blocks = randomBlocks(50, 3);
+        List<Cid> written = new ArrayList<>();
+        for (byte[] b : blocks)
+            written.add(store.put(b, Cid.Codec.Raw).join());
+        Assert.assertEquals(blocks.size(), store.pendingUploads());
+        // stop before anything is uploaded
+        remote.gate.completeExceptionally(new IllegalStateException("Offline"));
+        store.close();
+        Assert.assertTrue(remote.refs(false).join().isEmpty());
+
+        FlakyBlockstore restartedRemote = new FlakyBlockstore();
+        TieredBlockstore restarted = new TieredBlockstore(restartedRemote, dir, 1024 * BLOCK_SIZE, true, 1_000);
+        try {
+            awaitUploads(restarted);
+            for (int i = 0; i < blocks.size(); i++)
+                Assert.assertArrayEquals(blocks.get(i), restartedRemote.get(written.get(i)).join().get());
+        } finally {
+            restarted.close();
+        }
+    }
+
+    @Test
+    public void failedUploadsAreRetried() throws Exception {
+        FlakyBlockstore remote = new FlakyBlockstore();
+        remote.failures.set(2);
+        TieredBlockstore store = new TieredBlockstore(remote, Files.createTempDirectory("nabu-tiered"), 1024 * BLOCK_SIZE, true, 1_000);
+        try {
+            byte[] block = randomBlocks(1, 4).get(0);
+            Cid cid = store.put(block, Cid.Codec.Raw).join();
+            awaitUploads(store);
+            Assert.assertEquals(0, remote.failures.get());
+            Assert.assertArrayEquals(block, remote.get(cid).join().get());
+            // already uploaded blocks aren't uploaded again
+            Assert.assertEquals(cid, store.put(block, Cid.Codec.Raw).join());
+            Assert.assertEquals(0, store.pendingUploads());
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void removalDuringUploadIsNotUndone() throws Exception {
+        FlakyBlockstore remote = new FlakyBlockstore();
+        remote.gate = new CompletableFuture<>();
+        TieredBlockstore store = new TieredBlockstore(remote, Files.createTempDirectory("nabu-tiered"), 1024 * BLOCK_SIZE, true, 1_000);
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        try {
+            Cid cid = store.put(randomBlocks(1, 5).get(0), Cid.Codec.Raw).join();
+            long end = System.currentTimeMillis() + 10_000;
+            while (remote.attempts.get() == 0 && System.currentTimeMillis() < end)
+                Thread.sleep(10);
+            Assert.assertEquals(1, remote.attempts.get());
+
+            // removed while the upload is in flight
+            Future<Boolean> removed = pool.submit(() -> store.rm(cid).join());
+            Thread.sleep(200);
+            remote.gate.complete(null);
+            Assert.assertTrue(removed.get(10, TimeUnit.SECONDS));
+            Assert.assertFalse(remote.has(cid).join());
+            Assert.assertFalse(store.has(cid).join());
+            Assert.assertEquals(0, store.pendingUploads());
+        } finally {
+            remote.gate.complete(null);
+            pool.shutdown();
+            store.close();
+        }
+    }
+
+    @Test
+    public void journalIsCompacted() throws Exception {
+        Path dir = Files.createTempDirectory("nabu-tiered");
+        byte[] stuck = randomBlocks(1, 6).get(0);
+        RamBlockstore remote = new RamBlockstore() {
+            @Override
+            public CompletableFuture<Cid> put(byte[] block, Cid.Codec codec) {
+                if (Arrays.equals(block, stuck))
+                    throw new IllegalStateException("Upload failed");
+                return super.put(block, codec);
+            }
+        };
+        TieredBlockstore store = new TieredBlockstore(remote, dir, 1024 * BLOCK_SIZE, true, 1_000);
+        Cid stuckCid = store.put(stuck, Cid.Codec.Raw).join();
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try {
+            Random r = new Random(7);
+            for (int batch = 0; batch < 12; batch++) {
+                List<Future<Cid>> puts = new ArrayList<>();
+                for (int i = 0; i < 1_000; i++) {
+                    byte[] block = new byte[32];
+                    r.nextBytes(block);
+                    puts.add(pool.submit(() -> store.put(block, Cid.Codec.Raw).join()));
+                }
+                for (Future<Cid> put : puts)
+                    put.get();
+                long end = System.currentTimeMillis() + 30_000;
+                while (store.pendingUploads() > 1 && System.currentTimeMillis() < end)
+                    Thread.sleep(50);
+                Assert.assertEquals(1, store.pendingUploads());
+            }
+        } finally {
+            pool.shutdown();
+            store.close();
+        }
+        // 24,000 records without compaction
+        long journalLines = Files.readAllLines(dir.resolve("writeback.journal")).size();
+        Assert.assertTrue("journal has " + journalLines + " records", journalLines < 5_000);
+
+        RamBlockstore restartedRemote = new RamBlockstore();
+        TieredBlockstore restarted = new TieredBlockstore(restartedRemote, dir, 1024 * BLOCK_SIZE, true, 1_000);
+        try {
+            awaitUploads(restarted);
+            Assert.assertTrue(restartedRemote.has(stuckCid).join());
+        } finally {
+            restarted.close();
+        }
+    }
+}
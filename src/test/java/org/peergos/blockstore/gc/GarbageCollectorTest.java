@@ -0,0 +1,144 @@
+package org.peergos.blockstore.gc;
+
+import io.ipfs.cid.*;
+import org.junit.*;
+import org.peergos.blockstore.*;
+import org.peergos.cbor.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.*;
+
+public class GarbageCollectorTest {
+    private static Random r = new Random(5);
+
+    private static Cid raw(Blockstore blocks) {
+        byte[] block = new byte[100];
+        r.nextBytes(block);
+        return blocks.put(block, Cid.Codec.Raw).join();
+    }
+
+    private static Cid node(Blockstore blocks, List<Cid> links) {
+        CborObject.CborList list = CborObject.CborList.build(links, CborObject.CborMerkleLink::new);
+        return blocks.put(list.toByteArray(), Cid.Codec.DagCbor).join();
+    }
+
+    /** Build a tree of the given depth and fanout, returning the root.
+     */
+    private static Cid tree(Blockstore blocks, int depth, int fanout, List<Cid> all) {
+        Cid res;
+        if (depth == 0)
+            res = raw(blocks);
+        else
+            res = node(blocks, IntStream.range(0, fanout)
+                    .mapToObj(i -> tree(blocks, depth - 1, fanout, all))
+                    .collect(Collectors.toList()));
+        all.add(res);
+        return res;
+    }
+
+    @Test
+    public void unreachableBlocksAreRemoved() {
+        GcBlockstore blocks = new GcBlockstore(new RamBlockstore());
+        GarbageCollector gc = new GarbageCollector(blocks, new RamPinStore(), 4, 10, 0);
+        List<Cid> kept = new ArrayList<>();
+        gc.pin(tree(blocks, 3, 4, kept));
+        List<Cid> garbage = new ArrayList<>();
+        tree(blocks, 2, 4, garbage);
+        // a link to a block we don't have
+        Cid missing = node(new RamBlockstore(), List.of(raw(new RamBlockstore())));
+        gc.pin(node(blocks, List.of(missing)));
+
+        GarbageCollector.Result res = gc.collect();
+        Assert.assertEquals(garbage.size(), res.removed);
+        for (Cid c : kept)
+            Assert.assertTrue(blocks.has(c).join());
+        for (Cid c : garbage)
+            Assert.assertFalse(blocks.has(c).join());
+    }
+
+    @Test
+    public void unpinnedBlocksAreRemoved() {
+        GcBlockstore blocks = new GcBlockstore(new RamBlockstore());
+        GarbageCollector gc = new GarbageCollector(blocks, new RamPinStore(), 4, 10, 0);
+        List<Cid> all = new ArrayList<>();
+        Cid root = tree(blocks, 2, 3, all);
+        gc.pin(root);
+        Assert.assertEquals(0, gc.collect().removed);
+        gc.unpin(root);
+        Assert.assertEquals(all.size(), gc.collect().removed);
+    }
+
+    @Test
+    public void writesDuringCollectionAreKept() {
+        List<Cid> written = new ArrayList<>();
+        List<Cid> found = new ArrayList<>();
+        List<Cid> unreachable = new ArrayList<>();
+        GcBlockstore[] wrapper = new GcBlockstore[1];
+        RamBlockstore target = new RamBlockstore() {
+            @Override
+            public Stream<Cid> refStream() {
+                // ingest continues once marking has finished
+                tree(wrapper[0], 2, 3, written);
+                wrapper[0].has(found.get(found.size() - 1)).join();
+                return super.refStream();
+            }
+        };
+        GcBlockstore blocks = new GcBlockstore(target);
+        wrapper[0] = blocks;
+        GarbageCollector gc = new GarbageCollector(blocks, new RamPinStore(), 2, 5, 0);
+        tree(blocks, 2, 3, found);
+        tree(blocks, 2, 3, unreachable);
+
+        GarbageCollector.Result res = gc.collect();
+        Assert.assertEquals(unreachable.size(), res.removed);
+        for (Cid c : written)
+            Assert.assertTrue(blocks.has(c).join());
+        // the links of a block found by has are kept too
+        for (Cid c : found)
+            Assert.assertTrue(blocks.has(c).join());
+    }
+
+    @Test
+    public void concurrentCollectionIsRejected() {
+        GarbageCollector[] gc = new GarbageCollector[1];
+        GcBlockstore blocks = new GcBlockstore(new RamBlockstore() {
+            @Override
+            public Stream<Cid> refStream() {
+                Assert.assertTrue(gc[0].isCollecting());
+                try {
+                    gc[0].collect();
+                    Assert.fail();
+                } catch (IllegalStateException expected) {}
+                return super.refStream();
+            }
+        });
+        gc[0] = new GarbageCollector(blocks, new RamPinStore(), 1, 1, 0);
+        Assert.assertEquals(0, gc[0].collect().removed);
+        Assert.assertFalse(gc[0].isCollecting());
+    }
+
+    @Test
+    public void collectionWaitsForWritesInProgress() throws Exception {
+        CompletableFuture<Void> gate = new CompletableFuture<>();
+        CompletableFuture<Void> writing = new CompletableFuture<>();
+        GcBlockstore blocks = new GcBlockstore(new RamBlockstore() {
+            @Override
+            public CompletableFuture<Cid> put(byte[] block, Cid.Codec codec) {
+                writing.complete(null);
+                gate.join();
+                return super.put(block, codec);
+            }
+        });
+        GarbageCollector gc = new GarbageCollector(blocks, new RamPinStore(), 1, 1, 0);
+        // this write started before the collection, so it is never marked and must not overlap the sweep
+        CompletableFuture<Cid> put = CompletableFuture.supplyAsync(() -> raw(blocks));
+        writing.join();
+        CompletableFuture<GarbageCollector.Result> collection = gc.collectInBackground();
+        Thread.sleep(200);
+        Assert.assertFalse(collection.isDone());
+        gate.complete(null);
+        put.join();
+        Assert.assertEquals(1, collection.get(10, TimeUnit.SECONDS).removed);
+    }
+}
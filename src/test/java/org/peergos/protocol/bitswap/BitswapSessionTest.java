@@ -0,0 +1,146 @@
+package org.peergos.protocol.bitswap;
+
+import io.ipfs.cid.*;
+import io.ipfs.multihash.*;
+import io.libp2p.core.*;
+import io.libp2p.core.crypto.*;
+import io.libp2p.core.multiformats.*;
+import io.libp2p.crypto.keys.*;
+import org.junit.*;
+import org.peergos.*;
+import org.peergos.blockstore.*;
+import org.peergos.protocol.bitswap.pb.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+
+public class BitswapSessionTest {
+
+    /** Records what the session sends instead of sending it
+     */
+    private static class RecordingNetwork implements BitswapSession.Network {
+        final PeerId self = peer();
+        final Set<PeerId> audience;
+        final Map<PeerId, List<MessageOuterClass.Message.Wantlist.Entry>> sent = new ConcurrentHashMap<>();
+        final Map<Want, Set<PeerId>> cancelled = new ConcurrentHashMap<>();
+
+        RecordingNetwork(Set<PeerId> audience) {
+            this.audience = audience;
+        }
+
+        @Override
+        public PeerId self() {
+            return self;
+        }
+
+        @Override
+        public Set<PeerId> broadcastAudience() {
+            return audience;
+        }
+
+        @Override
+        public void send(PeerId peer, List<MessageOuterClass.Message.Wantlist.Entry> entries) {
+            sent.computeIfAbsent(peer, p -> Collections.synchronizedList(new ArrayList<>())).addAll(entries);
+        }
+
+        @Override
+        public void cancel(Want w, Set<PeerId> sentTo) {
+            cancelled.put(w, new HashSet<>(sentTo));
+        }
+
+        @Override
+        public void addAddresses(PeerId peer, List<Multiaddr> addresses) {}
+
+        boolean wasSent(PeerId peer, Want w, boolean wantBlock) {
+            List<MessageOuterClass.Message.Wantlist.Entry> entries = sent.getOrDefault(peer, Collections.emptyList());
+            synchronized (entries) {
+                return entries.stream()
+                        .anyMatch(e -> Cid.cast(e.getBlock().toByteArray()).equals(w.cid) &&
+                                (e.getWantType() == MessageOuterClass.Message.Wantlist.WantType.Block) == wantBlock);
+            }
+        }
+    }
+
+    private static PeerId peer() {
+        PrivKey key = Ed25519Kt.generateEd25519KeyPair().getFirst();
+        return PeerId.fromPubKey(key.publicKey());
+    }
+
+    private static BitswapEngine engine() {
+        return new BitswapEngine(new RamBlockstore(), (c, p, a) -> CompletableFuture.completedFuture(true), Bitswap.MAX_MESSAGE_SIZE);
+    }
+
+    private static void await(Supplier<Boolean> condition) throws InterruptedException {
+        long end = System.currentTimeMillis() + 10_000;
+        while (! condition.get() && System.currentTimeMillis() < end)
+            Thread.sleep(10);
+        Assert.assertTrue(condition.get());
+    }
+
+    @Test
+    public void blockIsRequestedFromPeerWhichHasIt() {
+        ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+        List<PeerId> peers = List.of(peer(), peer(), peer(), peer());
+        RecordingNetwork network = new RecordingNetwork(Collections.emptySet());
+        BitswapSession session = new BitswapSession(engine(), network, new HashSet<>(peers), Optional.empty(),
+                timer, Runnable::run, Runnable::run);
+        try {
+            Want w = PeerWantQueueTest.randomWant();
+            CompletableFuture<HashedBlock> res = session.get(List.of(w), false).get(0);
+            // one peer is asked for the block, the others whether they have it
+            Assert.assertEquals(1, peers.stream().filter(p -> network.wasSent(p, w, true)).count());
+            PeerId holder = peers.stream().filter(p -> network.wasSent(p, w, false)).findFirst().get();
+
+            session.receivedPresence(holder, w, true);
+            Assert.assertTrue(network.wasSent(holder, w, true));
+
+            res.complete(new HashedBlock(w.cid, new byte[0]));
+            Assert.assertEquals(new HashSet<>(peers), network.cancelled.get(w));
+        } finally {
+            session.close();
+            timer.shutdown();
+        }
+    }
+
+    @Test
+    public void providerSearchDoesNotBlockSends() throws Exception {
+        ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+        ExecutorService sender = Executors.newSingleThreadExecutor();
+        ExecutorService searcher = Executors.newSingleThreadExecutor();
+        PeerId connected = peer(), provider = peer();
+        RecordingNetwork network = new RecordingNetwork(Set.of(connected));
+        CompletableFuture<Void> searchGate = new CompletableFuture<>();
+        List<Cid> searches = Collections.synchronizedList(new ArrayList<>());
+        BitswapSession session = new BitswapSession(engine(), network, Collections.emptySet(), Optional.of(c -> {
+            searches.add(c);
+            searchGate.join();
+            return CompletableFuture.completedFuture(List.of(
+                    new PeerAddresses(Multihash.deserialize(provider.getBytes()), Collections.emptyList())));
+        }), timer, sender, searcher);
+        try {
+            Want missing = PeerWantQueueTest.randomWant();
+            session.get(List.of(missing), false);
+            await(() -> network.wasSent(connected, missing, true));
+
+            // nobody has it, so providers are looked up
+            session.receivedPresence(connected, missing, false);
+            await(() -> searches.contains(missing.cid));
+
+            // other wants are still sent while the search is running
+            Want other = PeerWantQueueTest.randomWant();
+            session.get(List.of(other), false);
+            await(() -> network.wasSent(connected, other, true));
+
+            searchGate.complete(null);
+            await(() -> network.wasSent(provider, missing, true) || network.wasSent(provider, missing, false));
+            Assert.assertTrue(session.getPeers().contains(provider));
+        } finally {
+            searchGate.complete(null);
+            session.close();
+            timer.shutdown();
+            sender.shutdown();
+            searcher.shutdown();
+        }
+    }
+}
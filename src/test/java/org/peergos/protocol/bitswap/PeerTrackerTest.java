@@ -0,0 +1,79 @@
+package org.peergos.protocol.bitswap;
+
+import io.libp2p.core.*;
+import org.junit.*;
+import org.peergos.*;
+
+import java.util.*;
+
+public class PeerTrackerTest {
+    private static final long MILLIS = 1_000_000;
+
+    private static PeerId peer(int i) {
+        return new PeerId(new byte[]{(byte) i});
+    }
+
+    @Test
+    public void fastPeersRankFirst() {
+        PeerTracker tracker = new PeerTracker();
+        PeerId fast = peer(1), slow = peer(2), useless = peer(3), unknown = peer(4);
+        long now = 0;
+        for (int i = 0; i < 20; i++) {
+            Want w = PeerWantQueueTest.randomWant();
+            for (PeerId p : List.of(fast, slow, useless))
+                tracker.sent(p, w, now);
+            tracker.receivedBlock(fast, w, 1000, now + 20 * MILLIS);
+            tracker.receivedPresence(useless, w, false, now + 20 * MILLIS);
+            tracker.receivedPresence(slow, w, true, now + 800 * MILLIS);
+            now += 1_000 * MILLIS;
+        }
+        Assert.assertEquals(List.of(fast, slow, unknown, useless), tracker.rank(List.of(useless, unknown, slow, fast)));
+        PeerTracker.PeerStats stats = tracker.getStats(fast).get();
+        Assert.assertEquals(20, stats.latencyMillis(), 1);
+        Assert.assertEquals(50_000, stats.bytesPerSecond(), 5_000);
+        Assert.assertTrue(tracker.getStats(useless).get().hitRate() < 0.1);
+    }
+
+    @Test
+    public void timeoutsAdapt() {
+        PeerTracker tracker = new PeerTracker();
+        PeerId fast = peer(1), stalled = peer(2);
+        long now = 0;
+        for (int i = 0; i < 20; i++) {
+            Want w = PeerWantQueueTest.randomWant();
+            tracker.sent(fast, w, now);
+            tracker.receivedBlock(fast, w, 1000, now + 10 * MILLIS);
+            now += 100 * MILLIS;
+        }
+        Assert.assertEquals(PeerTracker.MIN_TIMEOUT_MILLIS, tracker.timeoutMillis(fast));
+        Assert.assertEquals(PeerTracker.DEFAULT_TIMEOUT_MILLIS, tracker.timeoutMillis(stalled));
+
+        tracker.sent(stalled, PeerWantQueueTest.randomWant(), now);
+        long initialTimeout = tracker.timeoutMillis(stalled);
+        Assert.assertEquals(0, tracker.expire(now + (initialTimeout - 1) * MILLIS));
+        Assert.assertEquals(1, tracker.expire(now + initialTimeout * MILLIS));
+        Assert.assertEquals(1, tracker.getStats(stalled).get().timeouts());
+        // each timeout backs off the next one
+        Assert.assertTrue(tracker.timeoutMillis(stalled) > initialTimeout);
+        Assert.assertEquals(0, tracker.expire(now + PeerTracker.MAX_TIMEOUT_MILLIS * MILLIS));
+    }
+
+    @Test
+    public void lateRespondersAreNotChargedOnceSatisfied() {
+        PeerTracker tracker = new PeerTracker();
+        PeerId fast = peer(1), late = peer(2);
+        Want w = PeerWantQueueTest.randomWant();
+        tracker.sent(fast, w, 0);
+        tracker.sent(late, w, 0);
+        tracker.receivedBlock(fast, w, 1000, 20 * MILLIS);
+        tracker.satisfied(w);
+        Assert.assertEquals(0, tracker.expire(PeerTracker.MAX_TIMEOUT_MILLIS * MILLIS));
+        Assert.assertEquals(0, tracker.getStats(late).get().timeouts());
+
+        // a cancelled want is forgotten too
+        Want cancelled = PeerWantQueueTest.randomWant();
+        tracker.sent(late, cancelled, 0);
+        tracker.satisfied(cancelled);
+        Assert.assertEquals(0, tracker.expire(PeerTracker.MAX_TIMEOUT_MILLIS * MILLIS));
+    }
+}
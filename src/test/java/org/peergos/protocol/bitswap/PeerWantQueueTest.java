@@ -0,0 +1,54 @@
+package org.peergos.protocol.bitswap;
+
+import io.ipfs.cid.*;
+import io.ipfs.multihash.*;
+import io.libp2p.core.*;
+import org.junit.*;
+import org.peergos.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+public class PeerWantQueueTest {
+    private static final Random r = new Random(7);
+
+    static Want randomWant() {
+        byte[] hash = new byte[32];
+        r.nextBytes(hash);
+        return new Want(new Cid(1, Cid.Codec.Raw, Multihash.Type.sha2_256, hash));
+    }
+
+    private static PeerWantQueue queue(int maxPending) {
+        return new PeerWantQueue(new PeerId(new byte[]{1}), new Ledger(), maxPending);
+    }
+
+    @Test
+    public void highestPriorityFirst() {
+        PeerWantQueue queue = queue(100);
+        Want low = randomWant(), high = randomWant(), lowLater = randomWant();
+        queue.offer(low, 1, CompletableFuture::new);
+        queue.offer(high, 10, CompletableFuture::new);
+        queue.offer(lowLater, 1, CompletableFuture::new);
+        Assert.assertEquals(high, queue.poll().want);
+        Assert.assertEquals(low, queue.poll().want);
+        Assert.assertEquals(lowLater, queue.poll().want);
+        Assert.assertNull(queue.poll());
+    }
+
+    @Test
+    public void cancelAndDuplicates() {
+        PeerWantQueue queue = queue(2);
+        Want a = randomWant(), b = randomWant();
+        PeerWantQueue.Task first = queue.offer(a, 1, CompletableFuture::new).get();
+        // a duplicate isn't queued again, but shares the queued lookup
+        Assert.assertSame(first, queue.offer(a, 5, CompletableFuture::new).get());
+        Assert.assertTrue(queue.offer(b, 1, CompletableFuture::new).isPresent());
+        Assert.assertSame(first, queue.offer(a, 5, CompletableFuture::new).get());
+        // only a new want overflows a full queue
+        Assert.assertTrue(queue.offer(randomWant(), 1, CompletableFuture::new).isEmpty());
+        Assert.assertTrue(queue.cancel(a).isPresent());
+        Assert.assertTrue(queue.cancel(a).isEmpty());
+        Assert.assertEquals(b, queue.poll().want);
+        Assert.assertTrue(queue.isIdle());
+    }
+}
@@ -0,0 +1,80 @@
+package org.peergos.protocol.bitswap;
+
+import io.libp2p.core.*;
+import org.junit.*;
+import org.peergos.*;
+
+import java.util.*;
+
+public class RebroadcastSchedulerTest {
+
+    private static RebroadcastScheduler.Audience<String> audience(String from, PeerId... peers) {
+        return new RebroadcastScheduler.Audience<>(from, Set.of(peers));
+    }
+
+    @Test
+    public void backoffAndExpiry() {
+        RebroadcastScheduler<String> scheduler = new RebroadcastScheduler<>(1_000, 4_000, 20_000);
+        Want w = PeerWantQueueTest.randomWant();
+        Assert.assertEquals(Optional.of(audience("a")), scheduler.add(w, audience("a"), 0));
+        Assert.assertTrue(scheduler.add(w, audience("a"), 10).isEmpty());
+        Assert.assertTrue(scheduler.due(999).isEmpty());
+        PeerId peer = new PeerId(new byte[]{1});
+        scheduler.sentTo(w, List.of(peer));
+
+        List<Long> sends = new ArrayList<>();
+        for (long t = 0; t <= 25_000; t += 100)
+            if (! scheduler.due(t).isEmpty())
+                sends.add(t);
+        // delays double up to the maximum, then the want expires
+        Assert.assertEquals(List.of(1_000L, 3_000L, 7_000L, 11_000L, 15_000L, 19_000L), sends);
+        Assert.assertEquals(Map.of(audience("a"), Set.of(w)), scheduler.takeExpired());
+        Assert.assertTrue(scheduler.takeExpired().isEmpty());
+        // the peers it was sent to are kept until it is cancelled
+        Assert.assertEquals(1, scheduler.size());
+        Assert.assertEquals(Set.of(peer), scheduler.cancel(w));
+        Assert.assertEquals(0, scheduler.size());
+    }
+
+    @Test
+    public void groupedByAudienceAndCancelled() {
+        RebroadcastScheduler<String> scheduler = new RebroadcastScheduler<>(1_000, 60_000, 300_000);
+        List<Want> wants = new ArrayList<>();
+        for (int i = 0; i < 1_000; i++) {
+            Want w = PeerWantQueueTest.randomWant();
+            wants.add(w);
+            scheduler.add(w, audience(i % 2 == 0 ? "even" : "odd"), 0);
+        }
+        PeerId peer = new PeerId(new byte[]{1});
+        scheduler.sentTo(wants.get(0), List.of(peer));
+        Assert.assertEquals(Set.of(peer), scheduler.cancel(wants.get(0)));
+        Assert.assertEquals(Collections.emptySet(), scheduler.cancel(wants.get(0)));
+
+        Map<RebroadcastScheduler.Audience<String>, Set<Want>> due = scheduler.due(1_000);
+        Assert.assertEquals(499, due.get(audience("even")).size());
+        Assert.assertEquals(500, due.get(audience("odd")).size());
+        Assert.assertFalse(due.get(audience("even")).contains(wants.get(0)));
+        Assert.assertEquals(999, scheduler.size());
+    }
+
+    @Test
+    public void repeatedWantsMergeAudiences() {
+        RebroadcastScheduler<String> scheduler = new RebroadcastScheduler<>(1_000, 60_000, 300_000);
+        PeerId a = new PeerId(new byte[]{1}), b = new PeerId(new byte[]{2}), c = new PeerId(new byte[]{3});
+        Want w = PeerWantQueueTest.randomWant();
+        Assert.assertEquals(Optional.of(audience("us", a)), scheduler.add(w, audience("us", a), 0));
+        scheduler.sentTo(w, List.of(a));
+        // only the peers which haven't been asked need sending to now
+        Assert.assertEquals(Optional.of(audience("us", b)), scheduler.add(w, audience("us", a, b), 10));
+        Assert.assertTrue(scheduler.add(w, audience("us", b), 20).isEmpty());
+        Assert.assertEquals(Map.of(audience("us", a, b), Set.of(w)), scheduler.due(1_000));
+
+        // asking everyone replaces a list of peers
+        Assert.assertEquals(Optional.of(audience("us")), scheduler.add(w, audience("us"), 1_010));
+        scheduler.sentTo(w, List.of(a, b));
+        Assert.assertTrue(scheduler.add(w, audience("us", a), 1_020).isEmpty());
+        Assert.assertEquals(Optional.of(audience("us", c)), scheduler.add(w, audience("us", a, c), 1_030));
+        Assert.assertEquals(Map.of(audience("us"), Set.of(w)), scheduler.due(3_000));
+        Assert.assertEquals(1, scheduler.size());
+    }
+}
@@ -0,0 +1,94 @@
+package org.peergos.protocol.bitswap;
+
+import io.libp2p.core.*;
+import org.junit.*;
+import org.peergos.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+public class WantSchedulerTest {
+
+    private static PeerId peer(int i) {
+        return new PeerId(new byte[]{(byte) i});
+    }
+
+    @Test
+    public void heavyPeerDoesNotStarveOthers() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            Map<PeerId, Ledger> ledgers = new ConcurrentHashMap<>();
+            WantScheduler scheduler = new WantScheduler(pool, 2, 2, 10_000, p -> ledgers.computeIfAbsent(p, x -> new Ledger()));
+            PeerId heavy = peer(1), light = peer(2);
+            List<PeerId> served = Collections.synchronizedList(new ArrayList<>());
+            CompletableFuture<Void> gate = new CompletableFuture<>();
+            List<CompletableFuture<Void>> done = new ArrayList<>();
+            for (int i = 0; i < 1000; i++)
+                done.add(scheduler.offer(heavy, PeerWantQueueTest.randomWant(), 1, () -> gate.thenRun(() -> served.add(heavy))).get());
+            for (int i = 0; i < 10; i++)
+                done.add(scheduler.offer(light, PeerWantQueueTest.randomWant(), 1, () -> gate.thenRun(() -> served.add(light))).get());
+            gate.complete(null);
+            for (CompletableFuture<Void> f : done)
+                f.get(10, TimeUnit.SECONDS);
+            int lastLight = served.lastIndexOf(light);
+            // the light peer alternates with the heavy one rather than waiting behind all its wants
+            Assert.assertTrue("Light peer finished at " + lastLight, lastLight < 50);
+            Assert.assertTrue(scheduler.isIdle());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void limitsLookupsPerPeer() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try {
+            WantScheduler scheduler = new WantScheduler(pool, 8, 2, 100, p -> new Ledger());
+            AtomicInteger running = new AtomicInteger(), maxRunning = new AtomicInteger();
+            List<CompletableFuture<Void>> lookups = new ArrayList<>();
+            List<CompletableFuture<Void>> done = new ArrayList<>();
+            for (int i = 0; i < 20; i++) {
+                CompletableFuture<Void> lookup = new CompletableFuture<>();
+                lookups.add(lookup);
+                done.add(scheduler.offer(peer(1), PeerWantQueueTest.randomWant(), 1, () -> {
+                    maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                    return lookup.thenRun(running::decrementAndGet);
+                }).get());
+            }
+            Thread.sleep(100);
+            Assert.assertEquals(18, scheduler.pending(peer(1)));
+            for (CompletableFuture<Void> lookup : lookups)
+                lookup.complete(null);
+            for (CompletableFuture<Void> f : done)
+                f.get(10, TimeUnit.SECONDS);
+            Assert.assertEquals(2, maxRunning.get());
+            Assert.assertTrue(scheduler.isIdle());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void cancelledWantsAreNotLookedUp() throws Exception {
+        WantScheduler scheduler = new WantScheduler(r -> {}, 1, 1, 100, p -> new Ledger());
+        Want first = PeerWantQueueTest.randomWant(), second = PeerWantQueueTest.randomWant();
+        scheduler.offer(peer(1), first, 1, CompletableFuture::new);
+        CompletableFuture<Void> cancelled = scheduler.offer(peer(1), second, 1, CompletableFuture::new).get();
+        scheduler.cancel(peer(1), second);
+        Assert.assertTrue(cancelled.isDone());
+        Assert.assertEquals(0, scheduler.pending(peer(1)));
+    }
+
+    @Test
+    public void ledgerWeights() {
+        Ledger ledger = new Ledger();
+        Assert.assertEquals(1, ledger.weight(), 0);
+        ledger.sent(1000);
+        Assert.assertEquals(1, ledger.weight(), 0);
+        ledger.received(1000);
+        Assert.assertEquals(2.5, ledger.weight(), 0.01);
+        ledger.received(1_000_000);
+        Assert.assertTrue(ledger.weight() > 3.9);
+    }
+}